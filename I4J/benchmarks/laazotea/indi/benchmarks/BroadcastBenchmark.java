@@ -0,0 +1,124 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIXMLWriter;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the time to send a message to several recipients serializing it
+ * once per recipient (as each <code>INDIDeviceListener</code> did) and
+ * serializing it once into a shared <code>INDIEncodedMessage</code>. Each
+ * recipient writes the bytes into its own in-memory stream.
+ *
+ * Usage: <code>BroadcastBenchmark [recipients] [messages]</code> (10 and
+ * 20000 by default).
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class BroadcastBenchmark {
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The number of recipients and of messages (optional).
+   * @throws Exception If the test message cannot be built.
+   */
+  public static void main(String[] args) throws Exception {
+    int recipients = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+    int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+    Element xml = createMessage();
+    INDIXMLWriter[] writers = new INDIXMLWriter[recipients];
+    ByteArrayOutputStream[] outs = new ByteArrayOutputStream[recipients];
+
+    for (int i = 0 ; i < recipients ; i++) {
+      writers[i] = new INDIXMLWriter();
+      outs[i] = new ByteArrayOutputStream();
+    }
+
+    for (int round = 0 ; round < 3 ; round++) {  // The first rounds warm up the JIT
+      long t0 = System.nanoTime();
+
+      for (int m = 0 ; m < messages ; m++) {
+        for (int i = 0 ; i < recipients ; i++) {
+          writers[i].reset();
+          writers[i].write(xml);
+          outs[i].reset();
+          outs[i].write(writers[i].getBuffer(), 0, writers[i].getLength());
+        }
+      }
+
+      long t1 = System.nanoTime();
+
+      for (int m = 0 ; m < messages ; m++) {
+        INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
+        for (int i = 0 ; i < recipients ; i++) {
+          message.retain();  // As an outbound queue would do
+          outs[i].reset();
+          outs[i].write(message.getBytes(), 0, message.getLength());
+          message.release();
+        }
+
+        message.release();
+      }
+
+      long t2 = System.nanoTime();
+      double each = (t1 - t0) / 1000.0 / messages;
+      double once = (t2 - t1) / 1000.0 / messages;
+
+      System.out.printf("Round %d, %d recipients: serialized per recipient %.2f us/message, once %.2f us/message (%.1fx)%n", round + 1, recipients, each, once, each / once);
+    }
+  }
+
+  /**
+   * Creates a typical <code>setNumberVector</code> message.
+   *
+   * @return The message.
+   * @throws Exception If the document cannot be created.
+   */
+  private static Element createMessage() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    Element xml = doc.createElement("setNumberVector");
+
+    xml.setAttribute("device", "Telescope Simulator");
+    xml.setAttribute("name", "EQUATORIAL_EOD_COORD");
+    xml.setAttribute("state", "Busy");
+    xml.setAttribute("timeout", "60");
+    xml.setAttribute("timestamp", "2014-01-01T12:00:00.000");
+
+    String[] names = {"RA", "DEC"};
+
+    for (int i = 0 ; i < names.length ; i++) {
+      Element one = doc.createElement("oneNumber");
+
+      one.setAttribute("name", names[i]);
+      one.appendChild(doc.createTextNode("12.345678"));
+      xml.appendChild(one);
+    }
+
+    doc.appendChild(xml);
+
+    return xml;
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDINotLoadableDriver;
+import laazotea.indi.server.INDIDriverIndex;
+
+/**
+ * Compares the time to find the Drivers in a JAR loading every class of it
+ * (as <code>loadJavaDriversFromJAR</code> did), with the class header scan of
+ * <code>INDIDriverIndex</code> and with a
+ * <code>META-INF/services</code> index. Class loading happens once per Java
+ * Virtual Machine, so each measurement runs in a new one.
+ *
+ * Without a JAR, a synthetic one (with many classes and two Drivers) is
+ * generated with the system Java compiler (a JDK is needed), together with
+ * a copy that has a services index.
+ *
+ * Usage: <code>DriverDiscoveryBenchmark [classes | jar]</code> (a synthetic
+ * JAR of 5000 classes by default).
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class DriverDiscoveryBenchmark {
+
+  /**
+   * The number of classes in each package of the synthetic JAR.
+   */
+  private static final int CLASSES_PER_PACKAGE = 100;
+  /**
+   * The package of the Drivers of the synthetic JAR.
+   */
+  private static final String DRIVER_PACKAGE = "generated.drivers";
+
+  /**
+   * Runs the benchmark or, with a mode, a single measurement.
+   *
+   * @param args The number of classes of the synthetic JAR or the path of a
+   * JAR; or, for a single measurement, the mode (<code>old</code>,
+   * <code>scan</code>) and the JAR.
+   * @throws Exception If the JAR cannot be generated or read.
+   */
+  public static void main(String[] args) throws Exception {
+    if ((args.length == 2) && (args[0].equals("old") || args[0].equals("scan"))) {
+      measure(args[0], args[1]);
+
+      return;
+    }
+
+    String jar;
+    String servicesJar = null;
+    File dir = null;
+
+    if ((args.length > 0) && !args[0].matches("[0-9]+")) {
+      jar = args[0];
+    } else {
+      int classes = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+
+      dir = File.createTempFile("indi-discovery", "");
+      dir.delete();
+      dir.mkdirs();
+
+      System.out.println("Generating a JAR with " + classes + " classes in " + dir);
+
+      generate(dir, classes);
+
+      jar = new File(dir, "drivers.jar").getPath();
+      servicesJar = new File(dir, "drivers-services.jar").getPath();
+    }
+
+    for (int round = 0 ; round < 3 ; round++) {
+      run("old", jar);
+      run("scan", jar);
+
+      if (servicesJar != null) {
+        run("scan", servicesJar);
+      }
+    }
+
+    if (dir != null) {
+      delete(dir);
+    }
+  }
+
+  /**
+   * Runs a measurement in a new Java Virtual Machine, with the same class
+   * path.
+   *
+   * @param mode The mode.
+   * @param jar The JAR.
+   * @throws Exception If the process cannot be run.
+   */
+  private static void run(String mode, String jar) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), DriverDiscoveryBenchmark.class.getName(), mode, jar);
+
+    pb.inheritIO();
+    pb.start().waitFor();
+  }
+
+  /**
+   * Finds the Drivers of a JAR and prints the time it has taken.
+   *
+   * @param mode <code>old</code> to load every class, <code>scan</code> to use
+   * <code>INDIDriverIndex</code>.
+   * @param jar The JAR.
+   * @throws Exception If the JAR cannot be read.
+   */
+  private static void measure(String mode, String jar) throws Exception {
+    long t0 = System.nanoTime();
+    URLClassLoader loader = new URLClassLoader(new URL[]{new File(jar).toURI().toURL()}, INDIDriver.class.getClassLoader());
+    ArrayList<String> found = new ArrayList<String>();
+    String how;
+
+    if (mode.equals("old")) {
+      ArrayList<String> names = getClassNames(jar);
+
+      for (int i = 0 ; i < names.size() ; i++) {
+        Class<?> c = loader.loadClass(names.get(i));
+
+        if (INDIDriver.class.isAssignableFrom(c) && !INDINotLoadableDriver.class.isAssignableFrom(c)) {
+          found.add(names.get(i));
+        }
+      }
+
+      how = "every class loaded (" + names.size() + ")";
+    } else {
+      INDIDriverIndex index = INDIDriverIndex.getIndex(jar);
+      ArrayList<String> names = index.getDriverClassNames();
+
+      for (int i = 0 ; i < names.size() ; i++) {
+        loader.loadClass(names.get(i));
+        found.add(names.get(i));
+      }
+
+      how = index.isFromServiceFile() ? "services index" : "header scan (" + index.getScannedClasses() + " classes)";
+    }
+
+    long t1 = System.nanoTime();
+
+    System.out.printf("%-40s %6d ms, %d Drivers, %s%n", how + ":", (t1 - t0) / 1000000, found.size(), new File(jar).getName());
+
+    loader.close();
+  }
+
+  /**
+   * Gets the names of the classes of a JAR.
+   *
+   * @param jar The JAR.
+   * @return The names of the classes.
+   * @throws IOException If the JAR cannot be read.
+   */
+  private static ArrayList<String> getClassNames(String jar) throws IOException {
+    ArrayList<String> names = new ArrayList<String>();
+    JarInputStream in = new JarInputStream(new FileInputStream(jar));
+
+    try {
+      JarEntry entry;
+
+      while ((entry = in.getNextJarEntry()) != null) {
+        String name = entry.getName();
+
+        if (name.endsWith(".class")) {
+          names.add(name.substring(0, name.length() - 6).replace('/', '.'));
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return names;
+  }
+
+  /**
+   * Generates and compiles the classes of the synthetic JAR and packs them,
+   * with and without a services index.
+   *
+   * @param dir The directory for the sources, classes and JARs.
+   * @param classes The number of classes (besides the Drivers).
+   * @throws Exception If the classes cannot be compiled.
+   */
+  private static void generate(File dir, int classes) throws Exception {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    if (compiler == null) {
+      throw new Exception("A Java compiler is needed to generate the JAR (run it with a JDK or give a JAR)");
+    }
+
+    File src = new File(dir, "src");
+    File out = new File(dir, "classes");
+    ArrayList<String> args = new ArrayList<String>();
+
+    out.mkdirs();
+    args.add("-nowarn");
+    args.add("-cp");
+    args.add(System.getProperty("java.class.path"));
+    args.add("-d");
+    args.add(out.getPath());
+
+    for (int i = 0 ; i < classes ; i++) {
+      String pkg = "generated.p" + (i / CLASSES_PER_PACKAGE);
+
+      args.add(writeSource(src, pkg, "C" + i, "public class C" + i + " {\n"
+              + "  private int value = " + i + ";\n"
+              + "  private String name = \"C" + i + "\";\n"
+              + "  public int next(int x) { return x * " + i + " + value; }\n"
+              + "  public String describe() { return name + \":\" + value; }\n"
+              + "}\n"));
+    }
+
+    String[] drivers = {"FirstDriver", "SecondDriver"};
+
+    for (int i = 0 ; i < drivers.length ; i++) {
+      args.add(writeSource(src, DRIVER_PACKAGE, drivers[i], "import java.io.*;\n"
+              + "import java.util.Date;\n"
+              + "import laazotea.indi.driver.*;\n"
+              + "public class " + drivers[i] + " extends INDIDriver {\n"
+              + "  public " + drivers[i] + "(InputStream in, OutputStream out) { super(in, out); }\n"
+              + "  public String getName() { return \"" + drivers[i] + "\"; }\n"
+              + "  public void processNewTextValue(INDITextProperty p, Date t, INDITextElementAndValue[] v) { }\n"
+              + "  public void processNewSwitchValue(INDISwitchProperty p, Date t, INDISwitchElementAndValue[] v) { }\n"
+              + "  public void processNewNumberValue(INDINumberProperty p, Date t, INDINumberElementAndValue[] v) { }\n"
+              + "  public void processNewBLOBValue(INDIBLOBProperty p, Date t, INDIBLOBElementAndValue[] v) { }\n"
+              + "}\n"));
+    }
+
+    if (compiler.run(null, null, null, args.toArray(new String[args.size()])) != 0) {
+      throw new Exception("The generated classes could not be compiled");
+    }
+
+    pack(out, new File(dir, "drivers.jar"), null);
+    pack(out, new File(dir, "drivers-services.jar"), DRIVER_PACKAGE + "." + drivers[0] + "\n" + DRIVER_PACKAGE + "." + drivers[1] + "\n");
+  }
+
+  /**
+   * Writes the source of a generated class.
+   *
+   * @param src The directory of the sources.
+   * @param pkg The package of the class.
+   * @param name The name of the class.
+   * @param body The source after the package declaration.
+   * @return The path of the source.
+   * @throws IOException If the source cannot be written.
+   */
+  private static String writeSource(File src, String pkg, String name, String body) throws IOException {
+    File d = new File(src, pkg.replace('.', File.separatorChar));
+
+    d.mkdirs();
+
+    File f = new File(d, name + ".java");
+    Writer w = new FileWriter(f);
+
+    try {
+      w.write("package " + pkg + ";\n" + body);
+    } finally {
+      w.close();
+    }
+
+    return f.getPath();
+  }
+
+  /**
+   * Packs the compiled classes into a JAR.
+   *
+   * @param classes The directory of the classes.
+   * @param jar The JAR.
+   * @param services The contents of the services index (<code>null</code> for
+   * none).
+   * @throws IOException If the JAR cannot be written.
+   */
+  private static void pack(File classes, File jar, String services) throws IOException {
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+
+    try {
+      if (services != null) {
+        out.putNextEntry(new JarEntry(INDIDriverIndex.SERVICE_FILE));
+        out.write(services.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+
+      pack(classes, "", out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Adds the files of a directory (and its subdirectories) to a JAR.
+   *
+   * @param dir The directory.
+   * @param prefix The path of the directory in the JAR.
+   * @param out The JAR.
+   * @throws IOException If a file cannot be read.
+   */
+  private static void pack(File dir, String prefix, JarOutputStream out) throws IOException {
+    File[] files = dir.listFiles();
+    byte[] buffer = new byte[8192];
+
+    for (int i = 0 ; i < files.length ; i++) {
+      String name = prefix + files[i].getName();
+
+      if (files[i].isDirectory()) {
+        pack(files[i], name + "/", out);
+      } else {
+        InputStream in = new FileInputStream(files[i]);
+
+        try {
+          out.putNextEntry(new JarEntry(name));
+
+          int n;
+
+          while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+          }
+
+          out.closeEntry();
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes a directory and its contents.
+   *
+   * @param f The directory (or file).
+   */
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+
+    if (files != null) {
+      for (int i = 0 ; i < files.length ; i++) {
+        delete(files[i]);
+      }
+    }
+
+    f.delete();
+  }
+}
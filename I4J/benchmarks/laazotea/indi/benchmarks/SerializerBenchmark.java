@@ -0,0 +1,137 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmarks;
+
+import java.io.StringWriter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import laazotea.indi.INDIXMLWriter;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the time to serialize a XML Element with the former
+ * <code>XMLToString</code> (a new JAXP <code>Transformer</code> per call) and
+ * with a reused <code>INDIXMLWriter</code>. Both outputs are checked to be the
+ * same.
+ *
+ * Usage: <code>SerializerBenchmark [iterations]</code> (10000 by default).
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class SerializerBenchmark {
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The number of iterations (optional).
+   * @throws Exception If the test message cannot be built.
+   */
+  public static void main(String[] args) throws Exception {
+    int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    Element xml = createMessage();
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writer.write(xml);
+
+    if (!writer.toString().equals(transform(xml))) {
+      System.out.println("Warning: the outputs differ");
+      System.out.println("  Transformer:   " + transform(xml));
+      System.out.println("  INDIXMLWriter: " + writer.toString());
+    }
+
+    for (int round = 0 ; round < 3 ; round++) {  // The first rounds warm up the JIT
+      long t0 = System.nanoTime();
+
+      for (int i = 0 ; i < iterations ; i++) {
+        transform(xml);
+      }
+
+      long t1 = System.nanoTime();
+
+      for (int i = 0 ; i < iterations ; i++) {
+        writer.reset();
+        writer.write(xml);
+      }
+
+      long t2 = System.nanoTime();
+      double transformer = (t1 - t0) / 1000.0 / iterations;
+      double indi = (t2 - t1) / 1000.0 / iterations;
+
+      System.out.printf("Round %d: Transformer %.2f us/message, INDIXMLWriter %.2f us/message (%.1fx)%n", round + 1, transformer, indi, transformer / indi);
+    }
+  }
+
+  /**
+   * Creates a typical <code>setTextVector</code> message with a few elements.
+   *
+   * @return The message.
+   * @throws Exception If the document cannot be created.
+   */
+  private static Element createMessage() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    Element xml = doc.createElement("setTextVector");
+
+    xml.setAttribute("device", "Telescope Simulator");
+    xml.setAttribute("name", "SITE_INFO");
+    xml.setAttribute("state", "Ok");
+    xml.setAttribute("timeout", "60");
+    xml.setAttribute("timestamp", "2014-01-01T12:00:00.000");
+    xml.setAttribute("message", "Site <updated> & \"saved\"");
+
+    String[] names = {"NAME", "LATITUDE", "LONGITUDE", "ELEVATION"};
+
+    for (int i = 0 ; i < names.length ; i++) {
+      Element one = doc.createElement("oneText");
+
+      one.setAttribute("name", names[i]);
+      one.appendChild(doc.createTextNode("Value of " + names[i] + " < 100 & > 0"));
+      xml.appendChild(one);
+    }
+
+    doc.appendChild(xml);
+
+    return xml;
+  }
+
+  /**
+   * Serializes a XML Element as the former <code>XMLToString</code> did.
+   *
+   * @param xml The XML Element.
+   * @return The serialized Element.
+   */
+  private static String transform(Element xml) {
+    try {
+      TransformerFactory transFactory = TransformerFactory.newInstance();
+      Transformer transformer = transFactory.newTransformer();
+      StringWriter buffer = new StringWriter();
+
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      transformer.transform(new DOMSource(xml), new StreamResult(buffer));
+
+      return buffer.toString();
+    } catch (Exception e) {
+      return "";
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.ThreadFactory;
+import laazotea.indi.Constants.PropertyPermissions;
+import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.INDIThreads;
+import laazotea.indi.driver.INDIBLOBElementAndValue;
+import laazotea.indi.driver.INDIBLOBProperty;
+import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDINumberElementAndValue;
+import laazotea.indi.driver.INDINumberProperty;
+import laazotea.indi.driver.INDISwitchElementAndValue;
+import laazotea.indi.driver.INDISwitchProperty;
+import laazotea.indi.driver.INDITextElement;
+import laazotea.indi.driver.INDITextElementAndValue;
+import laazotea.indi.driver.INDITextProperty;
+import laazotea.indi.server.DefaultINDIServer;
+
+/**
+ * Compares how a Server copes with many simultaneous Clients when each
+ * connection gets its own platform threads, its own virtual threads (Java 21
+ * or newer) and when all of them share the non-blocking core. For each kind
+ * of Server the Clients connect, ask for the properties of a small Driver and
+ * wait for its definition; the time to serve all of them, the platform
+ * threads and the heap that the connections take are printed.
+ *
+ * Each connection uses two file descriptors of the process, so the limit of
+ * open files (<code>ulimit -n</code>) may need to be raised for large numbers
+ * of Clients.
+ *
+ * Usage: <code>ThreadCapacityBenchmark [clients] [port]</code> (400 and 17700
+ * by default).
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class ThreadCapacityBenchmark {
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The number of Clients and the first port (optional).
+   * @throws Exception If a Client cannot connect or read.
+   */
+  public static void main(String[] args) throws Exception {
+    int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 400;
+    int port = (args.length > 1) ? Integer.parseInt(args[1]) : 17700;
+
+    run("platform", new BenchmarkServer(port, null), clients);
+
+    ThreadFactory virtual = INDIThreads.getVirtualThreadFactory("INDI virtual ");
+
+    if (virtual == null) {
+      System.out.println("virtual : not available in this Java Virtual Machine (Java 21 or newer is needed)");
+    } else {
+      run("virtual", new BenchmarkServer(port + 1, virtual), clients);
+    }
+
+    run("nio", new BenchmarkServer(port + 2, 2, 2), clients);
+
+    System.exit(0);
+  }
+
+  /**
+   * Connects the Clients to a Server, waits for all of them to be served and
+   * prints the results.
+   *
+   * @param label The kind of Server.
+   * @param server The Server.
+   * @param clients The number of Clients.
+   * @throws Exception If a Client cannot connect or read.
+   */
+  private static void run(String label, BenchmarkServer server, int clients) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Runtime runtime = Runtime.getRuntime();
+
+    Thread.sleep(500);  // The listening thread is started
+    server.loadJavaDriver(BenchmarkDriver.class);
+    Thread.sleep(500);
+
+    System.gc();
+
+    int threads0 = threads.getThreadCount();
+    long heap0 = runtime.totalMemory() - runtime.freeMemory();
+    Socket[] sockets = new Socket[clients];
+    byte[] request = "<getProperties version=\"1.7\" />".getBytes("UTF-8");
+    long t0 = System.nanoTime();
+
+    for (int i = 0 ; i < clients ; i++) {
+      sockets[i] = new Socket("localhost", server.getPort());
+      sockets[i].setSoTimeout(30000);
+
+      OutputStream out = sockets[i].getOutputStream();
+
+      out.write(request);
+      out.flush();
+    }
+
+    for (int i = 0 ; i < clients ; i++) {
+      waitForDefinition(sockets[i].getInputStream());
+    }
+
+    long t1 = System.nanoTime();
+
+    System.gc();
+
+    int threads1 = threads.getThreadCount();
+    long heap1 = runtime.totalMemory() - runtime.freeMemory();
+
+    System.out.printf("%-8s: %d Clients served in %d ms, %+d platform threads, %+.1f MB of heap%n", label, clients, (t1 - t0) / 1000000, threads1 - threads0, (heap1 - heap0) / 1048576.0);
+
+    for (int i = 0 ; i < clients ; i++) {
+      sockets[i].close();
+    }
+
+    server.stop();
+  }
+
+  /**
+   * Reads from a Client connection until the definition of the property of
+   * the Driver arrives.
+   *
+   * @param in The stream of the connection.
+   * @throws Exception If the connection is closed or times out.
+   */
+  private static void waitForDefinition(InputStream in) throws Exception {
+    StringBuilder read = new StringBuilder();
+    byte[] buffer = new byte[1024];
+
+    while (read.indexOf("</defTextVector>") < 0) {
+      int n = in.read(buffer);
+
+      if (n < 0) {
+        throw new Exception("Connection closed by the Server");
+      }
+
+      read.append(new String(buffer, 0, n, "UTF-8"));
+    }
+  }
+
+  /**
+   * A Server that can be stopped from the benchmark.
+   */
+  private static class BenchmarkServer extends DefaultINDIServer {
+
+    /**
+     * The port of the Server.
+     */
+    private int port;
+
+    /**
+     * Constructs a Server with its own threads per connection.
+     *
+     * @param port The port.
+     * @param threadFactory The factory of the threads (<code>null</code> for
+     * usual platform threads).
+     */
+    BenchmarkServer(int port, ThreadFactory threadFactory) {
+      super(port, threadFactory);
+
+      this.port = port;
+    }
+
+    /**
+     * Constructs a Server with a non-blocking core.
+     *
+     * @param port The port.
+     * @param ioThreads The number of I/O threads.
+     * @param workerThreads The number of worker threads.
+     */
+    BenchmarkServer(int port, int ioThreads, int workerThreads) {
+      super(port, ioThreads, workerThreads);
+
+      this.port = port;
+    }
+
+    /**
+     * Gets the port of the Server.
+     *
+     * @return The port.
+     */
+    int getPort() {
+      return port;
+    }
+
+    /**
+     * Stops the Server.
+     */
+    void stop() {
+      stopServer();
+    }
+  }
+
+  /**
+   * A Driver with a single text property.
+   */
+  public static class BenchmarkDriver extends INDIDriver {
+
+    /**
+     * Constructs the Driver.
+     *
+     * @param inputStream The stream from which to read messages.
+     * @param outputStream The stream to which to write the messages.
+     */
+    public BenchmarkDriver(InputStream inputStream, OutputStream outputStream) {
+      super(inputStream, outputStream);
+
+      INDITextProperty p = new INDITextProperty(this, "INFO", "Info", "Main", PropertyStates.IDLE, PropertyPermissions.RO);
+
+      new INDITextElement(p, "TEXT", "Text", "Benchmark");
+
+      addProperty(p);
+    }
+
+    @Override
+    public String getName() {
+      return "Benchmark Device";
+    }
+
+    @Override
+    public void processNewTextValue(INDITextProperty property, Date timestamp, INDITextElementAndValue[] elementsAndValues) {
+    }
+
+    @Override
+    public void processNewSwitchValue(INDISwitchProperty property, Date timestamp, INDISwitchElementAndValue[] elementsAndValues) {
+    }
+
+    @Override
+    public void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues) {
+    }
+
+    @Override
+    public void processNewBLOBValue(INDIBLOBProperty property, Date timestamp, INDIBLOBElementAndValue[] elementsAndValues) {
+    }
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import laazotea.indi.Constants.PropertyPermissions;
+import laazotea.indi.Constants.PropertyStates;
+import laazotea.indi.INDIException;
+import laazotea.indi.driver.INDIBLOBElementAndValue;
+import laazotea.indi.driver.INDIBLOBProperty;
+import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDINumberElement;
+import laazotea.indi.driver.INDINumberElementAndValue;
+import laazotea.indi.driver.INDINumberProperty;
+import laazotea.indi.driver.INDISwitchElementAndValue;
+import laazotea.indi.driver.INDISwitchProperty;
+import laazotea.indi.driver.INDITextElement;
+import laazotea.indi.driver.INDITextElementAndValue;
+import laazotea.indi.driver.INDITextProperty;
+import laazotea.indi.server.DefaultINDIServer;
+import laazotea.indi.server.INDIOutboundQueue;
+
+/**
+ * Measures how the outbound messages are gathered into socket writes (each
+ * one a system call).
+ *
+ * First, on a loopback connection, the same messages are written once per
+ * message (as the Clients were written before) and gathered into writes of
+ * up to 64 messages or 64 KiB (as the non-blocking connections do now). The
+ * messages and system calls per second are printed.
+ *
+ * Then a Driver sends a burst of updates through a Server (with and without
+ * the non-blocking core) to a Client, and the counters of the outbound queue
+ * of the Client give the messages per write actually achieved.
+ *
+ * Usage: <code>WriteBatchingBenchmark [messages] [port]</code> (100000 and
+ * 17710 by default).
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class WriteBatchingBenchmark {
+
+  /**
+   * The maximum number of messages in a gathering write.
+   */
+  private static final int BATCH_MESSAGES = 64;
+  /**
+   * The maximum number of bytes in a gathering write.
+   */
+  private static final int BATCH_BYTES = 64 * 1024;
+  /**
+   * The number of updates that the Driver must send.
+   */
+  private static volatile int burst;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args The number of messages and the first port (optional).
+   * @throws Exception If a connection fails.
+   */
+  public static void main(String[] args) throws Exception {
+    int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int port = (args.length > 1) ? Integer.parseInt(args[1]) : 17710;
+    byte[] message = ("<setTextVector device=\"Benchmark Device\" name=\"LOG\" state=\"Ok\" timeout=\"0\" timestamp=\"2014-01-01T12:00:00.000\">\n"
+            + "<oneText name=\"LINE\">12345</oneText></setTextVector>\n").getBytes("UTF-8");
+
+    for (int round = 0 ; round < 3 ; round++) {  // The first rounds warm up the JIT
+      writeLoopback("Round " + (round + 1) + ": one write per message", message, messages, 1);
+      writeLoopback("Round " + (round + 1) + ": gathering writes     ", message, messages, BATCH_MESSAGES);
+    }
+
+    burst = messages;
+
+    runServer("nio     ", new BenchmarkServer(port, 1, 1));
+    runServer("blocking", new BenchmarkServer(port + 1, 0, 0));
+
+    System.exit(0);
+  }
+
+  /**
+   * Writes some messages to a loopback connection, read by another thread.
+   *
+   * @param label The label of the results.
+   * @param message The message.
+   * @param messages The number of messages.
+   * @param batch The maximum number of messages in each write.
+   * @throws Exception If the connection fails.
+   */
+  private static void writeLoopback(String label, byte[] message, int messages, int batch) throws Exception {
+    ServerSocketChannel server = ServerSocketChannel.open();
+
+    server.socket().bind(new InetSocketAddress("localhost", 0));
+
+    SocketChannel out = SocketChannel.open(server.socket().getLocalSocketAddress());
+    final SocketChannel in = server.accept();
+    final long total = (long)messages * message.length;
+
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        long read = 0;
+
+        try {
+          while (read < total) {
+            buffer.clear();
+
+            int n = in.read(buffer);
+
+            if (n < 0) {
+              return;
+            }
+
+            read += n;
+          }
+        } catch (Exception e) {
+        }
+      }
+    });
+
+    reader.start();
+
+    ByteBuffer[] buffers = new ByteBuffer[batch];
+    long writes = 0;
+    long t0 = System.nanoTime();
+    int sent = 0;
+
+    while (sent < messages) {
+      int count = 0;
+      int bytes = 0;
+
+      while ((count < batch) && (sent + count < messages) && ((count == 0) || (bytes + message.length <= BATCH_BYTES))) {
+        buffers[count] = ByteBuffer.wrap(message);
+        bytes += message.length;
+        count++;
+      }
+
+      int first = 0;
+
+      while (first < count) {  // A blocking channel writes everything, but just in case
+        out.write(buffers, first, count - first);
+        writes++;
+
+        while ((first < count) && !buffers[first].hasRemaining()) {
+          first++;
+        }
+      }
+
+      sent += count;
+    }
+
+    reader.join();
+
+    long t1 = System.nanoTime();
+    double seconds = (t1 - t0) / 1e9;
+
+    System.out.printf("%s: %.0f messages/s, %.0f writes/s, %.1f messages/write%n", label, messages / seconds, writes / seconds, (double)messages / writes);
+
+    out.close();
+    in.close();
+    server.close();
+  }
+
+  /**
+   * Asks the Driver of a Server for a burst of updates, reads them from a
+   * Client and prints the counters of the outbound queue of the Client.
+   *
+   * @param label The kind of Server.
+   * @param server The Server.
+   * @throws Exception If the Client connection fails.
+   */
+  private static void runServer(String label, BenchmarkServer server) throws Exception {
+    Thread.sleep(500);  // The listening thread is started
+    server.loadJavaDriver(BenchmarkDriver.class);
+    Thread.sleep(500);
+
+    Socket socket = new Socket("localhost", server.getPort());
+    OutputStream out = socket.getOutputStream();
+    InputStream in = socket.getInputStream();
+
+    socket.setSoTimeout(60000);
+    out.write("<getProperties version=\"1.7\" />".getBytes("UTF-8"));
+    out.flush();
+    readUntil(in, "</defTextVector>", 1);
+
+    long t0 = System.nanoTime();
+
+    out.write("<newNumberVector device=\"Benchmark Device\" name=\"POS\"><oneNumber name=\"X\">1</oneNumber></newNumberVector>".getBytes("UTF-8"));
+    out.flush();
+    readUntil(in, "</setTextVector>", burst);
+
+    long t1 = System.nanoTime();
+    double seconds = (t1 - t0) / 1e9;
+    INDIOutboundQueue queue = server.getLastQueue();
+
+    System.out.printf("Server %s: %.0f messages/s, %d messages in %d writes (%.1f messages/write, %.0f writes/s)%n", label, burst / seconds, queue.getWrittenMessages(), queue.getWrites(), (double)queue.getWrittenMessages() / queue.getWrites(), queue.getWrites() / seconds);
+
+    socket.close();
+    server.stop();
+  }
+
+  /**
+   * Reads from a connection until a text has appeared some times.
+   *
+   * @param in The stream of the connection.
+   * @param text The text.
+   * @param times The number of times.
+   * @throws Exception If the connection is closed or times out.
+   */
+  private static void readUntil(InputStream in, String text, int times) throws Exception {
+    StringBuilder read = new StringBuilder();
+    byte[] buffer = new byte[64 * 1024];
+    int found = 0;
+
+    while (found < times) {
+      int n = in.read(buffer);
+
+      if (n < 0) {
+        throw new Exception("Connection closed by the Server");
+      }
+
+      read.append(new String(buffer, 0, n, "UTF-8"));
+
+      int from = 0;
+      int i;
+
+      while ((i = read.indexOf(text, from)) >= 0) {
+        found++;
+        from = i + text.length();
+      }
+
+      read.delete(0, Math.max(from, read.length() - text.length()));  // Keeps a possibly split text
+    }
+  }
+
+  /**
+   * A Server that keeps the outbound queues of its Clients.
+   */
+  private static class BenchmarkServer extends DefaultINDIServer {
+
+    /**
+     * The port of the Server.
+     */
+    private int port;
+    /**
+     * The queues created for the Clients.
+     */
+    private ArrayList<INDIOutboundQueue> queues;
+
+    /**
+     * Constructs a Server.
+     *
+     * @param port The port.
+     * @param ioThreads The number of I/O threads (<code>0</code> for a thread
+     * per connection).
+     * @param workerThreads The number of worker threads.
+     */
+    BenchmarkServer(int port, int ioThreads, int workerThreads) {
+      super(port, ioThreads, workerThreads);
+
+      this.port = port;
+    }
+
+    @Override
+    protected synchronized INDIOutboundQueue createOutboundQueue() {
+      INDIOutboundQueue queue = new INDIOutboundQueue(Long.MAX_VALUE / 2, INDIOutboundQueue.OverflowPolicy.BLOCK);
+
+      if (queues == null) {
+        queues = new ArrayList<INDIOutboundQueue>();
+      }
+
+      queues.add(queue);
+
+      return queue;
+    }
+
+    /**
+     * Gets the queue of the latest Client.
+     *
+     * @return The queue.
+     */
+    synchronized INDIOutboundQueue getLastQueue() {
+      return queues.get(queues.size() - 1);
+    }
+
+    /**
+     * Gets the port of the Server.
+     *
+     * @return The port.
+     */
+    int getPort() {
+      return port;
+    }
+
+    /**
+     * Stops the Server.
+     */
+    void stop() {
+      stopServer();
+    }
+  }
+
+  /**
+   * A Driver that answers a new number with a burst of updates of a text
+   * property (text updates never replace each other in the queues).
+   */
+  public static class BenchmarkDriver extends INDIDriver {
+
+    /**
+     * The updated property.
+     */
+    private INDITextProperty log;
+    /**
+     * Its element.
+     */
+    private INDITextElement line;
+
+    /**
+     * Constructs the Driver.
+     *
+     * @param inputStream The stream from which to read messages.
+     * @param outputStream The stream to which to write the messages.
+     */
+    public BenchmarkDriver(InputStream inputStream, OutputStream outputStream) {
+      super(inputStream, outputStream);
+
+      INDINumberProperty p = new INDINumberProperty(this, "POS", "Position", "Main", PropertyStates.IDLE, PropertyPermissions.RW);
+
+      new INDINumberElement(p, "X", "X", 0, 0, Integer.MAX_VALUE, 1, "%.0f");
+
+      log = new INDITextProperty(this, "LOG", "Log", "Main", PropertyStates.IDLE, PropertyPermissions.RO);
+      line = new INDITextElement(log, "LINE", "Line", "");
+
+      addProperty(p);
+      addProperty(log);
+    }
+
+    @Override
+    public String getName() {
+      return "Benchmark Device";
+    }
+
+    @Override
+    public void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues) {
+      try {
+        for (int i = 0 ; i < burst ; i++) {
+          line.setValue("" + i);
+          log.setState(PropertyStates.OK);
+          updateProperty(log);
+        }
+      } catch (INDIException e) {
+        e.printStackTrace();
+      }
+    }
+
+    @Override
+    public void processNewTextValue(INDITextProperty property, Date timestamp, INDITextElementAndValue[] elementsAndValues) {
+    }
+
+    @Override
+    public void processNewSwitchValue(INDISwitchProperty property, Date timestamp, INDISwitchElementAndValue[] elementsAndValues) {
+    }
+
+    @Override
+    public void processNewBLOBValue(INDIBLOBProperty property, Date timestamp, INDIBLOBElementAndValue[] elementsAndValues) {
+    }
+  }
+}
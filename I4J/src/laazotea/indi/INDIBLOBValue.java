@@ -20,6 +20,7 @@ package laazotea.indi;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import org.w3c.dom.Element;
@@ -63,36 +64,58 @@ public class INDIBLOBValue {
    * @throws IllegalArgumentException if the XML element is not correct.
    */
   public INDIBLOBValue(Element xml) throws IllegalArgumentException {
+    this(new INDIMessage.OneElement(xml));
+  }
+
+  /**
+   * Constructs a new BLOB Value from a &lt;oneBLOB&gt; element of a message.
+   * @param one the &lt;oneBLOB&gt; element
+   * @throws IllegalArgumentException if the element is not correct.
+   */
+  public INDIBLOBValue(INDIMessage.OneElement one) throws IllegalArgumentException {
     int size = 0;
     String f;
  
     try {
-      String s = xml.getAttribute("size").trim();
-      size = Integer.parseInt(s);
+      String s = one.getAttribute("size");
+      size = Integer.parseInt(s == null ? "" : s.trim());
     } catch (NumberFormatException e) {
       throw new IllegalArgumentException("Size number not correct");
     }
 
-    if (!xml.hasAttribute("format")) {
+    if (one.getAttribute("format") == null) {
       throw new IllegalArgumentException("No format attribute");
     }
 
-    f = xml.getAttribute("format").trim();
+    f = one.getAttribute("format").trim();
 
     byte[] val;
+    int length;
 
-    base64EncodedData = xml.getTextContent().trim();
-    
-    try {
-      val = Base64.decode(base64EncodedData);
-    } catch (IOException e) {
-      base64EncodedData = null;
-      throw new IllegalArgumentException("Not BASE64 coded data");
+    if (one.isDecoded()) {  // Already decoded while it was read
+      val = one.getDecodedData();
+
+      if (val == null) {
+        throw new IllegalArgumentException("Not BASE64 coded data");
+      }
+
+      length = one.getDecodedDataLength();
+    } else {
+      base64EncodedData = one.getText();
+
+      try {
+        val = Base64.decode(base64EncodedData);
+      } catch (IOException e) {
+        base64EncodedData = null;
+        throw new IllegalArgumentException("Not BASE64 coded data");
+      }
+
+      length = val.length;
     }
 
     if (f.endsWith(".z")) { // gzipped. Decompress
       Inflater decompresser = new Inflater();
-      decompresser.setInput(val);
+      decompresser.setInput(val, 0, length);
 
       byte[] newvalue = new byte[size];
 
@@ -100,6 +123,7 @@ public class INDIBLOBValue {
         decompresser.inflate(newvalue);
 
         val = newvalue;
+        length = val.length;
       } catch (DataFormatException e) {
         throw new IllegalArgumentException("Not correctly GZIPped");
       }
@@ -109,10 +133,14 @@ public class INDIBLOBValue {
       f = f.substring(0, f.length() - 2);
     }
 
-    if (val.length != size) {
+    if (length != size) {
       throw new IllegalArgumentException("Size of BLOB not correct");
     }
 
+    if (val.length != length) {
+      val = Arrays.copyOf(val, length);
+    }
+
     format = f;
     BLOBData = val;
   }
@@ -0,0 +1,273 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A pool of byte buffers shared by all the connections. Buffers are grouped in
+ * size classes (powers of two), so a connection only borrows a big buffer
+ * while it is reading a big message and gives it back afterwards.
+ *
+ * The buffers are heap buffers with an accessible backing array, as they are
+ * filled from (and parsed as) byte arrays.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIBufferPool {
+
+  /**
+   * The size of the smallest buffers.
+   */
+  public static final int MIN_BUFFER_SIZE = 1024;
+  /**
+   * The default maximum number of bytes kept in the pool.
+   */
+  public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+  /**
+   * The number of size classes (from <code>MIN_BUFFER_SIZE</code> to 1 GB).
+   */
+  private static final int SIZE_CLASSES = 21;
+  /**
+   * The pool shared by default by all the readers.
+   */
+  private static final INDIBufferPool DEFAULT = new INDIBufferPool(DEFAULT_MAX_POOLED_BYTES);
+  /**
+   * The free buffers of each size class.
+   */
+  private ArrayList<ArrayList<ByteBuffer>> free;
+  /**
+   * The maximum number of bytes kept in the pool.
+   */
+  private long maxPooledBytes;
+  /**
+   * The number of bytes in the free buffers.
+   */
+  private long pooledBytes;
+  /**
+   * The number of buffers in use.
+   */
+  private int buffersInUse;
+  /**
+   * The number of bytes of the buffers in use.
+   */
+  private long bytesInUse;
+  /**
+   * The number of requested buffers.
+   */
+  private long requests;
+  /**
+   * The number of newly allocated buffers.
+   */
+  private long allocations;
+
+  /**
+   * Constructs a new pool.
+   *
+   * @param maxPooledBytes The maximum number of bytes kept in the free buffers.
+   * Buffers returned when the pool is full are left to the garbage collector.
+   */
+  public INDIBufferPool(long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+
+    free = new ArrayList<ArrayList<ByteBuffer>>();
+
+    for (int i = 0 ; i < SIZE_CLASSES ; i++) {
+      free.add(new ArrayList<ByteBuffer>());
+    }
+  }
+
+  /**
+   * Gets the pool shared by default by all the readers.
+   *
+   * @return The default pool.
+   */
+  public static INDIBufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Gets a buffer of at least a particular capacity. It must be given back
+   * with <code>release</code> when it is no longer used.
+   *
+   * @param minCapacity The minimum capacity of the buffer.
+   * @return A cleared buffer.
+   */
+  public synchronized ByteBuffer acquire(int minCapacity) {
+    int sizeClass = getSizeClass(minCapacity);
+    ByteBuffer b;
+
+    requests++;
+
+    if (sizeClass < 0) {  // Too big to be pooled
+      b = ByteBuffer.allocate(minCapacity);
+      allocations++;
+    } else {
+      ArrayList<ByteBuffer> list = free.get(sizeClass);
+
+      if (list.isEmpty()) {
+        b = ByteBuffer.allocate(MIN_BUFFER_SIZE << sizeClass);
+        allocations++;
+      } else {
+        b = list.remove(list.size() - 1);
+        pooledBytes -= b.capacity();
+      }
+    }
+
+    buffersInUse++;
+    bytesInUse += b.capacity();
+
+    b.clear();
+
+    return b;
+  }
+
+  /**
+   * Gets a bigger buffer with the first bytes of another one, that is given
+   * back to the pool.
+   *
+   * @param buffer The buffer to grow.
+   * @param used The number of bytes of <code>buffer</code> to keep.
+   * @param minCapacity The minimum capacity of the new buffer.
+   * @return The new buffer.
+   */
+  public ByteBuffer grow(ByteBuffer buffer, int used, int minCapacity) {
+    ByteBuffer b = acquire(minCapacity);
+
+    System.arraycopy(buffer.array(), 0, b.array(), 0, used);
+
+    release(buffer);
+
+    return b;
+  }
+
+  /**
+   * Gives back a buffer obtained with <code>acquire</code>.
+   *
+   * @param buffer The buffer.
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    buffersInUse--;
+    bytesInUse -= buffer.capacity();
+
+    int sizeClass = getSizeClass(buffer.capacity());
+
+    if ((sizeClass < 0) || ((MIN_BUFFER_SIZE << sizeClass) != buffer.capacity())) {  // Not one of ours
+      return;
+    }
+
+    if (pooledBytes + buffer.capacity() > maxPooledBytes) {
+      return;
+    }
+
+    free.get(sizeClass).add(buffer);
+    pooledBytes += buffer.capacity();
+  }
+
+  /**
+   * Gets the size class of the buffers able to hold a number of bytes.
+   *
+   * @param capacity The number of bytes.
+   * @return The size class or <code>-1</code> if it is too big to be pooled.
+   */
+  private static int getSizeClass(int capacity) {
+    int sizeClass = 0;
+
+    while ((MIN_BUFFER_SIZE << sizeClass) < capacity) {
+      sizeClass++;
+
+      if (sizeClass == SIZE_CLASSES) {
+        return -1;
+      }
+    }
+
+    return sizeClass;
+  }
+
+  /**
+   * Gets the maximum number of bytes kept in the pool.
+   *
+   * @return The maximum number of bytes kept in the pool.
+   */
+  public long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  /**
+   * Gets the number of bytes of the free buffers in the pool.
+   *
+   * @return The number of bytes in the pool.
+   */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * Gets the number of free buffers in the pool.
+   *
+   * @return The number of free buffers.
+   */
+  public synchronized int getPooledBuffers() {
+    int n = 0;
+
+    for (int i = 0 ; i < SIZE_CLASSES ; i++) {
+      n += free.get(i).size();
+    }
+
+    return n;
+  }
+
+  /**
+   * Gets the number of buffers in use.
+   *
+   * @return The number of buffers in use.
+   */
+  public synchronized int getBuffersInUse() {
+    return buffersInUse;
+  }
+
+  /**
+   * Gets the number of bytes of the buffers in use.
+   *
+   * @return The number of bytes in use.
+   */
+  public synchronized long getBytesInUse() {
+    return bytesInUse;
+  }
+
+  /**
+   * Gets the number of buffers requested to the pool.
+   *
+   * @return The number of requests.
+   */
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  /**
+   * Gets the number of buffers that had to be allocated because there were
+   * no free ones.
+   *
+   * @return The number of allocations.
+   */
+  public synchronized long getAllocations() {
+    return allocations;
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of an INDI link (a connection with a Client or with another
+ * Server). Each direction is a zlib stream that uses a preset dictionary with
+ * the usual INDI tags and attributes, so even the first messages are well
+ * compressed. The streams are flushed (<code>SYNC_FLUSH</code>) after each
+ * batch of messages, so no message waits for more data.
+ *
+ * The compression is opt-in: the side that wants it (a Client or a Network
+ * Device) compresses from its very first byte. A zlib header can not start a
+ * plain INDI stream, so the Server recognizes it in the first byte read (see
+ * <code>isCompressedStart</code>) and then compresses its side too. A peer
+ * that has sent nothing after <code>NEGOTIATION_TIMEOUT</code> milliseconds
+ * is taken as plain, so plain Clients that wait for the Server to speak first
+ * only see their first messages delayed by that time.
+ *
+ * The counters of the compressed and uncompressed bytes of each direction
+ * show the bandwidth saved by the link.
+ *
+ * Each direction must be used by a single thread at a time.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDICompression {
+
+  /**
+   * How the compression of a link is decided.
+   */
+  public enum Mode {
+
+    /**
+     * The link is never compressed.
+     */
+    PLAIN,
+    /**
+     * The link is compressed if the peer starts compressing.
+     */
+    ACCEPTED,
+    /**
+     * The link is compressed from the start.
+     */
+    ALWAYS
+  };
+
+  /**
+   * The first byte of a compressed stream (the zlib header of a 32 KB window
+   * deflate stream).
+   */
+  public static final int ZLIB_HEADER = 0x78;
+  /**
+   * The time (in milliseconds) that the Server waits for the first byte of a
+   * link to decide if it is compressed. A compressing peer sends it as soon
+   * as it connects.
+   */
+  public static final int NEGOTIATION_TIMEOUT = 500;
+  /**
+   * The preset dictionary of both directions. The most usual strings are at
+   * its end, as they are the cheapest to reference.
+   */
+  private static final byte[] DICTIONARY = ("<?xml version=\"1.0\"?>"
+          + "<getProperties version=\"1.7\"/>"
+          + "<enableBLOB device=\"\" name=\"\">Never</enableBLOB>Also Only"
+          + "<delProperty device=\"\" name=\"\" timestamp=\"\"/>"
+          + "<message device=\"\" timestamp=\"\" message=\"\"/>"
+          + "<defLightVector device=\"\" name=\"\" label=\"\" group=\"\" state=\"Idle\">"
+          + "<defLight name=\"\" label=\"\">Idle</defLight></defLightVector>"
+          + "<setLightVector device=\"\" name=\"\" state=\"\"><oneLight name=\"\">Ok</oneLight></setLightVector>"
+          + "<defSwitchVector device=\"\" name=\"\" label=\"\" group=\"\" state=\"Idle\" perm=\"rw\" rule=\"OneOfMany\" timeout=\"0\" timestamp=\"\">"
+          + "<defSwitch name=\"\" label=\"\">Off</defSwitch></defSwitchVector> AtMostOne AnyOfMany"
+          + "<newSwitchVector device=\"\" name=\"\" timestamp=\"\"><oneSwitch name=\"\">On</oneSwitch></newSwitchVector>"
+          + "<setSwitchVector device=\"\" name=\"\" state=\"Ok\" timeout=\"0\" timestamp=\"\"><oneSwitch name=\"\">Off</oneSwitch></setSwitchVector>"
+          + "<defTextVector device=\"\" name=\"\" label=\"\" group=\"\" state=\"Idle\" perm=\"ro\" timeout=\"0\" timestamp=\"\">"
+          + "<defText name=\"\" label=\"\"></defText></defTextVector>"
+          + "<newTextVector device=\"\" name=\"\" timestamp=\"\"><oneText name=\"\"></oneText></newTextVector>"
+          + "<setTextVector device=\"\" name=\"\" state=\"Ok\" timeout=\"0\" timestamp=\"\"><oneText name=\"\"></oneText></setTextVector>"
+          + "<defBLOBVector device=\"\" name=\"\" label=\"\" group=\"\" state=\"Idle\" perm=\"ro\" timeout=\"0\" timestamp=\"\">"
+          + "<defBLOB name=\"\" label=\"\"/></defBLOBVector>"
+          + "<setBLOBVector device=\"\" name=\"\" state=\"Ok\" timeout=\"0\" timestamp=\"\"><oneBLOB name=\"\" size=\"\" format=\".fits\"></oneBLOB></setBLOBVector>"
+          + "<defNumberVector device=\"\" name=\"\" label=\"\" group=\"Main Control\" state=\"Idle\" perm=\"rw\" timeout=\"0\" timestamp=\"\">"
+          + "<defNumber name=\"\" label=\"\" format=\"%f\" min=\"0\" max=\"0\" step=\"0\"></defNumber></defNumberVector>"
+          + "<newNumberVector device=\"\" name=\"\" timestamp=\"\"><oneNumber name=\"\"></oneNumber></newNumberVector>"
+          + "<setNumberVector device=\"\" name=\"\" state=\"Busy\" timeout=\"0\" timestamp=\"\"><oneNumber name=\"\"></oneNumber></setNumberVector>"
+          + "state=\"Alert\" state=\"Busy\" state=\"Ok\" message=\"\" timestamp=\"").getBytes(Charset.forName("UTF-8"));
+  /**
+   * The size of the buffers of the streams.
+   */
+  private static final int BUFFER_SIZE = 8192;
+  /**
+   * The compressor of the written bytes.
+   */
+  private Deflater deflater;
+  /**
+   * The decompressor of the read bytes.
+   */
+  private Inflater inflater;
+  /**
+   * The compressed bytes waiting to be written (non-blocking links).
+   */
+  private byte[] output;
+  /**
+   * The number of bytes in <code>output</code>.
+   */
+  private int outputLength;
+
+  /**
+   * Constructs the compression of a new link.
+   */
+  public INDICompression() {
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    deflater.setDictionary(DICTIONARY);
+
+    inflater = new Inflater();
+
+    output = new byte[BUFFER_SIZE];
+    outputLength = 0;
+  }
+
+  /**
+   * Checks if the first byte read from a link starts a compressed stream.
+   *
+   * @param b The first byte read.
+   * @return <code>true</code> if the peer is compressing the link.
+   */
+  public static boolean isCompressedStart(int b) {
+    return b == ZLIB_HEADER;
+  }
+
+  /**
+   * Wraps the stream from which the compressed bytes are read.
+   *
+   * @param in The stream of compressed bytes.
+   * @return A stream of uncompressed bytes.
+   */
+  public InputStream wrap(InputStream in) {
+    return new InflatingInputStream(in);
+  }
+
+  /**
+   * Wraps the stream to which the compressed bytes are written. Each
+   * <code>flush</code> of the returned stream flushes the compressor.
+   *
+   * @param out The stream of compressed bytes.
+   * @return A stream of uncompressed bytes.
+   */
+  public OutputStream wrap(OutputStream out) {
+    return new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true);
+  }
+
+  /**
+   * Sets the compressed bytes to be inflated. They must all be inflated (until
+   * <code>inflate</code> returns <code>0</code>) before setting new ones.
+   *
+   * @param bytes The compressed bytes.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   */
+  public void setInput(byte[] bytes, int offset, int length) {
+    inflater.setInput(bytes, offset, length);
+  }
+
+  /**
+   * Inflates the compressed bytes that have been set.
+   *
+   * @param bytes The buffer for the uncompressed bytes.
+   * @param offset The offset of the first byte.
+   * @param length The maximum number of bytes.
+   * @return The number of uncompressed bytes (<code>0</code> if more
+   * compressed bytes are needed).
+   * @throws IOException if the compressed bytes are not correct.
+   */
+  public int inflate(byte[] bytes, int offset, int length) throws IOException {
+    try {
+      int n = inflater.inflate(bytes, offset, length);
+
+      if ((n == 0) && inflater.needsDictionary()) {
+        inflater.setDictionary(DICTIONARY);
+
+        n = inflater.inflate(bytes, offset, length);
+      }
+
+      return n;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed INDI stream: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Compresses some bytes for a non-blocking link. The compressed bytes are
+   * kept until <code>flush</code> is called.
+   *
+   * @param bytes The uncompressed bytes.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   */
+  public void deflate(byte[] bytes, int offset, int length) {
+    if ((outputLength == 0) && (output.length > BUFFER_SIZE)) {  // After a big message
+      output = new byte[BUFFER_SIZE];
+    }
+
+    deflater.setInput(bytes, offset, length);
+
+    while (!deflater.needsInput()) {
+      if (outputLength == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+
+      outputLength += deflater.deflate(output, outputLength, output.length - outputLength, Deflater.NO_FLUSH);
+    }
+  }
+
+  /**
+   * Flushes the compressor of a non-blocking link.
+   *
+   * @return The compressed bytes of everything deflated since the previous
+   * flush. They are only valid until <code>deflate</code> is called again.
+   */
+  public ByteBuffer flush() {
+    int n;
+
+    do {
+      if (outputLength == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+
+      n = deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+      outputLength += n;
+    } while (outputLength == output.length);
+
+    ByteBuffer b = ByteBuffer.wrap(output, 0, outputLength);
+
+    outputLength = 0;
+
+    return b;
+  }
+
+  /**
+   * Gets the number of compressed bytes read from the link.
+   *
+   * @return The number of compressed bytes read.
+   */
+  public long getCompressedBytesRead() {
+    return inflater.getBytesRead();
+  }
+
+  /**
+   * Gets the number of bytes obtained inflating the read bytes.
+   *
+   * @return The number of uncompressed bytes read.
+   */
+  public long getUncompressedBytesRead() {
+    return inflater.getBytesWritten();
+  }
+
+  /**
+   * Gets the number of compressed bytes produced to be written to the link.
+   *
+   * @return The number of compressed bytes written.
+   */
+  public long getCompressedBytesWritten() {
+    return deflater.getBytesWritten();
+  }
+
+  /**
+   * Gets the number of bytes compressed to be written to the link.
+   *
+   * @return The number of uncompressed bytes written.
+   */
+  public long getUncompressedBytesWritten() {
+    return deflater.getBytesRead();
+  }
+
+  /**
+   * Gets the number of bytes saved by the compression in both directions.
+   *
+   * @return The number of bytes that have not been transmitted.
+   */
+  public long getSavedBytes() {
+    return (getUncompressedBytesRead() - getCompressedBytesRead()) + (getUncompressedBytesWritten() - getCompressedBytesWritten());
+  }
+
+  /**
+   * A stream that inflates the bytes read from another one.
+   */
+  private class InflatingInputStream extends FilterInputStream {
+
+    /**
+     * The buffer of the compressed bytes.
+     */
+    private byte[] buffer;
+
+    /**
+     * Constructs a new inflating stream.
+     *
+     * @param in The stream of compressed bytes.
+     */
+    private InflatingInputStream(InputStream in) {
+      super(in);
+
+      buffer = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+
+      return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+
+      while (true) {
+        int n = inflate(b, off, len);
+
+        if (n > 0) {
+          return n;
+        }
+
+        if (inflater.finished()) {
+          return -1;
+        }
+
+        int r = in.read(buffer, 0, buffer.length);
+
+        if (r == -1) {
+          return -1;
+        }
+
+        setInput(buffer, 0, r);
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      return 0;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
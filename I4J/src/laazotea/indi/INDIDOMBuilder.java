@@ -0,0 +1,230 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A <code>INDIStreamHandler</code> that builds a XML Document for every top
+ * level element and sends it to a <code>INDIProtocolParser</code> as soon as
+ * the element is closed. The Documents have a &lt;INDI&gt; root element, as
+ * the ones that the parsers have always received.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIDOMBuilder implements INDIStreamHandler {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The size of the own text buffer. Bigger messages (BLOBs) borrow a buffer
+   * from the pool while they are read.
+   */
+  private static final int TEXT_BUFFER_SIZE = 1024;
+  /**
+   * The parser to which the Documents are sent.
+   */
+  private INDIProtocolParser parser;
+  /**
+   * Used to create the Documents.
+   */
+  private DocumentBuilder docBuilder;
+  /**
+   * The Document being built.
+   */
+  private Document doc;
+  /**
+   * The stack of open elements. The first one is the &lt;INDI&gt; root.
+   */
+  private ArrayList<Element> openElements;
+  /**
+   * The text of the current element that has still not been added to it.
+   */
+  private byte[] text;
+  /**
+   * The length of the text in the buffer.
+   */
+  private int textLength;
+  /**
+   * The own (small) text buffer.
+   */
+  private byte[] ownText;
+  /**
+   * The buffer borrowed from the pool for the text of a big message
+   * (<code>null</code> if the own buffer is used).
+   */
+  private ByteBuffer pooledText;
+  /**
+   * The pool from which big text buffers are borrowed.
+   */
+  private INDIBufferPool pool;
+  /**
+   * The depth of the elements being ignored because they could not be added
+   * to the Document (0 if nothing is being ignored).
+   */
+  private int ignoredDepth;
+
+  /**
+   * Constructs a new builder.
+   *
+   * @param parser The parser to which the Documents will be sent.
+   * @throws ParserConfigurationException if no DocumentBuilder can be created.
+   */
+  public INDIDOMBuilder(INDIProtocolParser parser) throws ParserConfigurationException {
+    this.parser = parser;
+
+    docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    openElements = new ArrayList<Element>();
+    pool = INDIBufferPool.getDefault();
+    ownText = new byte[TEXT_BUFFER_SIZE];
+    text = ownText;
+    textLength = 0;
+    ignoredDepth = 0;
+  }
+
+  @Override
+  public void startElement(String name, INDIStreamAttributes attributes) {
+    if (ignoredDepth > 0) {
+      ignoredDepth++;
+      return;
+    }
+
+    if (openElements.isEmpty()) {
+      doc = docBuilder.newDocument();
+
+      Element root = doc.createElement("INDI");
+      doc.appendChild(root);
+      openElements.add(root);
+    } else {
+      addText();
+    }
+
+    try {
+      Element el = doc.createElement(name);
+
+      for (int i = 0 ; i < attributes.getLength() ; i++) {
+        el.setAttribute(attributes.getName(i), attributes.getValue(i));
+      }
+
+      openElements.get(openElements.size() - 1).appendChild(el);
+      openElements.add(el);
+    } catch (DOMException e) {  // Not a valid XML name: ignore the whole top level element
+      int depth = openElements.size();
+
+      discard();
+      ignoredDepth = depth;
+    }
+  }
+
+  @Override
+  public void characters(byte[] buffer, int offset, int length) {
+    if (ignoredDepth > 0) {
+      return;
+    }
+
+    if (textLength + length > text.length) {
+      growText(textLength + length);
+    }
+
+    System.arraycopy(buffer, offset, text, textLength, length);
+    textLength += length;
+  }
+
+  @Override
+  public void endElement(String name) {
+    if (ignoredDepth > 0) {
+      ignoredDepth--;
+      return;
+    }
+
+    addText();
+
+    openElements.remove(openElements.size() - 1);
+
+    if (openElements.size() == 1) {  // Only the root remains: the top level element is complete
+      Document d = doc;
+
+      discard();
+
+      parser.parseXML(d);
+    }
+  }
+
+  @Override
+  public void malformedElement() {
+    discard();
+    ignoredDepth = 0;
+  }
+
+  /**
+   * Adds the pending text to the current element.
+   */
+  private void addText() {
+    if (textLength > 0) {
+      Element el = openElements.get(openElements.size() - 1);
+
+      el.appendChild(doc.createTextNode(new String(text, 0, textLength, UTF8)));
+
+      textLength = 0;
+    }
+  }
+
+  /**
+   * Forgets the Document being built.
+   */
+  private void discard() {
+    doc = null;
+    openElements.clear();
+    textLength = 0;
+
+    if (pooledText != null) {
+      pool.release(pooledText);
+      pooledText = null;
+      text = ownText;
+    }
+  }
+
+  /**
+   * Borrows a bigger text buffer from the pool, keeping the current text.
+   *
+   * @param capacity The needed capacity.
+   */
+  private void growText(int capacity) {
+    capacity = Math.max(text.length * 2, capacity);
+
+    if (pooledText == null) {
+      pooledText = pool.acquire(capacity);
+      System.arraycopy(text, 0, pooledText.array(), 0, textLength);
+    } else {
+      pooledText = pool.grow(pooledText, textLength, capacity);
+    }
+
+    text = pooledText.array();
+  }
+}
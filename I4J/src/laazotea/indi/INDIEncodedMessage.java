@@ -0,0 +1,294 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.w3c.dom.Element;
+
+/**
+ * An immutable INDI message already serialized and encoded in UTF-8, to be
+ * shared by all its recipients. The bytes live in a buffer borrowed from the
+ * <code>INDIBufferPool</code> and are given back when the last reference is
+ * released: the creator holds the first reference and each recipient that
+ * keeps the message beyond the call that received it (for example in an
+ * outbound queue) must <code>retain</code> it and <code>release</code> it once
+ * written.
+ *
+ * Messages copied from <code>setNumberVector</code> and
+ * <code>setBLOBVector</code> frames have a replace key (their device and
+ * property), so a queue can replace a waiting one with a newer one.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIEncodedMessage {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The buffer with the bytes.
+   */
+  private ByteBuffer buffer;
+  /**
+   * The number of bytes of the message.
+   */
+  private int length;
+  /**
+   * The number of references to the message.
+   */
+  private AtomicInteger references;
+  /**
+   * The key shared by the messages that can replace each other
+   * (<code>null</code> if it cannot be replaced).
+   */
+  private String replaceKey;
+  /**
+   * The names of the elements of the message (only for messages copied from
+   * <code>setXXXVector</code> frames).
+   */
+  private ArrayList<String> elementNames;
+  /**
+   * <code>true</code> if the message has a message attribute, that would be
+   * lost if it was replaced.
+   */
+  private boolean hasMessage;
+
+  /**
+   * Constructs a new message copying some bytes into a pooled buffer.
+   *
+   * @param bytes The bytes of the message.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   */
+  private INDIEncodedMessage(byte[] bytes, int offset, int length) {
+    this.length = length;
+
+    buffer = INDIBufferPool.getDefault().acquire(length);
+    System.arraycopy(bytes, offset, buffer.array(), 0, length);
+
+    references = new AtomicInteger(1);
+  }
+
+  /**
+   * Serializes a XML Element.
+   *
+   * @param xml The XML Element.
+   * @return The encoded message (with one reference, owned by the caller).
+   */
+  public static INDIEncodedMessage encode(Element xml) {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writer.write(xml);
+
+    return new INDIEncodedMessage(writer.getBuffer(), 0, writer.getLength());
+  }
+
+  /**
+   * Encodes a String (usually containing some XML).
+   *
+   * @param xml The String.
+   * @return The encoded message (with one reference, owned by the caller).
+   */
+  public static INDIEncodedMessage encode(String xml) {
+    byte[] bytes = xml.getBytes(UTF8);
+
+    return new INDIEncodedMessage(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Copies some already encoded bytes.
+   *
+   * @param bytes The buffer with the bytes.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   * @return The encoded message (with one reference, owned by the caller).
+   */
+  public static INDIEncodedMessage copyOf(byte[] bytes, int offset, int length) {
+    return new INDIEncodedMessage(bytes, offset, length);
+  }
+
+  /**
+   * Copies the original bytes of a frame. If it is a
+   * <code>setXXXVector</code> the names of its elements are kept and, if it is
+   * a <code>setNumberVector</code> or a <code>setBLOBVector</code>, the message
+   * gets a replace key.
+   *
+   * @param frame The frame.
+   * @return The encoded message (with one reference, owned by the caller).
+   */
+  public static INDIEncodedMessage copyOf(INDIFrame frame) {
+    INDIEncodedMessage m = new INDIEncodedMessage(frame.getBuffer(), frame.getOffset(), frame.getLength());
+
+    m.setHeader(frame);
+
+    return m;
+  }
+
+  /**
+   * Copies a frame without its message attribute (the log line that
+   * accompanies it), to keep its state without the line. The frames without
+   * message attribute are copied as in <code>copyOf</code>; the other ones are
+   * parsed and serialized again.
+   *
+   * @param frame The frame.
+   * @return The encoded message (with one reference, owned by the caller).
+   * @see #copyOf(INDIFrame)
+   */
+  public static INDIEncodedMessage copyWithoutMessage(INDIFrame frame) {
+    if (frame.getMessage() == null) {
+      return copyOf(frame);
+    }
+
+    Element xml = frame.toElement();
+
+    if (xml == null) {  // Not valid XML: it is kept as it is
+      return copyOf(frame);
+    }
+
+    xml = (Element)xml.cloneNode(true);
+    xml.removeAttribute("message");
+
+    INDIEncodedMessage m = encode(xml);
+
+    m.setHeader(frame);
+    m.hasMessage = false;
+
+    return m;
+  }
+
+  /**
+   * Keeps the names of the elements and the replace key of a frame.
+   *
+   * @param frame The frame.
+   */
+  private void setHeader(INDIFrame frame) {
+    INDIMessage.Kind kind = frame.getKind();
+    String device = frame.getDevice();
+    String name = frame.getName();
+
+    if (kind.isSetXXXVector()) {
+      elementNames = frame.getElementNames();
+      hasMessage = frame.getMessage() != null;
+
+      if (((kind == INDIMessage.Kind.SET_NUMBER_VECTOR) || (kind == INDIMessage.Kind.SET_BLOB_VECTOR)) && (device != null) && (name != null)) {
+        replaceKey = device + "\n" + name;
+      }
+    }
+  }
+
+  /**
+   * Gets the key shared by the messages that can replace each other (the same
+   * device and property).
+   *
+   * @return The replace key (<code>null</code> if the message cannot be
+   * replaced).
+   */
+  public String getReplaceKey() {
+    return replaceKey;
+  }
+
+  /**
+   * Checks if this message can replace an older one that has not been sent
+   * yet without losing anything: it must be for the same property, include
+   * all its elements (that could be a partial update) and the older one must
+   * not have a message attribute.
+   *
+   * @param older The older message.
+   * @return <code>true</code> if this message can replace the older one.
+   */
+  public boolean canReplace(INDIEncodedMessage older) {
+    if ((replaceKey == null) || (!replaceKey.equals(older.replaceKey)) || older.hasMessage) {
+      return false;
+    }
+
+    return elementNames.containsAll(older.elementNames);
+  }
+
+  /**
+   * Gets the names of the elements of the message.
+   *
+   * @return The names of the elements (<code>null</code> if the message was
+   * not copied from a <code>setXXXVector</code> frame).
+   */
+  public ArrayList<String> getElementNames() {
+    return elementNames;
+  }
+
+  /**
+   * Adds a reference to the message.
+   *
+   * @return The message itself.
+   * @throws IllegalStateException if the message has already been released.
+   */
+  public INDIEncodedMessage retain() throws IllegalStateException {
+    while (true) {
+      int r = references.get();
+
+      if (r <= 0) {
+        throw new IllegalStateException("Message already released");
+      }
+
+      if (references.compareAndSet(r, r + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /**
+   * Removes a reference to the message. When no references remain its buffer
+   * is given back to the pool and it can no longer be used.
+   */
+  public void release() {
+    int r = references.decrementAndGet();
+
+    if (r == 0) {
+      ByteBuffer b = buffer;
+
+      buffer = null;
+
+      INDIBufferPool.getDefault().release(b);
+    } else if (r < 0) {
+      references.incrementAndGet();
+
+      throw new IllegalStateException("Message already released");
+    }
+  }
+
+  /**
+   * Gets the buffer with the bytes. Only valid while a reference is held.
+   *
+   * @return The buffer with the bytes (they begin at <code>0</code>).
+   */
+  public byte[] getBytes() {
+    return buffer.array();
+  }
+
+  /**
+   * Gets the number of bytes of the message.
+   *
+   * @return The number of bytes of the message.
+   */
+  public int getLength() {
+    return length;
+  }
+}
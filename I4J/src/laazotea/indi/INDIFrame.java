@@ -0,0 +1,182 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A INDI message read as a frame: the routing header (kind, device, name,
+ * state and the other attributes of the top level element) and the original
+ * bytes of the whole message, that can be forwarded unchanged. The child
+ * elements are not parsed, so <code>getElements</code> is always empty: only
+ * the names of the elements of the <code>setXXXVector</code> messages are
+ * kept.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIFrameParser
+ */
+public class INDIFrame extends INDIMessage {
+
+  /**
+   * The buffer with the original bytes.
+   */
+  private byte[] buffer;
+  /**
+   * The offset of the message in the buffer.
+   */
+  private int offset;
+  /**
+   * The number of bytes of the message.
+   */
+  private int length;
+  /**
+   * The message parsed as a XML Element (lazily created).
+   */
+  private Element element;
+  /**
+   * The names of the child elements (only kept for <code>setXXXVector</code>
+   * messages).
+   */
+  private ArrayList<String> elementNames;
+
+  /**
+   * Constructs a new frame from the attributes read by a
+   * <code>INDIStreamParser</code>.
+   *
+   * @param tagName The tag name of the message.
+   * @param attributes The attributes of the message.
+   */
+  protected INDIFrame(String tagName, INDIStreamAttributes attributes) {
+    super(tagName, attributes);
+
+    elementNames = new ArrayList<String>();
+  }
+
+  /**
+   * Adds the name of a child element.
+   *
+   * @param name The name of the child element.
+   */
+  protected void addElementName(String name) {
+    elementNames.add(name);
+  }
+
+  /**
+   * Gets the names of the child elements. They are only kept for
+   * <code>setXXXVector</code> messages.
+   *
+   * @return The names of the child elements.
+   */
+  public ArrayList<String> getElementNames() {
+    return elementNames;
+  }
+
+  /**
+   * Sets the original bytes of the message.
+   *
+   * @param buffer The buffer with the bytes.
+   * @param offset The offset of the message in the buffer.
+   * @param length The number of bytes of the message.
+   */
+  protected void setBytes(byte[] buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Gets the buffer with the original bytes of the message. It is reused by
+   * the reader, so it is only valid while the frame is being parsed.
+   *
+   * @return The buffer with the original bytes.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Gets the offset of the message in the buffer.
+   *
+   * @return The offset of the message in the buffer.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Gets the number of bytes of the message.
+   *
+   * @return The number of bytes of the message.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Parses the original bytes into a XML Element, for the code that still
+   * needs the whole message as XML. As the bytes, it must be called while the
+   * frame is being parsed.
+   *
+   * @return The message as a XML Element (<code>null</code> if it cannot be
+   * parsed).
+   */
+  public Element toElement() {
+    if (element != null) {
+      return element;
+    }
+
+    final Document[] result = new Document[1];
+
+    INDIProtocolParser collector = new INDIProtocolParser() {
+      @Override
+      public void parseXML(Document doc) {
+        result[0] = doc;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+        return null;
+      }
+
+      @Override
+      public void finishReader() {
+      }
+    };
+
+    try {
+      INDIStreamParser p = new INDIStreamParser(new INDIDOMBuilder(collector), Math.max(length, 1));
+
+      p.parse(buffer, offset, length);
+    } catch (ParserConfigurationException e) {
+      return null;
+    }
+
+    if (result[0] == null) {
+      return null;
+    }
+
+    element = (Element)result[0].getDocumentElement().getFirstChild();
+
+    return element;
+  }
+}
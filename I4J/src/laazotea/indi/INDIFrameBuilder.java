@@ -0,0 +1,178 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.charset.Charset;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A <code>INDIFrameHandler</code> that builds a <code>INDIFrame</code> for
+ * every top level element and sends it to a <code>INDIFrameParser</code> as
+ * soon as the element is closed. Only the attributes of the top level element
+ * (and its text, if it has no children) are kept: the content of the child
+ * elements is skipped, so it is never decoded nor copied.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIFrameBuilder implements INDIFrameHandler {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The maximum length of the kept text of a message (like the rule of a
+   * <code>enableBLOB</code>).
+   */
+  private static final int MAX_TEXT_LENGTH = 1024;
+  /**
+   * The parser to which the frames are sent.
+   */
+  private INDIFrameParser parser;
+  /**
+   * The frame being built.
+   */
+  private INDIFrame frame;
+  /**
+   * The current depth.
+   */
+  private int depth;
+  /**
+   * <code>true</code> if the message being built has child elements.
+   */
+  private boolean hasChildren;
+  /**
+   * The text of the message.
+   */
+  private byte[] text;
+  /**
+   * The length of the text in the buffer.
+   */
+  private int textLength;
+
+  /**
+   * Constructs a new builder.
+   *
+   * @param parser The parser to which the frames will be sent.
+   */
+  public INDIFrameBuilder(INDIFrameParser parser) {
+    this.parser = parser;
+
+    text = new byte[MAX_TEXT_LENGTH];
+    textLength = 0;
+    depth = 0;
+  }
+
+  @Override
+  public void startElement(String name, INDIStreamAttributes attributes) {
+    depth++;
+
+    if (depth == 1) {
+      frame = new INDIFrame(name, attributes);
+      hasChildren = false;
+      textLength = 0;
+    } else {
+      hasChildren = true;
+
+      if ((depth == 2) && frame.getKind().isSetXXXVector()) {
+        String elementName = attributes.getValue("name");
+
+        if (elementName != null) {
+          frame.addElementName(elementName);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void characters(byte[] buffer, int offset, int length) {
+    if ((depth != 1) || hasChildren) {
+      return;
+    }
+
+    int n = Math.min(length, MAX_TEXT_LENGTH - textLength);
+
+    System.arraycopy(buffer, offset, text, textLength, n);
+    textLength += n;
+  }
+
+  @Override
+  public void endFrame(byte[] buffer, int offset, int length) {
+    frame.setBytes(buffer, offset, length);
+  }
+
+  @Override
+  public void endElement(String name) {
+    depth--;
+
+    if (depth == 0) {
+      INDIFrame f = frame;
+
+      if (!hasChildren) {
+        f.setText(new String(text, 0, textLength, UTF8).trim());
+      }
+
+      frame = null;
+      textLength = 0;
+
+      parser.parseFrame(f);
+    }
+  }
+
+  @Override
+  public void malformedElement() {
+    frame = null;
+    depth = 0;
+    textLength = 0;
+  }
+
+  /**
+   * Sends the messages of a XML Document (with a &lt;INDI&gt; root element,
+   * as the ones received by <code>INDIProtocolParser.parseXML</code>) to a
+   * <code>INDIFrameParser</code> as frames.
+   *
+   * @param doc The XML Document.
+   * @param parser The parser to which the frames will be sent.
+   */
+  public static void parseDocument(Document doc, INDIFrameParser parser) {
+    Element el = doc.getDocumentElement();
+
+    if (el.getNodeName().compareTo("INDI") != 0) {
+      return;
+    }
+
+    INDIXMLWriter writer = new INDIXMLWriter();
+    NodeList nodes = el.getChildNodes();
+
+    for (int i = 0 ; i < nodes.getLength() ; i++) {
+      Node n = nodes.item(i);
+
+      if (n instanceof Element) {
+        writer.write((Element)n);
+      }
+    }
+
+    INDIStreamParser p = new INDIStreamParser(new INDIFrameBuilder(parser), Math.max(writer.getLength(), 1));
+
+    p.parse(writer.getBuffer(), 0, writer.getLength());
+  }
+}
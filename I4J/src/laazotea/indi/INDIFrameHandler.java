@@ -0,0 +1,42 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A <code>INDIStreamHandler</code> that also receives the original bytes of
+ * every top level element read by a <code>INDIStreamParser</code>.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIStreamParser
+ */
+public interface INDIFrameHandler extends INDIStreamHandler {
+
+  /**
+   * Called when a top level element has been completely read, just before
+   * its <code>endElement</code>.
+   *
+   * @param buffer The buffer with the original bytes of the element (from its
+   * <code>&lt;</code> to its last <code>&gt;</code>). It is reused by the
+   * parser, so it is only valid until the <code>endElement</code> call that
+   * follows returns.
+   * @param offset The offset of the element in the buffer.
+   * @param length The number of bytes of the element.
+   */
+  public void endFrame(byte[] buffer, int offset, int length);
+}
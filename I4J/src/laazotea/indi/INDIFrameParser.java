@@ -0,0 +1,40 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A INDI Protocol Parser that receives <code>INDIFrame</code>s: the routing
+ * header and the original bytes of each message. When a
+ * <code>INDIProtocolReader</code> reads for one of these parsers only
+ * <code>parseFrame</code> is called and the content of the messages is not
+ * parsed.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIFrame
+ */
+public interface INDIFrameParser extends INDIProtocolParser {
+
+  /**
+   * Parses a INDI message frame.
+   *
+   * @param frame The frame to parse. Its bytes are only valid during this
+   * call.
+   */
+  public void parseFrame(INDIFrame frame);
+}
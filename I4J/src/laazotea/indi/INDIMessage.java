@@ -0,0 +1,582 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import laazotea.indi.Constants.PropertyStates;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A class representing a INDI Protocol message (a top level element of the
+ * stream) without any DOM. The kind of message and its common attributes are
+ * parsed once, when the message is constructed.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIMessageParser
+ */
+public class INDIMessage {
+
+  /**
+   * The possible kinds of INDI messages.
+   */
+  public enum Kind {
+
+    GET_PROPERTIES("getProperties"),
+    DEF_TEXT_VECTOR("defTextVector"),
+    DEF_NUMBER_VECTOR("defNumberVector"),
+    DEF_SWITCH_VECTOR("defSwitchVector"),
+    DEF_LIGHT_VECTOR("defLightVector"),
+    DEF_BLOB_VECTOR("defBLOBVector"),
+    SET_TEXT_VECTOR("setTextVector"),
+    SET_NUMBER_VECTOR("setNumberVector"),
+    SET_SWITCH_VECTOR("setSwitchVector"),
+    SET_LIGHT_VECTOR("setLightVector"),
+    SET_BLOB_VECTOR("setBLOBVector"),
+    NEW_TEXT_VECTOR("newTextVector"),
+    NEW_NUMBER_VECTOR("newNumberVector"),
+    NEW_SWITCH_VECTOR("newSwitchVector"),
+    NEW_BLOB_VECTOR("newBLOBVector"),
+    MESSAGE("message"),
+    DEL_PROPERTY("delProperty"),
+    ENABLE_BLOB("enableBLOB"),
+    /**
+     * Any other (not INDI) element
+     */
+    UNKNOWN(null);
+    /**
+     * The kinds by their tag name.
+     */
+    private static final HashMap<String, Kind> BY_TAG_NAME = new HashMap<String, Kind>();
+
+    static {
+      for (Kind k : values()) {
+        if (k.tagName != null) {
+          BY_TAG_NAME.put(k.tagName, k);
+        }
+      }
+    }
+    /**
+     * The tag name of the messages of this kind.
+     */
+    private final String tagName;
+
+    private Kind(String tagName) {
+      this.tagName = tagName;
+    }
+
+    /**
+     * Gets the tag name of the messages of this kind.
+     *
+     * @return The tag name (<code>null</code> for <code>UNKNOWN</code>).
+     */
+    public String getTagName() {
+      return tagName;
+    }
+
+    /**
+     * Checks if this is a <code>defXXXVector</code> kind.
+     *
+     * @return <code>true</code> if this is a <code>defXXXVector</code> kind.
+     * <code>false</code> otherwise.
+     */
+    public boolean isDefXXXVector() {
+      return (this == DEF_TEXT_VECTOR) || (this == DEF_NUMBER_VECTOR) || (this == DEF_SWITCH_VECTOR) || (this == DEF_LIGHT_VECTOR) || (this == DEF_BLOB_VECTOR);
+    }
+
+    /**
+     * Checks if this is a <code>setXXXVector</code> kind.
+     *
+     * @return <code>true</code> if this is a <code>setXXXVector</code> kind.
+     * <code>false</code> otherwise.
+     */
+    public boolean isSetXXXVector() {
+      return (this == SET_TEXT_VECTOR) || (this == SET_NUMBER_VECTOR) || (this == SET_SWITCH_VECTOR) || (this == SET_LIGHT_VECTOR) || (this == SET_BLOB_VECTOR);
+    }
+
+    /**
+     * Checks if this is a <code>newXXXVector</code> kind.
+     *
+     * @return <code>true</code> if this is a <code>newXXXVector</code> kind.
+     * <code>false</code> otherwise.
+     */
+    public boolean isNewXXXVector() {
+      return (this == NEW_TEXT_VECTOR) || (this == NEW_NUMBER_VECTOR) || (this == NEW_SWITCH_VECTOR) || (this == NEW_BLOB_VECTOR);
+    }
+
+    /**
+     * Gets the kind of a message given its tag name.
+     *
+     * @param tagName The tag name.
+     * @return The kind of the message (<code>UNKNOWN</code> if it is not a
+     * INDI message).
+     */
+    public static Kind fromTagName(String tagName) {
+      Kind k = BY_TAG_NAME.get(tagName);
+
+      if (k == null) {
+        return UNKNOWN;
+      }
+
+      return k;
+    }
+  }
+  /**
+   * The kind of the message.
+   */
+  private Kind kind;
+  /**
+   * The tag name of the message.
+   */
+  private String tagName;
+  /**
+   * The attributes of the message.
+   */
+  private Attributes attributes;
+  /**
+   * The device attribute (trimmed).
+   */
+  private String device;
+  /**
+   * The name attribute (trimmed).
+   */
+  private String name;
+  /**
+   * The state attribute (<code>null</code> if not present or not valid).
+   */
+  private PropertyStates state;
+  /**
+   * The parsed timestamp attribute (lazily parsed).
+   */
+  private Date timestamp;
+  /**
+   * The (trimmed) text content of the message.
+   */
+  private String text;
+  /**
+   * The child elements (<code>oneXXX</code> or <code>defXXX</code>).
+   */
+  private ArrayList<OneElement> elements;
+
+  /**
+   * Constructs a new message from the attributes read by a
+   * <code>INDIStreamParser</code>.
+   *
+   * @param tagName The tag name of the message.
+   * @param attributes The attributes of the message.
+   */
+  protected INDIMessage(String tagName, INDIStreamAttributes attributes) {
+    this.tagName = tagName;
+    this.attributes = new Attributes(attributes);
+    this.text = "";
+    this.elements = new ArrayList<OneElement>();
+
+    init();
+  }
+
+  /**
+   * Constructs a new message from a XML Element.
+   *
+   * @param xml The XML Element.
+   */
+  public INDIMessage(Element xml) {
+    this.tagName = xml.getNodeName();
+    this.attributes = new Attributes(xml);
+    this.elements = new ArrayList<OneElement>();
+
+    NodeList nodes = xml.getChildNodes();
+
+    for (int i = 0 ; i < nodes.getLength() ; i++) {
+      Node n = nodes.item(i);
+
+      if (n instanceof Element) {
+        elements.add(new OneElement((Element)n));
+      }
+    }
+
+    if (elements.isEmpty()) {
+      this.text = xml.getTextContent().trim();
+    } else {
+      this.text = "";
+    }
+
+    init();
+  }
+
+  /**
+   * Parses the common attributes.
+   */
+  private void init() {
+    kind = Kind.fromTagName(tagName);
+
+    device = attributes.get("device");
+    if (device != null) {
+      device = device.trim();
+    }
+
+    name = attributes.get("name");
+    if (name != null) {
+      name = name.trim();
+    }
+
+    String s = attributes.get("state");
+    if (s != null) {
+      try {
+        state = Constants.parsePropertyState(s.trim());
+      } catch (IllegalArgumentException e) {
+        state = null;
+      }
+    }
+  }
+
+  /**
+   * Sets the text content of the message.
+   *
+   * @param text The (trimmed) text.
+   */
+  protected void setText(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Adds a child element to the message.
+   *
+   * @param element The child element.
+   */
+  protected void addElement(OneElement element) {
+    elements.add(element);
+  }
+
+  /**
+   * Gets the kind of the message.
+   *
+   * @return The kind of the message.
+   */
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * Gets the tag name of the message.
+   *
+   * @return The tag name of the message.
+   */
+  public String getTagName() {
+    return tagName;
+  }
+
+  /**
+   * Gets the (trimmed) device attribute.
+   *
+   * @return The device attribute or <code>null</code> if not present.
+   */
+  public String getDevice() {
+    return device;
+  }
+
+  /**
+   * Gets the (trimmed) name attribute.
+   *
+   * @return The name attribute or <code>null</code> if not present.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the state attribute.
+   *
+   * @return The state or <code>null</code> if not present or not valid.
+   */
+  public PropertyStates getState() {
+    return state;
+  }
+
+  /**
+   * Gets the timestamp attribute. If it is not present or not correct, the
+   * current time is returned (as in <code>INDIDateFormat</code>).
+   *
+   * @return The timestamp of the message.
+   */
+  public Date getTimestamp() {
+    if (timestamp == null) {
+      String t = attributes.get("timestamp");
+
+      if (t == null) {
+        t = "";
+      }
+
+      timestamp = INDIDateFormat.parseTimestamp(t);
+    }
+
+    return timestamp;
+  }
+
+  /**
+   * Gets the message attribute.
+   *
+   * @return The message attribute or <code>null</code> if not present.
+   */
+  public String getMessage() {
+    return attributes.get("message");
+  }
+
+  /**
+   * Gets an attribute of the message.
+   *
+   * @param attributeName The name of the attribute.
+   * @return The value of the attribute or <code>null</code> if not present.
+   */
+  public String getAttribute(String attributeName) {
+    return attributes.get(attributeName);
+  }
+
+  /**
+   * Gets the (trimmed) text content of the message. Only messages without
+   * child elements (like <code>enableBLOB</code>) have text.
+   *
+   * @return The text content of the message.
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Gets the child elements of the message (<code>oneXXX</code> or
+   * <code>defXXX</code>).
+   *
+   * @return The child elements of the message.
+   */
+  public ArrayList<OneElement> getElements() {
+    return elements;
+  }
+
+  /**
+   * A class representing a child element of a INDI message
+   * (<code>oneXXX</code> or <code>defXXX</code>).
+   */
+  public static class OneElement {
+
+    /**
+     * The tag name of the element.
+     */
+    private String tagName;
+    /**
+     * The attributes of the element.
+     */
+    private Attributes attributes;
+    /**
+     * The (trimmed) text content of the element.
+     */
+    private String text;
+    /**
+     * <code>true</code> if the (base64) text content has been decoded while
+     * reading.
+     */
+    private boolean decoded;
+    /**
+     * The decoded text content (<code>null</code> if it was not valid).
+     */
+    private byte[] decodedData;
+    /**
+     * The number of valid bytes in <code>decodedData</code>.
+     */
+    private int decodedDataLength;
+
+    /**
+     * Constructs a new element from the attributes read by a
+     * <code>INDIStreamParser</code>.
+     *
+     * @param tagName The tag name of the element.
+     * @param attributes The attributes of the element.
+     */
+    protected OneElement(String tagName, INDIStreamAttributes attributes) {
+      this.tagName = tagName;
+      this.attributes = new Attributes(attributes);
+      this.text = "";
+    }
+
+    /**
+     * Constructs a new element from a XML Element.
+     *
+     * @param xml The XML Element.
+     */
+    public OneElement(Element xml) {
+      this.tagName = xml.getNodeName();
+      this.attributes = new Attributes(xml);
+      this.text = xml.getTextContent().trim();
+    }
+
+    /**
+     * Sets the text content of the element.
+     *
+     * @param text The (trimmed) text.
+     */
+    protected void setText(String text) {
+      this.text = text;
+    }
+
+    /**
+     * Sets the decoded content of a element whose (base64) text has been
+     * decoded while reading. Its text is left empty.
+     *
+     * @param data The decoded bytes (<code>null</code> if the text was not
+     * valid).
+     * @param length The number of valid bytes in <code>data</code>.
+     */
+    protected void setDecodedData(byte[] data, int length) {
+      this.decoded = true;
+      this.decodedData = data;
+      this.decodedDataLength = length;
+    }
+
+    /**
+     * Checks if the (base64) text content of the element has been decoded
+     * while reading (as it is done for &lt;oneBLOB&gt; elements). In that case
+     * <code>getText</code> returns an empty String.
+     *
+     * @return <code>true</code> if the text has been decoded.
+     */
+    public boolean isDecoded() {
+      return decoded;
+    }
+
+    /**
+     * Gets the decoded text content of the element. Only the first
+     * <code>getDecodedDataLength()</code> bytes are valid.
+     *
+     * @return The decoded bytes or <code>null</code> if they were not decoded
+     * or the text was not valid base64.
+     */
+    public byte[] getDecodedData() {
+      return decodedData;
+    }
+
+    /**
+     * Gets the number of valid bytes of the decoded text content.
+     *
+     * @return The number of valid decoded bytes.
+     */
+    public int getDecodedDataLength() {
+      return decodedDataLength;
+    }
+
+    /**
+     * Gets the tag name of the element.
+     *
+     * @return The tag name of the element.
+     */
+    public String getTagName() {
+      return tagName;
+    }
+
+    /**
+     * Gets the name attribute of the element.
+     *
+     * @return The name attribute or <code>null</code> if not present.
+     */
+    public String getName() {
+      return attributes.get("name");
+    }
+
+    /**
+     * Gets an attribute of the element.
+     *
+     * @param attributeName The name of the attribute.
+     * @return The value of the attribute or <code>null</code> if not present.
+     */
+    public String getAttribute(String attributeName) {
+      return attributes.get(attributeName);
+    }
+
+    /**
+     * Gets the (trimmed) text content of the element.
+     *
+     * @return The text content of the element.
+     */
+    public String getText() {
+      return text;
+    }
+  }
+
+  /**
+   * A compact, immutable list of attributes.
+   */
+  private static class Attributes {
+
+    /**
+     * Names and values, interleaved.
+     */
+    private String[] namesAndValues;
+
+    /**
+     * Copies the attributes read by a <code>INDIStreamParser</code>.
+     *
+     * @param attributes The attributes.
+     */
+    private Attributes(INDIStreamAttributes attributes) {
+      int n = attributes.getLength();
+      namesAndValues = new String[n * 2];
+
+      for (int i = 0 ; i < n ; i++) {
+        namesAndValues[2 * i] = attributes.getName(i);
+        namesAndValues[2 * i + 1] = attributes.getValue(i);
+      }
+    }
+
+    /**
+     * Copies the attributes of a XML Element.
+     *
+     * @param xml The XML Element.
+     */
+    private Attributes(Element xml) {
+      NamedNodeMap map = xml.getAttributes();
+      int n = map.getLength();
+      namesAndValues = new String[n * 2];
+
+      for (int i = 0 ; i < n ; i++) {
+        Attr a = (Attr)map.item(i);
+
+        namesAndValues[2 * i] = a.getName();
+        namesAndValues[2 * i + 1] = a.getValue();
+      }
+    }
+
+    /**
+     * Gets the value of an attribute.
+     *
+     * @param attributeName The name of the attribute.
+     * @return The value or <code>null</code> if not present.
+     */
+    private String get(String attributeName) {
+      for (int i = 0 ; i < namesAndValues.length ; i += 2) {
+        if (namesAndValues[i].equals(attributeName)) {
+          return namesAndValues[i + 1];
+        }
+      }
+
+      return null;
+    }
+  }
+}
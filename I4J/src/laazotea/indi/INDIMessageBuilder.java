@@ -0,0 +1,370 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A <code>INDIStreamHandler</code> that builds a <code>INDIMessage</code> for
+ * every top level element and sends it to a <code>INDIMessageParser</code> as
+ * soon as the element is closed. Elements nested deeper than the
+ * <code>oneXXX</code> / <code>defXXX</code> level are ignored.
+ *
+ * The base64 content of &lt;oneBLOB&gt; elements is decoded as it arrives,
+ * straight into an array of the announced size, so big BLOBs are never kept
+ * as text.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIMessageBuilder implements INDIStreamHandler {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The size of the own text buffer. Bigger messages (BLOBs) borrow a buffer
+   * from the pool while they are read.
+   */
+  private static final int TEXT_BUFFER_SIZE = 1024;
+  /**
+   * The parser to which the messages are sent.
+   */
+  private INDIMessageParser parser;
+  /**
+   * The message being built.
+   */
+  private INDIMessage message;
+  /**
+   * The child element being built.
+   */
+  private INDIMessage.OneElement element;
+  /**
+   * The current depth (1 inside the message, 2 inside a child element).
+   */
+  private int depth;
+  /**
+   * The text of the current element.
+   */
+  private byte[] text;
+  /**
+   * The length of the text in the buffer.
+   */
+  private int textLength;
+  /**
+   * The decoder of the &lt;oneBLOB&gt; being read (<code>null</code> if the
+   * current element is not a &lt;oneBLOB&gt;).
+   */
+  private Base64.OutputStream blobDecoder;
+  /**
+   * The destination of the decoded &lt;oneBLOB&gt; bytes.
+   */
+  private BLOBSink blobSink;
+  /**
+   * The own (small) text buffer.
+   */
+  private byte[] ownText;
+  /**
+   * The buffer borrowed from the pool for the text of a big message
+   * (<code>null</code> if the own buffer is used).
+   */
+  private ByteBuffer pooledText;
+  /**
+   * The pool from which big text buffers are borrowed.
+   */
+  private INDIBufferPool pool;
+  /**
+   * The maximum size hint of a &lt;oneBLOB&gt; (the decoded size of a
+   * message of the maximum size).
+   */
+  private int maxBLOBSizeHint;
+
+  /**
+   * Constructs a new builder for messages of the default maximum size.
+   *
+   * @param parser The parser to which the messages will be sent.
+   */
+  public INDIMessageBuilder(INDIMessageParser parser) {
+    this(parser, INDIStreamParser.DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Constructs a new builder.
+   *
+   * @param parser The parser to which the messages will be sent.
+   * @param maxFrameSize The maximum size (in bytes) of the parsed messages
+   * (it bounds the size attributes of the &lt;oneBLOB&gt;s that are trusted).
+   */
+  public INDIMessageBuilder(INDIMessageParser parser, int maxFrameSize) {
+    this.parser = parser;
+
+    maxBLOBSizeHint = (maxFrameSize / 4) * 3;
+    pool = INDIBufferPool.getDefault();
+    ownText = new byte[TEXT_BUFFER_SIZE];
+    text = ownText;
+    textLength = 0;
+    depth = 0;
+  }
+
+  @Override
+  public void startElement(String name, INDIStreamAttributes attributes) {
+    depth++;
+
+    if (depth == 1) {
+      message = new INDIMessage(name, attributes);
+    } else if (depth == 2) {
+      element = new INDIMessage.OneElement(name, attributes);
+
+      if (name.equals("oneBLOB")) {
+        blobSink = new BLOBSink(getSizeHint(attributes.getValue("size"), maxBLOBSizeHint));
+        blobDecoder = new Base64.OutputStream(blobSink, Base64.DECODE);
+      }
+    }
+
+    textLength = 0;
+  }
+
+  @Override
+  public void characters(byte[] buffer, int offset, int length) {
+    if (depth > 2) {
+      return;
+    }
+
+    if ((depth == 2) && (blobSink != null)) {
+      if (blobDecoder != null) {
+        try {
+          blobDecoder.write(buffer, offset, length);
+        } catch (IOException e) {  // Not base64: the rest is ignored
+          blobDecoder = null;
+        }
+      }
+
+      return;
+    }
+
+    if (textLength + length > text.length) {
+      growText(textLength + length);
+    }
+
+    System.arraycopy(buffer, offset, text, textLength, length);
+    textLength += length;
+  }
+
+  @Override
+  public void endElement(String name) {
+    if (depth == 2) {
+      if (blobSink != null) {
+        endBLOB();
+      } else {
+        element.setText(getText());
+      }
+
+      message.addElement(element);
+      element = null;
+    } else if (depth == 1) {
+      if (message.getElements().isEmpty()) {
+        message.setText(getText());
+      }
+
+      INDIMessage m = message;
+
+      discard();
+
+      parser.parseMessage(m);
+
+      return;
+    }
+
+    depth--;
+    textLength = 0;
+  }
+
+  @Override
+  public void malformedElement() {
+    discard();
+  }
+
+  /**
+   * Sets the decoded bytes of the &lt;oneBLOB&gt; that has just been closed.
+   */
+  private void endBLOB() {
+    boolean valid = false;
+
+    if (blobDecoder != null) {
+      try {
+        blobDecoder.flushBase64();
+
+        valid = true;
+      } catch (IOException e) {
+      }
+    }
+
+    if (valid) {
+      element.setDecodedData(blobSink.data, blobSink.length);
+    } else {
+      element.setDecodedData(null, 0);
+    }
+
+    blobDecoder = null;
+    blobSink = null;
+  }
+
+  /**
+   * Parses the size attribute of a &lt;oneBLOB&gt;, used as a hint of the
+   * final capacity of the decoded bytes. It is sent by the peer (and for
+   * compressed formats it is the uncompressed size), so it is never trusted
+   * beyond the decoded size of a message of the maximum size.
+   *
+   * @param size The size attribute.
+   * @param max The maximum hint.
+   * @return The hint (0 if it is not a valid size).
+   */
+  private static int getSizeHint(String size, int max) {
+    if (size == null) {
+      return 0;
+    }
+
+    try {
+      int s = Integer.parseInt(size.trim());
+
+      if ((s < 0) || (s > max)) {
+        return 0;
+      }
+
+      return s;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Gets the (trimmed) text in the buffer.
+   *
+   * @return The text in the buffer.
+   */
+  private String getText() {
+    return new String(text, 0, textLength, UTF8).trim();
+  }
+
+  /**
+   * Forgets the message being built.
+   */
+  private void discard() {
+    message = null;
+    element = null;
+    blobDecoder = null;
+    blobSink = null;
+    depth = 0;
+    textLength = 0;
+
+    if (pooledText != null) {
+      pool.release(pooledText);
+      pooledText = null;
+      text = ownText;
+    }
+  }
+
+  /**
+   * Borrows a bigger text buffer from the pool, keeping the current text.
+   *
+   * @param capacity The needed capacity.
+   */
+  private void growText(int capacity) {
+    capacity = Math.max(text.length * 2, capacity);
+
+    if (pooledText == null) {
+      pooledText = pool.acquire(capacity);
+      System.arraycopy(text, 0, pooledText.array(), 0, textLength);
+    } else {
+      pooledText = pool.grow(pooledText, textLength, capacity);
+    }
+
+    text = pooledText.array();
+  }
+
+  /**
+   * The destination of decoded &lt;oneBLOB&gt; bytes. The array grows as the
+   * bytes are decoded (so it is never much bigger than the received data),
+   * but it does not grow beyond the size hint while the bytes fit: if the
+   * size attribute was right, the array has exactly the size of the BLOB.
+   */
+  private static class BLOBSink extends OutputStream {
+
+    /**
+     * The decoded bytes.
+     */
+    private byte[] data;
+    /**
+     * The number of decoded bytes.
+     */
+    private int length;
+    /**
+     * The expected number of bytes (0 if unknown).
+     */
+    private int sizeHint;
+
+    /**
+     * Constructs a new sink.
+     *
+     * @param sizeHint The expected number of bytes (0 if unknown).
+     */
+    private BLOBSink(int sizeHint) {
+      this.sizeHint = sizeHint;
+
+      data = new byte[0];
+      length = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(length + 1);
+
+      data[length++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(length + len);
+
+      System.arraycopy(b, off, data, length, len);
+      length += len;
+    }
+
+    /**
+     * Grows the array if needed.
+     *
+     * @param capacity The needed capacity.
+     */
+    private void ensureCapacity(int capacity) {
+      if (capacity > data.length) {
+        int newCapacity = Math.max(Math.max(data.length * 2, capacity), 1024);
+
+        if (capacity <= sizeHint) {
+          newCapacity = Math.min(newCapacity, sizeHint);
+        }
+
+        data = Arrays.copyOf(data, newCapacity);
+      }
+    }
+  }
+}
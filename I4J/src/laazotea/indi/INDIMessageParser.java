@@ -0,0 +1,37 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A INDI Protocol Parser that receives typed <code>INDIMessage</code>s instead
+ * of XML Documents. When a <code>INDIProtocolReader</code> reads for one of
+ * these parsers no DOM is built and only <code>parseMessage</code> is called.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIMessage
+ */
+public interface INDIMessageParser extends INDIProtocolParser {
+
+  /**
+   * Parses a INDI message.
+   *
+   * @param message The message to parse.
+   */
+  public void parseMessage(INDIMessage message);
+}
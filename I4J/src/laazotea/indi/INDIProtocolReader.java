@@ -17,17 +17,11 @@
  */
 package laazotea.indi;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 /**
  * A class that reads from a input stream and sends the read messages to a parser.
@@ -36,6 +30,11 @@ import org.xml.sax.SAXParseException;
  * @version 1.2, April 1, 2012
  */
 public class INDIProtocolReader extends Thread {
+  /**
+   * The size of the read buffer. As the bytes are parsed incrementally, it
+   * does not limit the size of the messages.
+   */
+  private static final int READ_BUFFER_SIZE = 8192;
   /**
    * The parser to which the messages will be sent.
    */
@@ -44,87 +43,91 @@ public class INDIProtocolReader extends Thread {
    * Used to friendly stop the reader.
    */
   private boolean stop;
+  /**
+   * The parser of the read bytes.
+   */
+  private INDIStreamParser streamParser;
   
   /**
    * Creates the reader.
    * @param parser The parser to which the readed messages will be sent.
    */
   public INDIProtocolReader(INDIProtocolParser parser) {
+    this(parser, INDIStreamParser.DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Creates the reader with a particular maximum size for the read messages.
+   * @param parser The parser to which the readed messages will be sent.
+   * @param maxFrameSize The maximum size (in bytes) of a message. Bigger ones are dropped.
+   */
+  public INDIProtocolReader(INDIProtocolParser parser, int maxFrameSize) {
     this.parser = parser;
+
+    if (parser instanceof INDIFrameParser) {  // Only the header and the original bytes
+      streamParser = new INDIStreamParser(new INDIFrameBuilder((INDIFrameParser)parser), maxFrameSize);
+    } else if (parser instanceof INDIMessageParser) {  // Typed messages, no DOM needed
+      streamParser = new INDIStreamParser(new INDIMessageBuilder((INDIMessageParser)parser, maxFrameSize), maxFrameSize);
+    } else {
+      try {
+        streamParser = new INDIStreamParser(new INDIDOMBuilder(parser), maxFrameSize);
+      } catch (ParserConfigurationException e) {
+        e.printStackTrace();
+      }
+    }
   }
   
   /**
-   * The main body of the reader.
+   * Starts the reader in a thread created by a factory (for example of
+   * virtual threads) instead of in this Thread.
+   * @param threadFactory The factory of the thread. If <code>null</code> the reader is started as a usual Thread.
+   */
+  public void start(ThreadFactory threadFactory) {
+    if (threadFactory == null) {
+      start();
+    } else {
+      threadFactory.newThread(this).start();
+    }
+  }
+
+  /**
+   * The main body of the reader. The bytes are read into a small buffer
+   * borrowed from the shared <code>INDIBufferPool</code> and sent to a
+   * <code>INDIStreamParser</code>, that keeps its state between reads, so
+   * each message is delivered to the parser as soon as it is complete. If the
+   * parser is a <code>INDIFrameParser</code> it receives
+   * <code>INDIFrame</code>s and if it is a <code>INDIMessageParser</code>
+   * typed <code>INDIMessage</code>s instead of XML Documents.
    */
   @Override
   public void run() {
-    DocumentBuilderFactory docBuilderFactory;
-
-    DocumentBuilder docBuilder;
-    try {
-      docBuilderFactory = DocumentBuilderFactory.newInstance();
-      docBuilder = docBuilderFactory.newDocumentBuilder();
-      docBuilder.setErrorHandler(new ErrorHandler() {
-
-        @Override
-        public void warning(SAXParseException e) throws SAXException {
-        }
-
-        @Override
-        public void fatalError(SAXParseException e) throws SAXException {
-        }
-
-        @Override
-        public void error(SAXParseException e) throws SAXException {
-        }
-      });
-    } catch (Exception e) {
-      e.printStackTrace();
+    if (streamParser == null) {
       return;
     }
 
-    int BUFFER_SIZE = 1000000;
-
-    StringBuffer bufferedInput = new StringBuffer();
-
-    char[] buffer = new char[BUFFER_SIZE];
+    INDIBufferPool pool = INDIBufferPool.getDefault();
+    ByteBuffer readBuffer = pool.acquire(READ_BUFFER_SIZE);
+    byte[] buffer = readBuffer.array();
 
     stop = false;
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(parser.getInputStream()));
+    InputStream in = parser.getInputStream();
 
     try {
       while (!stop) {
-        int nReaded = in.read(buffer, 0, BUFFER_SIZE);
+        int nReaded = in.read(buffer, 0, READ_BUFFER_SIZE);
 
         if (nReaded != -1) {
-          bufferedInput.append(buffer, 0, nReaded);  // Appending to the buffer
-
-          boolean errorParsing = false;
-
-          try {
-            String d = "<INDI>" + bufferedInput + "</INDI>";
-            //System.err.println(d);
-            d = d.replaceAll("\\<\\?xml version='...'\\?\\>", "");
-            d = d.replaceAll("\\<\\?xml version=\"...\"\\?\\>", "");
-            //    System.err.println(d);
-
-            Document doc = docBuilder.parse(new InputSource(new StringReader(d)));
-
-            parser.parseXML(doc);
-          } catch (SAXException e) {
-            errorParsing = true;
-          }
-
-          if (!errorParsing) {
-            bufferedInput.setLength(0);  // Empty the buffer because it has been already parsed
-          }
+          streamParser.parse(buffer, 0, nReaded);
         } else {  // If -1 readed, end
           stop = true;
         }
       }
     } catch (IOException e) {
       //   e.printStackTrace();
+    } finally {
+      streamParser.reset();  // Gives back the buffers of any partial message
+      pool.release(readBuffer);
     }
 
     parser.finishReader();
@@ -137,4 +140,28 @@ public class INDIProtocolReader extends Thread {
   public void setStop(boolean stop) {
     this.stop = stop; 
   }
+
+  /**
+   * Gets the number of messages dropped because they were too big.
+   * @return The number of oversized messages.
+   */
+  public long getOversizedFrames() {
+    return (streamParser == null) ? 0 : streamParser.getOversizedFrames();
+  }
+
+  /**
+   * Gets the number of messages dropped because they were not well formed.
+   * @return The number of malformed messages.
+   */
+  public long getMalformedFrames() {
+    return (streamParser == null) ? 0 : streamParser.getMalformedFrames();
+  }
+
+  /**
+   * Gets the number of bytes skipped while looking for the next message after a dropped one.
+   * @return The number of skipped bytes.
+   */
+  public long getSkippedBytes() {
+    return (streamParser == null) ? 0 : streamParser.getSkippedBytes();
+  }
 }
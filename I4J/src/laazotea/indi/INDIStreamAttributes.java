@@ -0,0 +1,125 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.util.Arrays;
+
+/**
+ * A class representing the attributes of a start tag read by a
+ * <code>INDIStreamParser</code>. The same instance is reused for every tag.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIStreamParser
+ */
+public class INDIStreamAttributes {
+
+  /**
+   * The names of the attributes.
+   */
+  private String[] names;
+  /**
+   * The values of the attributes.
+   */
+  private String[] values;
+  /**
+   * The number of attributes.
+   */
+  private int length;
+
+  /**
+   * Constructs an empty set of attributes.
+   */
+  protected INDIStreamAttributes() {
+    names = new String[8];
+    values = new String[8];
+    length = 0;
+  }
+
+  /**
+   * Removes all the attributes.
+   */
+  protected void clear() {
+    Arrays.fill(values, 0, length, null);
+
+    length = 0;
+  }
+
+  /**
+   * Adds a new attribute.
+   *
+   * @param name The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  protected void add(String name, String value) {
+    if (length == names.length) {
+      names = Arrays.copyOf(names, length * 2);
+      values = Arrays.copyOf(values, length * 2);
+    }
+
+    names[length] = name;
+    values[length] = value;
+    length++;
+  }
+
+  /**
+   * Gets the number of attributes.
+   *
+   * @return The number of attributes.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Gets the name of an attribute.
+   *
+   * @param index The index of the attribute.
+   * @return The name of the attribute.
+   */
+  public String getName(int index) {
+    return names[index];
+  }
+
+  /**
+   * Gets the value of an attribute.
+   *
+   * @param index The index of the attribute.
+   * @return The value of the attribute.
+   */
+  public String getValue(int index) {
+    return values[index];
+  }
+
+  /**
+   * Gets the value of an attribute given its name.
+   *
+   * @param name The name of the attribute.
+   * @return The value of the attribute or <code>null</code> if there is no
+   * attribute with that name.
+   */
+  public String getValue(String name) {
+    for (int i = 0 ; i < length ; i++) {
+      if (names[i].equals(name)) {
+        return values[i];
+      }
+    }
+
+    return null;
+  }
+}
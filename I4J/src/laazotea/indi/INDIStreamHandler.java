@@ -0,0 +1,63 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+/**
+ * A interface to receive the events produced by a
+ * <code>INDIStreamParser</code>.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIStreamParser
+ */
+public interface INDIStreamHandler {
+
+  /**
+   * Called when a start tag has been completely read.
+   *
+   * @param name The name of the element.
+   * @param attributes The attributes of the element. The object is reused by
+   * the parser, so it is only valid during this call.
+   */
+  public void startElement(String name, INDIStreamAttributes attributes);
+
+  /**
+   * Called with (a part of) the text content of the current element. Entities
+   * have already been decoded. The text of a single element may be delivered
+   * in several calls, and a call may end in the middle of a multibyte
+   * character.
+   *
+   * @param buffer The buffer containing UTF-8 encoded text.
+   * @param offset The offset of the text in the buffer.
+   * @param length The number of bytes of text.
+   */
+  public void characters(byte[] buffer, int offset, int length);
+
+  /**
+   * Called when an element has been closed.
+   *
+   * @param name The name of the element.
+   */
+  public void endElement(String name);
+
+  /**
+   * Called when the top level element being read is not well formed. Any
+   * partial information about it must be discarded.
+   */
+  public void malformedElement();
+}
@@ -0,0 +1,1055 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An incremental (SAX like) XML parser for INDI streams. The bytes are
+ * supplied as they are read and the parser keeps its state between calls, so
+ * every byte is only parsed once no matter how the messages are split between
+ * reads. The events are sent to a <code>INDIStreamHandler</code>.
+ *
+ * INDI streams are not XML documents but a sequence of top level elements, so
+ * no root element is expected. XML declarations, processing instructions and
+ * comments are skipped.
+ *
+ * Each top level element (frame) is bounded by a maximum size. Frames that
+ * are too big or not well formed are dropped and the parser resynchronises by
+ * skipping bytes until the start tag of a known INDI message is found.
+ *
+ * If the handler is a <code>INDIFrameHandler</code> the original bytes of
+ * each top level element are also kept and sent to it.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIStreamHandler
+ */
+public class INDIStreamParser {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // The states of the parser
+  private static final int TEXT = 0;
+  private static final int TAG_OPEN = 1;
+  private static final int START_TAG_NAME = 2;
+  private static final int IN_START_TAG = 3;
+  private static final int ATTRIBUTE_NAME = 4;
+  private static final int AFTER_ATTRIBUTE_NAME = 5;
+  private static final int BEFORE_ATTRIBUTE_VALUE = 6;
+  private static final int ATTRIBUTE_VALUE = 7;
+  private static final int EMPTY_TAG_END = 8;
+  private static final int END_TAG_NAME = 9;
+  private static final int AFTER_END_TAG_NAME = 10;
+  private static final int PROCESSING_INSTRUCTION = 11;
+  private static final int MARKUP_DECLARATION = 12;
+  private static final int COMMENT = 13;
+  private static final int CDATA = 14;
+  private static final int DECLARATION = 15;
+  private static final int ENTITY = 16;
+  private static final int RESYNC = 17;
+  /**
+   * The default maximum size (in bytes) of a top level element.
+   */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  /**
+   * The beginning of a comment (after <code>&lt;!</code>).
+   */
+  private static final byte[] COMMENT_START = {'-', '-'};
+  /**
+   * The beginning of a CDATA section (after <code>&lt;!</code>).
+   */
+  private static final byte[] CDATA_START = {'[', 'C', 'D', 'A', 'T', 'A', '['};
+  /**
+   * The maximum length of an entity name.
+   */
+  private static final int MAX_ENTITY_LENGTH = 10;
+  /**
+   * The size of the cache of element and attribute names (power of two).
+   */
+  private static final int NAME_CACHE_SIZE = 256;
+  /**
+   * The initial size of the value buffer.
+   */
+  private static final int VALUE_BUFFER_SIZE = 256;
+  /**
+   * The size of the own frame buffer. Bigger frames borrow a buffer from the
+   * pool.
+   */
+  private static final int FRAME_BUFFER_SIZE = 1024;
+  /**
+   * The handler to which the events are sent.
+   */
+  private INDIStreamHandler handler;
+  /**
+   * The current state.
+   */
+  private int state;
+  /**
+   * The state to which the parser returns after reading an entity.
+   */
+  private int entityReturnState;
+  /**
+   * The stack of open elements.
+   */
+  private String[] openElements;
+  /**
+   * The number of open elements.
+   */
+  private int depth;
+  /**
+   * The name of the start tag being read.
+   */
+  private String elementName;
+  /**
+   * The name of the attribute being read.
+   */
+  private String attributeName;
+  /**
+   * The attributes of the start tag being read.
+   */
+  private INDIStreamAttributes attributes;
+  /**
+   * The quote character of the attribute value being read.
+   */
+  private byte quote;
+  /**
+   * A buffer for element and attribute names.
+   */
+  private byte[] name;
+  /**
+   * The length of the name in the buffer.
+   */
+  private int nameLength;
+  /**
+   * A buffer for attribute values and CDATA sections.
+   */
+  private byte[] value;
+  /**
+   * The length of the value in the buffer.
+   */
+  private int valueLength;
+  /**
+   * A buffer for the entity being read.
+   */
+  private byte[] entity;
+  /**
+   * The length of the entity in the buffer.
+   */
+  private int entityLength;
+  /**
+   * A buffer for the beginning of <code>&lt;!</code> declarations.
+   */
+  private byte[] markup;
+  /**
+   * The length of the declaration beginning in the buffer.
+   */
+  private int markupLength;
+  /**
+   * Number of consecutive characters read that may close a comment, a CDATA
+   * section or a processing instruction.
+   */
+  private int closingLength;
+  /**
+   * A buffer for decoded entities.
+   */
+  private byte[] decoded;
+  /**
+   * A cache of names, to avoid creating new Strings for the same tag and
+   * attribute names.
+   */
+  private String[] nameCache;
+  /**
+   * The bytes of the names in the cache.
+   */
+  private byte[][] nameCacheBytes;
+  /**
+   * The maximum size (in bytes) of a top level element.
+   */
+  private int maxFrameSize;
+  /**
+   * The number of bytes of the current top level element read so far.
+   */
+  private int frameLength;
+  /**
+   * <code>true</code> if the parser is skipping bytes until the beginning of
+   * a known INDI message.
+   */
+  private boolean resynchronising;
+  /**
+   * The number of top level elements dropped because they were too big.
+   */
+  private volatile long oversizedFrames;
+  /**
+   * The number of top level elements dropped because they were not well
+   * formed.
+   */
+  private volatile long malformedFrames;
+  /**
+   * The number of bytes skipped while resynchronising.
+   */
+  private volatile long skippedBytes;
+  /**
+   * The handler that receives the original bytes of the top level elements
+   * (<code>null</code> if the handler does not want them).
+   */
+  private INDIFrameHandler frameHandler;
+  /**
+   * The original bytes of the current top level element.
+   */
+  private byte[] frame;
+  /**
+   * The number of bytes in the frame buffer.
+   */
+  private int frameBytes;
+  /**
+   * The own (small) frame buffer.
+   */
+  private byte[] ownFrame;
+  /**
+   * The frame buffer borrowed from the pool for a big frame
+   * (<code>null</code> if the own buffer is used).
+   */
+  private ByteBuffer pooledFrame;
+  /**
+   * The position in the buffer being parsed where the bytes of the current
+   * frame begin (<code>-1</code> if no frame is being kept).
+   */
+  private int captureStart;
+  /**
+   * The buffer being parsed.
+   */
+  private byte[] chunk;
+  /**
+   * The position of the byte being parsed.
+   */
+  private int chunkIndex;
+
+  /**
+   * Constructs a new parser.
+   *
+   * @param handler The handler to which the events will be sent.
+   */
+  public INDIStreamParser(INDIStreamHandler handler) {
+    this(handler, DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Constructs a new parser with a particular maximum frame size.
+   *
+   * @param handler The handler to which the events will be sent.
+   * @param maxFrameSize The maximum size (in bytes) of a top level element.
+   */
+  public INDIStreamParser(INDIStreamHandler handler, int maxFrameSize) {
+    this.handler = handler;
+
+    setMaxFrameSize(maxFrameSize);
+    openElements = new String[8];
+    attributes = new INDIStreamAttributes();
+    name = new byte[64];
+    value = new byte[VALUE_BUFFER_SIZE];
+    entity = new byte[MAX_ENTITY_LENGTH];
+    markup = new byte[CDATA_START.length];
+    decoded = new byte[4];
+    nameCache = new String[NAME_CACHE_SIZE];
+    nameCacheBytes = new byte[NAME_CACHE_SIZE][];
+    captureStart = -1;
+
+    if (handler instanceof INDIFrameHandler) {
+      frameHandler = (INDIFrameHandler)handler;
+      ownFrame = new byte[FRAME_BUFFER_SIZE];
+      frame = ownFrame;
+    }
+
+    reset();
+  }
+
+  /**
+   * Discards any partially read element (the handler is notified with
+   * <code>malformedElement</code>) and starts again as if no byte had been
+   * parsed.
+   */
+  public void reset() {
+    if (depth > 0) {
+      handler.malformedElement();
+    }
+
+    Arrays.fill(openElements, 0, depth, null);
+    depth = 0;
+    state = TEXT;
+    nameLength = 0;
+    valueLength = 0;
+    frameLength = 0;
+    resynchronising = false;
+    attributes.clear();
+    releaseFrame();
+  }
+
+  /**
+   * Sets the maximum size of a top level element. Bigger elements are dropped.
+   *
+   * @param maxFrameSize The maximum size (in bytes) of a top level element.
+   * @throws IllegalArgumentException if the size is not positive.
+   */
+  public final void setMaxFrameSize(int maxFrameSize) throws IllegalArgumentException {
+    if (maxFrameSize <= 0) {
+      throw new IllegalArgumentException("Maximum frame size must be positive");
+    }
+
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  /**
+   * Gets the maximum size of a top level element.
+   *
+   * @return The maximum size (in bytes) of a top level element.
+   */
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  /**
+   * Gets the number of top level elements dropped because they were bigger
+   * than the maximum frame size.
+   *
+   * @return The number of oversized elements.
+   */
+  public long getOversizedFrames() {
+    return oversizedFrames;
+  }
+
+  /**
+   * Gets the number of top level elements dropped because they were not well
+   * formed.
+   *
+   * @return The number of malformed elements.
+   */
+  public long getMalformedFrames() {
+    return malformedFrames;
+  }
+
+  /**
+   * Gets the number of bytes skipped while looking for the next INDI message
+   * after a dropped element.
+   *
+   * @return The number of skipped bytes.
+   */
+  public long getSkippedBytes() {
+    return skippedBytes;
+  }
+
+  /**
+   * Gets the number of currently open elements.
+   *
+   * @return The number of currently open elements.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Parses some bytes of the stream.
+   *
+   * @param buffer The buffer with the bytes.
+   * @param offset The offset of the first byte to parse.
+   * @param length The number of bytes to parse.
+   */
+  public void parse(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    int textStart = -1;  // Start of the text that has still not been sent to the handler
+
+    if (state == TEXT) {
+      textStart = offset;
+    }
+
+    chunk = buffer;
+    captureStart = ((frameHandler != null) && (frameLength > 0)) ? offset : -1;
+
+    for (int i = offset ; i < end ; i++) {
+      byte b = buffer[i];
+      chunkIndex = i;
+
+      switch (state) {
+        case TEXT:
+          if (b == '<') {
+            sendText(buffer, textStart, i);
+            textStart = -1;
+            state = TAG_OPEN;
+          } else if (b == '&') {
+            sendText(buffer, textStart, i);
+            textStart = -1;
+            entityLength = 0;
+            entityReturnState = TEXT;
+            state = ENTITY;
+          }
+          break;
+        case TAG_OPEN:
+          if (resynchronising && (depth == 0) && (isWhitespace(b) || isDelimiter(b) || (b == '?') || (b == '!'))) {
+            skippedBytes += 2;
+            state = RESYNC;
+          } else if (b == '/') {
+            nameLength = 0;
+            state = END_TAG_NAME;
+          } else if (b == '?') {
+            closingLength = 0;
+            state = PROCESSING_INSTRUCTION;
+          } else if (b == '!') {
+            markupLength = 0;
+            state = MARKUP_DECLARATION;
+          } else if (isWhitespace(b) || isDelimiter(b)) {
+            malformed(b);
+          } else {
+            nameLength = 0;
+            appendName(b);
+            state = START_TAG_NAME;
+          }
+          break;
+        case START_TAG_NAME:
+          if (isWhitespace(b)) {
+            beginStartTag();
+            state = IN_START_TAG;
+          } else if (b == '>') {
+            beginStartTag();
+            endStartTag(false);
+          } else if (b == '/') {
+            beginStartTag();
+            state = EMPTY_TAG_END;
+          } else if (isDelimiter(b)) {
+            malformed(b);
+          } else {
+            appendName(b);
+          }
+          break;
+        case IN_START_TAG:
+          if (b == '>') {
+            endStartTag(false);
+          } else if (b == '/') {
+            state = EMPTY_TAG_END;
+          } else if (isDelimiter(b)) {
+            malformed(b);
+          } else if (!isWhitespace(b)) {
+            nameLength = 0;
+            appendName(b);
+            state = ATTRIBUTE_NAME;
+          }
+          break;
+        case ATTRIBUTE_NAME:
+          if (b == '=') {
+            attributeName = getName();
+            state = BEFORE_ATTRIBUTE_VALUE;
+          } else if (isWhitespace(b)) {
+            attributeName = getName();
+            state = AFTER_ATTRIBUTE_NAME;
+          } else if (isDelimiter(b)) {
+            malformed(b);
+          } else {
+            appendName(b);
+          }
+          break;
+        case AFTER_ATTRIBUTE_NAME:
+          if (b == '=') {
+            state = BEFORE_ATTRIBUTE_VALUE;
+          } else if (!isWhitespace(b)) {
+            malformed(b);
+          }
+          break;
+        case BEFORE_ATTRIBUTE_VALUE:
+          if ((b == '"') || (b == '\'')) {
+            quote = b;
+            valueLength = 0;
+            state = ATTRIBUTE_VALUE;
+          } else if (!isWhitespace(b)) {
+            malformed(b);
+          }
+          break;
+        case ATTRIBUTE_VALUE:
+          if (b == quote) {
+            attributes.add(attributeName, new String(value, 0, valueLength, UTF8));
+            state = IN_START_TAG;
+          } else if (b == '&') {
+            entityLength = 0;
+            entityReturnState = ATTRIBUTE_VALUE;
+            state = ENTITY;
+          } else if (b == '<') {
+            malformed(b);
+          } else {
+            appendValue(b);
+          }
+          break;
+        case EMPTY_TAG_END:
+          if (b == '>') {
+            endStartTag(true);
+          } else {
+            malformed(b);
+          }
+          break;
+        case END_TAG_NAME:
+          if (b == '>') {
+            endTag();
+          } else if (isWhitespace(b)) {
+            if (nameLength == 0) {
+              malformed(b);
+            } else {
+              state = AFTER_END_TAG_NAME;
+            }
+          } else if (isDelimiter(b)) {
+            malformed(b);
+          } else {
+            appendName(b);
+          }
+          break;
+        case AFTER_END_TAG_NAME:
+          if (b == '>') {
+            endTag();
+          } else if (!isWhitespace(b)) {
+            malformed(b);
+          }
+          break;
+        case PROCESSING_INSTRUCTION:
+          if (b == '?') {
+            closingLength = 1;
+          } else if ((b == '>') && (closingLength == 1)) {
+            state = TEXT;
+          } else {
+            closingLength = 0;
+          }
+          break;
+        case MARKUP_DECLARATION:
+          markup[markupLength++] = b;
+
+          if (startsWith(COMMENT_START)) {
+            if (markupLength == COMMENT_START.length) {
+              closingLength = 0;
+              state = COMMENT;
+            }
+          } else if (startsWith(CDATA_START)) {
+            if (markupLength == CDATA_START.length) {
+              closingLength = 0;
+              valueLength = 0;
+              state = CDATA;
+            }
+          } else if (b == '>') {
+            state = TEXT;
+          } else {
+            state = DECLARATION;
+          }
+          break;
+        case COMMENT:
+          if (b == '-') {
+            closingLength++;
+          } else if ((b == '>') && (closingLength >= 2)) {
+            state = TEXT;
+          } else {
+            closingLength = 0;
+          }
+          break;
+        case CDATA:
+          if (b == ']') {
+            closingLength++;
+          } else if ((b == '>') && (closingLength >= 2)) {
+            for (int h = 2 ; h < closingLength ; h++) {
+              appendValue((byte)']');
+            }
+
+            sendText(value, 0, valueLength);
+            state = TEXT;
+          } else {
+            for (int h = 0 ; h < closingLength ; h++) {
+              appendValue((byte)']');
+            }
+
+            closingLength = 0;
+            appendValue(b);
+          }
+          break;
+        case DECLARATION:
+          if (b == '>') {
+            state = TEXT;
+          }
+          break;
+        case ENTITY:
+          if (b == ';') {
+            endEntity();
+          } else if ((entityLength == MAX_ENTITY_LENGTH) || isWhitespace(b) || isDelimiter(b)) {
+            malformed(b);
+          } else {
+            entity[entityLength++] = b;
+          }
+          break;
+        case RESYNC:
+          if (b == '<') {
+            state = TAG_OPEN;
+          } else {
+            skippedBytes++;
+          }
+          break;
+      }
+
+      if ((depth == 0) && ((state == TEXT) || (state == RESYNC))) {  // Between top level elements
+        frameLength = 0;
+        captureStart = -1;
+      } else if (++frameLength > maxFrameSize) {
+        oversizedFrames++;
+
+        dropFrame();
+      } else if ((frameLength == 1) && (frameHandler != null)) {  // A frame begins
+        captureStart = i;
+        frameBytes = 0;
+      }
+
+      if ((state == TEXT) && (textStart == -1)) {
+        textStart = i + 1;
+      }
+    }
+
+    if (state == TEXT) {
+      sendText(buffer, textStart, end);
+    }
+
+    if (captureStart >= 0) {  // Keep the part of the frame in this buffer
+      appendFrame(buffer, captureStart, end);
+    }
+
+    chunk = null;
+  }
+
+  /**
+   * Sends some text to the handler if it is inside an element (text between
+   * top level elements is ignored).
+   *
+   * @param buffer The buffer with the text.
+   * @param start The start of the text.
+   * @param end The end of the text (exclusive).
+   */
+  private void sendText(byte[] buffer, int start, int end) {
+    if ((depth > 0) && (end > start)) {
+      handler.characters(buffer, start, end - start);
+    }
+  }
+
+  /**
+   * Called when the name of a start tag has been read.
+   */
+  private void beginStartTag() {
+    elementName = getName();
+    attributes.clear();
+  }
+
+  /**
+   * Called when a start tag has been completely read.
+   *
+   * @param empty <code>true</code> if the tag is an empty element tag
+   * (<code>&lt;name /&gt;</code>).
+   */
+  private void endStartTag(boolean empty) {
+    if (resynchronising && (depth == 0)) {
+      if (INDIMessage.Kind.fromTagName(elementName) == INDIMessage.Kind.UNKNOWN) {  // Still not a INDI message
+        skippedBytes += frameLength + 1;
+        frameLength = 0;
+        state = RESYNC;
+
+        return;
+      }
+
+      resynchronising = false;
+    }
+
+    if (depth == openElements.length) {
+      openElements = Arrays.copyOf(openElements, depth * 2);
+    }
+
+    openElements[depth++] = elementName;
+    state = TEXT;
+
+    handler.startElement(elementName, attributes);
+
+    if (empty) {
+      closeElement();
+    }
+  }
+
+  /**
+   * Called when a end tag has been completely read.
+   */
+  private void endTag() {
+    String n = getName();
+
+    if (depth == 0) {  // A stray end tag between top level elements
+      state = TEXT;
+    } else if (!n.equals(openElements[depth - 1])) {
+      malformed((byte)'>');
+    } else {
+      state = TEXT;
+
+      closeElement();
+    }
+  }
+
+  /**
+   * Closes the innermost open element.
+   */
+  private void closeElement() {
+    depth--;
+    String n = openElements[depth];
+    openElements[depth] = null;
+
+    if ((depth == 0) && (captureStart >= 0)) {
+      appendFrame(chunk, captureStart, chunkIndex + 1);
+      captureStart = -1;
+
+      frameHandler.endFrame(frame, 0, frameBytes);
+      handler.endElement(n);
+
+      releaseFrame();
+
+      return;
+    }
+
+    handler.endElement(n);
+  }
+
+  /**
+   * Appends some bytes to the frame buffer.
+   *
+   * @param buffer The buffer with the bytes.
+   * @param start The start of the bytes.
+   * @param end The end of the bytes (exclusive).
+   */
+  private void appendFrame(byte[] buffer, int start, int end) {
+    int n = end - start;
+
+    if (frameBytes + n > frame.length) {
+      int capacity = Math.max(frame.length * 2, frameBytes + n);
+      INDIBufferPool pool = INDIBufferPool.getDefault();
+
+      if (pooledFrame == null) {
+        pooledFrame = pool.acquire(capacity);
+        System.arraycopy(frame, 0, pooledFrame.array(), 0, frameBytes);
+      } else {
+        pooledFrame = pool.grow(pooledFrame, frameBytes, capacity);
+      }
+
+      frame = pooledFrame.array();
+    }
+
+    System.arraycopy(buffer, start, frame, frameBytes, n);
+    frameBytes += n;
+  }
+
+  /**
+   * Forgets the bytes of the current frame, giving back the borrowed buffer.
+   */
+  private void releaseFrame() {
+    frameBytes = 0;
+    captureStart = -1;
+
+    if (pooledFrame != null) {
+      INDIBufferPool.getDefault().release(pooledFrame);
+      pooledFrame = null;
+      frame = ownFrame;
+    }
+  }
+
+  /**
+   * Called when a entity has been completely read.
+   */
+  private void endEntity() {
+    int length = decodeEntity();
+
+    if (length < 0) {
+      malformed((byte)';');
+
+      return;
+    }
+
+    if (entityReturnState == ATTRIBUTE_VALUE) {
+      for (int h = 0 ; h < length ; h++) {
+        appendValue(decoded[h]);
+      }
+    } else {
+      sendText(decoded, 0, length);
+    }
+
+    state = entityReturnState;
+  }
+
+  /**
+   * Decodes the entity in the entity buffer into the decoded buffer.
+   *
+   * @return The number of decoded bytes or <code>-1</code> if the entity is
+   * not valid.
+   */
+  private int decodeEntity() {
+    if (entityLength == 0) {
+      return -1;
+    }
+
+    if (entity[0] == '#') {
+      int codePoint = 0;
+      int radix = 10;
+      int start = 1;
+
+      if ((entityLength > 1) && ((entity[1] == 'x') || (entity[1] == 'X'))) {
+        radix = 16;
+        start = 2;
+      }
+
+      if (start == entityLength) {
+        return -1;
+      }
+
+      for (int h = start ; h < entityLength ; h++) {
+        int digit = Character.digit(entity[h], radix);
+
+        if (digit < 0) {
+          return -1;
+        }
+
+        codePoint = codePoint * radix + digit;
+
+        if (codePoint > Character.MAX_CODE_POINT) {
+          return -1;
+        }
+      }
+
+      return encodeUTF8(codePoint);
+    }
+
+    if (isEntity("lt")) {
+      decoded[0] = '<';
+    } else if (isEntity("gt")) {
+      decoded[0] = '>';
+    } else if (isEntity("amp")) {
+      decoded[0] = '&';
+    } else if (isEntity("quot")) {
+      decoded[0] = '"';
+    } else if (isEntity("apos")) {
+      decoded[0] = '\'';
+    } else {
+      return -1;
+    }
+
+    return 1;
+  }
+
+  /**
+   * Checks if the entity buffer contains a particular entity name.
+   *
+   * @param entityName The entity name.
+   * @return <code>true</code> if the entity buffer contains the name.
+   * <code>false</code> otherwise.
+   */
+  private boolean isEntity(String entityName) {
+    if (entityName.length() != entityLength) {
+      return false;
+    }
+
+    for (int h = 0 ; h < entityLength ; h++) {
+      if (entity[h] != entityName.charAt(h)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Encodes a code point in UTF-8 into the decoded buffer.
+   *
+   * @param codePoint The code point.
+   * @return The number of bytes of the encoded code point.
+   */
+  private int encodeUTF8(int codePoint) {
+    if (codePoint < 0x80) {
+      decoded[0] = (byte)codePoint;
+      return 1;
+    } else if (codePoint < 0x800) {
+      decoded[0] = (byte)(0xC0 | (codePoint >> 6));
+      decoded[1] = (byte)(0x80 | (codePoint & 0x3F));
+      return 2;
+    } else if (codePoint < 0x10000) {
+      decoded[0] = (byte)(0xE0 | (codePoint >> 12));
+      decoded[1] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+      decoded[2] = (byte)(0x80 | (codePoint & 0x3F));
+      return 3;
+    }
+
+    decoded[0] = (byte)(0xF0 | (codePoint >> 18));
+    decoded[1] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+    decoded[2] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+    decoded[3] = (byte)(0x80 | (codePoint & 0x3F));
+    return 4;
+  }
+
+  /**
+   * Called when the stream is not well formed. The current top level element
+   * (if any) is dropped and the parser resynchronises.
+   *
+   * @param b The byte that caused the error. If it is a <code>&lt;</code> it
+   * is considered the beginning of a new tag.
+   */
+  private void malformed(byte b) {
+    if ((depth > 0) || ((frameLength > 0) && !resynchronising)) {
+      malformedFrames++;
+    }
+
+    dropFrame();
+
+    if (b == '<') {
+      state = TAG_OPEN;
+    }
+  }
+
+  /**
+   * Drops the current top level element (if any) and starts skipping bytes
+   * until the start tag of a known INDI message.
+   */
+  private void dropFrame() {
+    if (resynchronising) {
+      skippedBytes += frameLength;
+    }
+
+    if (depth > 0) {
+      Arrays.fill(openElements, 0, depth, null);
+      depth = 0;
+
+      handler.malformedElement();
+    }
+
+    if (value.length > VALUE_BUFFER_SIZE) {  // A huge attribute or CDATA section
+      value = new byte[VALUE_BUFFER_SIZE];
+    }
+
+    valueLength = 0;
+    frameLength = 0;
+    resynchronising = true;
+    state = RESYNC;
+
+    releaseFrame();
+  }
+
+  /**
+   * Checks if the beginning of a <code>&lt;!</code> declaration matches a
+   * pattern.
+   *
+   * @param pattern The pattern.
+   * @return <code>true</code> if the read bytes are a prefix of the pattern.
+   */
+  private boolean startsWith(byte[] pattern) {
+    if (markupLength > pattern.length) {
+      return false;
+    }
+
+    for (int h = 0 ; h < markupLength ; h++) {
+      if (markup[h] != pattern[h]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Appends a byte to the name buffer.
+   *
+   * @param b The byte.
+   */
+  private void appendName(byte b) {
+    if (nameLength == name.length) {
+      name = Arrays.copyOf(name, nameLength * 2);
+    }
+
+    name[nameLength++] = b;
+  }
+
+  /**
+   * Appends a byte to the value buffer.
+   *
+   * @param b The byte.
+   */
+  private void appendValue(byte b) {
+    if (valueLength == value.length) {
+      value = Arrays.copyOf(value, valueLength * 2);
+    }
+
+    value[valueLength++] = b;
+  }
+
+  /**
+   * Gets the name in the name buffer. Names are cached, as the same tag and
+   * attribute names appear in almost every message.
+   *
+   * @return The name in the name buffer.
+   */
+  private String getName() {
+    int hash = 0;
+
+    for (int h = 0 ; h < nameLength ; h++) {
+      hash = 31 * hash + name[h];
+    }
+
+    int index = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+    byte[] cached = nameCacheBytes[index];
+
+    if ((cached != null) && (cached.length == nameLength)) {
+      boolean equal = true;
+
+      for (int h = 0 ; h < nameLength ; h++) {
+        if (cached[h] != name[h]) {
+          equal = false;
+          break;
+        }
+      }
+
+      if (equal) {
+        return nameCache[index];
+      }
+    }
+
+    String n = new String(name, 0, nameLength, UTF8);
+
+    nameCache[index] = n;
+    nameCacheBytes[index] = Arrays.copyOf(name, nameLength);
+
+    return n;
+  }
+
+  /**
+   * Checks if a byte is XML whitespace.
+   *
+   * @param b The byte.
+   * @return <code>true</code> if it is whitespace.
+   */
+  private static boolean isWhitespace(byte b) {
+    return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t');
+  }
+
+  /**
+   * Checks if a byte cannot appear in a name.
+   *
+   * @param b The byte.
+   * @return <code>true</code> if it cannot appear in a name.
+   */
+  private static boolean isDelimiter(byte b) {
+    return (b == '<') || (b == '>') || (b == '/') || (b == '=') || (b == '"') || (b == '\'');
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Helpers to choose the threads that run the readers and connections. On
+ * Java 21 (or newer) a factory of virtual threads can be obtained, so the
+ * blocking readers cost little memory and scheduling; on older Java versions
+ * the usual platform threads are used.
+ *
+ * The virtual threads are obtained by reflection, as this library is built
+ * for older Java versions.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIThreads {
+
+  /**
+   * Not instantiable.
+   */
+  private INDIThreads() {
+  }
+
+  /**
+   * Checks if virtual threads are available in this Java Virtual Machine.
+   *
+   * @return <code>true</code> if virtual threads are available.
+   */
+  public static boolean areVirtualThreadsAvailable() {
+    return getVirtualThreadFactory("") != null;
+  }
+
+  /**
+   * Gets a factory of virtual threads.
+   *
+   * @param namePrefix The prefix of the names of the threads (followed by a
+   * sequence number).
+   * @return The factory of virtual threads or <code>null</code> if they are
+   * not available.
+   */
+  public static ThreadFactory getVirtualThreadFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      Method factory = builderClass.getMethod("factory");
+
+      builder = name.invoke(builder, namePrefix, 0L);
+
+      return (ThreadFactory)factory.invoke(builder);
+    } catch (Exception e) {  // Not available (or still a preview feature)
+      return null;
+    }
+  }
+
+  /**
+   * Starts a task in a new thread.
+   *
+   * @param threadFactory The factory of the thread (if <code>null</code> a
+   * usual platform thread is used).
+   * @param task The task.
+   * @param name The name of the thread (only used if there is no factory).
+   * @return The started thread.
+   */
+  public static Thread start(ThreadFactory threadFactory, Runnable task, String name) {
+    Thread t;
+
+    if (threadFactory == null) {
+      t = new Thread(task, name);
+    } else {
+      t = threadFactory.newThread(task);
+    }
+
+    t.start();
+
+    return t;
+  }
+}
@@ -0,0 +1,464 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A writer of INDI XML messages into a reusable UTF-8 byte buffer. Attribute
+ * values and text are escaped as needed. It can write whole XML Elements or
+ * build messages tag by tag.
+ *
+ * It is not thread safe: each thread (or connection) should use its own
+ * writer.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIXMLWriter {
+
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /**
+   * The initial size of the buffer. If a big message makes it grow, it is
+   * returned to this size by <code>reset</code>.
+   */
+  private static final int BUFFER_SIZE = 4096;
+  /**
+   * The base64 alphabet.
+   */
+  private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(UTF8);
+  /**
+   * The buffer.
+   */
+  private byte[] buffer;
+  /**
+   * The number of bytes in the buffer.
+   */
+  private int length;
+
+  /**
+   * Constructs a new writer.
+   */
+  public INDIXMLWriter() {
+    buffer = new byte[BUFFER_SIZE];
+    length = 0;
+  }
+
+  /**
+   * Empties the buffer, so it can be reused for another message.
+   */
+  public void reset() {
+    length = 0;
+
+    if (buffer.length > BUFFER_SIZE) {
+      buffer = new byte[BUFFER_SIZE];
+    }
+  }
+
+  /**
+   * Gets the buffer. Only the first <code>getLength()</code> bytes are valid.
+   *
+   * @return The buffer.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Gets the number of bytes written to the buffer.
+   *
+   * @return The number of bytes written.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Gets a copy of the written bytes.
+   *
+   * @return A copy of the written bytes.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, length);
+  }
+
+  /**
+   * Writes the written bytes to a stream.
+   *
+   * @param out The stream.
+   * @throws IOException if there is an error writing to the stream.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, length);
+  }
+
+  /**
+   * Gets the written bytes as a String.
+   *
+   * @return The written XML.
+   */
+  @Override
+  public String toString() {
+    return new String(buffer, 0, length, UTF8);
+  }
+
+  /**
+   * Writes a XML Element (with its attributes and children). Comments and
+   * processing instructions are skipped.
+   *
+   * @param xml The XML Element.
+   */
+  public void write(Element xml) {
+    writeStartTag(xml.getNodeName());
+
+    NamedNodeMap attributes = xml.getAttributes();
+
+    for (int i = 0 ; i < attributes.getLength() ; i++) {
+      Attr a = (Attr)attributes.item(i);
+
+      writeAttribute(a.getName(), a.getValue());
+    }
+
+    NodeList nodes = xml.getChildNodes();
+
+    if (nodes.getLength() == 0) {
+      closeEmptyTag();
+
+      return;
+    }
+
+    closeStartTag();
+
+    for (int i = 0 ; i < nodes.getLength() ; i++) {
+      Node n = nodes.item(i);
+      short type = n.getNodeType();
+
+      if (type == Node.ELEMENT_NODE) {
+        write((Element)n);
+      } else if ((type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE)) {
+        writeText(n.getNodeValue());
+      }
+    }
+
+    writeEndTag(xml.getNodeName());
+  }
+
+  /**
+   * Writes the beginning of a start tag (<code>&lt;name</code>). It must be
+   * followed by the attributes and <code>closeStartTag</code> or
+   * <code>closeEmptyTag</code>.
+   *
+   * @param name The name of the element.
+   */
+  public void writeStartTag(String name) {
+    writeByte('<');
+    writeRaw(name);
+  }
+
+  /**
+   * Writes an attribute of the start tag being written.
+   *
+   * @param name The name of the attribute.
+   * @param value The value of the attribute (it will be escaped).
+   */
+  public void writeAttribute(String name, String value) {
+    writeByte(' ');
+    writeRaw(name);
+    writeByte('=');
+    writeByte('"');
+    writeEscaped(value, true);
+    writeByte('"');
+  }
+
+  /**
+   * Writes an integer attribute of the start tag being written.
+   *
+   * @param name The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  public void writeAttribute(String name, int value) {
+    writeByte(' ');
+    writeRaw(name);
+    writeByte('=');
+    writeByte('"');
+    writeInt(value);
+    writeByte('"');
+  }
+
+  /**
+   * Closes the start tag being written (<code>&gt;</code>).
+   */
+  public void closeStartTag() {
+    writeByte('>');
+  }
+
+  /**
+   * Closes the start tag being written as an empty element
+   * (<code>/&gt;</code>).
+   */
+  public void closeEmptyTag() {
+    writeByte('/');
+    writeByte('>');
+  }
+
+  /**
+   * Writes some text (it will be escaped).
+   *
+   * @param text The text.
+   */
+  public void writeText(String text) {
+    writeEscaped(text, false);
+  }
+
+  /**
+   * Writes some bytes encoded in base64 (without line breaks).
+   *
+   * @param bytes The bytes.
+   * @param offset The offset of the first byte.
+   * @param count The number of bytes.
+   */
+  public void writeBase64(byte[] bytes, int offset, int count) {
+    ensureCapacity(length + ((count + 2) / 3) * 4);
+
+    int end = offset + count;
+    int i = offset;
+
+    for (; i + 2 < end ; i += 3) {
+      int n = ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8) | (bytes[i + 2] & 0xFF);
+
+      buffer[length++] = BASE64[n >>> 18];
+      buffer[length++] = BASE64[(n >>> 12) & 0x3F];
+      buffer[length++] = BASE64[(n >>> 6) & 0x3F];
+      buffer[length++] = BASE64[n & 0x3F];
+    }
+
+    if (i < end) {
+      int n = (bytes[i] & 0xFF) << 16;
+
+      if (i + 1 < end) {
+        n |= (bytes[i + 1] & 0xFF) << 8;
+      }
+
+      buffer[length++] = BASE64[n >>> 18];
+      buffer[length++] = BASE64[(n >>> 12) & 0x3F];
+      buffer[length++] = (i + 1 < end) ? BASE64[(n >>> 6) & 0x3F] : (byte)'=';
+      buffer[length++] = '=';
+    }
+  }
+
+  /**
+   * Writes an end tag (<code>&lt;/name&gt;</code>).
+   *
+   * @param name The name of the element.
+   */
+  public void writeEndTag(String name) {
+    writeByte('<');
+    writeByte('/');
+    writeRaw(name);
+    writeByte('>');
+  }
+
+  /**
+   * Writes some already escaped XML.
+   *
+   * @param xml The XML.
+   */
+  public void writeRaw(String xml) {
+    int n = xml.length();
+
+    ensureCapacity(length + n);
+
+    for (int i = 0 ; i < n ; i++) {
+      char c = xml.charAt(i);
+
+      if (c < 0x80) {
+        buffer[length++] = (byte)c;
+      } else {
+        writeChar(xml, i);
+
+        if (Character.isHighSurrogate(c) && (i + 1 < n)) {
+          i++;
+        }
+
+        ensureCapacity(length + n - i);
+      }
+    }
+  }
+
+  /**
+   * Writes some bytes as they are.
+   *
+   * @param bytes The bytes.
+   * @param offset The offset of the first byte.
+   * @param count The number of bytes.
+   */
+  public void writeRaw(byte[] bytes, int offset, int count) {
+    ensureCapacity(length + count);
+
+    System.arraycopy(bytes, offset, buffer, length, count);
+    length += count;
+  }
+
+  /**
+   * Writes a String escaping the XML special characters.
+   *
+   * @param s The String.
+   * @param attribute <code>true</code> if it is an attribute value (quotes
+   * are also escaped).
+   */
+  private void writeEscaped(String s, boolean attribute) {
+    int n = s.length();
+
+    ensureCapacity(length + n);
+
+    for (int i = 0 ; i < n ; i++) {
+      char c = s.charAt(i);
+
+      switch (c) {
+        case '&':
+          writeRaw("&amp;");
+          break;
+        case '<':
+          writeRaw("&lt;");
+          break;
+        case '>':
+          writeRaw("&gt;");
+          break;
+        case '"':
+          if (attribute) {
+            writeRaw("&quot;");
+          } else {
+            writeByte('"');
+          }
+          break;
+        default:
+          if (c < 0x80) {
+            writeByte(c);
+          } else {
+            writeChar(s, i);
+
+            if (Character.isHighSurrogate(c) && (i + 1 < n)) {
+              i++;
+            }
+          }
+      }
+    }
+  }
+
+  /**
+   * Writes a non ASCII character in UTF-8.
+   *
+   * @param s The String with the character.
+   * @param i The position of the character (if it is a high surrogate, the
+   * next one is also written).
+   */
+  private void writeChar(String s, int i) {
+    int codePoint = s.codePointAt(i);
+
+    ensureCapacity(length + 4);
+
+    if (codePoint < 0x800) {
+      buffer[length++] = (byte)(0xC0 | (codePoint >> 6));
+      buffer[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      if ((codePoint >= 0xD800) && (codePoint <= 0xDFFF)) {  // A lone surrogate
+        buffer[length++] = '?';
+
+        return;
+      }
+
+      buffer[length++] = (byte)(0xE0 | (codePoint >> 12));
+      buffer[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+      buffer[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    } else {
+      buffer[length++] = (byte)(0xF0 | (codePoint >> 18));
+      buffer[length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+      buffer[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+      buffer[length++] = (byte)(0x80 | (codePoint & 0x3F));
+    }
+  }
+
+  /**
+   * Writes an integer in decimal.
+   *
+   * @param value The integer.
+   */
+  private void writeInt(int value) {
+    if (value == Integer.MIN_VALUE) {
+      writeRaw(Integer.toString(value));
+
+      return;
+    }
+
+    ensureCapacity(length + 11);
+
+    if (value < 0) {
+      buffer[length++] = '-';
+      value = -value;
+    }
+
+    int start = length;
+
+    do {
+      buffer[length++] = (byte)('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+
+    for (int i = start, j = length - 1 ; i < j ; i++, j--) {
+      byte b = buffer[i];
+
+      buffer[i] = buffer[j];
+      buffer[j] = b;
+    }
+  }
+
+  /**
+   * Writes a single (ASCII) byte.
+   *
+   * @param b The byte.
+   */
+  private void writeByte(int b) {
+    if (length == buffer.length) {
+      ensureCapacity(length + 1);
+    }
+
+    buffer[length++] = (byte)b;
+  }
+
+  /**
+   * Grows the buffer if needed.
+   *
+   * @param capacity The needed capacity.
+   */
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+    }
+  }
+}
@@ -17,12 +17,6 @@
  */
 package laazotea.indi;
 
-import java.io.StringWriter;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Element;
 
 /**
@@ -34,26 +28,18 @@ import org.w3c.dom.Element;
 public class XMLToString {
 
   /**
-   * Transforms a XML Element into a String.
+   * Transforms a XML Element into a String. It uses a
+   * <code>INDIXMLWriter</code> (no XML declaration is written).
    *
    * @param xml The XML Element
    * @return A String representing the XML Element
+   * @see INDIXMLWriter
    */
   public static String transform(Element xml) {
-    try {
-      TransformerFactory transFactory = TransformerFactory.newInstance();
+    INDIXMLWriter writer = new INDIXMLWriter();
 
-      Transformer transformer = transFactory.newTransformer();
+    writer.write(xml);
 
-      StringWriter buffer = new StringWriter();
-      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-      transformer.transform(new DOMSource(xml),
-              new StreamResult(buffer));
-      String str = buffer.toString();
-      return str;
-    } catch (Exception e) {
-    }
-
-    return "";
+    return writer.toString();
   }
-}
\ No newline at end of file
+}
@@ -18,7 +18,8 @@
 package laazotea.indi.driver;
 
 import laazotea.indi.INDIBLOBValue;
-import org.w3c.dom.Element;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI BLOB Element.
@@ -84,18 +85,24 @@ public class INDIBLOBElement extends INDIElement {
       throw new IllegalArgumentException("Value for a BLOB Element must be a INDIBLOBValue");
     }
 
+    if (b != value) {
+      setChanged();
+    }
+
     this.value = b;
   }
 
   @Override
-  public String getXMLOneElement() {
-    int size = value.getSize();
-
-    String data = value.getBase64BLOBData();
-
-    String xml = "<oneBLOB name=\"" + this.getName() + "\" size=\"" + size + "\" format=\"" + value.getFormat() + "\">" + data + "</oneBLOB>";
-
-    return xml;
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    byte[] data = value.getBLOBData();
+
+    writer.writeStartTag("oneBLOB");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("size", value.getSize());
+    writer.writeAttribute("format", value.getFormat());
+    writer.closeStartTag();
+    writer.writeBase64(data, 0, data.length);
+    writer.writeEndTag("oneBLOB");
   }
 
   @Override
@@ -104,14 +111,15 @@ public class INDIBLOBElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defBLOB name=\"" + this.getName() + "\" label=\"" + getLabel() + "\" />";
-
-    return xml;
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeStartTag("defBLOB");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.closeEmptyTag();
   }
 
   @Override
-  public Object parseOneValue(Element xml) {
-    return new INDIBLOBValue(xml);
+  public Object parseOneValue(INDIMessage.OneElement one) {
+    return new INDIBLOBValue(one);
   }
 }
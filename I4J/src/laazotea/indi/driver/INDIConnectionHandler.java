@@ -26,13 +26,21 @@ import laazotea.indi.INDIException;
  * automatically include the connection property. No code will be necessary in
  * the Driver code to include or manage it.
  *
+ * The connection and disconnection methods are called in a thread of their
+ * own, while the property is BUSY, so the Driver keeps answering the other
+ * messages. A connection is cancelled by a disconnection request or when it
+ * takes longer than the timeout of the property (in seconds, see
+ * <code>INDIDriver.getConnectionProperty</code>): its thread is interrupted,
+ * and if it connects anyway <code>driverDisconnect</code> is called.
+ *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.11, March 26, 2012
  */
 public interface INDIConnectionHandler {
 
   /**
-   * The method that will handle the connection.
+   * The method that will handle the connection. It may block (in its own
+   * thread) and should stop if the thread is interrupted.
    *
    * @param timestamp when the connection message has been received.
    */
@@ -17,12 +17,22 @@
  */
 package laazotea.indi.driver;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.Constants.SwitchRules;
@@ -41,12 +51,87 @@ import org.w3c.dom.NodeList;
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.34, November 6, 2013
  */
-public abstract class INDIDriver implements INDIProtocolParser {
+public abstract class INDIDriver implements INDIMessageParser {
 
+  /**
+   * The maximum number of posted messages parsed in a turn of the executor
+   * (then the turn is given to other Drivers).
+   */
+  private static final int MAX_MESSAGES_PER_TURN = 16;
+  /**
+   * The maximum number of posted messages (other than control messages)
+   * waiting to be parsed. Then the posters wait (see
+   * <code>postMessage</code>).
+   */
+  public static final int MAX_PENDING_MESSAGES = 1024;
+  /**
+   * <code>true</code> in the threads that are parsing posted messages (of any
+   * Driver), that must never wait to post.
+   */
+  private static final ThreadLocal<Boolean> IN_TURN = new ThreadLocal<Boolean>();
   private InputStream inputStream;
   private OutputStream outputStream;
   private PrintWriter out;
+  /**
+   * The writer used to build the messages to the clients (it is also the lock
+   * that keeps them from being interleaved).
+   */
+  private INDIXMLWriter writer;
+  /**
+   * The scheduler that sends the throttled updates of the properties and
+   * times out the connections (given by the Server or, for stand-alone
+   * Drivers, created when first needed).
+   */
+  private ScheduledExecutorService scheduler;
+  /**
+   * <code>true</code> if <code>scheduler</code> has been created by the
+   * Driver (and must be shut down when it finishes).
+   */
+  private boolean ownScheduler;
+  /**
+   * <code>true</code> when the Driver has finished and nothing more is
+   * scheduled.
+   */
+  private volatile boolean schedulerStopped;
   private INDIProtocolReader reader;
+  /**
+   * The messages posted to the Driver when they are sent directly (in the
+   * same process) instead of being read from <code>inputStream</code>.
+   */
+  private ConcurrentLinkedQueue<INDIMessage> inbox;
+  /**
+   * The number of messages in <code>inbox</code>. It is also the lock on
+   * which the posters wait for space.
+   */
+  private AtomicInteger inboxSize;
+  /**
+   * The posted control messages, that are parsed before the ones in
+   * <code>inbox</code>.
+   */
+  private ConcurrentLinkedQueue<INDIMessage> controlInbox;
+  /**
+   * The executor in which the posted messages are parsed (<code>null</code>
+   * until the dispatching starts).
+   */
+  private volatile Executor executor;
+  /**
+   * The factory of the threads of the reader and the connections
+   * (<code>null</code> for usual threads).
+   */
+  private volatile ThreadFactory threadFactory;
+  /**
+   * <code>true</code> while a turn to parse the posted messages is waiting
+   * or running in the executor (there is never more than one).
+   */
+  private AtomicBoolean scheduled;
+  /**
+   * The task that parses the posted messages in the executor.
+   */
+  private Runnable dispatchTask;
+  /**
+   * If <code>false</code> the posted messages are not parsed.
+   */
+  private volatile boolean dispatching;
   /**
    * A list of subdrivers
    */
@@ -63,6 +148,15 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * The standard CONNECTION property (optional)
    */
   private INDISwitchProperty connectionP;
+  /**
+   * The lock of the connections and disconnections.
+   */
+  private final Object connectionLock = new Object();
+  /**
+   * The connection or disconnection in progress (<code>null</code> if there
+   * is none).
+   */
+  private ConnectionAttempt connectionAttempt;
   /**
    * A list of Properties for this Driver
    */
@@ -84,7 +178,18 @@ public abstract class INDIDriver implements INDIProtocolParser {
     this.out = new PrintWriter(outputStream);
     this.inputStream = inputStream;
     this.outputStream = outputStream;
+    this.writer = new INDIXMLWriter();
     this.subdrivers = new ArrayList<INDIDriver>();
+    this.inbox = new ConcurrentLinkedQueue<INDIMessage>();
+    this.inboxSize = new AtomicInteger(0);
+    this.controlInbox = new ConcurrentLinkedQueue<INDIMessage>();
+    this.scheduled = new AtomicBoolean(false);
+    this.dispatchTask = new Runnable() {
+      @Override
+      public void run() {
+        dispatchMessages();
+      }
+    };
 
     started = false;
 
@@ -150,10 +255,250 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * @see INDIDriverRunner
    */
   public void startListening() {
+    startListening(null);
+  }
+
+  /**
+   * Starts the listener thread in a thread created by a particular factory
+   * (for example of virtual threads). The connections of the Driver also run
+   * in threads of that factory.
+   *
+   * @param threadFactory The factory of the threads (if <code>null</code>
+   * usual threads are used).
+   * @see #startListening()
+   */
+  public void startListening(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+
     started = true;
 
     reader = new INDIProtocolReader(this);
-    reader.start();
+    reader.start(threadFactory);
+  }
+
+  /**
+   * Starts parsing the messages posted with <code>postMessage</code> instead
+   * of reading them from <code>inputStream</code>. The Driver works as a
+   * mailbox: its messages are parsed in order, one at a time, by the threads
+   * of an executor that may be shared by many Drivers, so no thread is
+   * dedicated to it. Control messages (see <code>isControlMessage</code>) are
+   * parsed before the other waiting ones. This method is not usually called
+   * by the Driver itself but the encapsulating class (for example the
+   * <code>INDIJavaDevice</code> of a Server, that does not encode the messages
+   * for its Drivers).
+   *
+   * @param executor The executor that parses the messages.
+   * @see #postMessage(INDIMessage)
+   */
+  public void startDispatching(Executor executor) {
+    startDispatching(executor, null);
+  }
+
+  /**
+   * Starts parsing the posted messages in an executor, running the
+   * connections of the Driver in threads created by a particular factory.
+   *
+   * @param executor The executor that parses the messages.
+   * @param threadFactory The factory of the threads of the connections (if
+   * <code>null</code> usual threads are used).
+   * @see #startDispatching(Executor)
+   */
+  public void startDispatching(Executor executor, ThreadFactory threadFactory) {
+    startDispatching(executor, threadFactory, null);
+  }
+
+  /**
+   * Starts parsing the posted messages in an executor, running the
+   * connections of the Driver in threads created by a particular factory and
+   * its delayed tasks (throttled updates, connection timeouts) in a scheduler
+   * that may be shared by many Drivers.
+   *
+   * @param executor The executor that parses the messages.
+   * @param threadFactory The factory of the threads of the connections (if
+   * <code>null</code> usual threads are used).
+   * @param scheduler The scheduler of the delayed tasks (if <code>null</code>
+   * the Driver creates its own one when needed). It is not shut down by the
+   * Driver.
+   * @see #startDispatching(Executor)
+   */
+  public void startDispatching(Executor executor, ThreadFactory threadFactory, ScheduledExecutorService scheduler) {
+    this.executor = executor;
+    this.threadFactory = threadFactory;
+
+    synchronized (writer) {
+      if (scheduler != null) {
+        this.scheduler = scheduler;
+      }
+    }
+
+    started = true;
+    dispatching = true;
+
+    schedule();  // The messages posted before
+  }
+
+  /**
+   * Posts a message to be parsed in the executor (after the previously posted
+   * ones, unless it is a control message). If
+   * <code>MAX_PENDING_MESSAGES</code> messages are already waiting, the
+   * poster waits for the Driver to parse some of them (backpressure, as a
+   * full pipe gives to the Drivers that read a stream). Control messages and
+   * the messages posted while parsing a message never wait.
+   *
+   * @param message The message.
+   * @see #startDispatching(Executor)
+   * @see #isControlMessage(INDIMessage)
+   */
+  public void postMessage(INDIMessage message) {
+    if ((executor != null) && !dispatching) {  // Stopped
+      return;
+    }
+
+    if (isControlMessage(message)) {
+      controlInbox.add(message);
+    } else {
+      if (!awaitInboxSpace()) {
+        return;
+      }
+
+      inboxSize.incrementAndGet();
+      inbox.add(message);
+    }
+
+    schedule();
+  }
+
+  /**
+   * Waits until there is space in <code>inbox</code>, if the messages are
+   * being dispatched and the poster is not parsing a message itself (it could
+   * be the only thread of the executor).
+   *
+   * @return <code>false</code> if the dispatching has stopped while waiting
+   * (or the poster has been interrupted) and the message must be discarded.
+   */
+  private boolean awaitInboxSpace() {
+    if ((executor == null) || (inboxSize.get() < MAX_PENDING_MESSAGES) || (IN_TURN.get() != null)) {
+      return true;
+    }
+
+    synchronized (inboxSize) {
+      while (dispatching && (inboxSize.get() >= MAX_PENDING_MESSAGES)) {
+        try {
+          inboxSize.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+
+          return false;
+        }
+      }
+    }
+
+    return dispatching;
+  }
+
+  /**
+   * Takes a message from <code>inbox</code>, waking up the waiting posters.
+   *
+   * @return The message (<code>null</code> if there are none).
+   */
+  private INDIMessage pollInbox() {
+    INDIMessage message = inbox.poll();
+
+    if ((message != null) && (inboxSize.getAndDecrement() == MAX_PENDING_MESSAGES)) {
+      synchronized (inboxSize) {
+        inboxSize.notifyAll();
+      }
+    }
+
+    return message;
+  }
+
+  /**
+   * Discards the posted messages and wakes up the waiting posters (after
+   * the dispatching has stopped).
+   */
+  private void clearInboxes() {
+    controlInbox.clear();
+    inbox.clear();
+
+    synchronized (inboxSize) {
+      inboxSize.set(0);
+      inboxSize.notifyAll();
+    }
+  }
+
+  /**
+   * Checks if a posted message must be parsed before the other waiting ones.
+   * By default only the changes of the standard CONNECTION property are.
+   * Drivers may override it to add other urgent messages (for example an
+   * abort switch).
+   *
+   * @param message The message.
+   * @return <code>true</code> if the message is a control message.
+   */
+  protected boolean isControlMessage(INDIMessage message) {
+    return (message.getKind() == INDIMessage.Kind.NEW_SWITCH_VECTOR) && "CONNECTION".equals(message.getName());
+  }
+
+  /**
+   * Gets the number of posted messages waiting to be parsed.
+   *
+   * @return The number of waiting messages.
+   */
+  public int getPendingMessages() {
+    return controlInbox.size() + inboxSize.get();
+  }
+
+  /**
+   * Asks the executor for a turn to parse the posted messages, if there is
+   * not already one.
+   */
+  private void schedule() {
+    Executor e = executor;
+
+    if ((e != null) && dispatching && scheduled.compareAndSet(false, true)) {
+      e.execute(dispatchTask);
+    }
+  }
+
+  /**
+   * Parses some of the posted messages (in a turn of the executor). If there
+   * are more, another turn is asked for.
+   */
+  private void dispatchMessages() {
+    IN_TURN.set(Boolean.TRUE);
+
+    try {
+      for (int i = 0 ; (i < MAX_MESSAGES_PER_TURN) && dispatching ; i++) {
+        INDIMessage message = controlInbox.poll();
+
+        if (message == null) {
+          message = pollInbox();
+        }
+
+        if (message == null) {
+          break;
+        }
+
+        try {
+          parseMessage(message);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    } finally {
+      IN_TURN.remove();
+    }
+
+    if (!dispatching) {  // Stopping discards the waiting messages
+      clearInboxes();
+    }
+
+    scheduled.set(false);
+
+    if (!controlInbox.isEmpty() || !inbox.isEmpty()) {  // Posted while finishing the turn
+      schedule();
+    }
   }
 
   /**
@@ -173,6 +518,24 @@ public abstract class INDIDriver implements INDIProtocolParser {
     if (reader != null) {
       reader.setStop(true);
     }
+
+    if (executor != null) {
+      dispatching = false;
+
+      clearInboxes();
+    }
+
+    cancelConnection();
+
+    synchronized (writer) {
+      schedulerStopped = true;
+
+      if (ownScheduler) {
+        scheduler.shutdownNow();
+      }
+
+      scheduler = null;
+    }
   }
 
   /**
@@ -264,7 +627,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Parses the XML messages. Should not be called by particular Drivers.
+   * Parses the XML messages. Should not be called by particular Drivers. The
+   * messages read by a <code>INDIProtocolReader</code> are received already
+   * typed in <code>parseMessage</code>.
    *
    * @param doc the messages to be parsed.
    */
@@ -284,34 +649,41 @@ public abstract class INDIDriver implements INDIProtocolParser {
       if (n instanceof Element) {
         Element child = (Element)n;
 
-        parseXMLElement(child);
+        parseMessage(new INDIMessage(child));
       }
     }
   }
 
   /**
-   * Parses a particular XML Element.
+   * Parses a INDI message. Should not be called by particular Drivers.
    *
-   * @param xml The XML element to be parsed.
+   * @param message The message to be parsed.
    */
-  private void parseXMLElement(Element xml) {
-    INDIDriver subd = getSubdriver(xml);
+  @Override
+  public void parseMessage(INDIMessage message) {
+    INDIDriver subd = getSubdriver(message);
 
     if (subd != null) {
-      subd.parseXMLElement(xml);
+      subd.parseMessage(message);
     } else {
-      String name = xml.getNodeName();
-
-      if (name.equals("getProperties")) {
-        processGetProperties(xml);
-      } else if (name.equals("newTextVector")) {
-        processNewTextVector(xml);
-      } else if (name.equals("newSwitchVector")) {
-        processNewSwitchVector(xml);
-      } else if (name.equals("newNumberVector")) {
-        processNewNumberVector(xml);
-      } else if (name.equals("newBLOBVector")) {
-        processNewBLOBVector(xml);
+      switch (message.getKind()) {
+        case GET_PROPERTIES:
+          processGetProperties(message);
+          break;
+        case NEW_TEXT_VECTOR:
+          processNewTextVector(message);
+          break;
+        case NEW_SWITCH_VECTOR:
+          processNewSwitchVector(message);
+          break;
+        case NEW_NUMBER_VECTOR:
+          processNewNumberVector(message);
+          break;
+        case NEW_BLOB_VECTOR:
+          processNewBLOBVector(message);
+          break;
+        default:
+          break;
       }
     }
   }
@@ -319,10 +691,10 @@ public abstract class INDIDriver implements INDIProtocolParser {
   /**
    * Parses a &lt;newTextVector&gt; XML message.
    *
-   * @param xml The &lt;newTextVector&gt; XML message to be parsed.
+   * @param message The &lt;newTextVector&gt; message to be parsed.
    */
-  private void processNewTextVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewTextVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -332,9 +704,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDITextElementAndValue[] newEvs = new INDITextElementAndValue[evs.length];
 
@@ -365,11 +737,11 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * <code>driverDisconnect</code> methods from
    * <code>INDIConnectionHandler</code>.
    *
-   * @param xml The &lt;newSwitchVector&gt; XML message to be parsed.
+   * @param message The &lt;newSwitchVector&gt; message to be parsed.
    * @see INDIConnectionHandler
    */
-  private void processNewSwitchVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewSwitchVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -379,9 +751,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDISwitchElementAndValue[] newEvs = new INDISwitchElementAndValue[evs.length];
 
@@ -398,44 +770,74 @@ public abstract class INDIDriver implements INDIProtocolParser {
 
   /**
    * Handles the connection property. Called from
-   * <code>processNewSwitchVector</code>.
+   * <code>processNewSwitchVector</code>. It does not wait for the connection:
+   * the property is set to BUSY and the connection is done in another thread.
    *
    * @param newEvs The new Elements and Values
    * @param timestamp The timestamp of the received CONNECTION message.
    */
-  private synchronized void handleConnectionProperty(INDISwitchElementAndValue[] newEvs, Date timestamp) {
+  private void handleConnectionProperty(INDISwitchElementAndValue[] newEvs, Date timestamp) {
     for (int i = 0 ; i < newEvs.length ; i++) {
       INDISwitchElement el = newEvs[i].getElement();
       SwitchStatus s = newEvs[i].getValue();
 
-      if (el == connectedE) {
-        if (s == SwitchStatus.ON) {
-          if (connectedE.getValue() != SwitchStatus.ON) {
-            try {
-              ((INDIConnectionHandler)this).driverConnect(timestamp);
-
-              setConnectionProperty(true);
-            } catch (INDIException e) {
-              setConnectionProperty(false, e.getMessage());
-            }
-          } else {
-            setConnectionProperty(true);
-          }
+      if (s == SwitchStatus.ON) {
+        if (el == connectedE) {
+          requestConnection(true, timestamp);
+        } else if (el == disconnectedE) {
+          requestConnection(false, timestamp);
         }
-      } else if (el == disconnectedE) {
-        if (s == SwitchStatus.ON) {
-          if (disconnectedE.getValue() != SwitchStatus.ON) {
-            try {
-              ((INDIConnectionHandler)this).driverDisconnect(timestamp);
-
-              setConnectionProperty(false);
-            } catch (INDIException e) {
-              setConnectionProperty(true, e.getMessage());
-            }
-          } else {
-            setConnectionProperty(false);
-          }
+      }
+    }
+  }
+
+  /**
+   * Starts a connection or disconnection in another thread, setting the
+   * CONNECTION property to BUSY until it finishes. If a connection is in
+   * progress a disconnection request cancels it; any other request is
+   * ignored (the result of the one in progress will be sent).
+   *
+   * @param connect <code>true</code> to connect, <code>false</code> to
+   * disconnect.
+   * @param timestamp The timestamp of the received CONNECTION message.
+   */
+  private void requestConnection(boolean connect, Date timestamp) {
+    synchronized (connectionLock) {
+      if (connectionAttempt != null) {
+        if (connectionAttempt.connect && !connect) {
+          connectionAttempt.cancel(null);
         }
+
+        return;
+      }
+
+      INDISwitchElement requested = connect ? connectedE : disconnectedE;
+
+      if (requested.getValue() == SwitchStatus.ON) {
+        setConnectionProperty(connect);
+
+        return;
+      }
+
+      connectionP.setState(PropertyStates.BUSY);
+
+      try {
+        updateProperty(connectionP);
+      } catch (INDIException e) { // Ignore, there must be no errors here
+      }
+
+      connectionAttempt = new ConnectionAttempt(connect, timestamp);
+      connectionAttempt.start();
+    }
+  }
+
+  /**
+   * Cancels the connection in progress, if any.
+   */
+  private void cancelConnection() {
+    synchronized (connectionLock) {
+      if (connectionAttempt != null) {
+        connectionAttempt.cancel(null);
       }
     }
   }
@@ -457,10 +859,10 @@ public abstract class INDIDriver implements INDIProtocolParser {
   /**
    * Parses a &lt;newNumberVector&gt; XML message.
    *
-   * @param xml The &lt;newNumberVector&gt; XML message to be parsed.
+   * @param message The &lt;newNumberVector&gt; message to be parsed.
    */
-  private void processNewNumberVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewNumberVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -470,9 +872,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDINumberElementAndValue[] newEvs = new INDINumberElementAndValue[evs.length];
 
@@ -500,10 +902,10 @@ public abstract class INDIDriver implements INDIProtocolParser {
   /**
    * Parses a &lt;newBLOBVector&gt; XML message.
    *
-   * @param xml The &lt;newBLOBVector&gt; XML message to be parsed.
+   * @param message The &lt;newBLOBVector&gt; message to be parsed.
    */
-  private void processNewBLOBVector(Element xml) {
-    INDIProperty prop = processNewXXXVector(xml);
+  private void processNewBLOBVector(INDIMessage message) {
+    INDIProperty prop = processNewXXXVector(message);
 
     if (prop == null) {
       return;
@@ -513,9 +915,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
       return;
     }
 
-    INDIElementAndValue[] evs = processINDIElements(prop, xml);
+    INDIElementAndValue[] evs = processINDIElements(prop, message);
 
-    Date timestamp = INDIDateFormat.parseTimestamp(xml.getAttribute("timestamp"));
+    Date timestamp = message.getTimestamp();
 
     INDIBLOBElementAndValue[] newEvs = new INDIBLOBElementAndValue[evs.length];
 
@@ -541,13 +943,13 @@ public abstract class INDIDriver implements INDIProtocolParser {
 
   /**
    * Returns an array of Elements and its corresponded requested values from a
-   * XML message.
+   * message.
    *
    * @param property The property from which to parse the Elements.
-   * @param xml The XML message
+   * @param message The message
    * @return An array of Elements and its corresponding requested values
    */
-  private INDIElementAndValue[] processINDIElements(INDIProperty property, Element xml) {
+  private INDIElementAndValue[] processINDIElements(INDIProperty property, INDIMessage message) {
 
     String oneType;
     if (property instanceof INDITextProperty) {
@@ -564,22 +966,16 @@ public abstract class INDIDriver implements INDIProtocolParser {
 
     ArrayList<INDIElementAndValue> list = new ArrayList<INDIElementAndValue>();
 
-    NodeList nodes = xml.getChildNodes();
+    ArrayList<INDIMessage.OneElement> elements = message.getElements();
 
-    for (int i = 0 ; i < nodes.getLength() ; i++) {
-      Node n = nodes.item(i);
-
-      if (n instanceof Element) {
-        Element child = (Element)n;
+    for (int i = 0 ; i < elements.size() ; i++) {
+      INDIMessage.OneElement one = elements.get(i);
 
-        String name = child.getNodeName();
+      if (one.getTagName().equals(oneType)) {
+        INDIElementAndValue ev = processOneXXX(property, one);
 
-        if (name.equals(oneType)) {
-          INDIElementAndValue ev = processOneXXX(property, child);
-
-          if (ev != null) {
-            list.add(ev);
-          }
+        if (ev != null) {
+          list.add(ev);
         }
       }
     }
@@ -588,19 +984,19 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Processes a XML &lt;oneXXX&gt; message for a property.
+   * Processes a &lt;oneXXX&gt; element for a property.
    *
    * @param property The property from which to parse the Element.
-   * @param xml The &lt;oneXXX&gt; XML message
+   * @param one The &lt;oneXXX&gt; element
    * @return A Element and its corresponding requested value
    */
-  private INDIElementAndValue processOneXXX(INDIProperty property, Element xml) {
-    if (!xml.hasAttribute("name")) {
+  private INDIElementAndValue processOneXXX(INDIProperty property, INDIMessage.OneElement one) {
+    String elName = one.getName();
+
+    if (elName == null) {
       return null;
     }
 
-    String elName = xml.getAttribute("name");
-
     INDIElement el = property.getElement(elName);
 
     if (el == null) {
@@ -610,7 +1006,7 @@ public abstract class INDIDriver implements INDIProtocolParser {
     Object value;
 
     try {
-      value = el.parseOneValue(xml);
+      value = el.parseOneValue(one);
     } catch (IllegalArgumentException e) {
       return null;
     }
@@ -629,36 +1025,36 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Returns the subdriver to which a xml message is sent (if any).
+   * Returns the subdriver to which a message is sent (if any).
    * <code>null</code> if it is not directed to any subdriver.
    *
-   * @param xml The XML message
+   * @param message The message
    * @return The subdriver to which the message is directed.
    */
-  private INDIDriver getSubdriver(Element xml) {
-    if (!xml.hasAttribute("device")) {
+  private INDIDriver getSubdriver(INDIMessage message) {
+    String deviceName = message.getDevice();
+
+    if (deviceName == null) {
       return null;
     }
 
-    String deviceName = xml.getAttribute("device").trim();
-
     return getSubdriver(deviceName);
   }
 
   /**
    * Processes a &lt;newXXXVector&gt; message.
    *
-   * @param xml The XML message
-   * @return The INDI Property to which the <code>xml</code> message refers.
+   * @param message The message
+   * @return The INDI Property to which the <code>message</code> refers.
    */
-  private INDIProperty processNewXXXVector(Element xml) {
-    if ((!xml.hasAttribute("device")) || (!xml.hasAttribute("name"))) {
+  private INDIProperty processNewXXXVector(INDIMessage message) {
+    String devName = message.getDevice();
+    String propName = message.getName();
+
+    if ((devName == null) || (propName == null)) {
       return null;
     }
 
-    String devName = xml.getAttribute("device");
-    String propName = xml.getAttribute("name");
-
     if (devName.compareTo(getName()) != 0) {  // If the message is not for this device
       return null;
     }
@@ -669,27 +1065,21 @@ public abstract class INDIDriver implements INDIProtocolParser {
   }
 
   /**
-   * Processes a &lt;getProperties&gt; message.
+   * Processes a &lt;getProperties&gt; message. The ones directed to a
+   * subdriver have already been routed by <code>parseMessage</code>.
    *
-   * @param xml The XML message
+   * @param message The message
    */
-  private void processGetProperties(Element xml) {
-    if (!xml.hasAttribute("version")) {
+  private void processGetProperties(INDIMessage message) {
+    if (message.getAttribute("version") == null) {
       printMessage("getProperties: no version specified\n");
 
       return;
     }
 
-    if (xml.hasAttribute("device")) {
-      String deviceName = xml.getAttribute("device").trim();
-
-      if (deviceName.compareTo(deviceName) != 0) {  // not asking for this driver
-        return;
-      }
-    }
+    String propertyName = message.getName();
 
-    if (xml.hasAttribute("name")) {
-      String propertyName = xml.getAttribute("name");
+    if (propertyName != null) {
       INDIProperty p = getProperty(propertyName);
 
       if (p != null) {
@@ -743,11 +1133,15 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * message.
    */
   protected void addProperty(INDIProperty property, String message) {
-    if (!properties.containsValue(property)) {
-      properties.put(property.getName(), property);
+    synchronized (properties) {
+      if (properties.containsValue(property)) {
+        return;
+      }
 
-      sendDefXXXVectorMessage(property, message);
+      properties.put(property.getName(), property);
     }
+
+    sendDefXXXVectorMessage(property, message);
   }
 
   /**
@@ -773,7 +1167,39 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * message.
    */
   protected void updateProperty(INDIProperty property, String message) throws INDIException {
-    if (properties.containsValue(property)) {
+    updateProperty(property, false, message);
+  }
+
+  /**
+   * Notifies the clients about the property and only the values that have
+   * changed since they were last sent. The state of the property is always
+   * sent.
+   *
+   * @param property The Property whose values have change and about which the
+   * clients must be notified.
+   * @param onlyChangedElements <code>true</code> to send only the Elements
+   * whose values have changed, <code>false</code> to send all of them.
+   */
+  protected void updateProperty(INDIProperty property, boolean onlyChangedElements) throws INDIException {
+    updateProperty(property, onlyChangedElements, null);
+  }
+
+  /**
+   * Notifies the clients about the property and its values with an additional
+   * <code>message</code>. If <code>onlyChangedElements</code> is
+   * <code>true</code> only the Elements whose values have changed since they
+   * were last sent are included in the message (the INDI protocol allows
+   * partial &lt;setXXXVector&gt; messages).
+   *
+   * @param property The Property whose values have change and about which the
+   * clients must be notified.
+   * @param onlyChangedElements <code>true</code> to send only the Elements
+   * whose values have changed, <code>false</code> to send all of them.
+   * @param message The message to be sended to the clients with the udpate
+   * message.
+   */
+  protected void updateProperty(INDIProperty property, boolean onlyChangedElements, String message) throws INDIException {
+    if (hasProperty(property)) {
       if (property instanceof INDISwitchProperty) {
         INDISwitchProperty sp = (INDISwitchProperty)property;
 
@@ -782,9 +1208,16 @@ public abstract class INDIDriver implements INDIProtocolParser {
         }
       }
 
-      String msg = property.getXMLPropertySet(message);
+      synchronized (writer) {
+        long now = System.currentTimeMillis();
+        long delay = property.registerUpdate(onlyChangedElements, message, now);
 
-      sendXML(msg);
+        if (delay == 0) {
+          sendSetXXXVectorMessage(property, now);
+        } else if (delay > 0) {
+          schedulePendingUpdate(property, delay);
+        }
+      }
     } else {
       throw new INDIException("The Property is not from this driver. Maybe you forgot to add it?");
     }
@@ -800,9 +1233,89 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * @param message
    */
   private void sendDefXXXVectorMessage(INDIProperty property, String message) {
-    String msg = property.getXMLPropertyDefinition(message);
+    synchronized (writer) {
+      writer.reset();
+      property.writeXMLPropertyDefinition(writer, message);
+      property.clearChangedElements();
 
-    sendXML(msg);
+      sendXML(writer);
+    }
+  }
+
+  /**
+   * Sends the registered updates of a property with its current values. The
+   * caller must hold the lock of the writer.
+   *
+   * @param property The property that will be notified.
+   * @param now The current time.
+   */
+  private void sendSetXXXVectorMessage(INDIProperty property, long now) {
+    writer.reset();
+    property.writeXMLPropertyUpdate(writer, now);
+
+    sendXML(writer);
+  }
+
+  /**
+   * Schedules the sending of the throttled updates of a property. The caller
+   * must hold the lock of the writer.
+   *
+   * @param property The property whose updates have been delayed.
+   * @param delay The number of milliseconds to wait.
+   */
+  private void schedulePendingUpdate(final INDIProperty property, long delay) {
+    schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (writer) {
+          if (!schedulerStopped && property.isUpdatePending() && hasProperty(property)) {
+            sendSetXXXVectorMessage(property, System.currentTimeMillis());
+          }
+        }
+      }
+    }, delay);
+  }
+
+  /**
+   * Runs a task after a delay in the scheduler of the Driver, creating it
+   * the first time if the Server has not given one.
+   *
+   * @param task The task.
+   * @param delay The delay (in milliseconds).
+   * @return The scheduled task (<code>null</code> if the Driver has finished).
+   */
+  private ScheduledFuture<?> schedule(Runnable task, long delay) {
+    synchronized (writer) {
+      if (schedulerStopped) {
+        return null;
+      }
+
+      if (scheduler == null) {
+        ThreadFactory factory = threadFactory;
+
+        if (factory == null) {
+          factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "INDIDriver updates " + getName());
+
+              t.setDaemon(true);
+
+              return t;
+            }
+          };
+        }
+
+        ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, factory);
+
+        s.setRemoveOnCancelPolicy(true);
+
+        scheduler = s;
+        ownScheduler = true;
+      }
+
+      return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
   }
 
   /**
@@ -814,8 +1327,24 @@ public abstract class INDIDriver implements INDIProtocolParser {
     /*
      * if (XML.length() < 500) { printMessage(XML); }
      */
-    out.print(XML);
-    out.flush();
+    synchronized (writer) {
+      out.print(XML);
+      out.flush();
+    }
+  }
+
+  /**
+   * Sends the XML message in a writer to the clients. The caller must hold the
+   * lock of the writer.
+   *
+   * @param xml The writer with the message to be sended.
+   */
+  private void sendXML(INDIXMLWriter xml) {
+    try {
+      xml.writeTo(outputStream);
+      outputStream.flush();
+    } catch (IOException e) {
+    }
   }
 
   /**
@@ -843,10 +1372,27 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * client.
    */
   protected void removeProperty(INDIProperty property, String message) {
-    if (properties.containsValue(property)) {
+    synchronized (properties) {
+      if (!properties.containsValue(property)) {
+        return;
+      }
+
       properties.remove(property.getName());
+    }
 
-      sendDelPropertyMessage(property, message);
+    sendDelPropertyMessage(property, message);
+  }
+
+  /**
+   * Checks if a Property belongs to the Device. The Properties may be added
+   * or removed in other threads (for example while connecting).
+   *
+   * @param property The Property.
+   * @return <code>true</code> if the Property has been added and not removed.
+   */
+  private boolean hasProperty(INDIProperty property) {
+    synchronized (properties) {
+      return properties.containsValue(property);
     }
   }
 
@@ -907,7 +1453,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * if there is no property with that name.
    */
   protected INDIProperty getProperty(String propertyName) {
-    return properties.get(propertyName);
+    synchronized (properties) {
+      return properties.get(propertyName);
+    }
   }
 
   /**
@@ -931,7 +1479,9 @@ public abstract class INDIDriver implements INDIProtocolParser {
    * @return A List of all the Properties in the Driver.
    */
   public ArrayList<INDIProperty> getPropertiesAsList() {
-    return new ArrayList<INDIProperty>(properties.values());
+    synchronized (properties) {
+      return new ArrayList<INDIProperty>(properties.values());
+    }
   }
 
   /**
@@ -970,4 +1520,144 @@ public abstract class INDIDriver implements INDIProtocolParser {
     finishReader();
     removeDevice("Removing " + getName());
   }
+
+  /**
+   * A connection or disconnection that runs in its own thread (created by
+   * the thread factory of the Driver, if any). A connection may be cancelled
+   * (by a disconnection request or because it takes longer than the timeout
+   * of the CONNECTION property, in seconds): its thread is interrupted and,
+   * if it connects anyway, the Driver is disconnected.
+   */
+  private class ConnectionAttempt implements Runnable {
+
+    /**
+     * <code>true</code> for a connection, <code>false</code> for a
+     * disconnection.
+     */
+    private boolean connect;
+    /**
+     * The timestamp of the received CONNECTION message.
+     */
+    private Date timestamp;
+    /**
+     * The thread of the attempt.
+     */
+    private Thread thread;
+    /**
+     * The task that cancels the connection when it times out
+     * (<code>null</code> if there is no timeout).
+     */
+    private ScheduledFuture<?> timeoutTask;
+    /**
+     * <code>true</code> if the connection has been cancelled.
+     */
+    private boolean cancelled;
+    /**
+     * The message sent with the result if the connection has been cancelled
+     * (<code>null</code> if it has been cancelled by a Client).
+     */
+    private String cancelMessage;
+    /**
+     * <code>true</code> when the attempt has finished and can no longer be
+     * cancelled.
+     */
+    private boolean finished;
+
+    /**
+     * Constructs a new attempt.
+     *
+     * @param connect <code>true</code> to connect, <code>false</code> to
+     * disconnect.
+     * @param timestamp The timestamp of the received CONNECTION message.
+     */
+    private ConnectionAttempt(boolean connect, Date timestamp) {
+      this.connect = connect;
+      this.timestamp = timestamp;
+    }
+
+    /**
+     * Starts the attempt. The caller must hold <code>connectionLock</code>.
+     */
+    private void start() {
+      thread = INDIThreads.start(threadFactory, this, "INDI connection " + getName());
+
+      final int timeout = connectionP.getTimeout();
+
+      if (connect && (timeout > 0)) {
+        timeoutTask = schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (connectionLock) {
+              ConnectionAttempt.this.cancel("Connection timed out after " + timeout + " s");
+            }
+          }
+        }, timeout * 1000L);
+      }
+    }
+
+    /**
+     * Cancels the connection, if it has not finished. The caller must hold
+     * <code>connectionLock</code>.
+     *
+     * @param message The message sent with the result (<code>null</code> if
+     * it is cancelled by a Client).
+     */
+    private void cancel(String message) {
+      if (connect && !finished && !cancelled) {
+        cancelled = true;
+        cancelMessage = message;
+
+        thread.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      String error = null;
+
+      try {
+        if (connect) {
+          ((INDIConnectionHandler)INDIDriver.this).driverConnect(timestamp);
+        } else {
+          ((INDIConnectionHandler)INDIDriver.this).driverDisconnect(timestamp);
+        }
+      } catch (INDIException e) {
+        error = e.getMessage();
+      } catch (RuntimeException e) {
+        error = e.toString();
+      }
+
+      boolean wasCancelled;
+
+      synchronized (connectionLock) {
+        finished = true;
+        wasCancelled = cancelled;
+
+        if (timeoutTask != null) {
+          timeoutTask.cancel(false);
+        }
+      }
+
+      Thread.interrupted();  // Clears the interruption of a cancellation
+
+      if (wasCancelled && (error == null)) {  // It has connected anyway
+        try {
+          ((INDIConnectionHandler)INDIDriver.this).driverDisconnect(new Date());
+        } catch (INDIException e) {
+        }
+      }
+
+      synchronized (connectionLock) {
+        connectionAttempt = null;
+
+        if (wasCancelled) {
+          setConnectionProperty(false, cancelMessage);
+        } else if (error == null) {
+          setConnectionProperty(connect);
+        } else {
+          setConnectionProperty(!connect, error);
+        }
+      }
+    }
+  }
 }
@@ -18,6 +18,8 @@
 package laazotea.indi.driver;
 
 import java.io.Serializable;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 import org.w3c.dom.Element;
 
 /**
@@ -29,6 +31,10 @@ import org.w3c.dom.Element;
  * <code>INDITextElement</code> define the basic Elements that a INDI Property
  * may contain according to the INDI protocol.
  *
+ * Subclasses write their XML overriding the <code>writeXML*Element</code>
+ * methods (or, in older subclasses, the deprecated
+ * <code>getXML*Element</code> ones).
+ *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, July 23, 2013
  */
@@ -46,6 +52,11 @@ public abstract class INDIElement implements Serializable {
    * The Property to which this Element belongs.
    */
   private INDIProperty property;
+  /**
+   * <code>true</code> if the value has changed since the Element was last sent
+   * to the clients.
+   */
+  private transient boolean changed;
 
   /**
    * Constructs an instance of
@@ -156,7 +167,18 @@ public abstract class INDIElement implements Serializable {
    * @param xml The XML element to be parsed.
    * @return The value of the element described in the <code>XML</code> element.
    */
-  public abstract Object parseOneValue(Element xml);
+  public Object parseOneValue(Element xml) {
+    return parseOneValue(new INDIMessage.OneElement(xml));
+  }
+
+  /**
+   * Parses a &lt;oneXXX&gt; element of a message and gets the desired value in
+   * it.
+   *
+   * @param one The element to be parsed.
+   * @return The value of the element described in <code>one</code>.
+   */
+  public abstract Object parseOneValue(INDIMessage.OneElement one);
 
   /**
    * Sets the value of the Element to
@@ -174,8 +196,18 @@ public abstract class INDIElement implements Serializable {
    *
    * @return the &lt;oneXXX&gt; XML string describing the current value of the
    * Element.
+   * @deprecated Override <code>writeXMLOneElement</code> instead. Subclasses
+   * must override either these methods or the <code>writeXML*Element</code>
+   * ones.
    */
-  protected abstract String getXMLOneElement();
+  @Deprecated
+  protected String getXMLOneElement() {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLOneElement(writer);
+
+    return writer.toString();
+  }
 
   /**
    * Gets a &lt;defXXX&gt; XML string describing the current value and
@@ -183,8 +215,63 @@ public abstract class INDIElement implements Serializable {
    *
    * @return The &lt;defXXX&gt; XML string describing the current value and
    * properties of the Element.
+   * @deprecated Override <code>writeXMLDefElement</code> instead.
    */
-  protected abstract String getXMLDefElement();
+  @Deprecated
+  protected String getXMLDefElement() {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLDefElement(writer);
+
+    return writer.toString();
+  }
+
+  /**
+   * Writes a &lt;oneXXX&gt; XML Element describing the current value of the
+   * Element. Subclasses should override it: by default it writes the String of
+   * the deprecated <code>getXMLOneElement</code> method.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   */
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    writer.writeRaw(getXMLOneElement());
+  }
+
+  /**
+   * Writes a &lt;defXXX&gt; XML Element describing the current value and
+   * properties of the Element. Subclasses should override it: by default it
+   * writes the String of the deprecated <code>getXMLDefElement</code> method.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   */
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeRaw(getXMLDefElement());
+  }
+
+  /**
+   * Checks if the value of the Element has changed since it was last sent to
+   * the clients.
+   *
+   * @return <code>true</code> if the value has changed since it was last sent.
+   */
+  public boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * Marks the value of the Element as changed. Called by the subclasses when
+   * a new (different) value is set.
+   */
+  protected void setChanged() {
+    changed = true;
+  }
+
+  /**
+   * Marks the value of the Element as sent to the clients.
+   */
+  void clearChanged() {
+    changed = false;
+  }
 
   /**
    * Gets the name of the element and its current value
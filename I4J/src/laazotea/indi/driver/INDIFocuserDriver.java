@@ -49,6 +49,11 @@ import laazotea.indi.INDIException;
  */
 public abstract class INDIFocuserDriver extends INDIDriver {
 
+  /**
+   * The minimum number of milliseconds between two updates of the position
+   * while the focuser is moving (drivers may report it with any frequency).
+   */
+  private static final int POSITION_UPDATE_INTERVAL = 100;
   /**
    * The last position to which the focuser has been sent (but it may have not
    * yet reached).
@@ -99,6 +104,7 @@ public abstract class INDIFocuserDriver extends INDIDriver {
     absFocusPositionP = new INDINumberProperty(this, "ABS_FOCUS_POSITION", "Absolute", "Control", PropertyStates.IDLE, PropertyPermissions.RW);
     focusAbsolutePositionE = new INDINumberElement(absFocusPositionP, "FOCUS_ABSOLUTE_POSITION", "Focus Position", getInitialAbsPos() + "", getMinimumAbsPos() + "", getMaximumAbsPos() + "", "1", "%.0f");
     desiredAbsPosition = getInitialAbsPos();
+    absFocusPositionP.setUpdateInterval(POSITION_UPDATE_INTERVAL);
 
     addProperty(absFocusPositionP);
   }
@@ -19,7 +19,8 @@ package laazotea.indi.driver;
 
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.LightStates;
-import org.w3c.dom.Element;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Light Element.
@@ -89,16 +90,20 @@ public class INDILightElement extends INDIElement {
       throw new IllegalArgumentException("Value for a Light Element must be a INDILightElement.LightStates");
     }
 
+    if (ns != state) {
+      setChanged();
+    }
+
     this.state = ns;
   }
 
   @Override
-  public String getXMLOneElement() {
-    String v = Constants.getLightStateAsString(state);
-
-    String xml = "<oneLight name=\"" + this.getName() + "\">" + v + "</oneLight>";
-
-    return xml;
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    writer.writeStartTag("oneLight");
+    writer.writeAttribute("name", getName());
+    writer.closeStartTag();
+    writer.writeText(Constants.getLightStateAsString(state));
+    writer.writeEndTag("oneLight");
   }
 
   @Override
@@ -107,16 +112,17 @@ public class INDILightElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String v = Constants.getLightStateAsString(state);
-
-    String xml = "<defLight name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + v + "</defLight>";
-
-    return xml;
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeStartTag("defLight");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.closeStartTag();
+    writer.writeText(Constants.getLightStateAsString(state));
+    writer.writeEndTag("defLight");
   }
 
   @Override
-  public Object parseOneValue(Element xml) {
-    return Constants.parseLightState(xml.getTextContent().trim());
+  public Object parseOneValue(INDIMessage.OneElement one) {
+    return Constants.parseLightState(one.getText());
   }
 }
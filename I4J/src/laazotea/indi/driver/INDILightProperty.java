@@ -22,6 +22,7 @@ import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Light Property.
@@ -213,44 +214,44 @@ public class INDILightProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
+  protected void writeXMLPropertyDefinitionInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("defLightVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.writeAttribute("group", getGroup());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
 
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defLightVector>";
-
-    return xml;
+  protected void writeXMLPropertyDefinitionEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("defLightVector");
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
+  protected void writeXMLPropertySetInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("setLightVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
 
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setLightVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setLightVector>";
-
-    return xml;
+  protected void writeXMLPropertySetEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("setLightVector");
   }
 }
@@ -20,7 +20,8 @@ package laazotea.indi.driver;
 import java.util.Formatter;
 import java.util.Locale;
 import laazotea.indi.INDISexagesimalFormatter;
-import org.w3c.dom.Element;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Number Element.
@@ -374,7 +375,13 @@ public class INDINumberElement extends INDIElement {
    * @throws IllegalArgumentException if it is not a value within the limits.
    */
   private void setValueAsString(String valueS) throws IllegalArgumentException {
-    value = parseNumber(valueS);
+    double v = parseNumber(valueS);
+
+    if (Double.compare(v, value) != 0) {
+      setChanged();
+    }
+
+    value = v;
 
     if ((value < min) || (value > max)) {
       throw new IllegalArgumentException(getName() + " ; " + "Number (" + valueS + ") not in range [" + min + ", " + max + "]");
@@ -387,6 +394,10 @@ public class INDINumberElement extends INDIElement {
    * @throws IllegalArgumentException if it is not a value within the limits.
    */
   private void setValueAsdouble(double value) throws IllegalArgumentException {
+    if (Double.compare(value, this.value) != 0) {
+      setChanged();
+    }
+
     this.value = value;
 
     if ((value < min) || (value > max)) {
@@ -419,10 +430,12 @@ public class INDINumberElement extends INDIElement {
   }
 
   @Override
-  public String getXMLOneElement() {
-    String xml = "<oneNumber name=\"" + this.getName() + "\">" + value + "</oneNumber>";
-
-    return xml;
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    writer.writeStartTag("oneNumber");
+    writer.writeAttribute("name", getName());
+    writer.closeStartTag();
+    writer.writeText(String.valueOf(value));
+    writer.writeEndTag("oneNumber");
   }
 
   @Override
@@ -431,15 +444,22 @@ public class INDINumberElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defNumber name=\"" + this.getName() + "\" label=\"" + getLabel() + "\" format=\"" + numberFormat + "\" min=\"" + min + "\" max=\"" + max + "\" step=\"" + step + "\">" + value + "</defNumber>";
-
-    return xml;
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeStartTag("defNumber");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.writeAttribute("format", numberFormat);
+    writer.writeAttribute("min", String.valueOf(min));
+    writer.writeAttribute("max", String.valueOf(max));
+    writer.writeAttribute("step", String.valueOf(step));
+    writer.closeStartTag();
+    writer.writeText(String.valueOf(value));
+    writer.writeEndTag("defNumber");
   }
 
   @Override
-  public Object parseOneValue(Element xml) {
-    double v = parseNumber(xml.getTextContent().trim());
+  public Object parseOneValue(INDIMessage.OneElement one) {
+    double v = parseNumber(one.getText());
 
     if ((v < min) || (v > max)) {
       throw new IllegalArgumentException(getName() + " ; " + "Number (" + v + ") not in range [" + min + ", " + max + "]");
@@ -0,0 +1,32 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.driver;
+
+/**
+ * An interface for those drivers that read or write their streams by
+ * themselves. When a Server runs a Java Driver in its own process it usually
+ * sends the messages to it already parsed (and parses the ones that it writes
+ * as they are written), so the streams of the Driver are not real pipes. The
+ * drivers implementing this interface are connected with real pipes, as if
+ * they were run by a <code>INDIDriverRunner</code>.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public interface INDIPipedDriver {
+}
@@ -30,6 +30,7 @@ import java.util.List;
 import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Property. The subclasses
@@ -40,6 +41,11 @@ import laazotea.indi.INDIException;
  * <code>INDITextProperty</code> define the basic Properties that a INDI Drivers
  * may contain according to the INDI protocol.
  *
+ * Subclasses write their XML overriding the <code>writeXMLProperty*</code>
+ * methods. Older subclasses that override the deprecated
+ * <code>getXMLProperty*</code> methods instead keep working: one of the two
+ * families must be overridden, as each one is written in terms of the other.
+ *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.35, November 11, 2013
  */
@@ -89,6 +95,31 @@ public abstract class INDIProperty implements Serializable {
    * It marks if the property should be saved each time that it is changed.
    */
   private boolean saveable;
+  /**
+   * The minimum number of milliseconds between two set messages of this
+   * Property (<code>0</code> if the updates are not throttled).
+   */
+  private transient int updateInterval;
+  /**
+   * The time at which the last set message was sent.
+   */
+  private transient long lastUpdateTime;
+  /**
+   * The state sent in the last set message.
+   */
+  private transient PropertyStates lastUpdateState;
+  /**
+   * <code>true</code> if there is an update waiting to be sent.
+   */
+  private transient boolean updatePending;
+  /**
+   * <code>true</code> if the waiting update must include all the Elements.
+   */
+  private transient boolean pendingAllElements;
+  /**
+   * The message of the waiting update (can be <code>null</code>).
+   */
+  private transient String pendingMessage;
 
   /**
    * Constructs an instance of a
@@ -235,6 +266,36 @@ public abstract class INDIProperty implements Serializable {
     return timeout;
   }
 
+  /**
+   * Gets the minimum number of milliseconds between two set messages of this
+   * Property.
+   *
+   * @return the minimum interval between updates (<code>0</code> if the
+   * updates are not throttled).
+   */
+  public int getUpdateInterval() {
+    return updateInterval;
+  }
+
+  /**
+   * Sets the minimum number of milliseconds between two set messages of this
+   * Property. Updates requested more often are merged and only the latest
+   * values are sent when the interval expires. Changes of the state of the
+   * Property (for example to OK or ALERT) are always sent right away.
+   *
+   * @param updateInterval The minimum interval between updates
+   * (<code>0</code> to send every update).
+   * @throws IllegalArgumentException if <code>updateInterval</code> is
+   * negative.
+   */
+  public void setUpdateInterval(int updateInterval) throws IllegalArgumentException {
+    if (updateInterval < 0) {
+      throw new IllegalArgumentException("Negative update interval for the Property");
+    }
+
+    this.updateInterval = updateInterval;
+  }
+
   /**
    * Gets the label for this Property.
    *
@@ -391,25 +452,31 @@ public abstract class INDIProperty implements Serializable {
    * @return The XML code to define the property.
    */
   protected String getXMLPropertyDefinition(String message) {
-    String xml;
+    INDIXMLWriter writer = new INDIXMLWriter();
 
-    if (message == null) {
-      xml = getXMLPropertyDefinitionInit();
-    } else {
-      xml = getXMLPropertyDefinitionInit(message);
-    }
+    writeXMLPropertyDefinition(writer, message);
+
+    return writer.toString();
+  }
 
-    List<INDIElement> elem = getElementsAsList();
+  /**
+   * Writes the XML code to define the property with a <code>message</code>.
+   * Should not usually be called by the Drivers.
+   *
+   * @param writer The writer to which the XML code is appended.
+   * @param message An message to be sent to the client when defining the
+   * property (it can be <code>null</code>).
+   */
+  protected void writeXMLPropertyDefinition(INDIXMLWriter writer, String message) {
+    writeXMLPropertyDefinitionInit(writer, message);
 
-    for (int i = 0 ; i < elements.size() ; i++) {
-      xml += elem.get(i).getXMLDefElement();
+    for (INDIElement e : elements.values()) {
+      e.writeXMLDefElement(writer);
     }
 
-    xml += getXMLPropertyDefinitionEnd();
+    writeXMLPropertyDefinitionEnd(writer);
 
     isInit = true; // The property now is initialized. No further changes allowed
-    
-    return xml;
   }
 
   /**
@@ -431,6 +498,38 @@ public abstract class INDIProperty implements Serializable {
    * @return The XML code to set the values of the property.
    */
   protected String getXMLPropertySet(String message) {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLPropertySet(writer, message);
+
+    return writer.toString();
+  }
+
+  /**
+   * Writes the XML code to set the values of the property with a
+   * <code>message</code>. Should not usually be called by the Drivers.
+   *
+   * @param writer The writer to which the XML code is appended.
+   * @param message An message to be sent to the client when setting the values
+   * of the property (it can be <code>null</code>).
+   */
+  protected void writeXMLPropertySet(INDIXMLWriter writer, String message) {
+    writeXMLPropertySet(writer, message, false);
+  }
+
+  /**
+   * Writes the XML code to set the values of the property with a
+   * <code>message</code>, optionally including only the Elements whose values
+   * have changed since they were last sent. Should not usually be called by
+   * the Drivers.
+   *
+   * @param writer The writer to which the XML code is appended.
+   * @param message An message to be sent to the client when setting the values
+   * of the property (it can be <code>null</code>).
+   * @param onlyChangedElements <code>true</code> to include only the changed
+   * Elements, <code>false</code> to include all of them.
+   */
+  protected void writeXMLPropertySet(INDIXMLWriter writer, String message, boolean onlyChangedElements) {
     if (saveable) {
       try {
         saveToFile();
@@ -438,31 +537,151 @@ public abstract class INDIProperty implements Serializable {
       }
     }
 
-    String xml;
+    writeXMLPropertySetInit(writer, message);
 
-    if (message == null) {
-      xml = getXMLPropertySetInit();
-    } else {
-      xml = getXMLPropertySetInit(message);
+    for (INDIElement e : elements.values()) {
+      if ((!onlyChangedElements) || e.isChanged()) {
+        e.writeXMLOneElement(writer);
+      }
     }
 
-    List<INDIElement> elem = getElementsAsList();
+    writeXMLPropertySetEnd(writer);
+  }
 
-    for (int i = 0 ; i < elem.size() ; i++) {
-      xml += elem.get(i).getXMLOneElement();
+  /**
+   * Registers a request to update the Property, merging it with any waiting
+   * one. Called by the Driver under its output lock.
+   *
+   * @param onlyChangedElements <code>true</code> if only the changed Elements
+   * must be sent.
+   * @param message The message of the update (can be <code>null</code>).
+   * @param now The current time.
+   * @return <code>0</code> if the update must be sent now, the number of
+   * milliseconds after which it must be sent or <code>-1</code> if it has
+   * already been scheduled.
+   */
+  long registerUpdate(boolean onlyChangedElements, String message, long now) {
+    if (!onlyChangedElements) {
+      pendingAllElements = true;
     }
 
-    xml += getXMLPropertySetEnd();
+    if (message != null) {
+      pendingMessage = message;
+    }
 
-    return xml;
+    if ((updateInterval <= 0) || (getState() != lastUpdateState) || (now - lastUpdateTime >= updateInterval)) {
+      return 0;
+    }
+
+    if (updatePending) {
+      return -1;
+    }
+
+    updatePending = true;
+
+    return lastUpdateTime + updateInterval - now;
+  }
+
+  /**
+   * Checks if there is an update waiting to be sent.
+   *
+   * @return <code>true</code> if there is an update waiting to be sent.
+   */
+  boolean isUpdatePending() {
+    return updatePending;
+  }
+
+  /**
+   * Marks the values of all the Elements as sent to the clients. Called by the
+   * Driver once it has sent them (the XML code is written without changing the
+   * marks, so it can also be got for other uses).
+   */
+  void clearChangedElements() {
+    for (INDIElement e : elements.values()) {
+      e.clearChanged();
+    }
+  }
+
+  /**
+   * Writes the set message of the registered updates, with the current values
+   * of the Elements, and marks them as sent.
+   *
+   * @param writer The writer to which the XML code is appended.
+   * @param now The current time.
+   */
+  void writeXMLPropertyUpdate(INDIXMLWriter writer, long now) {
+    writeXMLPropertySet(writer, pendingMessage, !pendingAllElements);
+    clearChangedElements();
+
+    lastUpdateTime = now;
+    lastUpdateState = getState();
+    updatePending = false;
+    pendingAllElements = false;
+    pendingMessage = null;
+  }
+
+  /**
+   * Writes the opening XML Element &lt;defXXXVector&gt; for this Property with
+   * a <code>message</code> to the client. Subclasses should override it: by
+   * default it writes the String of the deprecated
+   * <code>getXMLPropertyDefinitionInit</code> methods.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   * @param message A message to be sent to the client (it can be
+   * <code>null</code>).
+   */
+  protected void writeXMLPropertyDefinitionInit(INDIXMLWriter writer, String message) {
+    writer.writeRaw((message == null) ? getXMLPropertyDefinitionInit() : getXMLPropertyDefinitionInit(message));
+  }
+
+  /**
+   * Writes the closing XML Element &lt;/defXXXVector&gt; for this Property.
+   * Subclasses should override it: by default it writes the String of the
+   * deprecated <code>getXMLPropertyDefinitionEnd</code> method.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   */
+  protected void writeXMLPropertyDefinitionEnd(INDIXMLWriter writer) {
+    writer.writeRaw(getXMLPropertyDefinitionEnd());
+  }
+
+  /**
+   * Writes the opening XML Element &lt;setXXXVector&gt; for this Property with
+   * a <code>message</code> to the client. Subclasses should override it: by
+   * default it writes the String of the deprecated
+   * <code>getXMLPropertySetInit</code> methods.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   * @param message A message to be sent to the client (it can be
+   * <code>null</code>).
+   */
+  protected void writeXMLPropertySetInit(INDIXMLWriter writer, String message) {
+    writer.writeRaw((message == null) ? getXMLPropertySetInit() : getXMLPropertySetInit(message));
+  }
+
+  /**
+   * Writes the closing XML Element &lt;/setXXXVector&gt; for this Property.
+   * Subclasses should override it: by default it writes the String of the
+   * deprecated <code>getXMLPropertySetEnd</code> method.
+   *
+   * @param writer The writer to which the XML Element is appended.
+   */
+  protected void writeXMLPropertySetEnd(INDIXMLWriter writer) {
+    writer.writeRaw(getXMLPropertySetEnd());
   }
 
   /**
    * Gets the opening XML Element &lt;defXXXVector&gt; for this Property.
    *
    * @return the opening XML Element &lt;defXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertyDefinitionInit</code> instead.
+   * Subclasses must override either these methods or the
+   * <code>writeXMLProperty*</code> ones.
    */
-  protected abstract String getXMLPropertyDefinitionInit();
+  @Deprecated
+  protected String getXMLPropertyDefinitionInit() {
+    return getXMLPropertyDefinitionInit(null);
+  }
 
   /**
    * Gets the opening XML Element &lt;defXXXVector&gt; for this Property with a
@@ -470,22 +689,42 @@ public abstract class INDIProperty implements Serializable {
    *
    * @param message A message to be sent to the client.
    * @return the opening XML Element &lt;defXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertyDefinitionInit</code> instead.
    */
-  protected abstract String getXMLPropertyDefinitionInit(String message);
+  @Deprecated
+  protected String getXMLPropertyDefinitionInit(String message) {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLPropertyDefinitionInit(writer, message);
+
+    return writer.toString();
+  }
 
   /**
    * Gets the closing XML Element &lt;/defXXXVector&gt; for this Property.
    *
    * @return the closing XML Element &lt;/defXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertyDefinitionEnd</code> instead.
    */
-  protected abstract String getXMLPropertyDefinitionEnd();
+  @Deprecated
+  protected String getXMLPropertyDefinitionEnd() {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLPropertyDefinitionEnd(writer);
+
+    return writer.toString();
+  }
 
   /**
    * Gets the opening XML Element &lt;setXXXVector&gt; for this Property.
    *
    * @return the opening XML Element &lt;setXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertySetInit</code> instead.
    */
-  protected abstract String getXMLPropertySetInit();
+  @Deprecated
+  protected String getXMLPropertySetInit() {
+    return getXMLPropertySetInit(null);
+  }
 
   /**
    * Gets the opening XML Element &lt;setXXXVector&gt; for this Property with a
@@ -493,15 +732,31 @@ public abstract class INDIProperty implements Serializable {
    *
    * @param message A message to be sent to the client.
    * @return the opening XML Element &lt;setXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertySetInit</code> instead.
    */
-  protected abstract String getXMLPropertySetInit(String message);
+  @Deprecated
+  protected String getXMLPropertySetInit(String message) {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLPropertySetInit(writer, message);
+
+    return writer.toString();
+  }
 
   /**
    * Gets the closing XML Element &lt;/setXXXVector&gt; for this Property.
    *
    * @return the closing XML Element &lt;/setXXXVector&gt; for this Property.
+   * @deprecated Override <code>writeXMLPropertySetEnd</code> instead.
    */
-  protected abstract String getXMLPropertySetEnd();
+  @Deprecated
+  protected String getXMLPropertySetEnd() {
+    INDIXMLWriter writer = new INDIXMLWriter();
+
+    writeXMLPropertySetEnd(writer);
+
+    return writer.toString();
+  }
 
   /**
    * Saves the property and its elements to a file. Ideal to later restore it on
@@ -20,7 +20,8 @@ package laazotea.indi.driver;
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.SwitchRules;
 import laazotea.indi.Constants.SwitchStatus;
-import org.w3c.dom.Element;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Switch Element.
@@ -112,16 +113,20 @@ public class INDISwitchElement extends INDIElement {
       }
     }
 
+    if (ss != status) {
+      setChanged();
+    }
+
     this.status = ss;
   }
 
   @Override
-  public String getXMLOneElement() {
-    String stat = Constants.getSwitchStatusAsString(status);
-
-    String xml = "<oneSwitch name=\"" + this.getName() + "\">" + stat + "</oneSwitch>";
-
-    return xml;
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    writer.writeStartTag("oneSwitch");
+    writer.writeAttribute("name", getName());
+    writer.closeStartTag();
+    writer.writeText(Constants.getSwitchStatusAsString(status));
+    writer.writeEndTag("oneSwitch");
   }
 
   @Override
@@ -130,16 +135,17 @@ public class INDISwitchElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String stat = Constants.getSwitchStatusAsString(status);
-
-    String xml = "<defSwitch name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + stat + "</defSwitch>";
-
-    return xml;
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeStartTag("defSwitch");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.closeStartTag();
+    writer.writeText(Constants.getSwitchStatusAsString(status));
+    writer.writeEndTag("defSwitch");
   }
 
   @Override
-  public Object parseOneValue(Element xml) {
-    return Constants.parseSwitchStatus(xml.getTextContent().trim());
+  public Object parseOneValue(INDIMessage.OneElement one) {
+    return Constants.parseSwitchStatus(one.getText());
   }
 }
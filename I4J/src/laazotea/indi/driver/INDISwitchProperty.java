@@ -26,6 +26,7 @@ import laazotea.indi.Constants.SwitchRules;
 import laazotea.indi.Constants.SwitchStatus;
 import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Switch Property.
@@ -427,44 +428,48 @@ public class INDISwitchProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" rule=\"" + Constants.getSwitchRuleAsString(getRule()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" rule=\"" + Constants.getSwitchRuleAsString(getRule()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defSwitchVector>";
+  protected void writeXMLPropertyDefinitionInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("defSwitchVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.writeAttribute("group", getGroup());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("perm", Constants.getPropertyPermissionAsString(getPermission()));
+    writer.writeAttribute("rule", Constants.getSwitchRuleAsString(getRule()));
+    writer.writeAttribute("timeout", getTimeout());
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
+
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
+  protected void writeXMLPropertyDefinitionEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("defSwitchVector");
   }
 
   @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setSwitchVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
+  protected void writeXMLPropertySetInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("setSwitchVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("timeout", getTimeout());
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
+
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setSwitchVector>";
-
-    return xml;
+  protected void writeXMLPropertySetEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("setSwitchVector");
   }
 }
@@ -17,7 +17,8 @@
  */
 package laazotea.indi.driver;
 
-import org.w3c.dom.Element;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Text Element.
@@ -88,14 +89,20 @@ public class INDITextElement extends INDIElement {
       throw new IllegalArgumentException("Value for a Text Element must be a String");
     }
 
+    if ((v == null) ? (value != null) : (!v.equals(value))) {
+      setChanged();
+    }
+
     this.value = v;
   }
 
   @Override
-  public String getXMLOneElement() {
-    String xml = "<oneText name=\"" + this.getName() + "\">" + value + "</oneText>";
-
-    return xml;
+  protected void writeXMLOneElement(INDIXMLWriter writer) {
+    writer.writeStartTag("oneText");
+    writer.writeAttribute("name", getName());
+    writer.closeStartTag();
+    writer.writeText(String.valueOf(value));
+    writer.writeEndTag("oneText");
   }
 
   @Override
@@ -104,14 +111,17 @@ public class INDITextElement extends INDIElement {
   }
 
   @Override
-  protected String getXMLDefElement() {
-    String xml = "<defText name=\"" + this.getName() + "\" label=\"" + getLabel() + "\">" + value + "</defText>";
-
-    return xml;
+  protected void writeXMLDefElement(INDIXMLWriter writer) {
+    writer.writeStartTag("defText");
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.closeStartTag();
+    writer.writeText(String.valueOf(value));
+    writer.writeEndTag("defText");
   }
 
   @Override
-  public String parseOneValue(Element xml) {
-    return xml.getTextContent().trim();
+  public String parseOneValue(INDIMessage.OneElement one) {
+    return one.getText();
   }
 }
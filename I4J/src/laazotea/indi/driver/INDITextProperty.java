@@ -22,6 +22,7 @@ import laazotea.indi.Constants.PropertyPermissions;
 import laazotea.indi.Constants.PropertyStates;
 import laazotea.indi.INDIDateFormat;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIXMLWriter;
 
 /**
  * A class representing a INDI Text Property.
@@ -281,44 +282,47 @@ public class INDITextProperty extends INDIProperty {
   }
 
   @Override
-  protected String getXMLPropertyDefinitionInit() {
-    String xml = "<defTextVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionInit(String message) {
-    String xml = "<defTextVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" label=\"" + getLabel() + "\" group=\"" + getGroup() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" perm=\"" + Constants.getPropertyPermissionAsString(getPermission()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
-
-    return xml;
-  }
-
-  @Override
-  protected String getXMLPropertyDefinitionEnd() {
-    String xml = "</defTextVector>";
+  protected void writeXMLPropertyDefinitionInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("defTextVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("label", getLabel());
+    writer.writeAttribute("group", getGroup());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("perm", Constants.getPropertyPermissionAsString(getPermission()));
+    writer.writeAttribute("timeout", getTimeout());
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
+
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertySetInit() {
-    String xml = "<setTextVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\">";
-
-    return xml;
+  protected void writeXMLPropertyDefinitionEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("defTextVector");
   }
 
   @Override
-  protected String getXMLPropertySetInit(String message) {
-    String xml = "<setTextVector device=\"" + getDriver().getName() + "\" name=\"" + getName() + "\" state=\"" + Constants.getPropertyStateAsString(getState()) + "\" timeout=\"" + getTimeout() + "\" timestamp=\"" + INDIDateFormat.getCurrentTimestamp() + "\" message=\"" + message + "\">";
+  protected void writeXMLPropertySetInit(INDIXMLWriter writer, String message) {
+    writer.writeStartTag("setTextVector");
+    writer.writeAttribute("device", getDriver().getName());
+    writer.writeAttribute("name", getName());
+    writer.writeAttribute("state", Constants.getPropertyStateAsString(getState()));
+    writer.writeAttribute("timeout", getTimeout());
+    writer.writeAttribute("timestamp", INDIDateFormat.getCurrentTimestamp());
+
+    if (message != null) {
+      writer.writeAttribute("message", message);
+    }
 
-    return xml;
+    writer.closeStartTag();
   }
 
   @Override
-  protected String getXMLPropertySetEnd() {
-    String xml = "</setTextVector>";
-
-    return xml;
+  protected void writeXMLPropertySetEnd(INDIXMLWriter writer) {
+    writer.writeEndTag("setTextVector");
   }
 }
@@ -18,13 +18,28 @@
 package laazotea.indi.server;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import laazotea.indi.INDICompression;
+import laazotea.indi.INDIEncodedMessage;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIFrame;
+import laazotea.indi.INDIStreamParser;
+import laazotea.indi.INDIThreads;
 import laazotea.indi.driver.INDIDriver;
 import laazotea.indi.driver.INDINotLoadableDriver;
 import org.w3c.dom.Element;
@@ -48,14 +63,42 @@ import org.w3c.dom.Element;
 public abstract class AbstractINDIServer implements Runnable {
 
   /**
-   * A list of Devices loaded by the server.
+   * A list of Devices loaded by the server. It is never modified: a new list
+   * replaces it (holding <code>registryLock</code>), so it can be read from any
+   * thread without locks.
    */
-  private ArrayList<INDIDevice> devices;
+  private volatile ArrayList<INDIDevice> devices;
   /**
    * A list of clients (and devices if they are snooping) connected to the
-   * server.
+   * server. As <code>devices</code>, it is replaced instead of modified.
    */
-  private ArrayList<INDIDeviceListener> clients;
+  private volatile ArrayList<INDIDeviceListener> clients;
+  /**
+   * The Devices by their names.
+   */
+  private ConcurrentHashMap<String, INDIDevice> devicesByName;
+  /**
+   * The Devices by the identifier with which they were loaded (there may be
+   * several Java Drivers in a JAR file). The lists are replaced instead of
+   * modified.
+   */
+  private ConcurrentHashMap<String, ArrayList<INDIDevice>> devicesByIdentifier;
+  /**
+   * The identifiers with which the Devices were loaded.
+   */
+  private ConcurrentHashMap<INDIDevice, String> identifiers;
+  /**
+   * The listeners of each Device and Property.
+   */
+  private INDIRoutingTable routingTable;
+  /**
+   * The latest state of the Properties of the Devices.
+   */
+  private INDIPropertyCache propertyCache;
+  /**
+   * The lock held while changing the lists of Devices and Clients.
+   */
+  private final Object registryLock = new Object();
   /**
    * The port to which the Server listens.
    */
@@ -64,11 +107,73 @@ public abstract class AbstractINDIServer implements Runnable {
    * The socket to which the Server listens.
    */
   private ServerSocket socket;
+  /**
+   * The non-blocking core that handles the connections (<code>null</code> if
+   * each connection has its own threads).
+   */
+  private volatile INDIChannelReactor reactor;
+  /**
+   * The number of I/O threads of the reactor (<code>0</code> if there is no
+   * reactor).
+   */
+  private int reactorIOThreads;
+  /**
+   * The number of worker threads of the reactor.
+   */
+  private int reactorWorkerThreads;
+  /**
+   * The channel to which the Server listens (when there is a reactor).
+   */
+  private ServerSocketChannel serverChannel;
+  /**
+   * The selector that waits for new connections (when there is a reactor).
+   */
+  private Selector acceptSelector;
+  /**
+   * The factory of the threads of the Server, its connections and its Java
+   * Drivers (<code>null</code> for usual platform threads).
+   */
+  private ThreadFactory threadFactory;
   /**
    * If
    * <code>true</code> the mainThread will continue running.
    */
   private boolean mainThreadRunning;
+  /**
+   * The maximum size (in bytes) of the messages read from Clients and
+   * Devices.
+   */
+  private int maxFrameSize;
+  /**
+   * The capacity (in bytes) of the pipes to and from the piped Java Drivers.
+   */
+  private int javaDriverPipeSize;
+  /**
+   * The number of threads shared by the Java Drivers to parse their messages.
+   */
+  private int driverThreads;
+  /**
+   * The threads shared by the Java Drivers (created when the first one is
+   * loaded).
+   */
+  private ExecutorService driverExecutor;
+  /**
+   * The scheduler shared by the Java Drivers for their delayed tasks
+   * (created when first needed).
+   */
+  private ScheduledExecutorService driverScheduler;
+  /**
+   * The maximum number of bytes queued for each Client.
+   */
+  private long maxOutboundQueueBytes;
+  /**
+   * What to do when the queue of a Client is full.
+   */
+  private INDIOutboundQueue.OverflowPolicy outboundQueuePolicy;
+  /**
+   * <code>true</code> if the Clients may compress their links.
+   */
+  private boolean compressedClientsAccepted;
 
   /**
    * Constructs a new Server. The Server begins to listen to the default port.
@@ -90,13 +195,83 @@ public abstract class AbstractINDIServer implements Runnable {
     initServer();
   }
 
+  /**
+   * Constructs a new Server whose listening thread, connection readers and
+   * Java Drivers run in threads created by a particular factory. With a
+   * factory of virtual threads (see <code>INDIThreads</code>) the blocking
+   * readers are kept but each connection costs much less memory and
+   * scheduling.
+   *
+   * @param listeningPort The port to which the Server will listen.
+   * @param threadFactory The factory of the threads (<code>null</code> for
+   * usual platform threads).
+   * @see INDIThreads#getVirtualThreadFactory(String)
+   */
+  protected AbstractINDIServer(int listeningPort, ThreadFactory threadFactory) {
+    this.listeningPort = listeningPort;
+    this.threadFactory = threadFactory;
+
+    initServer();
+  }
+
+  /**
+   * Constructs a new Server with a non-blocking core: the connections with the
+   * Clients and Network Devices are handled by a fixed number of I/O threads
+   * and the messages are routed by a fixed number of worker threads, whatever
+   * the number of connections. If the core cannot be created, each connection
+   * gets its own threads.
+   *
+   * @param listeningPort The port to which the Server will listen.
+   * @param ioThreads The number of I/O threads.
+   * @param workerThreads The number of worker threads.
+   */
+  protected AbstractINDIServer(int listeningPort, int ioThreads, int workerThreads) {
+    this.listeningPort = listeningPort;
+    this.reactorIOThreads = ioThreads;
+    this.reactorWorkerThreads = workerThreads;
+
+    initServer();
+  }
+
+  /**
+   * Constructs a new Server with a non-blocking core whose I/O and worker
+   * threads, as well as the listening thread and the Java Drivers, run in
+   * threads created by a particular factory.
+   *
+   * @param listeningPort The port to which the Server will listen.
+   * @param ioThreads The number of I/O threads.
+   * @param workerThreads The number of worker threads.
+   * @param threadFactory The factory of the threads (<code>null</code> for
+   * usual platform threads).
+   * @see #AbstractINDIServer(int, int, int)
+   */
+  protected AbstractINDIServer(int listeningPort, int ioThreads, int workerThreads, ThreadFactory threadFactory) {
+    this.listeningPort = listeningPort;
+    this.reactorIOThreads = ioThreads;
+    this.reactorWorkerThreads = workerThreads;
+    this.threadFactory = threadFactory;
+
+    initServer();
+  }
+
   /**
    * Inits the Server and launches the listening thread.
    */
   private void initServer() {
     mainThreadRunning = false;
+    maxFrameSize = INDIStreamParser.DEFAULT_MAX_FRAME_SIZE;
+    javaDriverPipeSize = INDIByteRing.DEFAULT_CAPACITY;
+    driverThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    maxOutboundQueueBytes = INDIOutboundQueue.DEFAULT_MAX_BYTES;
+    outboundQueuePolicy = INDIOutboundQueue.OverflowPolicy.DISCONNECT;
+    compressedClientsAccepted = false;
     devices = new ArrayList<INDIDevice>();
     clients = new ArrayList<INDIDeviceListener>();
+    routingTable = new INDIRoutingTable();
+    propertyCache = new INDIPropertyCache();
+    devicesByName = new ConcurrentHashMap<String, INDIDevice>();
+    devicesByIdentifier = new ConcurrentHashMap<String, ArrayList<INDIDevice>>();
+    identifiers = new ConcurrentHashMap<INDIDevice, String>();
 
     startListeningToClients();
   }
@@ -107,8 +282,15 @@ public abstract class AbstractINDIServer implements Runnable {
    */
   protected void startListeningToClients() {
     if (!mainThreadRunning) {
-      Thread serverThread = new Thread(this);
-      serverThread.start();
+      if ((reactorIOThreads > 0) && (reactor == null)) {  // Also after being stopped
+        try {
+          reactor = new INDIChannelReactor(reactorIOThreads, reactorWorkerThreads, threadFactory);
+        } catch (IOException e) {
+          System.err.println("Could not start the non-blocking core: " + e.getMessage());
+        }
+      }
+
+      INDIThreads.start(threadFactory, this, "INDI Server " + listeningPort);
     }
   }
 
@@ -121,12 +303,270 @@ public abstract class AbstractINDIServer implements Runnable {
     return listeningPort;
   }
 
+  /**
+   * Gets the factory of the threads of the Server, its connections and its
+   * Java Drivers.
+   *
+   * @return The factory of the threads (<code>null</code> for usual platform
+   * threads).
+   */
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  /**
+   * Gets the non-blocking core that handles the connections.
+   *
+   * @return The reactor (<code>null</code> if each connection has its own
+   * threads).
+   */
+  protected INDIChannelReactor getReactor() {
+    return reactor;
+  }
+
+  /**
+   * Gets the maximum size of the messages read from each Client and Device.
+   *
+   * @return The maximum size (in bytes) of a message.
+   */
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  /**
+   * Sets the maximum size of the messages read from each Client and Device.
+   * Bigger messages are dropped. It only affects the connections established
+   * after the call.
+   *
+   * @param maxFrameSize The maximum size (in bytes) of a message.
+   * @throws IllegalArgumentException if the size is not positive.
+   */
+  public void setMaxFrameSize(int maxFrameSize) throws IllegalArgumentException {
+    if (maxFrameSize <= 0) {
+      throw new IllegalArgumentException("Maximum frame size must be positive");
+    }
+
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  /**
+   * Gets the capacity of the pipes to and from each piped Java Driver.
+   *
+   * @return The capacity (in bytes) of a pipe.
+   * @see laazotea.indi.driver.INDIPipedDriver
+   */
+  public int getJavaDriverPipeSize() {
+    return javaDriverPipeSize;
+  }
+
+  /**
+   * Sets the capacity of the pipes to and from each piped Java Driver. When
+   * a pipe is full its writer waits, so it must be big enough for the
+   * messages that a Driver writes while it is being constructed (they are
+   * not read until it has been loaded). It only affects the Drivers loaded
+   * after the call.
+   *
+   * @param javaDriverPipeSize The capacity (in bytes) of a pipe (rounded up to
+   * a power of two).
+   * @throws IllegalArgumentException if the size is not positive or it is
+   * bigger than <code>INDIByteRing.MAX_CAPACITY</code>.
+   * @see laazotea.indi.driver.INDIPipedDriver
+   */
+  public void setJavaDriverPipeSize(int javaDriverPipeSize) throws IllegalArgumentException {
+    if ((javaDriverPipeSize <= 0) || (javaDriverPipeSize > INDIByteRing.MAX_CAPACITY)) {
+      throw new IllegalArgumentException("Java Driver pipe size must be positive and not bigger than " + INDIByteRing.MAX_CAPACITY);
+    }
+
+    this.javaDriverPipeSize = javaDriverPipeSize;
+  }
+
+  /**
+   * Gets the number of threads shared by the Java Drivers to parse their
+   * messages.
+   *
+   * @return The number of threads.
+   */
+  public synchronized int getDriverThreads() {
+    return driverThreads;
+  }
+
+  /**
+   * Sets the number of threads shared by the Java Drivers to parse their
+   * messages. Each Driver parses its messages in order, one at a time, so a
+   * slow Driver only keeps one of them busy. It must be called before loading
+   * the first Java Driver.
+   *
+   * @param driverThreads The number of threads.
+   * @throws IllegalArgumentException if the number is not positive.
+   * @throws IllegalStateException if a Java Driver has already been loaded.
+   */
+  public synchronized void setDriverThreads(int driverThreads) throws IllegalArgumentException, IllegalStateException {
+    if (driverThreads <= 0) {
+      throw new IllegalArgumentException("The number of driver threads must be positive");
+    }
+
+    if (driverExecutor != null) {
+      throw new IllegalStateException("The driver threads have already been started");
+    }
+
+    this.driverThreads = driverThreads;
+  }
+
+  /**
+   * Gets the executor shared by the Java Drivers to parse their messages. It
+   * is created the first time (with the factory of threads of the Server, if
+   * any).
+   *
+   * @return The executor.
+   */
+  synchronized Executor getDriverExecutor() {
+    if (driverExecutor == null) {
+      driverExecutor = Executors.newFixedThreadPool(driverThreads, getDriverThreadFactory("INDI Driver worker "));
+    }
+
+    return driverExecutor;
+  }
+
+  /**
+   * Gets the scheduler shared by the Java Drivers for their delayed tasks
+   * (throttled updates, connection timeouts). It is created the first time
+   * (with the factory of threads of the Server, if any).
+   *
+   * @return The scheduler.
+   */
+  synchronized ScheduledExecutorService getDriverScheduler() {
+    if (driverScheduler == null) {
+      ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, getDriverThreadFactory("INDI Driver timer "));
+
+      s.setRemoveOnCancelPolicy(true);
+
+      driverScheduler = s;
+    }
+
+    return driverScheduler;
+  }
+
+  /**
+   * Gets the factory of the threads shared by the Java Drivers: the one of
+   * the Server or, if there is none, one of daemon threads.
+   *
+   * @param namePrefix The prefix of the names of the daemon threads.
+   * @return The factory.
+   */
+  private ThreadFactory getDriverThreadFactory(final String namePrefix) {
+    if (threadFactory != null) {
+      return threadFactory;
+    }
+
+    return new ThreadFactory() {
+      private AtomicInteger n = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, namePrefix + n.getAndIncrement());
+
+        t.setDaemon(true);
+
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Checks if the Clients may compress their links.
+   *
+   * @return <code>true</code> if the Clients may compress their links.
+   */
+  public boolean areCompressedClientsAccepted() {
+    return compressedClientsAccepted;
+  }
+
+  /**
+   * Sets if the Clients may compress their links (see
+   * <code>INDICompression</code>). They may not by default. When accepted, a
+   * Client that does not compress its link and sends nothing gets its first
+   * messages after <code>INDICompression.NEGOTIATION_TIMEOUT</code>. It only
+   * affects the Clients connected after the call.
+   *
+   * @param accepted <code>true</code> if the Clients may compress their
+   * links.
+   */
+  public void setCompressedClientsAccepted(boolean accepted) {
+    this.compressedClientsAccepted = accepted;
+  }
+
+  /**
+   * Gets how the compression of the links with the Clients is decided.
+   *
+   * @return How the compression of the links is decided.
+   */
+  INDICompression.Mode getClientCompressionMode() {
+    return compressedClientsAccepted ? INDICompression.Mode.ACCEPTED : INDICompression.Mode.PLAIN;
+  }
+
+  /**
+   * Gets the maximum number of bytes queued for each Client.
+   *
+   * @return The maximum number of queued bytes.
+   */
+  public long getMaxOutboundQueueBytes() {
+    return maxOutboundQueueBytes;
+  }
+
+  /**
+   * Gets what is done when the queue of a Client is full.
+   *
+   * @return The overflow policy of the queues.
+   */
+  public INDIOutboundQueue.OverflowPolicy getOutboundQueuePolicy() {
+    return outboundQueuePolicy;
+  }
+
+  /**
+   * Sets the size of the queue of messages to each Client and what to do when
+   * it is full. Messages to a Client are queued and written by its own writer,
+   * so a slow Client does not delay the rest. It only affects the Clients
+   * connected after the call.
+   *
+   * @param maxBytes The maximum number of queued bytes.
+   * @param policy What to do when the queue is full.
+   * @throws IllegalArgumentException if the size is not positive or there is
+   * no policy.
+   */
+  public void setOutboundQueue(long maxBytes, INDIOutboundQueue.OverflowPolicy policy) throws IllegalArgumentException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Maximum queue size must be positive");
+    }
+
+    if (policy == null) {
+      throw new IllegalArgumentException("No overflow policy");
+    }
+
+    this.maxOutboundQueueBytes = maxBytes;
+    this.outboundQueuePolicy = policy;
+  }
+
+  /**
+   * Creates the queue of messages to a new Client.
+   *
+   * @return The new queue.
+   */
+  protected INDIOutboundQueue createOutboundQueue() {
+    return new INDIOutboundQueue(maxOutboundQueueBytes, outboundQueuePolicy);
+  }
+
   /**
    * The thread listens to the server socket and when a client connects, it is
    * added to the list of clients.
    */
   @Override
   public void run() {
+    if (reactor != null) {
+      runChannels();
+
+      return;
+    }
+
     try {
       socket = new ServerSocket(listeningPort);
     } catch (IOException e) {
@@ -155,7 +595,7 @@ public abstract class AbstractINDIServer implements Runnable {
         if (acceptClient(clientSocket)) {
           INDIClient client = new INDIClient(clientSocket, this);
 
-          clients.add(client);
+          addClient(client);
 
           connectionWithClientEstablished(client);
         } else {
@@ -170,6 +610,89 @@ public abstract class AbstractINDIServer implements Runnable {
     }
   }
 
+  /**
+   * Listens to the server channel with a selector and registers the accepted
+   * Clients in the reactor.
+   */
+  private void runChannels() {
+    try {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().bind(new InetSocketAddress(listeningPort));
+      serverChannel.configureBlocking(false);
+
+      acceptSelector = Selector.open();
+      serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      System.err.println("Could not listen on port: " + listeningPort + " (maybe busy)");
+      closeServerChannel();
+      return; // The thread will stop
+    }
+
+    System.err.println("Listening to port " + listeningPort);
+    System.err.flush();
+
+    mainThreadRunning = true;
+
+    try {
+      while (mainThreadRunning) {
+        acceptSelector.select();
+        acceptSelector.selectedKeys().clear();
+
+        SocketChannel channel;
+
+        while ((channel = serverChannel.accept()) != null) {
+          if (acceptClient(channel.socket())) {
+            try {
+              INDIClient client = new INDIClient(channel, this, reactor);
+
+              addClient(client);
+
+              connectionWithClientEstablished(client);
+            } catch (IOException e) {
+              closeChannel(channel);
+            }
+          } else {
+            closeChannel(channel);
+          }
+        }
+      }
+    } catch (IOException e) {
+    } catch (ClosedSelectorException e) {
+    }
+
+    System.err.println("Server has stopped listening to new Client connections");
+    mainThreadRunning = false;
+    closeServerChannel();
+  }
+
+  /**
+   * Closes a rejected Client channel.
+   *
+   * @param channel The channel.
+   */
+  private void closeChannel(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Closes the server channel and its selector.
+   */
+  private void closeServerChannel() {
+    try {
+      if (acceptSelector != null) {
+        acceptSelector.close();
+      }
+
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+    } catch (IOException e) {
+    }
+  }
+
   /**
    * Gets if the server is listening for new Clients to connect.
    *
@@ -183,24 +706,62 @@ public abstract class AbstractINDIServer implements Runnable {
 
   /**
    * Stops the server from listening new Clients. All connections with existing
-   * clients are also broken.
+   * clients are also broken, the Devices are destroyed and the threads of the
+   * Server (the non-blocking core and the threads shared by the Java Drivers)
+   * are stopped. If the Server is started again the Drivers must be loaded
+   * again.
    */
   protected void stopServer() {
     mainThreadRunning = false;
-    try {
-      socket.close();  // Close the socket in order to avoid accepting new connections
-    } catch (IOException e) {
+
+    if (reactor != null) {
+      closeServerChannel();  // Wakes up the selector and avoids accepting new connections
+    } else {
+      try {
+        socket.close();  // Close the socket in order to avoid accepting new connections
+      } catch (IOException e) {
+      }
     }
 
-    for (int i = 0 ; i < clients.size() ; i++) {
-      if (clients.get(i) instanceof INDIClient) {
-        ((INDIClient) clients.get(i)).disconnect();
+    ArrayList<INDIDeviceListener> list = clients;  // Disconnected Clients are removed from a new list
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      if (list.get(i) instanceof INDIClient) {
+        ((INDIClient) list.get(i)).disconnect();
       }
     }
+
+    ArrayList<INDIDevice> ds = devices;
+
+    for (int i = 0 ; i < ds.size() ; i++) {
+      ds.get(i).destroy();
+    }
+
+    synchronized (this) {
+      if (driverExecutor != null) {
+        driverExecutor.shutdown();  // The destroyed Drivers no longer ask for turns
+        driverExecutor = null;
+      }
+
+      if (driverScheduler != null) {
+        driverScheduler.shutdownNow();
+        driverScheduler = null;
+      }
+    }
+
+    INDIChannelReactor r = reactor;
+
+    if (r != null) {
+      reactor = null;
+
+      r.shutdown();
+    }
   }
 
   /**
-   * Loads all INDI for Java Drivers in a JAR file.
+   * Loads all INDI for Java Drivers in a JAR file. The Driver classes are
+   * found without loading the other classes of the file (see
+   * <code>INDIDriverIndex</code>).
    *
    * @param jarFileName The jar file from which to load Drivers.
    * @throws INDIException if there is a problem with the JAR file
@@ -210,7 +771,10 @@ public abstract class AbstractINDIServer implements Runnable {
       throw new INDIException("JAR file already loaded.");
     }
 
-    ArrayList<String> list = getClassesInJAR(jarFileName);
+    INDIDriverIndex index = INDIDriverIndex.getIndex(jarFileName);
+    ArrayList<String> list = index.getDriverClassNames();
+
+    print("Found " + list.size() + " Drivers in " + jarFileName + " in " + index.getBuildTime() + " ms" + (index.isFromServiceFile() ? " (indexed)" : " (" + index.getScannedClasses() + " classes scanned)"));
 
     File file = new File(jarFileName);
     URL url;
@@ -242,13 +806,32 @@ public abstract class AbstractINDIServer implements Runnable {
     }
   }
 
+  /**
+   * Gets the routing table, with the listeners of each Device and Property.
+   *
+   * @return The routing table.
+   */
+  protected INDIRoutingTable getRoutingTable() {
+    return routingTable;
+  }
+
+  /**
+   * Gets the latest state of the Properties of the Devices, as seen in the
+   * routed messages.
+   *
+   * @return The Property cache.
+   */
+  protected INDIPropertyCache getPropertyCache() {
+    return propertyCache;
+  }
+
   /**
    * Gets the list of loaded Devices.
    *
-   * @return The list of loaded Devices.
+   * @return A copy of the list of loaded Devices.
    */
   protected ArrayList<INDIDevice> getDevices() {
-    return devices;
+    return new ArrayList<INDIDevice>(devices);
   }
 
   /**
@@ -263,7 +846,7 @@ public abstract class AbstractINDIServer implements Runnable {
   private synchronized void loadJavaDriver(Class cls, String identifier) throws INDIException {
     INDIJavaDevice newDevice = new INDIJavaDevice(this, cls, identifier);
 
-    addDevice(newDevice);
+    addDevice(newDevice, identifier);
   }
 
   /**
@@ -295,7 +878,7 @@ public abstract class AbstractINDIServer implements Runnable {
 
     newDevice = new INDINativeDevice(this, driverPath);
 
-    addDevice(newDevice);
+    addDevice(newDevice, driverPath);
   }
 
   /**
@@ -305,7 +888,21 @@ public abstract class AbstractINDIServer implements Runnable {
    * @param port The port of the Network Driver.
    * @throws INDIException if there is any problem with the connection.
    */
-  public synchronized void loadNetworkDriver(String host, int port) throws INDIException {
+  public void loadNetworkDriver(String host, int port) throws INDIException {
+    loadNetworkDriver(host, port, false);
+  }
+
+  /**
+   * Loads a Network Driver, compressing the link with it if asked to (see
+   * <code>INDICompression</code>).
+   *
+   * @param host The host of the Network Driver.
+   * @param port The port of the Network Driver.
+   * @param compressed <code>true</code> if the link must be compressed (the
+   * other Server must accept compressed Clients).
+   * @throws INDIException if there is any problem with the connection.
+   */
+  public synchronized void loadNetworkDriver(String host, int port, boolean compressed) throws INDIException {
     String networkName = host + ":" + port;
 
     if (isAlreadyLoaded(networkName)) {
@@ -316,30 +913,25 @@ public abstract class AbstractINDIServer implements Runnable {
 
     INDINetworkDevice newDevice;
 
-    newDevice = new INDINetworkDevice(this, host, port);
+    newDevice = new INDINetworkDevice(this, host, port, compressed);
 
-    addDevice(newDevice);
+    addDevice(newDevice, networkName);
   }
 
+
   /**
    * Checks if a particular Driver is already loaded.
    *
-   * @param deviceIdentifier The device identifier.
+   * @param deviceIdentifier The identifier with which the Driver was loaded
+   * (the JAR file, the class name prefixed by <code>class+-+</code>, the
+   * path of the Native Driver or <code>host:port</code>).
    * @return
    * <code>true</code> if the Driver identified by
    * <code>deviceIdentifier</code> is already loaded.
    * <code>false</code> otherwise.
    */
   public boolean isAlreadyLoaded(String deviceIdentifier) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
-
-      if (d.isDevice(deviceIdentifier)) {
-        return true;
-      }
-    }
-
-    return false;
+    return (deviceIdentifier != null) && devicesByIdentifier.containsKey(deviceIdentifier);
   }
 
   /**
@@ -347,18 +939,14 @@ public abstract class AbstractINDIServer implements Runnable {
    * than one in the case of Java Drivers as there might be more than one in a
    * single JAR file.
    *
-   * @param deviceIdentifier The device identifier.
+   * @param deviceIdentifier The identifier with which the Devices were loaded.
    * @return A list of devices with a particular identifier.
    */
   private ArrayList<INDIDevice> getDevicesWithIdentifier(String deviceIdentifier) {
-    ArrayList<INDIDevice> found = new ArrayList<INDIDevice>();
+    ArrayList<INDIDevice> found = devicesByIdentifier.get(deviceIdentifier);
 
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
-
-      if (d.isDevice(deviceIdentifier)) {
-        found.add(d);
-      }
+    if (found == null) {
+      return new ArrayList<INDIDevice>();
     }
 
     return found;
@@ -369,10 +957,25 @@ public abstract class AbstractINDIServer implements Runnable {
    * for the properties.
    *
    * @param device The device to add.
+   * @param identifier The identifier with which it has been loaded.
    */
-  private void addDevice(INDIDevice device) {
-    devices.add(device);
-    clients.add(device);
+  private void addDevice(INDIDevice device, String identifier) {
+    synchronized (registryLock) {
+      ArrayList<INDIDevice> newDevices = new ArrayList<INDIDevice>(devices);
+      ArrayList<INDIDeviceListener> newClients = new ArrayList<INDIDeviceListener>(clients);
+      ArrayList<INDIDevice> sameIdentifier = devicesByIdentifier.get(identifier);
+
+      sameIdentifier = (sameIdentifier == null) ? new ArrayList<INDIDevice>() : new ArrayList<INDIDevice>(sameIdentifier);
+
+      newDevices.add(device);
+      newClients.add(device);
+      sameIdentifier.add(device);
+
+      devices = newDevices;
+      clients = newClients;
+      devicesByIdentifier.put(identifier, sameIdentifier);
+      identifiers.put(device, identifier);
+    }
 
     device.startReading();
 
@@ -454,8 +1057,47 @@ public abstract class AbstractINDIServer implements Runnable {
   protected void removeDevice(INDIDevice device) {
     String[] names = device.getNames();
 
-    devices.remove(device);
-    clients.remove(device);
+    synchronized (registryLock) {
+      if (!devices.contains(device)) {  // Already removed
+        return;
+      }
+
+      ArrayList<INDIDevice> newDevices = new ArrayList<INDIDevice>(devices);
+      ArrayList<INDIDeviceListener> newClients = new ArrayList<INDIDeviceListener>(clients);
+
+      newDevices.remove(device);
+      newClients.remove(device);
+
+      devices = newDevices;
+      clients = newClients;
+
+      routingTable.remove(device);
+
+      for (int i = 0 ; i < names.length ; i++) {
+        if (names[i] != null) {
+          if (devicesByName.remove(names[i], device)) {
+            reindexDeviceName(names[i], newDevices);
+          }
+        }
+      }
+
+      String identifier = identifiers.remove(device);
+      ArrayList<INDIDevice> sameIdentifier = new ArrayList<INDIDevice>(devicesByIdentifier.get(identifier));
+
+      sameIdentifier.remove(device);
+
+      if (sameIdentifier.isEmpty()) {
+        devicesByIdentifier.remove(identifier);
+      } else {
+        devicesByIdentifier.put(identifier, sameIdentifier);
+      }
+    }
+
+    for (int i = 0 ; i < names.length ; i++) {  // Without the registry lock, which a full Client queue may need
+      if (names[i] != null) {
+        propertyCache.delete(names[i], null);
+      }
+    }
 
     notifyClientsDeviceRemoved(names);
 
@@ -473,7 +1115,7 @@ public abstract class AbstractINDIServer implements Runnable {
     for (int h = 0 ; h < deviceNames.length ; h++) {
       String deviceName = deviceNames[h];
 
-      String message = "<delProperty device=\"" + deviceName + "\" />";
+      INDIEncodedMessage message = INDIEncodedMessage.encode("<delProperty device=\"" + deviceName + "\" />");
 
       ArrayList<INDIDeviceListener> list = this.getClientsListeningToDevice(deviceName);
 
@@ -490,6 +1132,8 @@ public abstract class AbstractINDIServer implements Runnable {
 
         c.sendXMLMessage(message);
       }
+
+      message.release();
     }
   }
 
@@ -500,11 +1144,74 @@ public abstract class AbstractINDIServer implements Runnable {
    * @param client The Client to remove.
    */
   protected void removeClient(INDIClient client) {
-    clients.remove(client);
+    synchronized (registryLock) {
+      if (!clients.contains(client)) {  // Already removed
+        return;
+      }
+
+      ArrayList<INDIDeviceListener> newClients = new ArrayList<INDIDeviceListener>(clients);
+
+      newClients.remove(client);
+
+      clients = newClients;
+
+      routingTable.remove(client);
+    }
 
     connectionWithClientBroken(client);
   }
 
+  /**
+   * Adds a Client to the list of Clients.
+   *
+   * @param client The Client to add.
+   */
+  private void addClient(INDIClient client) {
+    synchronized (registryLock) {
+      ArrayList<INDIDeviceListener> newClients = new ArrayList<INDIDeviceListener>(clients);
+
+      newClients.add(client);
+
+      clients = newClients;
+    }
+  }
+
+  /**
+   * Maps a device name to another Device that also has it, after the Device to
+   * which it was mapped has been removed. Must be called with the lock of the
+   * registry.
+   *
+   * @param deviceName The device name.
+   * @param remainingDevices The Devices that have not been removed.
+   */
+  private void reindexDeviceName(String deviceName, ArrayList<INDIDevice> remainingDevices) {
+    for (int i = 0 ; i < remainingDevices.size() ; i++) {
+      INDIDevice d = remainingDevices.get(i);
+
+      if (d.hasName(deviceName)) {
+        devicesByName.putIfAbsent(deviceName, d);
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Registers a new name of a Device, so it can be found by
+   * <code>getDevice</code>. Called by the Devices when they define a Property
+   * of a new Device.
+   *
+   * @param device The Device.
+   * @param deviceName The new name.
+   */
+  protected void addDeviceName(INDIDevice device, String deviceName) {
+    synchronized (registryLock) {
+      if (identifiers.containsKey(device)) {  // Not removed
+        devicesByName.putIfAbsent(deviceName, device);
+      }
+    }
+  }
+
   /**
    * Checks if a Class is subclass of INDIDriver.
    *
@@ -530,38 +1237,6 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
     return false;
   }
 
-  /**
-   * Gets a list of Strings with the name of the classes in a JAR file.
-   *
-   * @param file The JAR file.
-   * @return A list with all the names of the classes in the JAR file.
-   * @throws INDIException if there is any problem accessing to the JAR file.
-   */
-  private ArrayList<String> getClassesInJAR(String file) throws INDIException {
-
-    ArrayList<String> list = new ArrayList<String>();
-
-    try {
-      JarInputStream jarFile = new JarInputStream(new FileInputStream(file));
-      JarEntry jarEntry = jarFile.getNextJarEntry();
-      while (jarEntry != null) {
-        if (jarEntry.getName().endsWith(".class")) {
-          String n = jarEntry.getName().replace("/", ".");
-
-          n = n.substring(0, n.length() - 6);
-
-          list.add(n);
-        }
-
-        jarEntry = jarFile.getNextJarEntry();
-      }
-    } catch (IOException e) {
-      throw new INDIException("Error loading JAR file contents.");
-    }
-
-    return list;
-  }
-
   /**
    * Prints a message to the standard output.
    *
@@ -580,66 +1255,102 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * <code>deviceName</code>.
    */
   protected INDIDevice getDevice(String deviceName) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      if (devices.get(i).hasName(deviceName)) {
-        return devices.get(i);
-      }
+    if (deviceName == null) {
+      return null;
     }
 
-    return null;
+    return devicesByName.get(deviceName);
   }
 
   /**
-   * Sends a XML message to all the Devices.
+   * Sends a XML message to all the Devices. It is serialized only once.
    *
    * @param xml The message to send.
    */
   protected void sendXMLMessageToAllDevices(Element xml) {
-    for (int i = 0 ; i < devices.size() ; i++) {
-      INDIDevice d = devices.get(i);
+    INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
+    ArrayList<INDIDevice> ds = devices;
+
+
+    for (int i = 0 ; i < ds.size() ; i++) {
+      INDIDevice d = ds.get(i);
 
-      d.sendXMLMessage(xml);
+      d.sendXMLMessage(message);
     }
+
+    message.release();
   }
 
   /**
-   * Sends a XML message to all the Clients.
+   * Sends a XML message to all the Clients. It is serialized only once.
    *
    * @param xml The message to send.
    */
   protected void sendXMLMessageToAllClients(Element xml) {
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
+    INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
+    ArrayList<INDIDeviceListener> cs = clients;
+
+
+    for (int i = 0 ; i < cs.size() ; i++) {
+      INDIDeviceListener c = cs.get(i);
 
       if (c instanceof INDIClient) {
-        c.sendXMLMessage(xml);
+        c.sendXMLMessage(message);
       }
     }
+
+    message.release();
   }
 
   /**
-   * Gets a list of Clients that listen to a Property.
+   * Sends a message read as a frame (its original bytes) to all the Devices.
    *
-   * @param deviceName The name of the Device of the Property.
-   * @param propertyName The name of the Property.
-   * @return A list of Clients that listen to a Property.
+   * @param frame The message to send.
    */
-  protected ArrayList<INDIDeviceListener> getClientsListeningToProperty(String deviceName, String propertyName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
+  protected void sendXMLMessageToAllDevices(INDIFrame frame) {
+    ArrayList<INDIDevice> ds = devices;
+
+    for (int i = 0 ; i < ds.size() ; i++) {
+      INDIDevice d = ds.get(i);
+
+      d.sendXMLMessage(frame);
+    }
+  }
 
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
+  /**
+   * Sends a message read as a frame (its original bytes) to all the Clients.
+   *
+   * @param frame The message to send.
+   */
+  protected void sendXMLMessageToAllClients(INDIFrame frame) {
+    ArrayList<INDIDeviceListener> cs = clients;
+
+    for (int i = 0 ; i < cs.size() ; i++) {
+      INDIDeviceListener c = cs.get(i);
 
-      if (c.listensToProperty(deviceName, propertyName)) {
-        list.add(c);
+      if (c instanceof INDIClient) {
+        c.sendXMLMessage(frame);
       }
     }
+  }
 
-    return list;
+  /**
+   * Gets a list of Clients that listen to a Property. The list must not be
+   * modified.
+   *
+   * @param deviceName The name of the Device of the Property.
+   * @param propertyName The name of the Property.
+   * @return A list of Clients that listen to a Property.
+   */
+  protected ArrayList<INDIDeviceListener> getClientsListeningToProperty(String deviceName, String propertyName) {
+    return routingTable.getPropertyListeners(deviceName, propertyName);
   }
 
   /**
-   * Gets a list of Clients that listen to Property updates.
+   * Gets a list of Clients that listen to Property updates. The list must not
+   * be modified.
    *
    * @param deviceName The name of the Device of the Property.
    * @param propertyName The name of the Property.
@@ -647,20 +1358,19 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    * @return A list of Clients that listen to a Property.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToPropertyUpdates(String deviceName, String propertyName, boolean isBLOB) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
+    ArrayList<INDIDeviceListener> listeners = routingTable.getPropertyListeners(deviceName, propertyName);
+    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>(listeners.size());
 
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
+    for (int i = 0 ; i < listeners.size() ; i++) {
+      INDIDeviceListener c = listeners.get(i);
 
-      if (c.listensToProperty(deviceName, propertyName)) {
-        if (isBLOB) {
-          if (c.isBLOBAccepted(deviceName, propertyName))  {
-            list.add(c);
-          }
-        } else {
-          if (c.areNonBLOBsAccepted(deviceName)) {
-            list.add(c);
-          }
+      if (isBLOB) {
+        if (c.isBLOBAccepted(deviceName, propertyName))  {
+          list.add(c);
+        }
+      } else {
+        if (c.areNonBLOBsAccepted(deviceName)) {
+          list.add(c);
         }
       }
     }
@@ -669,44 +1379,26 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
   }
 
   /**
-   * Gets a list of Clients that specifically listen to a Property of a Device.
+   * Gets a list of Clients that specifically listen to a Property of a Device
+   * (but not to the whole Device). The list must not be modified.
    *
    * @param deviceName The name of the Device.
    * @return A list of Clients that specifically listen to a Property of a
    * Device.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToSingleProperties(String deviceName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToSingleProperty(deviceName)) {
-        list.add(c);
-      }
-    }
-
-    return list;
+    return routingTable.getSinglePropertyListeners(deviceName);
   }
 
   /**
-   * Gets a list of Clients that listen to a Device.
+   * Gets a list of Clients that listen to a Device. The list must not be
+   * modified.
    *
    * @param deviceName The name of the Device.
    * @return A list of Clients that specifically listen to a Device.
    */
   protected ArrayList<INDIDeviceListener> getClientsListeningToDevice(String deviceName) {
-    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>();
-
-    for (int i = 0 ; i < clients.size() ; i++) {
-      INDIDeviceListener c = clients.get(i);
-
-      if (c.listensToDevice(deviceName)) {
-        list.add(c);
-      }
-    }
-
-    return list;
+    return routingTable.getDeviceListeners(deviceName);
   }
 
   /**
@@ -786,6 +1478,116 @@ if (INDINotLoadableDriver.class.isAssignableFrom(c)) {
    */
   protected abstract void notifyClientListenersEnableBLOB(INDIClient client, Element xml);
 
+  /**
+   * Notifies Clients of a
+   * <code>defXXXVector</code> message read as a frame. The Devices and Clients read
+   * their messages as frames (a header and the original bytes) and notify
+   * them with this kind of methods. By default they parse the frame into a
+   * XML Element and call the corresponding Element method. Servers that only
+   * route messages (like <code>DefaultINDIServer</code>) may override them to
+   * forward the original bytes without parsing them (passthrough mode).
+   *
+   * @param device The Device sending the message.
+   * @param frame The message.
+   */
+  protected void notifyDeviceListenersDefXXXVector(INDIDevice device, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersDefXXXVector(device, xml);
+    }
+  }
+
+  /**
+   * Notifies Clients of a
+   * <code>setXXXVector</code> message read as a frame.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message.
+   */
+  protected void notifyDeviceListenersSetXXXVector(INDIDevice device, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersSetXXXVector(device, xml);
+    }
+  }
+
+  /**
+   * Notifies Clients of a
+   * <code>message</code> message read as a frame.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message.
+   */
+  protected void notifyDeviceListenersMessage(INDIDevice device, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersMessage(device, xml);
+    }
+  }
+
+  /**
+   * Notifies Clients of a
+   * <code>delProperty</code> message read as a frame.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message.
+   */
+  protected void notifyDeviceListenersDelProperty(INDIDevice device, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyDeviceListenersDelProperty(device, xml);
+    }
+  }
+
+  /**
+   * Notifies Devices of a
+   * <code>getProperties</code> message read as a frame.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message.
+   */
+  protected void notifyClientListenersGetProperties(INDIDeviceListener client, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyClientListenersGetProperties(client, xml);
+    }
+  }
+
+  /**
+   * Notifies Devices of a
+   * <code>newXXXVector</code> message read as a frame.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message.
+   */
+  protected void notifyClientListenersNewXXXVector(INDIClient client, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyClientListenersNewXXXVector(client, xml);
+    }
+  }
+
+  /**
+   * Notifies Devices of a
+   * <code>enableBLOB</code> message read as a frame.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message.
+   */
+  protected void notifyClientListenersEnableBLOB(INDIClient client, INDIFrame frame) {
+    Element xml = frame.toElement();
+
+    if (xml != null) {
+      notifyClientListenersEnableBLOB(client, xml);
+    }
+  }
+
   /**
    * Used to notify extending Servers that a Client connection has been broken.
    *
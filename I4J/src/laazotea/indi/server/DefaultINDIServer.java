@@ -19,6 +19,10 @@ package laazotea.indi.server;
 
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIFrame;
+import laazotea.indi.INDIMessage;
 import org.w3c.dom.Element;
 
 /**
@@ -28,6 +32,12 @@ import org.w3c.dom.Element;
  * any device that the Server loads. New Servers that do not implement specific
  * restrictions may extend this class instead of the AbstractINDIServer.
  *
+ * It routes the messages in passthrough mode: only their headers are parsed
+ * and their original bytes are forwarded unchanged. The latest state of the
+ * Properties is kept in a <code>INDIPropertyCache</code>, so the
+ * <code>getProperties</code> messages are answered by the Server and only the
+ * Properties that it does not know are asked to the Drivers.
+ *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.31, April 12, 2012
  * @see AbstractINDIServer
@@ -50,6 +60,46 @@ public class DefaultINDIServer extends AbstractINDIServer {
     super(port);
   }
 
+  /**
+   * Constructs the server with a particular port whose threads are created by
+   * a particular factory (for example of virtual threads).
+   *
+   * @param port The port to which the server will listen.
+   * @param threadFactory The factory of the threads (<code>null</code> for
+   * usual platform threads).
+   */
+  public DefaultINDIServer(int port, ThreadFactory threadFactory) {
+    super(port, threadFactory);
+  }
+
+  /**
+   * Constructs the server with a particular port and a non-blocking core with
+   * a fixed number of threads.
+   *
+   * @param port The port to which the server will listen.
+   * @param ioThreads The number of threads that read and write the
+   * connections.
+   * @param workerThreads The number of threads that route the messages.
+   */
+  public DefaultINDIServer(int port, int ioThreads, int workerThreads) {
+    super(port, ioThreads, workerThreads);
+  }
+
+  /**
+   * Constructs the server with a particular port and a non-blocking core with
+   * a fixed number of threads, all of them created by a particular factory.
+   *
+   * @param port The port to which the server will listen.
+   * @param ioThreads The number of threads that read and write the
+   * connections.
+   * @param workerThreads The number of threads that route the messages.
+   * @param threadFactory The factory of the threads (<code>null</code> for
+   * usual platform threads).
+   */
+  public DefaultINDIServer(int port, int ioThreads, int workerThreads, ThreadFactory threadFactory) {
+    super(port, ioThreads, workerThreads, threadFactory);
+  }
+
   /**
    * Sends the
    * <code>defXXXVector</code> message to the appropriate Clients.
@@ -64,11 +114,15 @@ public class DefaultINDIServer extends AbstractINDIServer {
 
     ArrayList<INDIDeviceListener> list = getClientsListeningToProperty(deviceName, propertyName);
 
+    INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(message);
     }
+
+    message.release();
   }
 
   /**
@@ -92,11 +146,15 @@ public class DefaultINDIServer extends AbstractINDIServer {
      
     ArrayList<INDIDeviceListener> list = getClientsListeningToPropertyUpdates(deviceName, propertyName, isBLOB);
 
+    INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(message);
     }
+
+    message.release();
   }
 
   /**
@@ -115,11 +173,15 @@ public class DefaultINDIServer extends AbstractINDIServer {
     } else {
       ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
 
+      INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
       for (int i = 0 ; i < list.size() ; i++) {
         INDIDeviceListener c = list.get(i);
 
-        c.sendXMLMessage(xml);
+        c.sendXMLMessage(message);
       }
+
+      message.release();
     }
   }
 
@@ -136,11 +198,15 @@ public class DefaultINDIServer extends AbstractINDIServer {
    
     ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
           
+    INDIEncodedMessage message = INDIEncodedMessage.encode(xml);
+
     for (int i = 0 ; i < list.size() ; i++) {
       INDIDeviceListener c = list.get(i);
 
-      c.sendXMLMessage(xml);
+      c.sendXMLMessage(message);
     }
+
+    message.release();
   }
 
   /**
@@ -201,6 +267,204 @@ public class DefaultINDIServer extends AbstractINDIServer {
      */
   }
 
+  /**
+   * Forwards the original bytes of a
+   * <code>defXXXVector</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyDeviceListenersDefXXXVector(INDIDevice device, INDIFrame frame) {
+    String deviceName = frame.getDevice();
+    String propertyName = frame.getName();
+
+    if ((deviceName == null) || (propertyName == null)) {
+      return;
+    }
+
+    INDIPropertyCache cache = getPropertyCache();
+    INDIEncodedMessage message = INDIEncodedMessage.copyOf(frame);
+    INDIEncodedMessage state = (frame.getMessage() == null) ? message : INDIEncodedMessage.copyWithoutMessage(frame);  // The log line is not sent again to new Clients
+
+    synchronized (cache.getLock(deviceName)) {
+      cache.define(deviceName, propertyName, state);
+    }
+
+    if (state != message) {
+      state.release();
+    }
+
+    ArrayList<INDIDeviceListener> list = getClientsListeningToProperty(deviceName, propertyName);
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(message);
+    }
+
+    message.release();
+  }
+
+  /**
+   * Forwards the original bytes of a
+   * <code>setXXXVector</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyDeviceListenersSetXXXVector(INDIDevice device, INDIFrame frame) {
+    String deviceName = frame.getDevice();
+    String propertyName = frame.getName();
+    boolean isBLOB = frame.getKind() == INDIMessage.Kind.SET_BLOB_VECTOR;
+
+    if ((deviceName == null) || (propertyName == null)) {
+      return;
+    }
+
+    INDIPropertyCache cache = getPropertyCache();
+    INDIEncodedMessage message = INDIEncodedMessage.copyOf(frame);  // Replaceable in the queues of the Clients
+
+    if (!isBLOB) {  // BLOBs are too big to be kept
+      INDIEncodedMessage state = (frame.getMessage() == null) ? message : INDIEncodedMessage.copyWithoutMessage(frame);  // The log line is not sent again to new Clients
+
+      synchronized (cache.getLock(deviceName)) {
+        cache.update(deviceName, propertyName, state);
+      }
+
+      if (state != message) {
+        state.release();
+      }
+    }
+
+    ArrayList<INDIDeviceListener> list = getClientsListeningToPropertyUpdates(deviceName, propertyName, isBLOB);
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(message);
+    }
+
+    message.release();
+  }
+
+
+
+  /**
+   * Forwards the original bytes of a
+   * <code>message</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyDeviceListenersMessage(INDIDevice device, INDIFrame frame) {
+    String deviceName = frame.getDevice();
+
+    if ((deviceName == null) || (deviceName.length() == 0)) {
+      sendXMLMessageToAllClients(frame);
+    } else {
+      ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
+
+      for (int i = 0 ; i < list.size() ; i++) {
+        INDIDeviceListener c = list.get(i);
+
+        c.sendXMLMessage(frame);
+      }
+    }
+  }
+
+  /**
+   * Forwards the original bytes of a
+   * <code>delProperty</code> message to the appropriate Clients.
+   *
+   * @param device The Device sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyDeviceListenersDelProperty(INDIDevice device, INDIFrame frame) {
+    String deviceName = frame.getDevice();
+
+    if (deviceName == null) {
+      return;
+    }
+
+    INDIPropertyCache cache = getPropertyCache();
+
+    synchronized (cache.getLock(deviceName)) {
+      cache.delete(deviceName, frame.getName());
+    }
+
+    ArrayList<INDIDeviceListener> list = getClientsListeningToDevice(deviceName);
+
+    for (int i = 0 ; i < list.size() ; i++) {
+      INDIDeviceListener c = list.get(i);
+
+      c.sendXMLMessage(frame);
+    }
+  }
+
+  /**
+   * Answers a
+   * <code>getProperties</code> message with the cached state of the
+   * Properties. Its original bytes are forwarded only to the Devices whose
+   * Properties (or the requested one) are not known yet.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyClientListenersGetProperties(INDIDeviceListener client, INDIFrame frame) {
+    String device = frame.getDevice();
+    INDIPropertyCache cache = getPropertyCache();
+
+    if (device == null) {
+      ArrayList<String> known = cache.getDeviceNames();
+
+      for (int i = 0 ; i < known.size() ; i++) {
+        cache.send(client, known.get(i), null);
+      }
+    } else {
+      cache.send(client, device, frame.getName());
+    }
+
+    // The Drivers are always asked: they may define Properties lazily or react to the request
+    INDIDevice d = (device == null) ? null : this.getDevice(device);
+
+    if (d == null) {
+      sendXMLMessageToAllDevices(frame);
+    } else {
+      d.sendXMLMessage(frame);
+    }
+  }
+
+  /**
+   * Forwards the original bytes of a
+   * <code>newXXXVector</code> message to the appropriate Devices.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyClientListenersNewXXXVector(INDIClient client, INDIFrame frame) {
+    INDIDevice d = this.getDevice(frame.getDevice());
+
+    if (d != null) {
+      d.sendXMLMessage(frame);
+    }
+  }
+
+  /**
+   * Does nothing, as the Element version.
+   *
+   * @param client The Client sending the message.
+   * @param frame The message
+   */
+  @Override
+  protected void notifyClientListenersEnableBLOB(INDIClient client, INDIFrame frame) {
+  }
+
   /**
    * Accepts all Clients.
    *
@@ -0,0 +1,485 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded pipe of bytes between a writer thread and a reader thread (like
+ * the ones between a Server and its piped Java Drivers). The bytes are kept
+ * in a ring and the positions of the writer and the reader are only advanced
+ * by their own threads, so reading and writing take no locks: a thread only
+ * parks when the ring is empty (the reader) or full (the writer), giving
+ * backpressure instead of unlimited growth.
+ *
+ * The ring has a single producer and a single consumer. Concurrent writers
+ * (for example a Driver and its subdrivers, that share their stream) are
+ * serialized by the output stream.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIByteRing {
+
+  /**
+   * The default capacity (in bytes) of a ring.
+   */
+  public static final int DEFAULT_CAPACITY = 1024 * 1024;
+  /**
+   * The maximum capacity (in bytes) of a ring.
+   */
+  public static final int MAX_CAPACITY = 1 << 30;
+  /**
+   * The bytes of the ring.
+   */
+  private final byte[] buffer;
+  /**
+   * The mask to get the index in the buffer of a position (the capacity is a
+   * power of two).
+   */
+  private final int mask;
+  /**
+   * The number of bytes written since the creation (only advanced by the
+   * writer).
+   */
+  private final AtomicLong writePosition;
+  /**
+   * The number of bytes read since the creation (only advanced by the
+   * reader).
+   */
+  private final AtomicLong readPosition;
+  /**
+   * The reader, if it is parked waiting for bytes.
+   */
+  private volatile Thread waitingReader;
+  /**
+   * The writer, if it is parked waiting for space.
+   */
+  private volatile Thread waitingWriter;
+  /**
+   * <code>true</code> if the writer has closed its stream (the remaining
+   * bytes can be read).
+   */
+  private volatile boolean outputClosed;
+  /**
+   * <code>true</code> if the reader has closed its stream (no more bytes
+   * can be written).
+   */
+  private volatile boolean inputClosed;
+  /**
+   * The maximum number of bytes that have been in the ring (only updated by
+   * the writer).
+   */
+  private volatile int highWater;
+  /**
+   * The number of times that the writer has waited for space (only updated
+   * by the writer).
+   */
+  private volatile long writerWaits;
+  /**
+   * The number of times that the reader has waited for bytes (only updated
+   * by the reader).
+   */
+  private volatile long readerWaits;
+  /**
+   * The stream to read from the ring.
+   */
+  private RingInputStream inputStream;
+  /**
+   * The stream to write to the ring.
+   */
+  private RingOutputStream outputStream;
+
+  /**
+   * Constructs a new ring.
+   *
+   * @param capacity The minimum capacity (in bytes) of the ring. It is
+   * rounded up to a power of two.
+   * @throws IllegalArgumentException if the capacity is not positive or it
+   * is bigger than 1 GiB.
+   */
+  public INDIByteRing(int capacity) throws IllegalArgumentException {
+    if ((capacity <= 0) || (capacity > MAX_CAPACITY)) {
+      throw new IllegalArgumentException("The capacity must be positive and not bigger than " + MAX_CAPACITY);
+    }
+
+    int size = Integer.highestOneBit(capacity);
+
+    if (size < capacity) {
+      size <<= 1;
+    }
+
+    buffer = new byte[size];
+    mask = size - 1;
+    writePosition = new AtomicLong(0);
+    readPosition = new AtomicLong(0);
+
+    inputStream = new RingInputStream();
+    outputStream = new RingOutputStream();
+  }
+
+  /**
+   * Gets the stream to read from the ring (only used by one thread at a
+   * time).
+   *
+   * @return The stream to read from the ring.
+   */
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  /**
+   * Gets the stream to write to the ring.
+   *
+   * @return The stream to write to the ring.
+   */
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Gets the capacity of the ring.
+   *
+   * @return The capacity (in bytes) of the ring.
+   */
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * Gets the number of bytes waiting to be read.
+   *
+   * @return The number of bytes in the ring.
+   */
+  public int getUsed() {
+    long r = readPosition.get();
+
+    return (int)(writePosition.get() - r);
+  }
+
+  /**
+   * Gets the maximum number of bytes that have been waiting to be read.
+   *
+   * @return The maximum number of bytes that have been in the ring.
+   */
+  public int getHighWater() {
+    return highWater;
+  }
+
+  /**
+   * Gets the number of times that the writer has found the ring full and has
+   * waited.
+   *
+   * @return The number of waits of the writer.
+   */
+  public long getWriterWaits() {
+    return writerWaits;
+  }
+
+  /**
+   * Gets the number of times that the reader has found the ring empty and
+   * has waited.
+   *
+   * @return The number of waits of the reader.
+   */
+  public long getReaderWaits() {
+    return readerWaits;
+  }
+
+  /**
+   * Gets the number of bytes written since the creation of the ring.
+   *
+   * @return The number of written bytes.
+   */
+  public long getWrittenBytes() {
+    return writePosition.get();
+  }
+
+  /**
+   * Writes some bytes (usually a whole message), waiting for space when the
+   * ring is full. They are written atomically: the writer waits until all
+   * of them fit (or, if they are more than the capacity, until the ring is
+   * empty) before copying them, and once the first byte is copied an
+   * interruption is only honoured after the last one, so the reader never
+   * gets a truncated message.
+   *
+   * @param b The bytes.
+   * @param off The offset of the first byte.
+   * @param len The number of bytes.
+   * @throws IOException if any of the streams is closed or the writer is
+   * interrupted before writing any byte (its interrupted status is set again
+   * if it is interrupted after that).
+   */
+  private void write(byte[] b, int off, int len) throws IOException {
+    boolean started = false;
+    boolean interrupted = false;
+
+    while (len > 0) {
+      if (outputClosed || inputClosed) {
+        throw new IOException("Pipe closed");
+      }
+
+      long w = writePosition.get();
+      int used = (int)(w - readPosition.get());
+      int free = buffer.length - used;
+      int wanted = started ? 1 : Math.min(len, buffer.length);
+
+      if (free < wanted) {
+        interrupted |= awaitSpace(w, wanted, !started);
+
+        continue;
+      }
+
+      started = true;
+
+      int n = Math.min(len, free);
+      int index = (int)(w & mask);
+      int first = Math.min(n, buffer.length - index);
+
+      System.arraycopy(b, off, buffer, index, first);
+      System.arraycopy(b, off + first, buffer, 0, n - first);
+
+      writePosition.set(w + n);
+
+      if (used + n > highWater) {
+        highWater = used + n;
+      }
+
+      Thread reader = waitingReader;
+
+      if (reader != null) {
+        LockSupport.unpark(reader);
+      }
+
+      off += n;
+      len -= n;
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Parks the writer until there is enough space in the ring (or it is
+   * closed).
+   *
+   * @param w The position of the writer.
+   * @param wanted The number of free bytes needed.
+   * @param interruptible <code>true</code> if an interruption must stop the
+   * wait (nothing of the current message has been written yet).
+   * @return <code>true</code> if the writer has been interrupted (and the
+   * wait was not interruptible).
+   * @throws InterruptedIOException if the writer is interrupted and the wait
+   * is interruptible.
+   */
+  private boolean awaitSpace(long w, int wanted, boolean interruptible) throws InterruptedIOException {
+    boolean interrupted = false;
+
+    writerWaits++;
+    waitingWriter = Thread.currentThread();
+
+    try {
+      while ((buffer.length - (w - readPosition.get()) < wanted) && !inputClosed && !outputClosed) {
+        LockSupport.park(this);
+
+        if (Thread.interrupted()) {
+          if (interruptible) {
+            throw new InterruptedIOException("Interrupted while writing to the pipe");
+          }
+
+          interrupted = true;  // The message is finished first
+        }
+      }
+    } finally {
+      waitingWriter = null;
+    }
+
+    return interrupted;
+  }
+
+  /**
+   * Reads some bytes, waiting for them when the ring is empty.
+   *
+   * @param b The buffer for the bytes.
+   * @param off The offset of the first byte in the buffer.
+   * @param len The maximum number of bytes to read.
+   * @return The number of read bytes or <code>-1</code> if the writer has
+   * closed its stream and all the bytes have been read.
+   * @throws IOException if the reader is interrupted.
+   */
+  private int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    while (true) {
+      if (inputClosed) {
+        return -1;
+      }
+
+      long r = readPosition.get();
+      int available = (int)(writePosition.get() - r);
+
+      if (available == 0) {
+        if (outputClosed) {
+          if (writePosition.get() == r) {  // The last bytes may have been written just before closing
+            return -1;
+          }
+
+          continue;
+        }
+
+        awaitBytes(r);
+
+        continue;
+      }
+
+      int n = Math.min(len, available);
+      int index = (int)(r & mask);
+      int first = Math.min(n, buffer.length - index);
+
+      System.arraycopy(buffer, index, b, off, first);
+      System.arraycopy(buffer, 0, b, off + first, n - first);
+
+      readPosition.set(r + n);
+
+      Thread writer = waitingWriter;
+
+      if (writer != null) {
+        LockSupport.unpark(writer);
+      }
+
+      return n;
+    }
+  }
+
+  /**
+   * Parks the reader until there are bytes in the ring (or it is closed).
+   *
+   * @param r The position of the reader.
+   * @throws InterruptedIOException if the reader is interrupted.
+   */
+  private void awaitBytes(long r) throws InterruptedIOException {
+    readerWaits++;
+    waitingReader = Thread.currentThread();
+
+    try {
+      while ((writePosition.get() == r) && !outputClosed && !inputClosed) {
+        LockSupport.park(this);
+
+        if (Thread.interrupted()) {
+          throw new InterruptedIOException("Interrupted while reading from the pipe");
+        }
+      }
+    } finally {
+      waitingReader = null;
+    }
+  }
+
+  /**
+   * Wakes up both threads if they are parked (after a stream is closed).
+   */
+  private void wakeUp() {
+    Thread t = waitingReader;
+
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+
+    t = waitingWriter;
+
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  /**
+   * The stream to read from the ring.
+   */
+  private class RingInputStream extends InputStream {
+
+    /**
+     * A buffer for the single read bytes.
+     */
+    private byte[] oneByte = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int n = INDIByteRing.this.read(oneByte, 0, 1);
+
+      if (n == -1) {
+        return -1;
+      }
+
+      return oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return INDIByteRing.this.read(b, off, len);
+    }
+
+    @Override
+    public int available() {
+      return inputClosed ? 0 : getUsed();
+    }
+
+    @Override
+    public void close() {
+      inputClosed = true;
+
+      wakeUp();
+    }
+  }
+
+  /**
+   * The stream to write to the ring.
+   */
+  private class RingOutputStream extends OutputStream {
+
+    /**
+     * A buffer for the single written bytes.
+     */
+    private byte[] oneByte = new byte[1];
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      oneByte[0] = (byte)b;
+
+      INDIByteRing.this.write(oneByte, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      INDIByteRing.this.write(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      outputClosed = true;
+
+      wakeUp();
+    }
+  }
+}
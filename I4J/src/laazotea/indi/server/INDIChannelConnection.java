@@ -0,0 +1,685 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import laazotea.indi.INDIBufferPool;
+import laazotea.indi.INDICompression;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIFrameBuilder;
+import laazotea.indi.INDIFrameParser;
+import laazotea.indi.INDIStreamParser;
+
+/**
+ * A non-blocking connection (with a Client or a Network Device) handled by a
+ * <code>INDIChannelReactor</code>. The read bytes are parsed in a worker
+ * thread, one read at a time, so the messages of a connection are always
+ * processed in order. Writes do not wait for the socket: the messages are
+ * queued in a <code>INDIOutboundQueue</code> and written by the I/O
+ * thread, that gathers the queued messages in a single write and, if the
+ * socket does not accept all of them, waits for it to be ready.
+ *
+ * The link may be compressed (see <code>INDICompression</code>): the read
+ * bytes are then inflated before being parsed and the gathered messages are
+ * deflated together.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIChannelConnection {
+
+  /**
+   * The size of the read buffers.
+   */
+  private static final int READ_BUFFER_SIZE = 8192;
+  /**
+   * The maximum number of messages gathered in a single write.
+   */
+  private static final int MAX_GATHERED_MESSAGES = 64;
+  /**
+   * Once this number of bytes has been gathered no more messages are added
+   * to a write.
+   */
+  private static final int MAX_GATHERED_BYTES = 65536;
+  /**
+   * The reactor.
+   */
+  private INDIChannelReactor reactor;
+  /**
+   * The I/O thread of the connection.
+   */
+  private INDIChannelReactor.IOLoop ioThread;
+  /**
+   * The channel.
+   */
+  private SocketChannel channel;
+  /**
+   * The key of the channel in the selector of the I/O thread.
+   */
+  private SelectionKey key;
+  /**
+   * The parser to which the messages are sent.
+   */
+  private INDIFrameParser parser;
+  /**
+   * The parser of the read bytes.
+   */
+  private INDIStreamParser streamParser;
+  /**
+   * The pool of the buffers.
+   */
+  private INDIBufferPool pool;
+  /**
+   * The messages waiting to be written.
+   */
+  private INDIOutboundQueue queue;
+  /**
+   * The messages being written.
+   */
+  private INDIEncodedMessage[] writing;
+  /**
+   * The bytes of the messages being written (the ones before
+   * <code>writingFirst</code> have been completely written).
+   */
+  private ByteBuffer[] writingBuffers;
+  /**
+   * The first message being written that has not been completely written.
+   */
+  private int writingFirst;
+  /**
+   * The number of messages being written.
+   */
+  private int writingCount;
+  /**
+   * The number of messages deflated in the bytes being written (compressed
+   * links).
+   */
+  private int deflatedMessages;
+  /**
+   * The number of uncompressed bytes of the messages deflated in the bytes
+   * being written (compressed links).
+   */
+  private int deflatedBytes;
+  /**
+   * The compression of the link (<code>null</code> if it is not compressed).
+   */
+  private INDICompression compression;
+  /**
+   * <code>true</code> until the first bytes are read (or the negotiation
+   * times out) if the link is compressed only if the peer starts compressing.
+   * Nothing is written meanwhile.
+   */
+  private boolean negotiating;
+  /**
+   * The time (as in <code>System.currentTimeMillis</code>) when the link is
+   * taken as plain if nothing has been read.
+   */
+  private long negotiationDeadline;
+  /**
+   * The buffer for the inflated bytes (compressed links).
+   */
+  private byte[] inflated;
+  /**
+   * <code>true</code> if the I/O thread has been asked to write.
+   */
+  private boolean writeRequested;
+  /**
+   * <code>true</code> while a read is being parsed.
+   */
+  private boolean parsing;
+  /**
+   * <code>true</code> if the connection has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * Constructs a new connection. Called by the reactor.
+   *
+   * @param reactor The reactor.
+   * @param ioThread The I/O thread of the connection.
+   * @param channel The (non-blocking) channel.
+   * @param parser The parser to which the messages are sent.
+   * @param maxFrameSize The maximum size (in bytes) of a read message.
+   * @param queue The queue of the messages waiting to be written.
+   * @param compressionMode How the compression of the link is decided.
+   */
+  INDIChannelConnection(INDIChannelReactor reactor, INDIChannelReactor.IOLoop ioThread, SocketChannel channel, INDIFrameParser parser, int maxFrameSize, INDIOutboundQueue queue, INDICompression.Mode compressionMode) {
+    this.reactor = reactor;
+    this.ioThread = ioThread;
+    this.channel = channel;
+    this.parser = parser;
+    this.queue = queue;
+
+    streamParser = new INDIStreamParser(new INDIFrameBuilder(parser), maxFrameSize);
+    pool = INDIBufferPool.getDefault();
+    writing = new INDIEncodedMessage[MAX_GATHERED_MESSAGES];
+    writingBuffers = new ByteBuffer[MAX_GATHERED_MESSAGES];
+    writingFirst = 0;
+    writingCount = 0;
+    compression = (compressionMode == INDICompression.Mode.ALWAYS) ? new INDICompression() : null;
+    negotiating = compressionMode == INDICompression.Mode.ACCEPTED;
+    negotiationDeadline = System.currentTimeMillis() + INDICompression.NEGOTIATION_TIMEOUT;
+    writeRequested = false;
+    parsing = false;
+    closed = false;
+  }
+
+  /**
+   * Gets the socket of the connection.
+   *
+   * @return The socket.
+   */
+  public Socket getSocket() {
+    return channel.socket();
+  }
+
+  /**
+   * Gets the parser of the read bytes, that keeps the counters of the dropped
+   * messages.
+   *
+   * @return The parser of the read bytes.
+   */
+  public INDIStreamParser getStreamParser() {
+    return streamParser;
+  }
+
+  /**
+   * Gets the queue of the messages waiting to be written, that keeps its depth
+   * and high-water marks.
+   *
+   * @return The queue of the messages waiting to be written.
+   */
+  public INDIOutboundQueue getQueue() {
+    return queue;
+  }
+
+  /**
+   * Gets the compression of the link, that keeps the counters of the saved
+   * bytes.
+   *
+   * @return The compression (<code>null</code> if the link is not compressed
+   * or it has not been decided yet).
+   */
+  public synchronized INDICompression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Checks if the connection has been closed.
+   *
+   * @return <code>true</code> if the connection has been closed.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Registers the channel in the selector. Called in the I/O thread.
+   */
+  void registered() {
+    try {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        key = channel.register(ioThread.getSelector(), SelectionKey.OP_READ, this);
+
+        if (negotiating) {
+          ioThread.addNegotiation(this);
+        }
+      }
+    } catch (ClosedChannelException e) {
+      close();
+    }
+  }
+
+  /**
+   * Gets the time when the link is taken as plain if nothing has been read.
+   *
+   * @return The time (as in <code>System.currentTimeMillis</code>).
+   */
+  long getNegotiationDeadline() {
+    return negotiationDeadline;
+  }
+
+  /**
+   * Takes the link as plain if nothing has been read before the deadline,
+   * and then writes the waiting messages. Called in the I/O thread.
+   *
+   * @param now The current time (as in <code>System.currentTimeMillis</code>).
+   * @return <code>true</code> if the negotiation has ended.
+   */
+  boolean endNegotiation(long now) {
+    synchronized (this) {
+      if (closed || !negotiating) {
+        return true;
+      }
+
+      if (now < negotiationDeadline) {
+        return false;
+      }
+
+      negotiating = false;
+
+      if (!writeRequested) {
+        return true;
+      }
+    }
+
+    writeReady();
+
+    return true;
+  }
+
+  /**
+   * Reads from the channel and sends the read bytes to a worker thread to be
+   * parsed. The channel is not read again until they have been parsed. Called
+   * in the I/O thread.
+   */
+  void readReady() {
+    final ByteBuffer buffer = pool.acquire(READ_BUFFER_SIZE);
+    int n;
+
+    try {
+      n = channel.read(buffer);
+    } catch (IOException e) {
+      n = -1;
+    }
+
+    if (n <= 0) {
+      pool.release(buffer);
+
+      if (n < 0) {
+        close();
+      }
+
+      return;
+    }
+
+    synchronized (this) {
+      if (closed) {
+        pool.release(buffer);
+
+        return;
+      }
+
+      parsing = true;
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    reactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        parse(buffer);
+      }
+    });
+  }
+
+  /**
+   * Parses some read bytes and resumes reading. Called in a worker thread.
+   *
+   * @param buffer The buffer with the read bytes.
+   */
+  private void parse(ByteBuffer buffer) {
+    boolean failed = false;
+
+    try {
+      if (negotiating) {
+        negotiate(buffer.get(0));
+      }
+
+      if (compression == null) {
+        streamParser.parse(buffer.array(), 0, buffer.position());
+      } else {
+        compression.setInput(buffer.array(), 0, buffer.position());
+
+        if (inflated == null) {
+          inflated = new byte[READ_BUFFER_SIZE];
+        }
+
+        int n;
+
+        while ((n = compression.inflate(inflated, 0, inflated.length)) > 0) {
+          streamParser.parse(inflated, 0, n);
+        }
+      }
+    } catch (IOException e) {
+      failed = true;
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+
+      failed = true;
+    } finally {
+      pool.release(buffer);
+    }
+
+    synchronized (this) {
+      parsing = false;
+
+      if (closed) {
+        streamParser.reset();
+
+        return;
+      }
+    }
+
+    if (failed) {
+      close();
+
+      return;
+    }
+
+    ioThread.post(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (INDIChannelConnection.this) {
+          if ((!closed) && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Decides if the link is compressed when its first byte is read, and lets
+   * the waiting messages be written. Called in a worker thread.
+   *
+   * @param firstByte The first byte read.
+   */
+  private void negotiate(byte firstByte) {
+    synchronized (this) {
+      if (!negotiating) {  // Timed out: the link is plain
+        return;
+      }
+
+      if (INDICompression.isCompressedStart(firstByte & 0xFF)) {
+        compression = new INDICompression();
+      }
+
+      negotiating = false;
+
+      if (writeRequested) {
+        ioThread.post(new Runnable() {
+          @Override
+          public void run() {
+            writeReady();
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Writes some bytes. They are copied and, if the socket does not accept all
+   * of them at once, queued.
+   *
+   * @param bytes The bytes.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   */
+  public void write(byte[] bytes, int offset, int length) {
+    send(INDIEncodedMessage.copyOf(bytes, offset, length));
+  }
+
+  /**
+   * Sends a message, taking over one of its references. It is queued and
+   * written by the I/O thread, together with the other messages queued in the
+   * meantime. If the queue is full its overflow policy is applied (the
+   * connection is closed if the policy says so).
+   *
+   * @param message The message.
+   */
+  public void send(INDIEncodedMessage message) {
+    if (isClosed()) {
+      message.release();
+
+      return;
+    }
+
+    if (!queue.offer(message)) {
+      close();
+
+      return;
+    }
+
+    synchronized (this) {
+      if (!closed) {
+        requestWrite();
+      }
+    }
+  }
+
+  /**
+   * Asks the I/O thread to write the waiting messages (if it has not already
+   * been asked). Called while holding the lock of the connection.
+   */
+  private void requestWrite() {
+    if (writeRequested) {
+      return;
+    }
+
+    writeRequested = true;
+
+    ioThread.post(new Runnable() {
+      @Override
+      public void run() {
+        writeReady();
+      }
+    });
+  }
+
+  /**
+   * Writes the waiting messages until the socket does not accept more bytes,
+   * and then waits for it to be writable again. The waiting messages are
+   * gathered, so many small messages are written with a single system call.
+   * Called in the I/O thread.
+   */
+  void writeReady() {
+    boolean failed = false;
+
+    synchronized (this) {
+      if (closed || negotiating) {
+        return;
+      }
+
+      try {
+        while (true) {
+          if (writingFirst == writingCount) {
+            if (compression == null) {
+              gather();
+            } else {
+              gatherCompressed();
+            }
+
+            if (writingCount == 0) {
+              break;
+            }
+          }
+
+          long n = channel.write(writingBuffers, writingFirst, writingCount - writingFirst);
+          int written = 0;
+
+          while ((writingFirst < writingCount) && (!writingBuffers[writingFirst].hasRemaining())) {
+            releaseWriting(writingFirst);
+
+            writingFirst++;
+            written++;
+          }
+
+          if (compression == null) {
+            queue.recordWrite(written, n);
+          } else if (written > 0) {  // The deflated messages have been written
+            queue.recordWrite(deflatedMessages, deflatedBytes);
+          } else {
+            queue.recordWrite(0, 0);
+          }
+
+          if (writingFirst < writingCount) {  // The socket is full
+            if (key != null) {
+              key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+
+            return;
+          }
+        }
+
+        writeRequested = false;
+
+        if (key != null) {
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+      } catch (IOException e) {
+        failed = true;
+      }
+    }
+
+    if (failed) {
+      close();
+    }
+  }
+
+  /**
+   * Takes the next waiting messages to be written together. Called while
+   * holding the lock of the connection, when all the messages being written
+   * have been written.
+   */
+  private void gather() {
+    int bytes = 0;
+
+    writingFirst = 0;
+    writingCount = 0;
+
+    while ((writingCount < MAX_GATHERED_MESSAGES) && (bytes < MAX_GATHERED_BYTES)) {
+      INDIEncodedMessage m = queue.poll();
+
+      if (m == null) {
+        return;
+      }
+
+      writing[writingCount] = m;
+      writingBuffers[writingCount] = ByteBuffer.wrap(m.getBytes(), 0, m.getLength());
+      writingCount++;
+      bytes += m.getLength();
+    }
+  }
+
+  /**
+   * Takes the next waiting messages and deflates them together, to be written
+   * as a single buffer. Called while holding the lock of the connection, when
+   * all the bytes being written have been written.
+   */
+  private void gatherCompressed() {
+    writingFirst = 0;
+    writingCount = 0;
+    deflatedMessages = 0;
+    deflatedBytes = 0;
+
+    while ((deflatedMessages < MAX_GATHERED_MESSAGES) && (deflatedBytes < MAX_GATHERED_BYTES)) {
+      INDIEncodedMessage m = queue.poll();
+
+      if (m == null) {
+        break;
+      }
+
+      compression.deflate(m.getBytes(), 0, m.getLength());
+
+      deflatedMessages++;
+      deflatedBytes += m.getLength();
+
+      m.release();
+    }
+
+    if (deflatedMessages > 0) {
+      writingBuffers[0] = compression.flush();
+      writingCount = 1;
+    }
+  }
+
+  /**
+   * Releases a message being written.
+   *
+   * @param i The position of the message.
+   */
+  private void releaseWriting(int i) {
+    if (writing[i] != null) {  // No message if it was deflated
+      writing[i].release();
+    }
+
+    writing[i] = null;
+    writingBuffers[i] = null;
+  }
+
+  /**
+   * Closes the connection. The parser is notified (with
+   * <code>finishReader</code>) only once, from a worker thread: the caller
+   * may hold locks (for example the one of a cached Device while sending to
+   * a full queue) that the removal of the parser from the Server also needs.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+
+      if (key != null) {
+        key.cancel();
+      }
+
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+
+      for (int i = writingFirst ; i < writingCount ; i++) {
+        releaseWriting(i);
+      }
+
+      writingFirst = 0;
+      writingCount = 0;
+
+      queue.close();
+
+      if (!parsing) {
+        streamParser.reset();
+      }
+    }
+
+    Runnable finish = new Runnable() {
+      @Override
+      public void run() {
+        parser.finishReader();
+      }
+    };
+
+    try {
+      reactor.execute(finish);
+    } catch (RejectedExecutionException e) {  // The reactor has been shut down
+      finish.run();
+    }
+  }
+}
@@ -0,0 +1,398 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import laazotea.indi.INDICompression;
+import laazotea.indi.INDIFrameParser;
+import laazotea.indi.INDIThreads;
+
+/**
+ * The non-blocking core of a Server. A small fixed set of I/O threads, each
+ * with its own <code>Selector</code>, reads and writes the sockets of all the
+ * Clients and Network Devices, and the read messages are parsed and routed by
+ * a pool of worker threads. So the number of threads does not grow with the
+ * number of connections.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ * @see INDIChannelConnection
+ */
+public class INDIChannelReactor {
+
+  /**
+   * The loops of the I/O threads.
+   */
+  private IOLoop[] ioThreads;
+  /**
+   * The threads that parse and route the read messages.
+   */
+  private ExecutorService workers;
+  /**
+   * Used to assign the connections to the I/O threads in turn.
+   */
+  private AtomicInteger nextIOThread;
+
+  /**
+   * Constructs and starts a new reactor whose threads are usual (daemon)
+   * platform threads.
+   *
+   * @param ioThreads The number of I/O threads.
+   * @param workerThreads The number of worker threads.
+   * @throws IOException if the selectors cannot be opened.
+   * @throws IllegalArgumentException if any of the numbers of threads is not
+   * positive.
+   */
+  public INDIChannelReactor(int ioThreads, int workerThreads) throws IOException, IllegalArgumentException {
+    this(ioThreads, workerThreads, null);
+  }
+
+  /**
+   * Constructs and starts a new reactor whose I/O and worker threads are
+   * created by a particular factory.
+   *
+   * @param ioThreads The number of I/O threads.
+   * @param workerThreads The number of worker threads.
+   * @param threadFactory The factory of the threads (<code>null</code> for
+   * usual daemon platform threads).
+   * @throws IOException if the selectors cannot be opened.
+   * @throws IllegalArgumentException if any of the numbers of threads is not
+   * positive.
+   */
+  public INDIChannelReactor(int ioThreads, int workerThreads, ThreadFactory threadFactory) throws IOException, IllegalArgumentException {
+    if ((ioThreads <= 0) || (workerThreads <= 0)) {
+      throw new IllegalArgumentException("The number of threads must be positive");
+    }
+
+    nextIOThread = new AtomicInteger(0);
+
+    this.ioThreads = new IOLoop[ioThreads];
+
+    for (int i = 0 ; i < ioThreads ; i++) {
+      this.ioThreads[i] = new IOLoop("INDI I/O " + i);
+    }
+
+    if (threadFactory == null) {
+      threadFactory = new ThreadFactory() {
+        private AtomicInteger n = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "INDI worker " + n.getAndIncrement());
+
+          t.setDaemon(true);
+
+          return t;
+        }
+      };
+
+      for (int i = 0 ; i < ioThreads ; i++) {
+        Thread t = new Thread(this.ioThreads[i], this.ioThreads[i].getName());
+
+        t.setDaemon(true);
+        t.start();
+      }
+    } else {
+      for (int i = 0 ; i < ioThreads ; i++) {
+        INDIThreads.start(threadFactory, this.ioThreads[i], this.ioThreads[i].getName());
+      }
+    }
+
+    workers = Executors.newFixedThreadPool(workerThreads, threadFactory);
+  }
+
+  /**
+   * Registers a connected channel. From now on the messages read from it are
+   * sent to <code>parser</code> (from a worker thread).
+   *
+   * @param channel The channel.
+   * @param parser The parser to which the read messages are sent.
+   * @param maxFrameSize The maximum size (in bytes) of a read message.
+   * @param queue The queue of the messages waiting to be written.
+   * @return The connection, to write to the channel and to close it.
+   * @throws IOException if the channel cannot be made non-blocking.
+   */
+  public INDIChannelConnection register(SocketChannel channel, INDIFrameParser parser, int maxFrameSize, INDIOutboundQueue queue) throws IOException {
+    return register(channel, parser, maxFrameSize, queue, INDICompression.Mode.PLAIN);
+  }
+
+  /**
+   * Registers a connected channel that may be compressed. From now on the
+   * messages read from it are sent to <code>parser</code> (from a worker
+   * thread).
+   *
+   * @param channel The channel.
+   * @param parser The parser to which the read messages are sent.
+   * @param maxFrameSize The maximum size (in bytes) of a read message.
+   * @param queue The queue of the messages waiting to be written.
+   * @param compressionMode How the compression of the link is decided.
+   * @return The connection, to write to the channel and to close it.
+   * @throws IOException if the channel cannot be made non-blocking.
+   */
+  public INDIChannelConnection register(SocketChannel channel, INDIFrameParser parser, int maxFrameSize, INDIOutboundQueue queue, INDICompression.Mode compressionMode) throws IOException {
+    channel.configureBlocking(false);
+
+    IOLoop t = ioThreads[(nextIOThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+
+    final INDIChannelConnection connection = new INDIChannelConnection(this, t, channel, parser, maxFrameSize, queue, compressionMode);
+
+    t.post(new Runnable() {
+      @Override
+      public void run() {
+        connection.registered();
+      }
+    });
+
+    return connection;
+  }
+
+  /**
+   * Runs a task in a worker thread.
+   *
+   * @param task The task.
+   */
+  void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  /**
+   * Stops the I/O and worker threads. The registered connections are not
+   * closed.
+   */
+  public void shutdown() {
+    for (int i = 0 ; i < ioThreads.length ; i++) {
+      ioThreads[i].shutdown();
+    }
+
+    workers.shutdown();
+  }
+
+  /**
+   * The loop of an I/O thread, that waits for its channels to be ready and
+   * reads / writes them.
+   */
+  static class IOLoop implements Runnable {
+
+    /**
+     * The name of the loop (used in the log).
+     */
+    private String name;
+    /**
+     * The selector of the channels of the thread.
+     */
+    private Selector selector;
+    /**
+     * The tasks that must run in the thread (changes of the interest sets,
+     * registrations).
+     */
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    /**
+     * The connections whose compression is being negotiated (only used in the
+     * thread).
+     */
+    private ArrayList<INDIChannelConnection> negotiations;
+    /**
+     * If <code>false</code> the thread stops.
+     */
+    private volatile boolean running;
+
+    /**
+     * Constructs a new I/O loop.
+     *
+     * @param name The name of the loop.
+     * @throws IOException if the selector cannot be opened.
+     */
+    private IOLoop(String name) throws IOException {
+      this.name = name;
+
+      selector = Selector.open();
+      tasks = new ConcurrentLinkedQueue<Runnable>();
+      negotiations = new ArrayList<INDIChannelConnection>();
+      running = true;
+    }
+
+    /**
+     * Gets the name of the loop.
+     *
+     * @return The name of the loop.
+     */
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the selector of the thread.
+     *
+     * @return The selector.
+     */
+    Selector getSelector() {
+      return selector;
+    }
+
+    /**
+     * Asks the thread to run a task.
+     *
+     * @param task The task.
+     */
+    void post(Runnable task) {
+      tasks.add(task);
+
+      selector.wakeup();
+    }
+
+    /**
+     * Waits for the negotiation of the compression of a connection to end
+     * (or time out). Called in the thread.
+     *
+     * @param c The connection.
+     */
+    void addNegotiation(INDIChannelConnection c) {
+      negotiations.add(c);
+    }
+
+    /**
+     * Gets how long the selector may wait before a negotiation times out.
+     *
+     * @return The time (in milliseconds, <code>0</code> to wait forever).
+     */
+    private long getSelectTimeout() {
+      long timeout = 0;
+      long now = System.currentTimeMillis();
+
+      for (int i = 0 ; i < negotiations.size() ; i++) {
+        long left = Math.max(1, negotiations.get(i).getNegotiationDeadline() - now);
+
+        if ((timeout == 0) || (left < timeout)) {
+          timeout = left;
+        }
+      }
+
+      return timeout;
+    }
+
+    /**
+     * Forgets the negotiations that have ended and ends the ones that have
+     * timed out.
+     */
+    private void endNegotiations() {
+      long now = System.currentTimeMillis();
+      Iterator<INDIChannelConnection> it = negotiations.iterator();
+
+      while (it.hasNext()) {
+        INDIChannelConnection c = it.next();
+
+        try {
+          if (c.endNegotiation(now)) {
+            it.remove();
+          }
+        } catch (RuntimeException e) {
+          System.err.println("I/O thread " + getName() + ": closing a connection that failed: " + e);
+
+          it.remove();
+          close(c);
+        }
+      }
+    }
+
+    /**
+     * Stops the thread.
+     */
+    private void shutdown() {
+      running = false;
+
+      selector.wakeup();
+    }
+
+    /**
+     * Closes a connection that has failed.
+     *
+     * @param c The connection.
+     */
+    private void close(INDIChannelConnection c) {
+      try {
+        c.close();
+      } catch (RuntimeException e) {
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select(getSelectTimeout());
+
+          Runnable task;
+
+          while ((task = tasks.poll()) != null) {
+            try {
+              task.run();
+            } catch (RuntimeException e) {  // A failed task must not stop the other connections
+              System.err.println("I/O thread " + getName() + ": task failed: " + e);
+            }
+          }
+
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            INDIChannelConnection c = (INDIChannelConnection)key.attachment();
+
+            it.remove();
+
+            try {
+              if (key.isValid() && key.isWritable()) {
+                c.writeReady();
+              }
+
+              if (key.isValid() && key.isReadable()) {
+                c.readReady();
+              }
+            } catch (RuntimeException e) {  // Only this connection is closed
+              System.err.println("I/O thread " + getName() + ": closing a connection that failed: " + e);
+
+              close(c);
+            }
+          }
+
+          if (!negotiations.isEmpty()) {
+            endNegotiations();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("I/O thread " + getName() + " has stopped: " + e.getMessage());
+      } catch (ClosedSelectorException e) {
+      }
+
+      try {
+        selector.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+}
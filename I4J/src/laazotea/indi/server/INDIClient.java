@@ -19,23 +19,43 @@ package laazotea.indi.server;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import laazotea.indi.Constants;
 import laazotea.indi.Constants.BLOBEnables;
-import laazotea.indi.INDIProtocolParser;
+import laazotea.indi.INDICompression;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIFrame;
+import laazotea.indi.INDIFrameBuilder;
+import laazotea.indi.INDIFrameParser;
+import laazotea.indi.INDIMessage;
 import laazotea.indi.INDIProtocolReader;
+import laazotea.indi.INDIThreads;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
- * A class to represent a Client that connects to the Server.
+ * A class to represent a Client that connects to the Server. The messages to
+ * the Client are queued in its own <code>INDIOutboundQueue</code> and written
+ * by its own writer, so a slow Client does not delay the Devices nor the rest
+ * of Clients.
+ *
+ * If the Server accepts it, a Client may compress its link (see
+ * <code>INDICompression</code>): the link is compressed if the first byte
+ * read from the Client starts a compressed stream.
  *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.31, April 12, 2012
  */
-public class INDIClient extends INDIDeviceListener implements INDIProtocolParser {
+public class INDIClient extends INDIDeviceListener implements INDIFrameParser {
+
+  /**
+   * The size of the buffer in which the writer of a blocking Client gathers
+   * the queued messages.
+   */
+  private static final int WRITE_BATCH_SIZE = 65536;
 
   /**
    * The socket to communicate with the Client.
@@ -49,6 +69,30 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
    * The reader.
    */
   private INDIProtocolReader reader;
+  /**
+   * The non-blocking connection (<code>null</code> if the Client uses a
+   * blocking socket and a reader).
+   */
+  private INDIChannelConnection connection;
+  /**
+   * The queue of the messages waiting to be written to the Client.
+   */
+  private INDIOutboundQueue queue;
+  /**
+   * The compression of the link of a blocking Client (<code>null</code> if it
+   * is not compressed).
+   */
+  private INDICompression compression;
+  /**
+   * The stream to which the writer of a blocking Client writes, once it is
+   * known if the link is compressed.
+   */
+  private OutputStream linkOutput;
+  /**
+   * <code>true</code> once it is known if the link of a blocking Client is
+   * compressed.
+   */
+  private boolean linkDecided;
 
   /**
    * Constructs a new INDIClient that connects to the server and starts
@@ -58,27 +102,109 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
    * @param server The Server to which the Client is connected.
    */
   public INDIClient(Socket socket, AbstractINDIServer server) {
+    super(server.getRoutingTable());
+
     this.socket = socket;
     this.server = server;
 
-    reader = new INDIProtocolReader(this);
-    reader.start();
+    queue = server.createOutboundQueue();
+
+    INDIThreads.start(server.getThreadFactory(), new Runnable() {
+      @Override
+      public void run() {
+        writeMessages();
+      }
+    }, "INDI Client writer " + getInetAddress());
+
+    reader = new INDIProtocolReader(this, server.getMaxFrameSize());
+    reader.start(server.getThreadFactory());
+  }
+
+  /**
+   * Constructs a new INDIClient for a non-blocking channel, that is read and
+   * written by a <code>INDIChannelReactor</code> instead of its own thread.
+   *
+   * @param channel The channel to communicate with the Client.
+   * @param server The Server to which the Client is connected.
+   * @param reactor The reactor that will handle the channel.
+   * @throws IOException if the channel cannot be registered.
+   */
+  public INDIClient(SocketChannel channel, AbstractINDIServer server, INDIChannelReactor reactor) throws IOException {
+    super(server.getRoutingTable());
+
+    this.socket = channel.socket();
+    this.server = server;
+
+    queue = server.createOutboundQueue();
+
+    synchronized (this) {  // The first messages may be answered before register returns
+      connection = reactor.register(channel, this, server.getMaxFrameSize(), queue, server.getClientCompressionMode());
+    }
+  }
+
+  /**
+   * Gets the non-blocking connection with the Client.
+   *
+   * @return The connection (<code>null</code> if the Client is read by a
+   * <code>INDIProtocolReader</code>).
+   */
+  protected INDIChannelConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Gets the queue of the messages waiting to be written to the Client, that
+   * keeps its depth and high-water marks.
+   *
+   * @return The queue of the messages to the Client.
+   */
+  public INDIOutboundQueue getOutboundQueue() {
+    return queue;
+  }
+
+  /**
+   * Gets the compression of the link with the Client, that keeps the counters
+   * of the saved bytes.
+   *
+   * @return The compression (<code>null</code> if the link is not compressed
+   * or it has not been decided yet).
+   */
+  public INDICompression getCompression() {
+    if (connection != null) {
+      return connection.getCompression();
+    }
+
+    synchronized (this) {
+      return compression;
+    }
+  }
+
+  /**
+   * Gets the reader, that keeps the counters of the dropped messages.
+   *
+   * @return The reader (<code>null</code> if it has not been started).
+   */
+  protected INDIProtocolReader getReader() {
+    return reader;
   }
 
   /**
    * Explicitly disconnects the Client.
    */
   protected void disconnect() {
-    if (socket != null) {
-      try {
-        reader.setStop(true);
+    if (connection != null) {
+      connection.close();
+    } else if ((socket != null) && (!socket.isClosed())) {
+      queue.close();
+      reader.setStop(true);
 
+      try {
         socket.shutdownInput();
-        socket.getInputStream().close();
-        socket.getOutputStream().close();
-        socket.close();
+      } catch (IOException e) {
+      }
 
-        socket = null;
+      try {
+        socket.close();  // Also unblocks the writer
       } catch (IOException e) {
       }
     }
@@ -86,6 +212,10 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
 
   @Override
   public void finishReader() {
+    if (connection == null) {  // The writer must also stop
+      queue.close();
+    }
+
     server.removeClient(this);
   }
 
@@ -98,54 +228,50 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
     return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
   }
 
+  /**
+   * Parses the messages of a XML Document. The messages read from the Client
+   * are received as frames in <code>parseFrame</code>; the Document is
+   * converted into frames.
+   *
+   * @param doc The messages to be parsed.
+   */
   @Override
   public void parseXML(Document doc) {
-    Element el = doc.getDocumentElement();
-
-    if (el.getNodeName().compareTo("INDI") != 0) {
-      return;
-    }
-
-    NodeList nodes = el.getChildNodes();
-
-    for (int i = 0 ; i < nodes.getLength() ; i++) {
-      Node n = nodes.item(i);
-
-      if (n instanceof Element) {
-        Element child = (Element) n;
-
-        String name = child.getNodeName();
+    INDIFrameBuilder.parseDocument(doc, this);
+  }
 
-        if (name.equals("getProperties")) {
-          processGetProperties(child);
-        } else if (name.equals("newTextVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newNumberVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newSwitchVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("newBLOBVector")) {
-          processNewXXXVector(child);
-        } else if (name.equals("enableBLOB")) {
-          processEnableBLOB(child);
-        }
-      }
+  /**
+   * Parses a message from the Client. Only its header is checked: the
+   * original bytes are sent to the Server to be forwarded.
+   *
+   * @param frame The message.
+   */
+  @Override
+  public void parseFrame(INDIFrame frame) {
+    INDIMessage.Kind kind = frame.getKind();
+
+    if (kind == INDIMessage.Kind.GET_PROPERTIES) {
+      processGetProperties(frame);
+    } else if (kind.isNewXXXVector()) {
+      processNewXXXVector(frame);
+    } else if (kind == INDIMessage.Kind.ENABLE_BLOB) {
+      processEnableBLOB(frame);
     }
   }
 
   /**
    * Adds the appropriate BLOB Enable rules.
-   * @param xml 
+   * @param frame 
    */
-  private void processEnableBLOB(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    if (device.length() == 0) {
+  private void processEnableBLOB(INDIFrame frame) {
+    String device = frame.getDevice();
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
+    String property = frame.getName();
 
-    String rule = xml.getTextContent();
+    String rule = frame.getText();
     BLOBEnables enable;
 
     try {
@@ -154,74 +280,257 @@ public class INDIClient extends INDIDeviceListener implements INDIProtocolParser
       return;
     }
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       if (this.listensToDevice(device)) {
         this.addBLOBEnableRule(device, enable);
-        server.notifyClientListenersEnableBLOB(this, xml);
+        server.notifyClientListenersEnableBLOB(this, frame);
       }
     } else {
       if (this.listensToProperty(device, property)) {
         this.addBLOBEnableRule(device, property, enable);
-        server.notifyClientListenersEnableBLOB(this, xml);
+        server.notifyClientListenersEnableBLOB(this, frame);
       }
     }
   }
 
-  private void processNewXXXVector(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    if (device.length() == 0) {
+  private void processNewXXXVector(INDIFrame frame) {
+    String device = frame.getDevice();
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
-    if (property.length() == 0) {
+    String property = frame.getName();
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
     if (this.listensToProperty(device, property)) {  // If this client does not listen to the property avoid changing it
-      server.notifyClientListenersNewXXXVector(this, xml);
+      server.notifyClientListenersNewXXXVector(this, frame);
     }
   }
 
-  private void processGetProperties(Element xml) {
-    String version = xml.getAttribute("version").trim();
+  private void processGetProperties(INDIFrame frame) {
+    String version = frame.getAttribute("version");
 
-    if (version.length() == 0) { // Some conditions to ignore the messages
+    if ((version == null) || (version.trim().length() == 0)) { // Some conditions to ignore the messages
       return;
     }
 
-    String device = xml.getAttribute("device").trim();
-    String property = xml.getAttribute("name").trim();
+    String device = frame.getDevice();
+    String property = frame.getName();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       setListenToAllDevices(true);
     } else {
-      if (property.length() == 0) {
+      if ((property == null) || (property.length() == 0)) {
         addDeviceToListen(device);
       } else {
         addPropertyToListen(device, property);
       }
     }
 
-    server.notifyClientListenersGetProperties(this, xml);
+    server.notifyClientListenersGetProperties(this, frame);
   }
 
+  /**
+   * Queues an already encoded message to the Client. It is not copied: the
+   * queue keeps a reference to it.
+   *
+   * @param message The message to be sent.
+   */
   @Override
-  protected void sendXMLMessage(String xml) {
-    try {
-      socket.getOutputStream().write(xml.getBytes());
-      socket.getOutputStream().flush();
-    } catch (IOException e) {
+  public void sendXMLMessage(INDIEncodedMessage message) {
+    send(message.retain());
+  }
+
+  /**
+   * Queues a message read as a frame to the Client. A
+   * <code>setNumberVector</code> or <code>setBLOBVector</code> may be replaced
+   * by a newer one while it waits in the queue.
+   *
+   * @param frame The message to be sent.
+   */
+  @Override
+  public void sendXMLMessage(INDIFrame frame) {
+    send(INDIEncodedMessage.copyOf(frame));
+  }
+
+  @Override
+  protected void sendXMLMessage(byte[] xml, int offset, int length) {
+    send(INDIEncodedMessage.copyOf(xml, offset, length));
+  }
+
+  /**
+   * Queues a message to the Client, taking over one of its references. If the
+   * queue is full and its policy says so the Client is disconnected.
+   *
+   * @param message The message to be sent.
+   */
+  private void send(INDIEncodedMessage message) {
+    INDIChannelConnection c;
+
+    synchronized (this) {
+      c = connection;
+    }
+
+    if (c != null) {
+      c.send(message);
+    } else if (!queue.offer(message)) {
+      disconnect();
+    }
+  }
+
+  /**
+   * Writes the queued messages to the socket until the queue is closed. The
+   * messages waiting in the queue are gathered in a buffer and written
+   * together, and the socket is flushed when there are no more queued
+   * messages. Run in the writer thread of a blocking Client.
+   */
+  private void writeMessages() {
+    OutputStream out = getLinkOutput();
+
+    if (out == null) {
       disconnect();
+
+      return;
+    }
+
+    byte[] batch = new byte[WRITE_BATCH_SIZE];
+
+    while (true) {
+      INDIEncodedMessage m = queue.take();
+
+      if (m == null) {
+        return;
+      }
+
+      int length = 0;
+      int count = 0;
+
+      try {
+        while (m != null) {
+          int n = m.getLength();
+
+          if ((length > 0) && (length + n > batch.length)) {
+            out.write(batch, 0, length);
+            queue.recordWrite(count, length);
+
+            length = 0;
+            count = 0;
+          }
+
+          if (n > batch.length) {  // Too big to be gathered
+            out.write(m.getBytes(), 0, n);
+            queue.recordWrite(1, n);
+          } else {
+            System.arraycopy(m.getBytes(), 0, batch, length, n);
+
+            length += n;
+            count++;
+          }
+
+          m.release();
+          m = queue.poll();
+        }
+
+        if (length > 0) {
+          out.write(batch, 0, length);
+          queue.recordWrite(count, length);
+        }
+
+        out.flush();
+      } catch (IOException e) {
+        if (m != null) {
+          m.release();
+        }
+
+        disconnect();
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Waits until it is known if the link is compressed. Run in the writer
+   * thread of a blocking Client.
+   *
+   * @return The stream to which the messages are written (<code>null</code>
+   * if there has been any problem).
+   */
+  private synchronized OutputStream getLinkOutput() {
+    while (!linkDecided) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        return null;
+      }
     }
+
+    return linkOutput;
   }
 
+  /**
+   * Gets the stream from which the messages of a blocking Client are read.
+   * If the Server accepts compressed Clients, its first byte is read to know
+   * if the link is compressed (the link is plain if nothing arrives in
+   * <code>INDICompression.NEGOTIATION_TIMEOUT</code>). Called once by the
+   * reader.
+   *
+   * @return The stream from which the messages are read.
+   */
   @Override
   public InputStream getInputStream() {
+    if (connection != null) {  // Read by the reactor
+      return null;
+    }
+
+    InputStream in = null;
+    OutputStream out = null;
+    INDICompression c = null;
+
     try {
-      return socket.getInputStream();
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+
+      if (server.getClientCompressionMode() != INDICompression.Mode.PLAIN) {
+        PushbackInputStream p = new PushbackInputStream(in);
+        int b;
+
+        socket.setSoTimeout(INDICompression.NEGOTIATION_TIMEOUT);
+
+        try {
+          b = p.read();
+        } catch (SocketTimeoutException e) {  // A plain Client waiting for the Server
+          b = -1;
+        }
+
+        socket.setSoTimeout(0);
+
+        if (b != -1) {
+          p.unread(b);
+        }
+
+        in = p;
+
+        if (INDICompression.isCompressedStart(b)) {
+          c = new INDICompression();
+          in = c.wrap(in);
+          out = c.wrap(out);
+        }
+      }
     } catch (IOException e) {
-      return null;
+      out = null;
     }
+
+    synchronized (this) {
+      compression = c;
+      linkOutput = out;
+      linkDecided = true;
+
+      notifyAll();
+    }
+
+    return in;
   }
 }
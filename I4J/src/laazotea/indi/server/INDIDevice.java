@@ -20,14 +20,13 @@ package laazotea.indi.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import laazotea.indi.Constants;
 import laazotea.indi.INDIException;
-import laazotea.indi.INDIProtocolParser;
+import laazotea.indi.INDIFrame;
+import laazotea.indi.INDIFrameBuilder;
+import laazotea.indi.INDIFrameParser;
+import laazotea.indi.INDIMessage;
 import laazotea.indi.INDIProtocolReader;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * A class that represents a generic INDI Device to which the server connects
@@ -36,7 +35,7 @@ import org.w3c.dom.NodeList;
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, January 13, 2013
  */
-public abstract class INDIDevice extends INDIDeviceListener implements INDIProtocolParser {
+public abstract class INDIDevice extends INDIDeviceListener implements INDIFrameParser {
 
   /**
    * The Server that listens to this Device
@@ -56,6 +55,8 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
    * Device.
    */
   protected INDIDevice(AbstractINDIServer server) throws INDIException {
+    super(server.getRoutingTable());
+
     this.server = server;
   }
 
@@ -64,74 +65,78 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
    * implementations.
    */
   protected void startReading() {
-    reader = new INDIProtocolReader(this);
-    reader.start();
+    reader = new INDIProtocolReader(this, server.getMaxFrameSize());
+    reader.start(server.getThreadFactory());
+  }
+
+  /**
+   * Gets the Server that listens to this Device.
+   *
+   * @return The Server that listens to this Device.
+   */
+  protected AbstractINDIServer getServer() {
+    return server;
+  }
+
+  /**
+   * Gets the reader, that keeps the counters of the dropped messages.
+   *
+   * @return The reader (<code>null</code> if it has not been started).
+   */
+  protected INDIProtocolReader getReader() {
+    return reader;
   }
 
+  /**
+   * Parses the messages of a XML Document. The messages read from the Device
+   * are received as frames in <code>parseFrame</code>; the Document is
+   * converted into frames.
+   *
+   * @param doc The messages to be parsed.
+   */
   @Override
   public void parseXML(Document doc) {
-    Element el = doc.getDocumentElement();
-
-    if (el.getNodeName().compareTo("INDI") != 0) {
-      return;
-    }
+    INDIFrameBuilder.parseDocument(doc, this);
+  }
 
-    NodeList nodes = el.getChildNodes();
-
-    for (int i = 0; i < nodes.getLength(); i++) {
-      Node n = nodes.item(i);
-
-      if (n instanceof Element) {
-        Element child = (Element) n;
-
-        String nodeName = child.getNodeName();
-        
-        if (nodeName.equals("getProperties")) {
-          processGetProperties(child);
-        } else if (nodeName.equals("defTextVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defNumberVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defSwitchVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defLightVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("defBLOBVector")) {
-          checkName(child);
-          processDefXXXVector(child);
-        } else if (nodeName.equals("setTextVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setNumberVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setSwitchVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setLightVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("setBLOBVector")) {
-          processSetXXXVector(child);
-        } else if (nodeName.equals("message")) {
-          processMessage(child);
-        } else if (nodeName.equals("delProperty")) {
-          processDelProperty(child);
-        }
-      }
+  /**
+   * Parses a message from the Device. Only its header is checked: the
+   * original bytes are sent to the Server to be forwarded.
+   *
+   * @param frame The message.
+   */
+  @Override
+  public void parseFrame(INDIFrame frame) {
+    INDIMessage.Kind kind = frame.getKind();
+
+    if (kind == INDIMessage.Kind.GET_PROPERTIES) {
+      processGetProperties(frame);
+    } else if (kind.isDefXXXVector()) {
+      checkName(frame);
+      processDefXXXVector(frame);
+    } else if (kind.isSetXXXVector()) {
+      processSetXXXVector(frame);
+    } else if (kind == INDIMessage.Kind.MESSAGE) {
+      processMessage(frame);
+    } else if (kind == INDIMessage.Kind.DEL_PROPERTY) {
+      processDelProperty(frame);
     }
   }
 
   /**
-   * Checks the name in a XML element to detect possible new names in the Driver (specially for multiple possible devices, like the Network one).
+   * Checks the name in a message to detect possible new names in the Driver (specially for multiple possible devices, like the Network one).
    *
-   * @param elem The XML element from which to extract the name of the Device.
+   * @param frame The message from which to extract the name of the Device.
    */
-  private void checkName(Element elem) {
-    String newName = elem.getAttribute("device").trim();
+  private void checkName(INDIFrame frame) {
+    String newName = frame.getDevice();
 
-    if (!(newName.length() == 0)) {
+    if ((newName != null) && (newName.length() != 0) && (!hasName(newName))) {
       dealWithPossibleNewDeviceName(newName);
+
+      if (hasName(newName)) {
+        server.addDeviceName(this, newName);
+      }
     }
   }
 
@@ -157,106 +162,104 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
   
   /**
    * Processes the
-   * <code>getProperties</code> XML message.
+   * <code>getProperties</code> message.
    *
-   * @param xml The
-   * <code>getProperties</code> XML message
+   * @param frame The
+   * <code>getProperties</code> message
    */
-  private void processGetProperties(Element xml) {
-    String device = xml.getAttribute("device").trim();
-    String property = xml.getAttribute("name").trim();
+  private void processGetProperties(INDIFrame frame) {
+    String device = frame.getDevice();
+    String property = frame.getName();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       setListenToAllDevices(true);
     } else {
-      if (property.length() == 0) {
+      if ((property == null) || (property.length() == 0)) {
         addDeviceToListen(device);
       } else {
         addPropertyToListen(device, property);
       }
     }
 
-    server.notifyClientListenersGetProperties(this, xml);
+    server.notifyClientListenersGetProperties(this, frame);
   }
 
   /**
    * Processes the
-   * <code>defXXXVector</code> XML message.
+   * <code>defXXXVector</code> message.
    *
-   * @param xml The
-   * <code>defXXXVector</code> XML message
+   * @param frame The
+   * <code>defXXXVector</code> message
    */
-  private void processDefXXXVector(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processDefXXXVector(INDIFrame frame) {
+    String device = frame.getDevice();
 
-    if (device.length() == 0) {
+    if ((device == null) || (device.length() == 0)) {
       return;
     }
     
-    String property = xml.getAttribute("name").trim();
+    String property = frame.getName();
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
-    String state = xml.getAttribute("state").trim();
-
-    if (!Constants.isValidPropertyState(state)) {
+    if (frame.getState() == null) {
       return;
     }
 
-    server.notifyDeviceListenersDefXXXVector(this, xml);
+    server.notifyDeviceListenersDefXXXVector(this, frame);
   }
 
   /**
    * Processes the
-   * <code>setXXXVector</code> XML message.
+   * <code>setXXXVector</code> message.
    *
-   * @param xml The
-   * <code>setXXXVector</code> XML message
+   * @param frame The
+   * <code>setXXXVector</code> message
    */
-  private void processSetXXXVector(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processSetXXXVector(INDIFrame frame) {
+    String device = frame.getDevice();
 
-    if (!hasName(device)) { // Some conditions to ignore the messages
+    if ((device == null) || (!hasName(device))) { // Some conditions to ignore the messages
       return;
     }
 
-    String property = xml.getAttribute("name").trim();
+    String property = frame.getName();
 
-    if (property.length() == 0) {
+    if ((property == null) || (property.length() == 0)) {
       return;
     }
 
-    server.notifyDeviceListenersSetXXXVector(this, xml);
+    server.notifyDeviceListenersSetXXXVector(this, frame);
   }
 
   /**
    * Processes the
-   * <code>message</code> XML message.
+   * <code>message</code> message.
    *
-   * @param xml The
-   * <code>message</code> XML message
+   * @param frame The
+   * <code>message</code> message
    */
-  private void processMessage(Element xml) {
-    server.notifyDeviceListenersMessage(this, xml);
+  private void processMessage(INDIFrame frame) {
+    server.notifyDeviceListenersMessage(this, frame);
   }
 
   /**
    * Processes the
-   * <code>delProperty</code> XML message.
+   * <code>delProperty</code> message.
    *
-   * @param xml The
-   * <code>delProperty</code> XML message
+   * @param frame The
+   * <code>delProperty</code> message
    */
-  private void processDelProperty(Element xml) {
-    String device = xml.getAttribute("device");
+  private void processDelProperty(INDIFrame frame) {
+    String device = frame.getDevice();
 
-    if (!hasName(device)) { // Some conditions to ignore the messages
+    if ((device == null) || (!hasName(device))) { // Some conditions to ignore the messages
       return;
     }
 
-    server.notifyDeviceListenersDelProperty(this, xml);
+    server.notifyDeviceListenersDelProperty(this, frame);
   }
 
   /**
@@ -265,7 +268,9 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
   public void destroy() {
     isBeingDestroyed();
     
-    reader.setStop(true);
+    if (reader != null) {
+      reader.setStop(true);
+    }
 
     closeConnections();
   }
@@ -281,10 +286,9 @@ public abstract class INDIDevice extends INDIDeviceListener implements INDIProto
   public abstract void closeConnections();
 
   @Override
-  protected void sendXMLMessage(String xml) {
-//    System.err.println(xml);
+  protected void sendXMLMessage(byte[] xml, int offset, int length) {
     try {
-      getOutputStream().write(xml.getBytes());
+      getOutputStream().write(xml, offset, length);
       getOutputStream().flush();
     } catch (IOException e) {
       destroy();
@@ -17,9 +17,14 @@
  */
 package laazotea.indi.server;
 
-import java.util.ArrayList;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import laazotea.indi.Constants.BLOBEnables;
-import laazotea.indi.XMLToString;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIFrame;
+import laazotea.indi.INDIXMLWriter;
 import org.w3c.dom.Element;
 
 /**
@@ -32,33 +37,65 @@ import org.w3c.dom.Element;
  */
 public abstract class INDIDeviceListener {
 
+  /**
+   * The charset of the INDI streams.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   /**
    * Determines if the object listens to all devices.
    */
-  private boolean listenToAllDevices;
+  private volatile boolean listenToAllDevices;
+  /**
+   * The names of the devices that are listened.
+   */
+  private Set<String> devicesToListen;
+  /**
+   * The names of the properties that are listened, by the name of their
+   * device.
+   */
+  private ConcurrentHashMap<String, Set<String>> propertiesToListen;
   /**
-   * A list of devices that are listened.
+   * The BLOB Enable rules of whole devices, by device name.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> devicesToListen;
+  private ConcurrentHashMap<String, BLOBEnables> deviceBLOBEnableRules;
   /**
-   * A list of properties that are listened.
+   * The BLOB Enable rules of particular properties, by device name and
+   * property name.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> propertiesToListen;
+  private ConcurrentHashMap<String, ConcurrentHashMap<String, BLOBEnables>> propertyBLOBEnableRules;
   /**
-   * A list of BLOBEnable rules
+   * The routing table of the Server, that is kept up to date with what the
+   * listener listens to.
    */
-  private ArrayList<DevicePropertyBLOBEnableTuple> BLOBEnableRules;
+  private INDIRoutingTable routingTable;
+  /**
+   * <code>true</code> if the listener has been removed from the routing
+   * table. Guarded by the routing table.
+   */
+  private boolean removedFromRoutingTable;
+  /**
+   * The writer used to serialize the XML messages sent to the listener.
+   */
+  private INDIXMLWriter writer;
 
   /**
    * Constructs a new
    * <code>INDIDeviceListener</code>.
+   *
+   * @param routingTable The routing table of the Server.
    */
-  protected INDIDeviceListener() {
+  protected INDIDeviceListener(INDIRoutingTable routingTable) {
+    this.routingTable = routingTable;
+
     listenToAllDevices = false;
 
-    devicesToListen = new ArrayList<DevicePropertyBLOBEnableTuple>();
-    propertiesToListen = new ArrayList<DevicePropertyBLOBEnableTuple>();
-    BLOBEnableRules = new ArrayList<DevicePropertyBLOBEnableTuple>();
+    devicesToListen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    propertiesToListen = new ConcurrentHashMap<String, Set<String>>();
+    deviceBLOBEnableRules = new ConcurrentHashMap<String, BLOBEnables>();
+    propertyBLOBEnableRules = new ConcurrentHashMap<String, ConcurrentHashMap<String, BLOBEnables>>();
+    removedFromRoutingTable = false;
+    writer = new INDIXMLWriter();
   }
 
   /**
@@ -68,13 +105,7 @@ public abstract class INDIDeviceListener {
    * @param enable The rule
    */
   protected void addBLOBEnableRule(String deviceName, BLOBEnables enable) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName);
-
-    if (aux != null) {
-      BLOBEnableRules.remove(aux);
-    }
-
-    BLOBEnableRules.add(new DevicePropertyBLOBEnableTuple(deviceName, enable));
+    deviceBLOBEnableRules.put(deviceName, enable);
   }
 
   /**
@@ -85,13 +116,19 @@ public abstract class INDIDeviceListener {
    * @param enable The rule
    */
   protected void addBLOBEnableRule(String deviceName, String propertyName, BLOBEnables enable) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName, propertyName);
+    ConcurrentHashMap<String, BLOBEnables> rules = propertyBLOBEnableRules.get(deviceName);
+
+    if (rules == null) {
+      rules = new ConcurrentHashMap<String, BLOBEnables>();
 
-    if (aux != null) {
-      BLOBEnableRules.remove(aux);
+      ConcurrentHashMap<String, BLOBEnables> previous = propertyBLOBEnableRules.putIfAbsent(deviceName, rules);
+
+      if (previous != null) {
+        rules = previous;
+      }
     }
 
-    BLOBEnableRules.add(new DevicePropertyBLOBEnableTuple(deviceName, propertyName, enable));
+    rules.put(propertyName, enable);
   }
 
   /**
@@ -100,19 +137,19 @@ public abstract class INDIDeviceListener {
    * @return <code>true</code> if non BLOBs are accepted. <code>false</code> otherwise.
    */
   protected boolean areNonBLOBsAccepted(String deviceName) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName);
-    
-    if (aux == null) {
-      return true; 
+    BLOBEnables enable = deviceBLOBEnableRules.get(deviceName);
+
+    if (enable == null) {
+      return true;
     }
-    
-    if (aux.getBLOBEnable() == BLOBEnables.ONLY) {
-      return false; 
+
+    if (enable == BLOBEnables.ONLY) {
+      return false;
     }
-    
+
     return true;
   }
-  
+
   /**
    * Gets information about if BLOB updates should be sended according to the BLOB Enable rules.
    * @param deviceName The Device name
@@ -120,29 +157,30 @@ public abstract class INDIDeviceListener {
    * @return <code>true</code> if the BLOB is accepted. <code>false</code> otherwise.
    */
   protected boolean isBLOBAccepted(String deviceName, String propertyName) {
-    DevicePropertyBLOBEnableTuple aux = getBLOBEnableRule(deviceName, propertyName);
-    
-    if (aux != null) {
-      if (aux.getBLOBEnable() == BLOBEnables.NEVER) {
-        return false; 
+    ConcurrentHashMap<String, BLOBEnables> rules = propertyBLOBEnableRules.get(deviceName);
+    BLOBEnables enable = (rules == null) ? null : rules.get(propertyName);
+
+    if (enable != null) {
+      if (enable == BLOBEnables.NEVER) {
+        return false;
       } else {
-        return true; 
+        return true;
       }
     }
-    
-    aux = getBLOBEnableRule(deviceName);
-    
-    if (aux == null) {
+
+    enable = deviceBLOBEnableRules.get(deviceName);
+
+    if (enable == null) {
       return false;
     }
-    
-    if (aux.getBLOBEnable() == BLOBEnables.NEVER) {
-      return false; 
+
+    if (enable == BLOBEnables.NEVER) {
+      return false;
     }
-    
+
     return true;
   }
-  
+
   /**
    *
    * @return
@@ -159,7 +197,9 @@ public abstract class INDIDeviceListener {
    * @param deviceName The Device name to be listened.
    */
   protected void addDeviceToListen(String deviceName) {
-    devicesToListen.add(new DevicePropertyBLOBEnableTuple(deviceName));
+    devicesToListen.add(deviceName);
+
+    routingTable.addDeviceListener(deviceName, this);
   }
 
   /**
@@ -169,45 +209,78 @@ public abstract class INDIDeviceListener {
    * @param propertyName The Property name to be listened.
    */
   protected void addPropertyToListen(String deviceName, String propertyName) {
-    propertiesToListen.add(new DevicePropertyBLOBEnableTuple(deviceName, propertyName));
+    Set<String> properties = propertiesToListen.get(deviceName);
+
+    if (properties == null) {
+      properties = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+      Set<String> previous = propertiesToListen.putIfAbsent(deviceName, properties);
+
+      if (previous != null) {
+        properties = previous;
+      }
+    }
+
+    properties.add(propertyName);
+
+    routingTable.addPropertyListener(deviceName, propertyName, this);
   }
 
   /**
-   * Gets the BLOB Enable rule for a Property (if it exists).
+   * Sets the listenToAllDevices flag.
    *
-   * @param deviceName The Device name.
-   * @param propertyName The Property name.
-   * @return The BLOB Enable rule.
+   * @param listenToAllDevices The new value of the flag.
    */
-  private DevicePropertyBLOBEnableTuple getBLOBEnableRule(String deviceName, String propertyName) {
-    for (int i = 0 ; i < BLOBEnableRules.size() ; i++) {
-      DevicePropertyBLOBEnableTuple aux = BLOBEnableRules.get(i);
+  protected void setListenToAllDevices(boolean listenToAllDevices) {
+    this.listenToAllDevices = listenToAllDevices;
 
-      if (aux.isProperty(deviceName, propertyName)) {
-        return aux;
-      }
+    if (listenToAllDevices) {
+      routingTable.addAllDevicesListener(this);
     }
+  }
+
+  /**
+   * Gets the names of the devices that are listened.
+   *
+   * @return The names of the devices that are listened.
+   */
+  Set<String> getDevicesToListen() {
+    return devicesToListen;
+  }
 
-    return null;
+  /**
+   * Gets the names of the devices some of whose properties are listened.
+   *
+   * @return The names of the devices.
+   */
+  Set<String> getDevicesWithPropertiesToListen() {
+    return propertiesToListen.keySet();
   }
 
   /**
-   * Gets the BLOB Enable rule for a Device (if it exists).
+   * Gets the names of the properties of a device that are listened.
    *
    * @param deviceName The Device name.
-   * @return The BLOB Enable rule.
+   * @return The names of the properties (<code>null</code> if none).
    */
-  private DevicePropertyBLOBEnableTuple getBLOBEnableRule(String deviceName) {
-    return getBLOBEnableRule(deviceName, null);
+  Set<String> getPropertiesToListen(String deviceName) {
+    return propertiesToListen.get(deviceName);
   }
 
   /**
-   * Sets the listenToAllDevices flag.
+   * Checks if the listener has been removed from the routing table.
    *
-   * @param listenToAllDevices The new value of the flag.
+   * @return <code>true</code> if it has been removed.
    */
-  protected void setListenToAllDevices(boolean listenToAllDevices) {
-    this.listenToAllDevices = listenToAllDevices;
+  boolean isRemovedFromRoutingTable() {
+    return removedFromRoutingTable;
+  }
+
+  /**
+   * Marks the listener as removed from the routing table.
+   */
+  void setRemovedFromRoutingTable() {
+    removedFromRoutingTable = true;
   }
 
   /**
@@ -223,31 +296,13 @@ public abstract class INDIDeviceListener {
       return true;
     }
 
-    if (listensToParticularDevice(deviceName)) {
+    if ((deviceName != null) && devicesToListen.contains(deviceName)) {
       return true;
     }
 
     return false;
   }
 
-  /**
-   * Checks if it is specifically listening to a particular Device.
-   *
-   * @param deviceName The Device name.
-   * @return
-   * <code>true</code> if the listener specifically listens to the Device.
-   * <code>false</code> otherwise.
-   */
-  private boolean listensToParticularDevice(String deviceName) {
-    for (int i = 0 ; i < devicesToListen.size() ; i++) {
-      if (devicesToListen.get(i).isDevice(deviceName)) {
-        return true;
-      }
-    }
-
-    return false;
-  }
-
   /**
    * Determines if the listener listens to a Property.
    *
@@ -262,28 +317,14 @@ public abstract class INDIDeviceListener {
       return true;
     }
 
-    if (listensToParticularProperty(deviceName, propertyName)) {
-      return true;
+    if ((deviceName == null) || (propertyName == null)) {
+      return false;
     }
 
-    return false;
-  }
+    Set<String> properties = propertiesToListen.get(deviceName);
 
-  /**
-   * Checks if it is specifically listening to a particular Property of a
-   * Device.
-   *
-   * @param deviceName The Device name.
-   * @return
-   * <code>true</code> if the listener specifically listens to the Property of a
-   * Device.
-   * <code>false</code> otherwise.
-   */
-  private boolean listensToParticularProperty(String deviceName, String propertyName) {
-    for (int i = 0 ; i < propertiesToListen.size() ; i++) {
-      if (propertiesToListen.get(i).isProperty(deviceName, propertyName)) {
-        return true;
-      }
+    if ((properties != null) && properties.contains(propertyName)) {
+      return true;
     }
 
     return false;
@@ -300,24 +341,47 @@ public abstract class INDIDeviceListener {
    * <code>false</code> otherwise.
    */
   protected boolean listensToSingleProperty(String deviceName) {
-    for (int i = 0 ; i < propertiesToListen.size() ; i++) {
-      if (propertiesToListen.get(i).isDevice(deviceName)) {
-        return true;
-      }
-    }
+    Set<String> properties = (deviceName == null) ? null : propertiesToListen.get(deviceName);
 
-    return false;
+    return (properties != null) && (!properties.isEmpty());
   }
 
   /**
-   * Sends a XML message to the listener.
+   * Sends a XML message to the listener. It is serialized with the
+   * listener's own <code>INDIXMLWriter</code>.
    *
    * @param xml The message to be sent.
    */
-  public void sendXMLMessage(Element xml) {
-    String message = XMLToString.transform(xml);
+  public synchronized void sendXMLMessage(Element xml) {
+    writer.reset();
+    writer.write(xml);
+
+    sendXMLMessage(writer.getBuffer(), 0, writer.getLength());
+  }
+
+  /**
+   * Sends an already encoded message to the listener.
+   *
+   * @param message The message to be sent.
+   */
+  public synchronized void sendXMLMessage(INDIEncodedMessage message) {
+    message.retain();
 
-    sendXMLMessage(message);
+    try {
+      sendXMLMessage(message.getBytes(), 0, message.getLength());
+    } finally {
+      message.release();
+    }
+  }
+
+  /**
+   * Sends a message read as a frame to the listener. Its original bytes are
+   * sent unchanged.
+   *
+   * @param frame The message to be sent.
+   */
+  public synchronized void sendXMLMessage(INDIFrame frame) {
+    sendXMLMessage(frame.getBuffer(), frame.getOffset(), frame.getLength());
   }
 
   /**
@@ -325,5 +389,19 @@ public abstract class INDIDeviceListener {
    *
    * @param xml The string to be sent.
    */
-  protected abstract void sendXMLMessage(String xml);
+  protected synchronized void sendXMLMessage(String xml) {
+    byte[] bytes = xml.getBytes(UTF8);
+
+    sendXMLMessage(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Sends some bytes (usually containing some UTF-8 encoded XML) to the
+   * listener.
+   *
+   * @param xml The buffer with the bytes to be sent.
+   * @param offset The offset of the first byte.
+   * @param length The number of bytes.
+   */
+  protected abstract void sendXMLMessage(byte[] xml, int offset, int length);
 }
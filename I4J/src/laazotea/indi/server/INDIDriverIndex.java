@@ -0,0 +1,443 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import laazotea.indi.INDIException;
+import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDINotLoadableDriver;
+
+/**
+ * The names of the Driver classes in a JAR file, found without loading any
+ * class of the file. If the JAR has a <code>ServiceLoader</code> like index
+ * (<code>META-INF/services/laazotea.indi.driver.INDIDriver</code>, with a class
+ * name per line) it is used. Otherwise the headers of the class files are
+ * read to know their superclasses and interfaces, and the classes that
+ * inherit from <code>INDIDriver</code> (and are not abstract nor
+ * <code>INDINotLoadableDriver</code>s) are selected.
+ *
+ * The indexes are cached while the JAR file does not change.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIDriverIndex {
+
+  /**
+   * The name of the index of Drivers in a JAR file.
+   */
+  public static final String SERVICE_FILE = "META-INF/services/" + INDIDriver.class.getName();
+  /**
+   * The magic number of the class files.
+   */
+  private static final int CLASS_MAGIC = 0xCAFEBABE;
+  /**
+   * The size of the buffer used to read the headers of the class files.
+   */
+  private static final int CLASS_BUFFER_SIZE = 2048;
+  /**
+   * The access flags of the classes that cannot be instantiated (interface,
+   * abstract).
+   */
+  private static final int NOT_INSTANTIABLE = 0x0200 | 0x0400;
+  /**
+   * The cached indexes, by path of the JAR file.
+   */
+  private static final ConcurrentHashMap<String, INDIDriverIndex> CACHE = new ConcurrentHashMap<String, INDIDriverIndex>();
+  /**
+   * The names of the Driver classes.
+   */
+  private ArrayList<String> driverClassNames;
+  /**
+   * <code>true</code> if the names have been read from the index of the JAR.
+   */
+  private boolean fromServiceFile;
+  /**
+   * The number of class files whose header has been read.
+   */
+  private int scannedClasses;
+  /**
+   * The time (in milliseconds) spent building the index.
+   */
+  private long buildTime;
+  /**
+   * The length of the JAR file when the index was built.
+   */
+  private long fileLength;
+  /**
+   * The modification time of the JAR file when the index was built.
+   */
+  private long fileModified;
+
+  /**
+   * Constructs an empty index.
+   */
+  private INDIDriverIndex() {
+    driverClassNames = new ArrayList<String>();
+  }
+
+  /**
+   * Gets the index of the Drivers in a JAR file (from the cache if the file
+   * has not changed).
+   *
+   * @param jarFileName The name of the JAR file.
+   * @return The index.
+   * @throws INDIException if there is any problem reading the JAR file.
+   */
+  public static INDIDriverIndex getIndex(String jarFileName) throws INDIException {
+    File file = new File(jarFileName);
+    String path = file.getAbsolutePath();
+    INDIDriverIndex index = CACHE.get(path);
+
+    if ((index != null) && (index.fileLength == file.length()) && (index.fileModified == file.lastModified())) {
+      return index;
+    }
+
+    index = new INDIDriverIndex();
+    index.fileLength = file.length();
+    index.fileModified = file.lastModified();
+
+    long start = System.nanoTime();
+
+    try {
+      JarFile jar = new JarFile(file);
+
+      try {
+        JarEntry services = jar.getJarEntry(SERVICE_FILE);
+
+        if (services != null) {
+          index.readServiceFile(jar.getInputStream(services));
+        } else {
+          index.scanClasses(jar);
+        }
+      } finally {
+        jar.close();
+      }
+    } catch (IOException e) {
+      throw new INDIException("Error loading JAR file contents.");
+    }
+
+    index.buildTime = (System.nanoTime() - start) / 1000000;
+
+    CACHE.put(path, index);
+
+    return index;
+  }
+
+  /**
+   * Gets the names of the Driver classes.
+   *
+   * @return The names of the Driver classes.
+   */
+  public ArrayList<String> getDriverClassNames() {
+    return new ArrayList<String>(driverClassNames);
+  }
+
+  /**
+   * Checks if the names have been read from the index of the JAR file.
+   *
+   * @return <code>true</code> if the names have been read from the index of
+   * the JAR file, <code>false</code> if the class files have been scanned.
+   */
+  public boolean isFromServiceFile() {
+    return fromServiceFile;
+  }
+
+  /**
+   * Gets the number of class files whose header has been read.
+   *
+   * @return The number of scanned class files.
+   */
+  public int getScannedClasses() {
+    return scannedClasses;
+  }
+
+  /**
+   * Gets the time spent building the index.
+   *
+   * @return The time (in milliseconds) spent building the index.
+   */
+  public long getBuildTime() {
+    return buildTime;
+  }
+
+  /**
+   * Reads the class names of the index of the JAR file. Blank lines and
+   * comments (after <code>#</code>) are skipped.
+   *
+   * @param in The stream of the index.
+   * @throws IOException if there is any problem reading the index.
+   */
+  private void readServiceFile(InputStream in) throws IOException {
+    fromServiceFile = true;
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      int comment = line.indexOf('#');
+
+      if (comment != -1) {
+        line = line.substring(0, comment);
+      }
+
+      line = line.trim();
+
+      if ((line.length() != 0) && !driverClassNames.contains(line)) {
+        driverClassNames.add(line);
+      }
+    }
+  }
+
+  /**
+   * Reads the headers of all the class files of the JAR and selects the
+   * Driver classes.
+   *
+   * @param jar The JAR file.
+   * @throws IOException if there is any problem reading the JAR file.
+   */
+  private void scanClasses(JarFile jar) throws IOException {
+    HashMap<String, ClassHeader> headers = new HashMap<String, ClassHeader>();
+    ArrayList<ClassHeader> order = new ArrayList<ClassHeader>();
+    Enumeration<JarEntry> entries = jar.entries();
+
+    while (entries.hasMoreElements()) {
+      JarEntry entry = entries.nextElement();
+
+      if (entry.getName().endsWith(".class")) {
+        InputStream in = jar.getInputStream(entry);
+
+        try {
+          ClassHeader h = ClassHeader.read(in);
+
+          if ((h != null) && (h.name != null)) {
+            headers.put(h.name, h);
+            order.add(h);
+          }
+        } catch (IOException e) {  // Not a valid class file, skipped
+        } finally {
+          in.close();
+        }
+
+        scannedClasses++;
+      }
+    }
+
+    HashMap<String, Boolean> external = new HashMap<String, Boolean>();
+
+    for (int i = 0 ; i < order.size() ; i++) {
+      ClassHeader h = order.get(i);
+
+      if (((h.access & NOT_INSTANTIABLE) == 0) && inherits(h.name, INDIDriver.class, headers, external) && !inherits(h.name, INDINotLoadableDriver.class, headers, external)) {
+        driverClassNames.add(h.name);
+      }
+    }
+  }
+
+  /**
+   * Checks if a class (or interface) is or inherits from a class or
+   * interface of the library. The classes of the JAR file are checked with
+   * their headers and the other ones (of the library) with the class loader
+   * of the library.
+   *
+   * @param name The name of the class.
+   * @param ancestor The class or interface of the library.
+   * @param headers The headers of the classes of the JAR file.
+   * @param external The already checked classes that are not in the JAR file
+   * (by name of the ancestor and name of the class).
+   * @return <code>true</code> if the class is or inherits from
+   * <code>ancestor</code>.
+   */
+  private static boolean inherits(String name, Class<?> ancestor, HashMap<String, ClassHeader> headers, HashMap<String, Boolean> external) {
+    if ((name == null) || name.equals("java.lang.Object")) {
+      return false;
+    }
+
+    if (name.equals(ancestor.getName())) {
+      return true;
+    }
+
+    ClassHeader h = headers.get(name);
+
+    if (h == null) {  // Not in the JAR
+      String key = ancestor.getName() + " " + name;
+      Boolean result = external.get(key);
+
+      if (result == null) {
+        try {
+          result = ancestor.isAssignableFrom(Class.forName(name, false, ancestor.getClassLoader()));
+        } catch (ClassNotFoundException e) {
+          result = false;
+        } catch (LinkageError e) {
+          result = false;
+        }
+
+        external.put(key, result);
+      }
+
+      return result;
+    }
+
+    if (inherits(h.superName, ancestor, headers, external)) {
+      return true;
+    }
+
+    for (int i = 0 ; i < h.interfaces.length ; i++) {
+      if (inherits(h.interfaces[i], ancestor, headers, external)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The beginning of a class file: its name, access flags, superclass and
+   * interfaces.
+   */
+  private static class ClassHeader {
+
+    /**
+     * The name of the class.
+     */
+    private String name;
+    /**
+     * The access flags of the class.
+     */
+    private int access;
+    /**
+     * The name of the superclass (<code>null</code> for
+     * <code>java.lang.Object</code>).
+     */
+    private String superName;
+    /**
+     * The names of the directly implemented interfaces.
+     */
+    private String[] interfaces;
+
+    /**
+     * Reads the header of a class file, skipping its constant pool.
+     *
+     * @param stream The stream of the class file.
+     * @return The header (<code>null</code> if it is not a valid class file).
+     * @throws IOException if there is any problem reading the class file.
+     */
+    private static ClassHeader read(InputStream stream) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(stream, CLASS_BUFFER_SIZE));
+
+      if (in.readInt() != CLASS_MAGIC) {
+        return null;
+      }
+
+      in.readUnsignedShort();  // Minor version
+      in.readUnsignedShort();  // Major version
+
+      int count = in.readUnsignedShort();
+      String[] utf8 = new String[count];
+      int[] classNames = new int[count];
+
+      for (int i = 1 ; i < count ; i++) {
+        int tag = in.readUnsignedByte();
+
+        switch (tag) {
+          case 1:  // Utf8
+            utf8[i] = in.readUTF();
+            break;
+          case 7:  // Class
+            classNames[i] = in.readUnsignedShort();
+            break;
+          case 8:  // String
+          case 16:  // MethodType
+          case 19:  // Module
+          case 20:  // Package
+            in.readUnsignedShort();
+            break;
+          case 15:  // MethodHandle
+            in.readUnsignedByte();
+            in.readUnsignedShort();
+            break;
+          case 3:  // Integer
+          case 4:  // Float
+          case 9:  // Fieldref
+          case 10:  // Methodref
+          case 11:  // InterfaceMethodref
+          case 12:  // NameAndType
+          case 17:  // Dynamic
+          case 18:  // InvokeDynamic
+            in.readInt();
+            break;
+          case 5:  // Long
+          case 6:  // Double
+            in.readLong();
+            i++;  // They take two entries
+            break;
+          default:
+            return null;
+        }
+      }
+
+      ClassHeader h = new ClassHeader();
+
+      h.access = in.readUnsignedShort();
+      h.name = getClassName(in.readUnsignedShort(), utf8, classNames);
+      h.superName = getClassName(in.readUnsignedShort(), utf8, classNames);
+      h.interfaces = new String[in.readUnsignedShort()];
+
+      for (int i = 0 ; i < h.interfaces.length ; i++) {
+        h.interfaces[i] = getClassName(in.readUnsignedShort(), utf8, classNames);
+      }
+
+      return h;
+    }
+
+    /**
+     * Gets a class name (with dots) from the constant pool.
+     *
+     * @param index The index of the Class entry.
+     * @param utf8 The Utf8 entries.
+     * @param classNames The indexes of the names of the Class entries.
+     * @return The class name (<code>null</code> if the index is 0 or not
+     * valid).
+     */
+    private static String getClassName(int index, String[] utf8, int[] classNames) {
+      if ((index <= 0) || (index >= classNames.length)) {
+        return null;
+      }
+
+      String n = utf8[classNames[index]];
+
+      if (n == null) {
+        return null;
+      }
+
+      return n.replace('/', '.');
+    }
+  }
+}
@@ -17,7 +17,8 @@
  */
 package laazotea.indi.server;
 
-import com.Ostermiller.util.CircularByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,11 +26,24 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import laazotea.indi.INDIException;
+import laazotea.indi.INDIFrameBuilder;
+import laazotea.indi.INDIMessage;
+import laazotea.indi.INDIMessageBuilder;
+import laazotea.indi.INDIMessageParser;
+import laazotea.indi.INDIStreamParser;
 import laazotea.indi.driver.INDIDriver;
+import laazotea.indi.driver.INDIPipedDriver;
+import org.w3c.dom.Document;
 
 /**
  * A class that represent a Java Device (created with the INDI Driver library).
  *
+ * Unless the Driver is a <code>INDIPipedDriver</code> it runs without pipes:
+ * the messages for it are parsed once and posted to it as
+ * <code>INDIMessage</code>s (that it parses in the threads shared by all the
+ * Java Drivers of the Server), and the messages that it writes are parsed as
+ * they are written and routed directly.
+ *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, July 23, 2013
  *
@@ -47,13 +61,24 @@ public class INDIJavaDevice extends INDIDevice {
    */
   private String identifier;
   /**
-   * A buffer to send information to the Driver.
+   * A buffer to send information to the Driver (<code>null</code> if the
+   * messages are posted directly).
+   */
+  private INDIByteRing toDriver;
+  /**
+   * A buffer to get information from the Driver (<code>null</code> if the
+   * messages are parsed directly).
+   */
+  private INDIByteRing fromDriver;
+  /**
+   * The parser of the messages to the Driver, that posts them to it
+   * (<code>null</code> if there are pipes).
    */
-  private CircularByteBuffer toDriver;
+  private INDIStreamParser toDriverParser;
   /**
-   * A buffer to get information from the Driver.
+   * The stream to which the Driver writes when there are no pipes.
    */
-  private CircularByteBuffer fromDriver;
+  private DriverOutputStream fromDriverStream;
   /**
    * The class of the Driver.
    */
@@ -84,12 +109,26 @@ public class INDIJavaDevice extends INDIDevice {
     this.identifier = identifier;
     this.driverClass = driverClass;
 
-    toDriver = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
-    fromDriver = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
+    boolean piped = INDIPipedDriver.class.isAssignableFrom(driverClass);
+    InputStream driverInput;
+    OutputStream driverOutput;
+
+    if (piped) {
+      toDriver = new INDIByteRing(server.getJavaDriverPipeSize());
+      fromDriver = new INDIByteRing(server.getJavaDriverPipeSize());
+
+      driverInput = toDriver.getInputStream();
+      driverOutput = fromDriver.getOutputStream();
+    } else {
+      fromDriverStream = new DriverOutputStream(server.getMaxFrameSize());
+
+      driverInput = new ByteArrayInputStream(new byte[0]);
+      driverOutput = fromDriverStream;
+    }
 
     try {
       Constructor c = driverClass.getConstructor(InputStream.class, OutputStream.class);
-      this.driver = (INDIDriver) c.newInstance(toDriver.getInputStream(), fromDriver.getOutputStream());
+      this.driver = (INDIDriver) c.newInstance(driverInput, driverOutput);
     } catch (InstantiationException ex) {
       throw new INDIException("Problem instantiating driver (not an INDI for Java Driver?) - InstantiationException");
     } catch (IllegalAccessException ex) {
@@ -102,7 +141,48 @@ public class INDIJavaDevice extends INDIDevice {
       throw new INDIException("Problem instantiating driver (not an INDI for Java Driver?) - ClassCastException");
     }
 
-    driver.startListening();
+    if (piped) {
+      driver.startListening(server.getThreadFactory());
+    } else {
+      toDriverParser = new INDIStreamParser(new INDIMessageBuilder(new DriverPoster(), server.getMaxFrameSize()), server.getMaxFrameSize());
+
+      driver.startDispatching(server.getDriverExecutor(), server.getThreadFactory(), server.getDriverScheduler());
+    }
+  }
+
+  /**
+   * Gets the pipe through which the messages are sent to the Driver (to check
+   * its usage).
+   *
+   * @return The pipe (<code>null</code> if the messages are posted directly).
+   */
+  public INDIByteRing getToDriverPipe() {
+    return toDriver;
+  }
+
+  /**
+   * Gets the pipe through which the messages of the Driver are received (to
+   * check its usage).
+   *
+   * @return The pipe (<code>null</code> if the messages are parsed
+   * directly).
+   */
+  public INDIByteRing getFromDriverPipe() {
+    return fromDriver;
+  }
+
+  /**
+   * Starts the reader if the Driver writes to a pipe. Otherwise its messages
+   * are parsed from now on as they are written (the ones written before are
+   * parsed now).
+   */
+  @Override
+  protected void startReading() {
+    if (fromDriver != null) {
+      super.startReading();
+    } else {
+      fromDriverStream.startParsing();
+    }
   }
 
   /**
@@ -178,8 +258,36 @@ public class INDIJavaDevice extends INDIDevice {
     return false;
   }
 
+  /**
+   * Sends a message to the Driver. If there are no pipes the message is
+   * parsed and posted to the Driver.
+   *
+   * @param xml The buffer with the message.
+   * @param offset The offset of the message in the buffer.
+   * @param length The length of the message.
+   */
+  @Override
+  protected void sendXMLMessage(byte[] xml, int offset, int length) {
+    if (toDriverParser == null) {
+      super.sendXMLMessage(xml, offset, length);
+    } else {
+      toDriverParser.parse(xml, offset, length);
+    }
+  }
+
+  /**
+   * Closes the pipes of the Driver. If there are no pipes there is no reader
+   * to finish when they are closed, so the Device is removed from the Server
+   * here.
+   */
   @Override
   public void closeConnections() {
+    if (toDriver == null) {
+      finishReader();
+
+      return;
+    }
+
     try {
       toDriver.getInputStream().close();
     } catch (IOException e) {
@@ -198,13 +306,31 @@ public class INDIJavaDevice extends INDIDevice {
     }
   }
 
+  /**
+   * Gets the stream from which the messages of the Driver are read.
+   *
+   * @return The stream (<code>null</code> if there are no pipes).
+   */
   @Override
   public InputStream getInputStream() {
+    if (fromDriver == null) {
+      return null;
+    }
+
     return fromDriver.getInputStream();
   }
 
+  /**
+   * Gets the stream to which the messages to the Driver are written.
+   *
+   * @return The stream (<code>null</code> if there are no pipes).
+   */
   @Override
   public OutputStream getOutputStream() {
+    if (toDriver == null) {
+      return null;
+    }
+
     return toDriver.getOutputStream();
   }
 
@@ -254,4 +380,93 @@ public class INDIJavaDevice extends INDIDevice {
   public void isBeingDestroyed() {
     driver.isBeingDestroyed();
   }
+
+  /**
+   * Posts the parsed messages to the Driver.
+   */
+  private class DriverPoster implements INDIMessageParser {
+
+    @Override
+    public void parseMessage(INDIMessage message) {
+      driver.postMessage(message);
+    }
+
+    @Override
+    public void parseXML(Document doc) {
+      driver.parseXML(doc);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return null;
+    }
+
+    @Override
+    public void finishReader() {
+    }
+  }
+
+  /**
+   * The stream to which the Driver writes when there are no pipes. The
+   * written messages are parsed and routed in the thread that writes them (in
+   * the same order). Until the Device is added to the Server (for example
+   * while the Driver is being constructed) they are kept, as in a pipe.
+   */
+  private class DriverOutputStream extends OutputStream {
+
+    /**
+     * The parser of the written messages.
+     */
+    private INDIStreamParser parser;
+    /**
+     * A buffer for the single written bytes.
+     */
+    private byte[] oneByte;
+    /**
+     * The bytes written before the parsing starts (<code>null</code> once it
+     * has started).
+     */
+    private ByteArrayOutputStream pending;
+
+    /**
+     * Constructs a new stream.
+     *
+     * @param maxFrameSize The maximum size (in bytes) of a written message.
+     */
+    private DriverOutputStream(int maxFrameSize) {
+      parser = new INDIStreamParser(new INDIFrameBuilder(INDIJavaDevice.this), maxFrameSize);
+      oneByte = new byte[1];
+      pending = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Parses the bytes written until now, and from now on parses them as they
+     * are written.
+     */
+    private synchronized void startParsing() {
+      if (pending != null) {
+        byte[] b = pending.toByteArray();
+
+        pending = null;
+
+        parser.parse(b, 0, b.length);
+      }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      oneByte[0] = (byte)b;
+
+      write(oneByte, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      if (pending != null) {
+        pending.write(b, off, len);
+      } else {
+        parser.parse(b, off, len);
+      }
+    }
+  }
 }
@@ -22,11 +22,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import laazotea.indi.INDICompression;
 import laazotea.indi.INDIException;
 
 /**
- * A class that represent a Network Device (another INDI server).
+ * A class that represent a Network Device (another INDI server). The link
+ * with it may be compressed (see <code>INDICompression</code>).
  *
  * @author S. Alonso (Zerjillo) [zerjioi at ugr.es]
  * @version 1.32, January 19, 2013
@@ -37,6 +40,16 @@ public class INDINetworkDevice extends INDIDevice {
    * The socket to connect for the INDI Server
    */
   private Socket socket;
+  /**
+   * The channel of the socket if the Server handles its connections with a
+   * <code>INDIChannelReactor</code> (<code>null</code> otherwise).
+   */
+  private SocketChannel channel;
+  /**
+   * The non-blocking connection (<code>null</code> if the Device is read by a
+   * <code>INDIProtocolReader</code>).
+   */
+  private INDIChannelConnection connection;
   /**
    * The host to connect for the INDI Server
    */
@@ -49,6 +62,23 @@ public class INDINetworkDevice extends INDIDevice {
    * A list of names of the Device (it may be more than one)
    */
   private ArrayList<String> names;
+  /**
+   * <code>true</code> if the link is compressed.
+   */
+  private boolean compressed;
+  /**
+   * The compression of the link if it is compressed and blocking
+   * (<code>null</code> otherwise).
+   */
+  private INDICompression compression;
+  /**
+   * The stream from which the messages are read if the link is blocking.
+   */
+  private InputStream input;
+  /**
+   * The stream to which the messages are written if the link is blocking.
+   */
+  private OutputStream output;
 
   /**
    * Constructs a new Network Device and connects to it.
@@ -58,18 +88,51 @@ public class INDINetworkDevice extends INDIDevice {
    * @throws INDIException if there is any problem with the connection.
    */
   protected INDINetworkDevice(AbstractINDIServer server, String host, int port) throws INDIException {
+    this(server, host, port, false);
+  }
+
+  /**
+   * Constructs a new Network Device and connects to it, compressing the link
+   * if asked to.
+   * @param server The server which listens to this Device.
+   * @param host The host to connect for the Device.
+   * @param port The port to connect for the Device.
+   * @param compressed <code>true</code> if the link must be compressed (the
+   * other Server must accept compressed Clients).
+   * @throws INDIException if there is any problem with the connection.
+   */
+  protected INDINetworkDevice(AbstractINDIServer server, String host, int port, boolean compressed) throws INDIException {
     super(server);
 
     names = new ArrayList<String>();
 
     this.host = host;
     this.port = port;
+    this.compressed = compressed;
 
     try {
-      socket = new Socket();
+      if (server.getReactor() != null) {
+        channel = SocketChannel.open();
+        socket = channel.socket();
+      } else {
+        socket = new Socket();
+      }
 
       socket.connect(new InetSocketAddress(host, port), 20000);
+
+      if (channel == null) {
+        input = socket.getInputStream();
+        output = socket.getOutputStream();
+
+        if (compressed) {
+          compression = new INDICompression();
+          input = compression.wrap(input);
+          output = compression.wrap(output);
+        }
+      }
     } catch (IOException e) {
+      closeConnections();
+
       throw new INDIException("Problem connecting to " + host + ":" + port);
     }
   }
@@ -112,32 +175,77 @@ public class INDINetworkDevice extends INDIDevice {
     return false;
   }
 
+  /**
+   * Starts reading from the Device: with a <code>INDIProtocolReader</code> or,
+   * if the Server has a <code>INDIChannelReactor</code>, registering the
+   * channel in it.
+   */
   @Override
-  public void closeConnections() {
+  protected void startReading() {
+    if (channel == null) {
+      super.startReading();
+
+      return;
+    }
+
     try {
-      socket.close();
+      INDICompression.Mode mode = compressed ? INDICompression.Mode.ALWAYS : INDICompression.Mode.PLAIN;
+
+      connection = getServer().getReactor().register(channel, this, getServer().getMaxFrameSize(), new INDIOutboundQueue(INDIOutboundQueue.DEFAULT_MAX_BYTES, INDIOutboundQueue.OverflowPolicy.DISCONNECT), mode);
     } catch (IOException e) {
+      closeConnections();
+      finishReader();
     }
   }
 
   @Override
-  public InputStream getInputStream() {
-    try {
-      return socket.getInputStream();
-    } catch (IOException e) {
+  protected void sendXMLMessage(byte[] xml, int offset, int length) {
+    if (connection != null) {
+      connection.write(xml, offset, length);
+    } else {
+      super.sendXMLMessage(xml, offset, length);
     }
-
-    return null;
   }
 
   @Override
-  public OutputStream getOutputStream() {
-    try {
-      return socket.getOutputStream();
-    } catch (IOException e) {
+  public void closeConnections() {
+    if (connection != null) {
+      connection.close();
+
+      return;
     }
 
-    return null;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Gets the compression of the link, that keeps the counters of the saved
+   * bytes.
+   *
+   * @return The compression (<code>null</code> if the link is not
+   * compressed).
+   */
+  public INDICompression getCompression() {
+    if (connection != null) {
+      return connection.getCompression();
+    }
+
+    return compression;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return input;  // null if read by the reactor
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return output;
   }
 
   @Override
@@ -0,0 +1,484 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import laazotea.indi.INDIEncodedMessage;
+import laazotea.indi.INDIStreamParser;
+
+/**
+ * A bounded queue of messages waiting to be written to a connection. It is
+ * bounded by the number of queued bytes (a message is always accepted if the
+ * queue is empty, so a single big BLOB fits) and what happens when it is full
+ * depends on its <code>OverflowPolicy</code>.
+ *
+ * The queue takes over one reference of each offered message and gives it
+ * to whoever takes the message, who must release it once written.
+ *
+ * A waiting message with a replace key (a <code>setNumberVector</code> or
+ * <code>setBLOBVector</code>) is replaced in place by a newer one for the same
+ * property, so a peer that falls behind gets the latest values and only one
+ * of them per property is kept. Any other message is a barrier: the messages
+ * queued before it are no longer replaced, so the order with the definitions
+ * and deletions of the properties is kept.
+ *
+ * The writers of the queue record their writes in it (see
+ * <code>recordWrite</code>), so the number of writes (system calls) per
+ * written message can be watched. The rates are got by sampling the
+ * counters.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIOutboundQueue {
+
+  /**
+   * The default maximum number of queued bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 2L * INDIStreamParser.DEFAULT_MAX_FRAME_SIZE;
+
+  /**
+   * What to do when a message does not fit in the queue.
+   */
+  public enum OverflowPolicy {
+
+    /**
+     * The sender waits until there is room (the slow peer slows down the
+     * sender).
+     */
+    BLOCK,
+    /**
+     * The oldest queued messages are dropped to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * The peer is disconnected.
+     */
+    DISCONNECT
+  }
+  /**
+   * The queued messages.
+   */
+  private ArrayDeque<Slot> messages;
+  /**
+   * The slots of the replaceable messages queued after the last barrier, by
+   * their replace key.
+   */
+  private HashMap<String, Slot> replaceable;
+  /**
+   * The maximum number of queued bytes.
+   */
+  private long maxBytes;
+  /**
+   * What to do when a message does not fit.
+   */
+  private OverflowPolicy policy;
+  /**
+   * The number of queued bytes.
+   */
+  private long bytes;
+  /**
+   * The maximum number of messages that have been queued at once.
+   */
+  private int highWaterMessages;
+  /**
+   * The maximum number of bytes that have been queued at once.
+   */
+  private long highWaterBytes;
+  /**
+   * The number of dropped messages.
+   */
+  private long droppedMessages;
+  /**
+   * The number of messages replaced by newer ones.
+   */
+  private long replacedMessages;
+  /**
+   * The number of writes to the socket.
+   */
+  private long writes;
+  /**
+   * The number of written messages.
+   */
+  private long writtenMessages;
+  /**
+   * The number of written bytes.
+   */
+  private long writtenBytes;
+  /**
+   * <code>true</code> if the queue has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * Constructs a new queue.
+   *
+   * @param maxBytes The maximum number of queued bytes.
+   * @param policy What to do when a message does not fit.
+   * @throws IllegalArgumentException if <code>maxBytes</code> is not positive
+   * or there is no policy.
+   */
+  public INDIOutboundQueue(long maxBytes, OverflowPolicy policy) throws IllegalArgumentException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("The maximum size of the queue must be positive");
+    }
+
+    if (policy == null) {
+      throw new IllegalArgumentException("No overflow policy for the queue");
+    }
+
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+
+    messages = new ArrayDeque<Slot>();
+    replaceable = new HashMap<String, Slot>();
+    bytes = 0;
+    closed = false;
+  }
+
+  /**
+   * Adds a message to the queue, taking over one of its references. If it
+   * can replace a waiting message it takes its place; otherwise, if the queue
+   * is full, the overflow policy is applied.
+   *
+   * @param message The message.
+   * @return <code>false</code> if the message could not be queued and the
+   * peer must be disconnected (or the queue is closed).
+   */
+  public synchronized boolean offer(INDIEncodedMessage message) {
+    int length = message.getLength();
+
+    if ((!closed) && replace(message)) {
+      return true;
+    }
+
+    while ((!closed) && (!messages.isEmpty()) && (bytes + length > maxBytes)) {
+      if (policy == OverflowPolicy.DISCONNECT) {
+        message.release();
+
+        return false;
+      } else if (policy == OverflowPolicy.DROP_OLDEST) {
+        dropOldest();
+      } else {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          message.release();
+
+          return false;
+        }
+      }
+    }
+
+    if (closed) {
+      message.release();
+
+      return false;
+    }
+
+    Slot slot = new Slot(message);
+    String key = message.getReplaceKey();
+
+    messages.add(slot);
+    bytes += length;
+
+    if (key == null) {  // A barrier
+      replaceable.clear();
+    } else {
+      replaceable.put(key, slot);
+    }
+
+    if (messages.size() > highWaterMessages) {
+      highWaterMessages = messages.size();
+    }
+
+    if (bytes > highWaterBytes) {
+      highWaterBytes = bytes;
+    }
+
+    notifyAll();
+
+    return true;
+  }
+
+  /**
+   * Replaces a waiting message with a newer one, if possible.
+   *
+   * @param message The newer message.
+   * @return <code>true</code> if it has replaced a waiting message.
+   */
+  private boolean replace(INDIEncodedMessage message) {
+    String key = message.getReplaceKey();
+
+    if (key == null) {
+      return false;
+    }
+
+    Slot slot = replaceable.get(key);
+
+    if ((slot == null) || (!message.canReplace(slot.message))) {
+      return false;
+    }
+
+    INDIEncodedMessage old = slot.message;
+
+    slot.message = message;
+    bytes += message.getLength() - old.getLength();
+    replacedMessages++;
+
+    if (bytes > highWaterBytes) {
+      highWaterBytes = bytes;
+    }
+
+    old.release();
+
+    return true;
+  }
+
+  /**
+   * Removes the oldest queued message.
+   *
+   * @return The message.
+   */
+  private INDIEncodedMessage remove() {
+    Slot slot = messages.poll();
+    INDIEncodedMessage m = slot.message;
+
+    bytes -= m.getLength();
+
+    String key = m.getReplaceKey();
+
+    if ((key != null) && (replaceable.get(key) == slot)) {
+      replaceable.remove(key);
+    }
+
+    return m;
+  }
+
+  /**
+   * Drops the oldest queued message.
+   */
+  private void dropOldest() {
+    droppedMessages++;
+
+    remove().release();
+  }
+
+  /**
+   * Takes the oldest message, waiting until there is one.
+   *
+   * @return The message (the caller must release it) or <code>null</code> if
+   * the queue has been closed.
+   */
+  public synchronized INDIEncodedMessage take() {
+    while ((!closed) && messages.isEmpty()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        return null;
+      }
+    }
+
+    return poll();
+  }
+
+  /**
+   * Takes the oldest message if there is one.
+   *
+   * @return The message (the caller must release it) or <code>null</code> if
+   * the queue is empty or closed.
+   */
+  public synchronized INDIEncodedMessage poll() {
+    if (closed) {
+      return null;
+    }
+
+    if (messages.isEmpty()) {
+      return null;
+    }
+
+    INDIEncodedMessage m = remove();
+
+    notifyAll();
+
+    return m;
+  }
+
+  /**
+   * Closes the queue, releasing the queued messages. Any waiting thread is
+   * woken up.
+   */
+  public synchronized void close() {
+    closed = true;
+
+    while (!messages.isEmpty()) {
+      messages.poll().message.release();
+    }
+
+    replaceable.clear();
+    bytes = 0;
+
+    notifyAll();
+  }
+
+  /**
+   * Checks if the queue is empty.
+   *
+   * @return <code>true</code> if there are no queued messages.
+   */
+  public synchronized boolean isEmpty() {
+    return messages.isEmpty();
+  }
+
+  /**
+   * Gets the overflow policy of the queue.
+   *
+   * @return The overflow policy.
+   */
+  public OverflowPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets the maximum number of queued bytes.
+   *
+   * @return The maximum number of queued bytes.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Gets the number of queued messages.
+   *
+   * @return The number of queued messages.
+   */
+  public synchronized int getDepth() {
+    return messages.size();
+  }
+
+  /**
+   * Gets the number of queued bytes.
+   *
+   * @return The number of queued bytes.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Gets the maximum number of messages that have been queued at once.
+   *
+   * @return The high-water mark of the number of messages.
+   */
+  public synchronized int getHighWaterMessages() {
+    return highWaterMessages;
+  }
+
+  /**
+   * Gets the maximum number of bytes that have been queued at once.
+   *
+   * @return The high-water mark of the number of bytes.
+   */
+  public synchronized long getHighWaterBytes() {
+    return highWaterBytes;
+  }
+
+  /**
+   * Gets the number of messages dropped to make room for newer ones.
+   *
+   * @return The number of dropped messages.
+   */
+  public synchronized long getDroppedMessages() {
+    return droppedMessages;
+  }
+
+  /**
+   * Gets the number of messages replaced by newer ones before being sent.
+   *
+   * @return The number of replaced messages.
+   */
+  public synchronized long getReplacedMessages() {
+    return replacedMessages;
+  }
+
+  /**
+   * Records a write to the socket. Called by the writer of the queue.
+   *
+   * @param messages The number of messages completely written.
+   * @param bytes The number of written bytes (before the compression of the
+   * link, if any).
+   */
+  synchronized void recordWrite(int messages, long bytes) {
+    writes++;
+    writtenMessages += messages;
+    writtenBytes += bytes;
+  }
+
+  /**
+   * Gets the number of writes to the socket (each one is a system call).
+   *
+   * @return The number of writes.
+   */
+  public synchronized long getWrites() {
+    return writes;
+  }
+
+  /**
+   * Gets the number of messages completely written to the socket.
+   *
+   * @return The number of written messages.
+   */
+  public synchronized long getWrittenMessages() {
+    return writtenMessages;
+  }
+
+  /**
+   * Gets the number of bytes written to the socket (before the compression of
+   * the link, if any).
+   *
+   * @return The number of written bytes.
+   */
+  public synchronized long getWrittenBytes() {
+    return writtenBytes;
+  }
+
+  /**
+   * A place in the queue, whose message can be replaced.
+   */
+  private static class Slot {
+
+    /**
+     * The message.
+     */
+    private INDIEncodedMessage message;
+
+    /**
+     * Constructs a new slot.
+     *
+     * @param message The message.
+     */
+    private Slot(INDIEncodedMessage message) {
+      this.message = message;
+    }
+  }
+}
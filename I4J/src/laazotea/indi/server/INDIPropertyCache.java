@@ -0,0 +1,340 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import laazotea.indi.INDIEncodedMessage;
+
+/**
+ * The latest state of the Properties of the Devices, as seen in the messages
+ * routed by the Server: the definition of each Property and the updates that
+ * still carry the latest value of some of its elements (updates may be
+ * partial). It allows answering <code>getProperties</code> messages at once,
+ * while the Drivers (that may define their Properties lazily) are still
+ * asked.
+ *
+ * The messages are kept already encoded. <code>setBLOBVector</code> messages
+ * are not kept, and the definitions and updates are kept without their
+ * message attribute (a log line that new Clients must not receive again). The state of each Device
+ * is changed and sent holding its lock (see <code>getLock</code>). The
+ * messages that change the state are routed after releasing the lock (each
+ * Device sends them from a single thread, so they keep their order) and the
+ * Clients that get the state are already listening, so they never receive an
+ * older update after a newer one: at most they receive an update twice.
+ *
+ * The state is sent to a Client holding the lock, so with the
+ * <code>BLOCK</code> overflow policy a Client whose queue is full while it
+ * gets the state delays the updates of that Device until it makes room.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIPropertyCache {
+
+  /**
+   * The state of each Device, by its name.
+   */
+  private ConcurrentHashMap<String, DeviceState> devices;
+
+  /**
+   * Constructs a new empty cache.
+   */
+  public INDIPropertyCache() {
+    devices = new ConcurrentHashMap<String, DeviceState>();
+  }
+
+  /**
+   * Gets the lock of the state of a Device, that must be held while the state
+   * is changed.
+   *
+   * @param deviceName The name of the Device.
+   * @return The lock of the Device.
+   */
+  public Object getLock(String deviceName) {
+    DeviceState d = devices.get(deviceName);
+
+    if (d == null) {
+      d = new DeviceState();
+
+      DeviceState previous = devices.putIfAbsent(deviceName, d);
+
+      if (previous != null) {
+        d = previous;
+      }
+    }
+
+    return d;
+  }
+
+  /**
+   * Stores the definition of a Property, forgetting its previous state.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property.
+   * @param message The <code>defXXXVector</code> message (the cache retains
+   * it).
+   */
+  public void define(String deviceName, String propertyName, INDIEncodedMessage message) {
+    DeviceState d = (DeviceState)getLock(deviceName);
+
+    synchronized (d) {
+      PropertyState p = d.properties.remove(propertyName);
+
+      if (p != null) {
+        p.release();
+      }
+
+      d.properties.put(propertyName, new PropertyState(message.retain()));
+    }
+  }
+
+  /**
+   * Stores an update of a defined Property. The older updates whose elements
+   * are all in the new one are forgotten.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property.
+   * @param message The <code>setXXXVector</code> message without message
+   * attribute (the cache retains it).
+   */
+  public void update(String deviceName, String propertyName, INDIEncodedMessage message) {
+    DeviceState d = devices.get(deviceName);
+
+    if ((d == null) || (message.getElementNames() == null)) {
+      return;
+    }
+
+    synchronized (d) {
+      PropertyState p = d.properties.get(propertyName);
+
+      if (p == null) {  // Not defined
+        return;
+      }
+
+      ArrayList<String> names = message.getElementNames();
+
+      for (int i = p.updates.size() - 1 ; i >= 0 ; i--) {
+        INDIEncodedMessage u = p.updates.get(i);
+
+        if (names.containsAll(u.getElementNames())) {
+          p.updates.remove(i);
+          u.release();
+        }
+      }
+
+      p.updates.add(message.retain());
+    }
+  }
+
+  /**
+   * Forgets a Property or, if no Property is specified, all the Properties
+   * of a Device.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property (<code>null</code> for all
+   * of them).
+   */
+  public void delete(String deviceName, String propertyName) {
+    DeviceState d = devices.get(deviceName);
+
+    if (d == null) {
+      return;
+    }
+
+    synchronized (d) {
+      if (propertyName == null) {
+        d.clear();
+      } else {
+        PropertyState p = d.properties.remove(propertyName);
+
+        if (p != null) {
+          p.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks if some Property of a Device is known.
+   *
+   * @param deviceName The name of the Device.
+   * @return <code>true</code> if some Property of the Device is known.
+   */
+  public boolean hasDevice(String deviceName) {
+    DeviceState d = devices.get(deviceName);
+
+    if (d == null) {
+      return false;
+    }
+
+    synchronized (d) {
+      return !d.properties.isEmpty();
+    }
+  }
+
+  /**
+   * Gets the names of the Devices with some known Property.
+   *
+   * @return The names of the Devices.
+   */
+  public ArrayList<String> getDeviceNames() {
+    ArrayList<String> names = new ArrayList<String>();
+    Iterator<String> it = devices.keySet().iterator();
+
+    while (it.hasNext()) {
+      String name = it.next();
+
+      if (hasDevice(name)) {
+        names.add(name);
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * Sends the known state of a Property or, if no Property is specified, of
+   * all the Properties of a Device to a listener.
+   *
+   * @param listener The listener.
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property (<code>null</code> for all
+   * of them).
+   * @return <code>false</code> if the Property (or the Device) is not known,
+   * so nothing has been sent.
+   */
+  public boolean send(INDIDeviceListener listener, String deviceName, String propertyName) {
+    DeviceState d = devices.get(deviceName);
+
+    if (d == null) {
+      return false;
+    }
+
+    synchronized (d) {
+      if (propertyName != null) {
+        PropertyState p = d.properties.get(propertyName);
+
+        if (p == null) {
+          return false;
+        }
+
+        p.send(listener);
+
+        return true;
+      }
+
+      if (d.properties.isEmpty()) {
+        return false;
+      }
+
+      Iterator<PropertyState> it = d.properties.values().iterator();
+
+      while (it.hasNext()) {
+        it.next().send(listener);
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * The known Properties of a Device.
+   */
+  private static class DeviceState {
+
+    /**
+     * The state of each Property, in the order in which they were defined.
+     */
+    private LinkedHashMap<String, PropertyState> properties;
+
+    /**
+     * Constructs a new empty state.
+     */
+    private DeviceState() {
+      properties = new LinkedHashMap<String, PropertyState>();
+    }
+
+    /**
+     * Forgets all the Properties.
+     */
+    private void clear() {
+      Iterator<PropertyState> it = properties.values().iterator();
+
+      while (it.hasNext()) {
+        it.next().release();
+      }
+
+      properties.clear();
+    }
+  }
+
+  /**
+   * The definition of a Property and its updates.
+   */
+  private static class PropertyState {
+
+    /**
+     * The definition.
+     */
+    private INDIEncodedMessage definition;
+    /**
+     * The updates that carry the latest value of some element, oldest first.
+     */
+    private ArrayList<INDIEncodedMessage> updates;
+
+    /**
+     * Constructs a new state.
+     *
+     * @param definition The definition.
+     */
+    private PropertyState(INDIEncodedMessage definition) {
+      this.definition = definition;
+
+      updates = new ArrayList<INDIEncodedMessage>();
+    }
+
+    /**
+     * Sends the definition and the updates to a listener.
+     *
+     * @param listener The listener.
+     */
+    private void send(INDIDeviceListener listener) {
+      listener.sendXMLMessage(definition);
+
+      for (int i = 0 ; i < updates.size() ; i++) {
+        listener.sendXMLMessage(updates.get(i));
+      }
+    }
+
+    /**
+     * Releases the kept messages.
+     */
+    private void release() {
+      definition.release();
+
+      for (int i = 0 ; i < updates.size() ; i++) {
+        updates.get(i).release();
+      }
+
+      updates.clear();
+    }
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ *  This file is part of INDI for Java.
+ *
+ *  INDI for Java is free software: you can redistribute it
+ *  and/or modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation, either version 3 of
+ *  the License, or (at your option) any later version.
+ *
+ *  INDI for Java is distributed in the hope that it will be
+ *  useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ *  of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with INDI for Java.  If not, see
+ *  <http://www.gnu.org/licenses/>.
+ */
+package laazotea.indi.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The routing table of a Server: which listeners (Clients and snooping
+ * Devices) receive the messages of each Device and Property. It is updated
+ * incrementally when the listeners ask for properties (and when they leave),
+ * so finding the recipients of a message only costs as much as the number of
+ * recipients.
+ *
+ * Each listener appears at most once among the lists that concern a Property:
+ * in the list of listeners to all Devices, or in the list of the Device, or
+ * in the list of the Property. The lists are never modified (a new one
+ * replaces them holding the lock of the table), so they can be read without
+ * locks.
+ *
+ * @author SquareBoot
+ * @version 2.0
+ */
+public class INDIRoutingTable {
+
+  /**
+   * An empty list.
+   */
+  private static final ArrayList<INDIDeviceListener> EMPTY = new ArrayList<INDIDeviceListener>();
+  /**
+   * The listeners to all the Devices.
+   */
+  private volatile ArrayList<INDIDeviceListener> allDevicesListeners;
+  /**
+   * The routes of each Device.
+   */
+  private ConcurrentHashMap<String, DeviceRoute> routes;
+
+  /**
+   * Constructs a new empty routing table.
+   */
+  public INDIRoutingTable() {
+    allDevicesListeners = EMPTY;
+    routes = new ConcurrentHashMap<String, DeviceRoute>();
+  }
+
+  /**
+   * Adds a listener to all the Devices. It is removed from the lists of
+   * particular Devices and Properties.
+   *
+   * @param listener The listener.
+   */
+  synchronized void addAllDevicesListener(INDIDeviceListener listener) {
+    if (listener.isRemovedFromRoutingTable() || allDevicesListeners.contains(listener)) {
+      return;
+    }
+
+    allDevicesListeners = with(allDevicesListeners, listener);
+
+    Iterator<String> it = listener.getDevicesToListen().iterator();
+
+    while (it.hasNext()) {
+      String deviceName = it.next();
+      DeviceRoute r = routes.get(deviceName);
+
+      if (r != null) {
+        r.deviceListeners = without(r.deviceListeners, listener);
+
+        prune(deviceName, r);
+      }
+    }
+
+    removeFromProperties(listener);
+  }
+
+  /**
+   * Adds a listener to a Device (unless it already listens to all of them).
+   * It is removed from the lists of the Properties of the Device.
+   *
+   * @param deviceName The name of the Device.
+   * @param listener The listener.
+   */
+  synchronized void addDeviceListener(String deviceName, INDIDeviceListener listener) {
+    if (listener.isRemovedFromRoutingTable() || allDevicesListeners.contains(listener)) {
+      return;
+    }
+
+    DeviceRoute r = getRoute(deviceName);
+
+    if (r.deviceListeners.contains(listener)) {
+      return;
+    }
+
+    r.deviceListeners = with(r.deviceListeners, listener);
+
+    Set<String> properties = listener.getPropertiesToListen(deviceName);
+
+    if (properties != null) {
+      Iterator<String> it = properties.iterator();
+
+      while (it.hasNext()) {
+        r.removePropertyListener(it.next(), listener);
+      }
+    }
+  }
+
+  /**
+   * Adds a listener to a Property (unless it already listens to its Device).
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property.
+   * @param listener The listener.
+   */
+  synchronized void addPropertyListener(String deviceName, String propertyName, INDIDeviceListener listener) {
+    if (listener.isRemovedFromRoutingTable() || allDevicesListeners.contains(listener)) {
+      return;
+    }
+
+    DeviceRoute r = getRoute(deviceName);
+
+    if (r.deviceListeners.contains(listener)) {
+      return;
+    }
+
+    ArrayList<INDIDeviceListener> list = r.propertyListeners.get(propertyName);
+
+    if (list == null) {
+      list = EMPTY;
+    }
+
+    if (list.contains(listener)) {
+      return;
+    }
+
+    r.propertyListeners.put(propertyName, with(list, listener));
+
+    if (!r.singlePropertyListeners.contains(listener)) {
+      r.singlePropertyListeners = with(r.singlePropertyListeners, listener);
+    }
+  }
+
+  /**
+   * Removes a listener from the table. It cannot be added again.
+   *
+   * @param listener The listener.
+   */
+  synchronized void remove(INDIDeviceListener listener) {
+    listener.setRemovedFromRoutingTable();
+
+    allDevicesListeners = without(allDevicesListeners, listener);
+
+    Iterator<String> it = listener.getDevicesToListen().iterator();
+
+    while (it.hasNext()) {
+      String deviceName = it.next();
+      DeviceRoute r = routes.get(deviceName);
+
+      if (r != null) {
+        r.deviceListeners = without(r.deviceListeners, listener);
+
+        prune(deviceName, r);
+      }
+    }
+
+    removeFromProperties(listener);
+  }
+
+  /**
+   * Removes a listener from the lists of the Properties it listens to.
+   *
+   * @param listener The listener.
+   */
+  private void removeFromProperties(INDIDeviceListener listener) {
+    Iterator<String> it = listener.getDevicesWithPropertiesToListen().iterator();
+
+    while (it.hasNext()) {
+      String deviceName = it.next();
+      DeviceRoute r = routes.get(deviceName);
+      Set<String> properties = listener.getPropertiesToListen(deviceName);
+
+      if ((r == null) || (properties == null)) {
+        continue;
+      }
+
+      Iterator<String> it2 = properties.iterator();
+
+      while (it2.hasNext()) {
+        r.removePropertyListener(it2.next(), listener);
+      }
+
+      prune(deviceName, r);
+    }
+  }
+
+  /**
+   * Gets the route of a Device, creating it if needed.
+   *
+   * @param deviceName The name of the Device.
+   * @return The route of the Device.
+   */
+  private DeviceRoute getRoute(String deviceName) {
+    DeviceRoute r = routes.get(deviceName);
+
+    if (r == null) {
+      r = new DeviceRoute();
+      routes.put(deviceName, r);
+    }
+
+    return r;
+  }
+
+  /**
+   * Removes the route of a Device if nobody listens to it (the routes are
+   * created for any Device name asked by the listeners, even for Devices
+   * that do not exist).
+   *
+   * @param deviceName The name of the Device.
+   * @param r The route of the Device.
+   */
+  private void prune(String deviceName, DeviceRoute r) {
+    if (r.deviceListeners.isEmpty() && r.propertyListeners.isEmpty() && r.singlePropertyListeners.isEmpty()) {
+      routes.remove(deviceName, r);
+    }
+  }
+
+  /**
+   * Gets the listeners to a Device (including the listeners to all Devices).
+   * The returned list must not be modified.
+   *
+   * @param deviceName The name of the Device.
+   * @return The listeners to the Device.
+   */
+  public ArrayList<INDIDeviceListener> getDeviceListeners(String deviceName) {
+    ArrayList<INDIDeviceListener> all = allDevicesListeners;
+    DeviceRoute r = (deviceName == null) ? null : routes.get(deviceName);
+
+    if ((r == null) || r.deviceListeners.isEmpty()) {
+      return all;
+    }
+
+    return concat(all, r.deviceListeners, EMPTY);
+  }
+
+  /**
+   * Gets the listeners to a Property (including the listeners to its Device
+   * and to all Devices). The returned list must not be modified.
+   *
+   * @param deviceName The name of the Device.
+   * @param propertyName The name of the Property.
+   * @return The listeners to the Property.
+   */
+  public ArrayList<INDIDeviceListener> getPropertyListeners(String deviceName, String propertyName) {
+    ArrayList<INDIDeviceListener> all = allDevicesListeners;
+    DeviceRoute r = (deviceName == null) ? null : routes.get(deviceName);
+
+    if (r == null) {
+      return all;
+    }
+
+    ArrayList<INDIDeviceListener> property = (propertyName == null) ? null : r.propertyListeners.get(propertyName);
+
+    if (property == null) {
+      property = EMPTY;
+    }
+
+    ArrayList<INDIDeviceListener> device = r.deviceListeners;
+
+    if (device.isEmpty() && property.isEmpty()) {
+      return all;
+    }
+
+    return concat(all, device, property);
+  }
+
+  /**
+   * Gets the listeners to particular Properties of a Device (that do not
+   * listen to the whole Device). The returned list must not be modified.
+   *
+   * @param deviceName The name of the Device.
+   * @return The listeners to particular Properties of the Device.
+   */
+  public ArrayList<INDIDeviceListener> getSinglePropertyListeners(String deviceName) {
+    DeviceRoute r = (deviceName == null) ? null : routes.get(deviceName);
+
+    if (r == null) {
+      return EMPTY;
+    }
+
+    return r.singlePropertyListeners;
+  }
+
+  /**
+   * Joins three lists.
+   *
+   * @param a The first list.
+   * @param b The second list.
+   * @param c The third list.
+   * @return A new list with the elements of the three lists.
+   */
+  private static ArrayList<INDIDeviceListener> concat(ArrayList<INDIDeviceListener> a, ArrayList<INDIDeviceListener> b, ArrayList<INDIDeviceListener> c) {
+    ArrayList<INDIDeviceListener> list = new ArrayList<INDIDeviceListener>(a.size() + b.size() + c.size());
+
+    list.addAll(a);
+    list.addAll(b);
+    list.addAll(c);
+
+    return list;
+  }
+
+  /**
+   * Gets a copy of a list with another listener.
+   *
+   * @param list The list.
+   * @param listener The listener to add.
+   * @return The new list.
+   */
+  private static ArrayList<INDIDeviceListener> with(ArrayList<INDIDeviceListener> list, INDIDeviceListener listener) {
+    ArrayList<INDIDeviceListener> newList = new ArrayList<INDIDeviceListener>(list.size() + 1);
+
+    newList.addAll(list);
+    newList.add(listener);
+
+    return newList;
+  }
+
+  /**
+   * Gets a copy of a list without a listener.
+   *
+   * @param list The list.
+   * @param listener The listener to remove.
+   * @return The new list (or the same list if it does not contain the
+   * listener).
+   */
+  private static ArrayList<INDIDeviceListener> without(ArrayList<INDIDeviceListener> list, INDIDeviceListener listener) {
+    if (!list.contains(listener)) {
+      return list;
+    }
+
+    if (list.size() == 1) {
+      return EMPTY;
+    }
+
+    ArrayList<INDIDeviceListener> newList = new ArrayList<INDIDeviceListener>(list);
+
+    newList.remove(listener);
+
+    return newList;
+  }
+
+  /**
+   * The listeners to a Device and to its Properties.
+   */
+  private static class DeviceRoute {
+
+    /**
+     * The listeners to the whole Device.
+     */
+    private volatile ArrayList<INDIDeviceListener> deviceListeners;
+    /**
+     * The listeners to each particular Property.
+     */
+    private ConcurrentHashMap<String, ArrayList<INDIDeviceListener>> propertyListeners;
+    /**
+     * The listeners to any particular Property.
+     */
+    private volatile ArrayList<INDIDeviceListener> singlePropertyListeners;
+
+    /**
+     * Constructs a new empty route.
+     */
+    private DeviceRoute() {
+      deviceListeners = EMPTY;
+      propertyListeners = new ConcurrentHashMap<String, ArrayList<INDIDeviceListener>>();
+      singlePropertyListeners = EMPTY;
+    }
+
+    /**
+     * Removes a listener from the list of a Property (and, if it no longer
+     * listens to any particular Property, from the list of listeners to
+     * particular Properties).
+     *
+     * @param propertyName The name of the Property.
+     * @param listener The listener.
+     */
+    private void removePropertyListener(String propertyName, INDIDeviceListener listener) {
+      ArrayList<INDIDeviceListener> list = propertyListeners.get(propertyName);
+
+      if (list == null) {
+        return;
+      }
+
+      list = without(list, listener);
+
+      if (list.isEmpty()) {
+        propertyListeners.remove(propertyName);
+      } else {
+        propertyListeners.put(propertyName, list);
+      }
+
+      Iterator<ArrayList<INDIDeviceListener>> it = propertyListeners.values().iterator();
+
+      while (it.hasNext()) {
+        if (it.next().contains(listener)) {
+          return;
+        }
+      }
+
+      singlePropertyListeners = without(singlePropertyListeners, listener);
+    }
+  }
+}
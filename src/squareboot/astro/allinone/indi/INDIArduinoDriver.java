@@ -48,18 +48,6 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
      * Serial port text field - elem.
      */
     private INDITextElement serialPortFieldElem;
-    /**
-     * Prop to connect or disconnect from the serial port.
-     */
-    private INDISwitchProperty connectionProp;
-    /**
-     * {@link #connectionProp}'s "Connect" element.
-     */
-    private INDISwitchElement connectElem;
-    /**
-     * {@link #connectionProp}'s "Disconnect" element.
-     */
-    private INDISwitchElement disconnectElem;
     /**
      * Prop to chose a port to which this driver will attempt to connect.
      */
@@ -88,6 +76,11 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
      * MoonLite virtual serial port RO field.
      */
     private INDITextProperty moonLitePortProp;
+    /**
+     * Lock of the pins, that are defined and cleared by the connections (which run in their own thread) while the
+     * clients may be changing them.
+     */
+    private final Object pinsLock = new Object();
 
     /**
      * Class constructor. Initializes the INDI properties and elements and looks for available serial ports.
@@ -99,12 +92,13 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
     public INDIArduinoDriver(InputStream inputStream, OutputStream outputStream, boolean connectImmediately) {
         this(inputStream, outputStream);
         if (connectImmediately) {
-            serialInit();
+            // No client is listening yet, so there's no need to connect in background
             try {
-                updateProperty(connectionProp);
+                serialInit();
+                getConnectionProperty().getElement("CONNECT").setValue(Constants.SwitchStatus.ON);
 
             } catch (INDIException e) {
-                Main.err(e.getMessage(), e, false);
+                getConnectionProperty().setState(PropertyStates.ALERT);
             }
         }
     }
@@ -122,10 +116,8 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
                 PropertyStates.OK, PropertyPermissions.RW);
         serialPortFieldElem = new INDITextElement(serialPortFieldProp, "Serial port", "Serial port", serialPortString);
         scanSerialPorts();
-        connectionProp = new INDISwitchProperty(this, "Connection", "Serial connection", "Serial connection",
-                PropertyStates.OK, PropertyPermissions.RW, Constants.SwitchRules.ONE_OF_MANY);
-        connectElem = new INDISwitchElement(connectionProp, "Connect", "Connect", Constants.SwitchStatus.OFF);
-        disconnectElem = new INDISwitchElement(connectionProp, "Disconnect", "Disconnect", Constants.SwitchStatus.ON);
+        addProperty(serialPortFieldProp);
+        addProperty(portsListProp);
     }
 
     /**
@@ -160,16 +152,18 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
         Main.info("Force reboot invoked!");
         serialPort.print(":RS#");
         Main.err("Cleaning all the values of the map...");
-        for (INDIElement element : pinsMap.keySet()) {
-            if (element instanceof INDINumberElement) {
-                element.setValue(0.0);
+        synchronized (pinsLock) {
+            for (INDIElement element : pinsMap.keySet()) {
+                if (element instanceof INDINumberElement) {
+                    element.setValue(0.0);
 
-            } else if (element instanceof INDISwitchElement) {
-                element.setValue(Constants.SwitchStatus.OFF);
+                } else if (element instanceof INDISwitchElement) {
+                    element.setValue(Constants.SwitchStatus.OFF);
+                }
+            }
+            for (ArduinoPin pin : pinsMap.values()) {
+                pin.setPinValueObj(new PinValue());
             }
-        }
-        for (ArduinoPin pin : pinsMap.values()) {
-            pin.setPinValueObj(new PinValue());
         }
         try {
             ArrayList<INDIProperty> properties = getPropertiesAsList();
@@ -199,9 +193,14 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
 
     /**
      * Attempt to connect to the stored serial port.
+     *
+     * @throws INDIException if the connection fails.
      */
-    private void serialInit() {
-        if ((serialPort == null) && (!serialPortString.equals(""))) {
+    private void serialInit() throws INDIException {
+        if (serialPortString.equals("")) {
+            throw new INDIException("No serial port selected.");
+        }
+        if (serialPort == null) {
             try {
                 Main.err("Connecting to the Serial port...");
                 serialPort = new SerialPortImpl(serialPortString);
@@ -222,22 +221,24 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
                     throw new IllegalStateException(e.getMessage(), e);
                 }
 
-                pinsMap = new HashMap<>();
-                digitalPinProps = new INDISwitchProperty(this, "Digital pins", "Digital pins", "Manage Pins",
-                        PropertyStates.OK, PropertyPermissions.RW, Constants.SwitchRules.ANY_OF_MANY);
-                for (ArduinoPin pin : switchPins) {
-                    Main.err("Defining digital pin: " + pin);
-                    updatePin(pin);
-                    pinsMap.put(new INDISwitchElement(digitalPinProps, "Pin " + pin.getPin(),
-                            pin.getName(), pin.getValueIndi()), pin);
-                }
-                pwmPinsProp = new INDINumberProperty(this, "PWM pins", "PWM pins", "Manage Pins",
-                        PropertyStates.OK, PropertyPermissions.RW);
-                for (ArduinoPin pin : pwmPins) {
-                    Main.err("Defining PWM pin: " + pin);
-                    updatePin(pin);
-                    pinsMap.put(new INDINumberElement(pwmPinsProp, "PWM pin" + pin.getPin(), pin.getName(),
-                            (double) pin.getValuePercentage(), 0.0, 100.0, 1.0, "%f"), pin);
+                synchronized (pinsLock) {
+                    pinsMap = new HashMap<>();
+                    digitalPinProps = new INDISwitchProperty(this, "Digital pins", "Digital pins", "Manage Pins",
+                            PropertyStates.OK, PropertyPermissions.RW, Constants.SwitchRules.ANY_OF_MANY);
+                    for (ArduinoPin pin : switchPins) {
+                        Main.err("Defining digital pin: " + pin);
+                        updatePin(pin);
+                        pinsMap.put(new INDISwitchElement(digitalPinProps, "Pin " + pin.getPin(),
+                                pin.getName(), pin.getValueIndi()), pin);
+                    }
+                    pwmPinsProp = new INDINumberProperty(this, "PWM pins", "PWM pins", "Manage Pins",
+                            PropertyStates.OK, PropertyPermissions.RW);
+                    for (ArduinoPin pin : pwmPins) {
+                        Main.err("Defining PWM pin: " + pin);
+                        updatePin(pin);
+                        pinsMap.put(new INDINumberElement(pwmPinsProp, "PWM pin" + pin.getPin(), pin.getName(),
+                                (double) pin.getValuePercentage(), 0.0, 100.0, 1.0, "%f"), pin);
+                    }
                 }
 
                 Main.err("Loading port forwarder (socat)...");
@@ -249,13 +250,9 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
                 addProperty(moonLitePortProp);
                 addProperty(digitalPinProps);
                 addProperty(pwmPinsProp);
-                connectElem.setValue(Constants.SwitchStatus.ON);
-                disconnectElem.setValue(Constants.SwitchStatus.OFF);
-                connectionProp.setState(PropertyStates.OK);
                 Main.info("Connect MoonLite to port " + mockedPort);
 
-            } catch (ConnectionException e) {
-                connectionProp.setState(PropertyStates.ALERT);
+            } catch (ConnectionException | IllegalStateException e) {
                 if (serialPort != null) {
                     try {
                         serialPort.removeListener(this);
@@ -267,10 +264,8 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
                     }
                 }
                 Main.err(e.getMessage(), e, false);
+                throw new INDIException(e.getMessage());
             }
-
-        } else {
-            connectionProp.setState(PropertyStates.ALERT);
         }
     }
 
@@ -284,23 +279,25 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
 
     @Override
     public void processNewNumberValue(INDINumberProperty property, Date timestamp, INDINumberElementAndValue[] elementsAndValues) {
-        if (property == pwmPinsProp) {
-            for (INDINumberElementAndValue eAV : elementsAndValues) {
-                INDINumberElement element = eAV.getElement();
-                ArduinoPin pin = pinsMap.get(element);
-                PinValue newValue = new PinValue(PinValue.ValueType.PERCENTAGE, eAV.getValue().intValue());
-                if (!newValue.equals(pin.getPinValueObj())) {
-                    pin.setPinValueObj(newValue);
-                    element.setValue((double) pin.getValuePercentage());
-                    updatePin(pin);
+        synchronized (pinsLock) {
+            if ((property == pwmPinsProp) && (pinsMap != null)) {
+                for (INDINumberElementAndValue eAV : elementsAndValues) {
+                    INDINumberElement element = eAV.getElement();
+                    ArduinoPin pin = pinsMap.get(element);
+                    PinValue newValue = new PinValue(PinValue.ValueType.PERCENTAGE, eAV.getValue().intValue());
+                    if (!newValue.equals(pin.getPinValueObj())) {
+                        pin.setPinValueObj(newValue);
+                        element.setValue((double) pin.getValuePercentage());
+                        updatePin(pin);
+                    }
                 }
-            }
-            pwmPinsProp.setState(PropertyStates.OK);
-            try {
-                updateProperty(pwmPinsProp);
+                pwmPinsProp.setState(PropertyStates.OK);
+                try {
+                    updateProperty(pwmPinsProp, true);
 
-            } catch (INDIException e) {
-                Main.err(e.getMessage(), e, false);
+                } catch (INDIException e) {
+                    Main.err(e.getMessage(), e, false);
+                }
             }
         }
     }
@@ -333,43 +330,27 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
     @Override
     public void processNewSwitchValue(INDISwitchProperty property, Date timestamp, INDISwitchElementAndValue[] elementsAndValues) {
         if (property == digitalPinProps) {
-            for (INDISwitchElementAndValue eAV : elementsAndValues) {
-                INDISwitchElement element = eAV.getElement();
-                ArduinoPin pin = pinsMap.get(element);
-                PinValue newValue = new PinValue(PinValue.ValueType.INDI, eAV.getValue());
-                if (!newValue.equals(pin.getPinValueObj())) {
-                    pin.setPinValueObj(newValue);
-                    element.setValue(newValue.getValueIndi());
-                    updatePin(pin);
+            synchronized (pinsLock) {
+                if (pinsMap == null) {
+                    return;
                 }
-            }
-            digitalPinProps.setState(PropertyStates.OK);
-            try {
-                updateProperty(digitalPinProps);
-
-            } catch (INDIException e) {
-                Main.err(e.getMessage(), e, false);
-            }
-
-        } else if (property == connectionProp) {
-            for (INDISwitchElementAndValue eAV : elementsAndValues) {
-                INDISwitchElement element = eAV.getElement();
-                Constants.SwitchStatus value = eAV.getValue();
-                if (value == Constants.SwitchStatus.ON) {
-                    if (element == connectElem) {
-                        serialInit();
-
-                    } else if (element == disconnectElem) {
-                        serialDisconnect();
+                for (INDISwitchElementAndValue eAV : elementsAndValues) {
+                    INDISwitchElement element = eAV.getElement();
+                    ArduinoPin pin = pinsMap.get(element);
+                    PinValue newValue = new PinValue(PinValue.ValueType.INDI, eAV.getValue());
+                    if (!newValue.equals(pin.getPinValueObj())) {
+                        pin.setPinValueObj(newValue);
+                        element.setValue(newValue.getValueIndi());
+                        updatePin(pin);
                     }
-                    break;
                 }
-            }
-            try {
-                updateProperty(connectionProp);
+                digitalPinProps.setState(PropertyStates.OK);
+                try {
+                    updateProperty(digitalPinProps, true);
 
-            } catch (INDIException e) {
-                Main.err(e.getMessage(), e, false);
+                } catch (INDIException e) {
+                    Main.err(e.getMessage(), e, false);
+                }
             }
 
         } else if (property == portsListProp) {
@@ -398,7 +379,12 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
         }
     }
 
-    private void serialDisconnect() {
+    /**
+     * Disconnects from the serial port, if connected.
+     *
+     * @throws INDIException if the disconnection fails.
+     */
+    private void serialDisconnect() throws INDIException {
         if (serialPort != null) {
             try {
                 serialPort.removeListener(this);
@@ -407,45 +393,44 @@ public class INDIArduinoDriver extends INDIDriver implements INDIConnectionHandl
                 multiplexer = null;
                 removeProperty(moonLitePortProp);
                 moonLitePortProp = null;
-                removeProperty(digitalPinProps);
-                digitalPinProps = null;
-                removeProperty(pwmPinsProp);
-                pwmPinsProp = null;
-                pinsMap.clear();
-                pinsMap = null;
-                disconnectElem.setValue(Constants.SwitchStatus.ON);
-                connectElem.setValue(Constants.SwitchStatus.OFF);
-                connectionProp.setState(PropertyStates.OK);
+                synchronized (pinsLock) {
+                    removeProperty(digitalPinProps);
+                    digitalPinProps = null;
+                    removeProperty(pwmPinsProp);
+                    pwmPinsProp = null;
+                    pinsMap.clear();
+                    pinsMap = null;
+                }
 
             } catch (ConnectionException e) {
                 Main.err(e.getMessage(), e, false);
-                connectionProp.setState(PropertyStates.ALERT);
+                throw new INDIException(e.getMessage());
             }
-
-        } else {
-            connectionProp.setState(PropertyStates.ALERT);
         }
     }
 
+    /**
+     * Connects to the serial port. It's called in its own thread, while the CONNECTION property is busy.
+     *
+     * @param timestamp the timestamp of the request.
+     * @throws INDIException if the connection fails.
+     */
     @Override
-    public void driverConnect(Date timestamp) {
+    public void driverConnect(Date timestamp) throws INDIException {
         Main.info("Driver connection");
-        addProperty(connectionProp);
-        addProperty(serialPortFieldProp);
-        if (!getPropertiesAsList().contains(portsListProp)) {
-            addProperty(portsListProp);
-        }
+        serialInit();
     }
 
+    /**
+     * Disconnects from the serial port. It's called in its own thread, while the CONNECTION property is busy.
+     *
+     * @param timestamp the timestamp of the request.
+     * @throws INDIException if the disconnection fails.
+     */
     @Override
-    public void driverDisconnect(Date timestamp) {
+    public void driverDisconnect(Date timestamp) throws INDIException {
         Main.info("Driver disconnection");
         serialDisconnect();
-        removeProperty(connectionProp);
-        removeProperty(serialPortFieldProp);
-        if (getPropertiesAsList().contains(portsListProp)) {
-            removeProperty(portsListProp);
-        }
     }
 
     /**